@@ -13,6 +13,20 @@ public abstract class AbstractCache<K, V> implements Cache<K, V> {
         this.indices = new HashMap<>();
     }
 
+    /**
+     * 是否存在索引
+     */
+    protected boolean hasIndex() {
+        return !this.indices.isEmpty();
+    }
+
+    /**
+     * 全部索引
+     */
+    protected Collection<Index<K, V>> getIndices() {
+        return Collections.unmodifiableCollection(this.indices.values());
+    }
+
     protected void putIndex(K key, V value) {
         for (Index<K, V> index : this.indices.values()) {
             Object indexAttr = index.getIndexBuilder().buildIndex(value);
@@ -29,10 +43,7 @@ public abstract class AbstractCache<K, V> implements Cache<K, V> {
 
     @Override
     public List<V> getByIndex(String indexName, Object indexAttr) {
-        Index<K, V> index = indices.get(indexName);
-        if (index == null) {
-            throw new IllegalArgumentException(String.format("Index[%s] is not exist!", indexName));
-        }
+        Index<K, V> index = getIndex(indexName);
 
         Set<K> keys = index.getKeys(indexAttr);
         if (CollectionUtils.isEmpty(keys)) {
@@ -45,10 +56,40 @@ public abstract class AbstractCache<K, V> implements Cache<K, V> {
         return values;
     }
 
+    @Override
+    public int countByIndex(String indexName, Object indexAttr) {
+        return getIndex(indexName).countKeys(indexAttr);
+    }
+
+    @Override
+    public List<K> keysByIndex(String indexName, Object indexAttr, int offset, int limit) {
+        return getIndex(indexName).getKeys(indexAttr, offset, limit);
+    }
+
+    @Override
+    public boolean existsByIndex(String indexName, Object indexAttr) {
+        return getIndex(indexName).hasKeys(indexAttr);
+    }
+
+    private Index<K, V> getIndex(String indexName) {
+        Index<K, V> index = indices.get(indexName);
+        if (index == null) {
+            throw new IllegalArgumentException(String.format("Index[%s] is not exist!", indexName));
+        }
+        return index;
+    }
+
     public Cache<K, V> addIndex(IndexBuilder<V> indexBuilder) {
-        Index<K, V> index = new Index<>(indexBuilder);
+        Index<K, V> index = createIndex(indexBuilder);
         this.indices.put(indexBuilder.name(), index);
         return this;
     }
 
+    /**
+     * 创建索引，子类可以使用不同的索引实现
+     */
+    protected Index<K, V> createIndex(IndexBuilder<V> indexBuilder) {
+        return new Index<>(indexBuilder);
+    }
+
 }
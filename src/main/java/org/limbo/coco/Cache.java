@@ -1,7 +1,16 @@
 package org.limbo.coco;
 
 import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface Cache<K, V> extends Closeable {
 
@@ -10,6 +19,55 @@ public interface Cache<K, V> extends Closeable {
      */
     List<K> getKeys();
 
+    /**
+     * 弱一致的key迭代器，直接遍历底层的并发容器，不加锁也不复制key集合；
+     * 遍历期间的修改不一定可见，不支持通过迭代器移除。
+     * 默认实现遍历 {@link #getKeys()} 返回的副本，实现类应该覆写以避免复制
+     */
+    default Iterator<K> keyIterator() {
+        return Collections.unmodifiableList(getKeys()).iterator();
+    }
+
+    /**
+     * 分页获取key，cursor为null时从头开始，之后传入上一页返回的游标；
+     * 返回页的游标为null时表示已经遍历完
+     */
+    default KeyPage<K> keys(KeyCursor<K> cursor, int batchSize) {
+        if (cursor == null) {
+            cursor = new KeyCursor<>(keyIterator());
+        }
+        return cursor.next(batchSize);
+    }
+
+    /**
+     * 遍历全部缓存条目的 Spliterator，弱一致，支持拆分后并行遍历；
+     * 返回的条目是不可修改的副本。
+     * 默认实现按 {@link #getKeys()} 的副本拆分，遍历时逐个 {@link #get(Object)}，跳过已经被移除的key
+     */
+    default Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return getKeys().stream()
+                .<Map.Entry<K, V>>map(key -> {
+                    V value = get(key);
+                    return value != null || contains(key) ? new AbstractMap.SimpleImmutableEntry<>(key, value) : null;
+                })
+                .filter(Objects::nonNull)
+                .spliterator();
+    }
+
+    /**
+     * 遍历全部缓存条目的顺序流
+     */
+    default Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(entrySpliterator(), false);
+    }
+
+    /**
+     * 遍历全部缓存条目的并行流，按 {@link #entrySpliterator()} 的拆分方式分配给 ForkJoin 的各个线程
+     */
+    default Stream<Map.Entry<K, V>> parallelStream() {
+        return StreamSupport.stream(entrySpliterator(), true);
+    }
+
     /**
      * 将一个k-v放入缓存，或更新缓存；
      *
@@ -47,4 +105,55 @@ public interface Cache<K, V> extends Closeable {
      * 根据索引获取缓存数据
      */
     List<V> getByIndex(String indexName, Object indexAttr);
+
+    /**
+     * 索引值对应的缓存数据条数，只读取索引，不读取value；
+     * 默认实现通过 {@link #getByIndex(String, Object)} 读取全部value后计数，实现类应该覆写
+     */
+    default int countByIndex(String indexName, Object indexAttr) {
+        return getByIndex(indexName, indexAttr).size();
+    }
+
+    /**
+     * 分页获取索引值对应的key，只读取索引，不读取value；
+     * 跳过offset个key后最多返回limit个，分页期间有写入时可能重复或遗漏。
+     * 默认实现遍历 {@link #getKeys()}，按value的 equals 找出 {@link #getByIndex(String, Object)} 中的数据对应的key，
+     * 代价很高，实现类应该覆写
+     *
+     * @throws IllegalArgumentException offset或limit为负数
+     */
+    default List<K> keysByIndex(String indexName, Object indexAttr, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit cannot be negative!");
+        }
+        List<K> keys = new ArrayList<>();
+        List<V> values = getByIndex(indexName, indexAttr);
+        if (values.isEmpty() || limit == 0) {
+            return keys;
+        }
+        int skipped = 0;
+        for (K key : getKeys()) {
+            V value = get(key);
+            if (value == null || !values.contains(value)) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            keys.add(key);
+            if (keys.size() >= limit) {
+                break;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 是否存在索引值对应的缓存数据，只读取索引，不读取value；
+     * 默认实现通过 {@link #getByIndex(String, Object)} 判断，实现类应该覆写
+     */
+    default boolean existsByIndex(String indexName, Object indexAttr) {
+        return !getByIndex(indexName, indexAttr).isEmpty();
+    }
 }
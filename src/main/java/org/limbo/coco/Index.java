@@ -2,7 +2,11 @@ package org.limbo.coco;
 
 import lombok.Getter;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -27,16 +31,68 @@ public class Index<K, V> {
         return indexedKeys.get(indexAttr);
     }
 
+    /**
+     * 索引值对应的key数量
+     */
+    public int countKeys(Object indexAttr) {
+        Set<K> keySet = indexedKeys.get(indexAttr);
+        return keySet == null ? 0 : keySet.size();
+    }
+
+    /**
+     * 索引值是否对应至少一个key；key全部移除后集合仍然保留，需要判断是否为空
+     */
+    public boolean hasKeys(Object indexAttr) {
+        Set<K> keySet = indexedKeys.get(indexAttr);
+        return keySet != null && !keySet.isEmpty();
+    }
+
+    /**
+     * 按key集合的迭代顺序跳过offset个key后最多返回limit个；
+     * 迭代顺序只在两次调用之间没有修改时保持一致，分页期间有写入时可能重复或遗漏
+     */
+    public List<K> getKeys(Object indexAttr, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit cannot be negative!");
+        }
+        Set<K> keySet = indexedKeys.get(indexAttr);
+        if (keySet == null || limit == 0) {
+            return Collections.emptyList();
+        }
+        Iterator<K> iterator = keySet.iterator();
+        for (int i = 0; i < offset && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        List<K> keys = new ArrayList<>(Math.min(limit, 1024));
+        while (keys.size() < limit && iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        return keys;
+    }
+
     public void addKey(Object indexAttr, K key) {
         Set<K> keySet = indexedKeys.get(indexAttr);
         if (keySet == null) {
-            HashSet<K> newOne = new HashSet<>();
-            keySet = indexedKeys.putIfAbsent(indexAttr, newOne);
-            keySet = keySet == null ? newOne : keySet;
+            // 同一个索引值可能被多个线程同时写入，使用并发的Set
+            keySet = indexedKeys.computeIfAbsent(indexAttr, attr -> newKeySet());
         }
         keySet.add(key);
     }
 
+    /**
+     * 批量加入一个索引值对应的key，用于从索引文件加载
+     */
+    public void addKeys(Object indexAttr, Collection<K> keys) {
+        indexedKeys.computeIfAbsent(indexAttr, attr -> newKeySet()).addAll(keys);
+    }
+
+    /**
+     * 创建一个索引值对应的key集合，可能被多个线程同时写入，需要线程安全
+     */
+    protected Set<K> newKeySet() {
+        return ConcurrentHashMap.newKeySet();
+    }
+
     public void removeKey(Object indexAttr, K key) {
         Set<K> keySet = indexedKeys.get(indexAttr);
         if (keySet != null) {
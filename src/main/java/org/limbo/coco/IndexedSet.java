@@ -4,27 +4,79 @@ package org.limbo.coco;
 import org.apache.commons.collections.CollectionUtils;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 带索引的并发Set；
+ * 读操作（迭代、size、contains、getByIndex、countByIndex、existsByIndex）不加锁，迭代为弱一致；
+ * 写操作按元素的hash分段加锁，同一个元素的写入和索引维护是原子的，不同分段的写入互不影响
+ */
 public class IndexedSet<E> extends AbstractSet<E> implements Iterable<E> {
 
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
     private Set<E> internalSet;
 
     /** 索引 */
     private Map<String, Index<E, E>> indices;
 
-    private ReentrantLock lock;
+    /** 分段锁 */
+    private ReentrantLock[] locks;
 
     public IndexedSet() {
-        this.internalSet = new HashSet<>();
-        this.indices = new HashMap<>();
+        this(DEFAULT_CONCURRENCY_LEVEL);
+    }
 
-        this.lock = new ReentrantLock();
+    /**
+     * @param concurrencyLevel 分段锁数量，会向上取整为2的幂
+     */
+    public IndexedSet(int concurrencyLevel) {
+        this.internalSet = ConcurrentHashMap.newKeySet();
+        this.indices = new ConcurrentHashMap<>();
+
+        int stripes = Integer.highestOneBit(Math.max(2, concurrencyLevel) - 1) << 1;
+        this.locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
     }
 
     @Override
     public Iterator<E> iterator() {
-        return internalSet.iterator();
+        Iterator<E> it = internalSet.iterator();
+        return new Iterator<E>() {
+
+            private E last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return last = it.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                // 通过Set移除，保证索引同步更新
+                IndexedSet.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    /**
+     * 直接使用底层并发Set的 Spliterator，可以均匀拆分用于并行流
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        return internalSet.spliterator();
     }
 
     @Override
@@ -33,46 +85,40 @@ public class IndexedSet<E> extends AbstractSet<E> implements Iterable<E> {
     }
 
     @Override
-    public boolean addAll(Collection<? extends E> c) {
-        this.lock.lock();
+    public boolean contains(Object o) {
+        return internalSet.contains(o);
+    }
 
-        try {
-            boolean modified = false;
-            for (E e : c)
-                if (internalSet.add(e)) {
-                    putIndex(e);
-                    modified = true;
-                } else {
-                    removeIndex(e);
-                    putIndex(e);
-                }
-            return modified;
-        } finally {
-            this.lock.unlock();
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        boolean modified = false;
+        for (E e : c) {
+            if (add(e)) {
+                modified = true;
+            }
         }
+        return modified;
     }
 
     @Override
     public boolean add(E e) {
-        this.lock.lock();
+        ReentrantLock lock = lockFor(e);
+        lock.lock();
 
         try {
-            if (internalSet.add(e)) {
-                putIndex(e);
-                return true;
-            } else {
-                removeIndex(e);
-                putIndex(e);
-                return false;
-            }
+            boolean added = internalSet.add(e);
+            // 已经存在时索引值由相等的元素计算，只补充写入索引，不先移除，不加锁的读取不会看到元素暂时从索引中消失
+            putIndex(e);
+            return added;
         } finally {
-            this.lock.unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public boolean remove(Object o) {
-        this.lock.lock();
+        ReentrantLock lock = lockFor(o);
+        lock.lock();
 
         try {
             if (internalSet.remove(o)) {
@@ -82,7 +128,7 @@ public class IndexedSet<E> extends AbstractSet<E> implements Iterable<E> {
 
             return false;
         } finally {
-            this.lock.unlock();
+            lock.unlock();
         }
     }
 
@@ -90,10 +136,7 @@ public class IndexedSet<E> extends AbstractSet<E> implements Iterable<E> {
      * 根据索引获取缓存数据
      */
     public List<E> getByIndex(String indexName, Object indexAttr) {
-        Index<E, E> index = indices.get(indexName);
-        if (index == null) {
-            throw new IllegalArgumentException(String.format("Index[%s] is not exist!", indexName));
-        }
+        Index<E, E> index = getIndex(indexName);
 
         Set<E> keys = index.getKeys(indexAttr);
         if (CollectionUtils.isEmpty(keys)) {
@@ -103,6 +146,41 @@ public class IndexedSet<E> extends AbstractSet<E> implements Iterable<E> {
         return new ArrayList<>(keys);
     }
 
+    /**
+     * 索引值对应的元素个数
+     */
+    public int countByIndex(String indexName, Object indexAttr) {
+        return getIndex(indexName).countKeys(indexAttr);
+    }
+
+    /**
+     * 分页获取索引值对应的元素，跳过offset个后最多返回limit个，分页期间有写入时可能重复或遗漏
+     */
+    public List<E> keysByIndex(String indexName, Object indexAttr, int offset, int limit) {
+        return getIndex(indexName).getKeys(indexAttr, offset, limit);
+    }
+
+    /**
+     * 是否存在索引值对应的元素
+     */
+    public boolean existsByIndex(String indexName, Object indexAttr) {
+        return getIndex(indexName).hasKeys(indexAttr);
+    }
+
+    private Index<E, E> getIndex(String indexName) {
+        Index<E, E> index = indices.get(indexName);
+        if (index == null) {
+            throw new IllegalArgumentException(String.format("Index[%s] is not exist!", indexName));
+        }
+        return index;
+    }
+
+    private ReentrantLock lockFor(Object o) {
+        int h = o == null ? 0 : o.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (locks.length - 1)];
+    }
+
     private void putIndex(E key) {
         for (Index<E, E> index : this.indices.values()) {
             Object indexAttr = index.getIndexBuilder().buildIndex(key);
@@ -0,0 +1,53 @@
+package org.limbo.coco;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 分页遍历key的游标，持有底层的弱一致迭代器，每次从上次停下的位置继续取下一页；
+ * 遍历期间不加锁、不复制整个key集合，遍历过程中的修改不一定可见，但不会抛出 ConcurrentModificationException；
+ * 底层迭代器持有文件等资源时（如溢出到磁盘的键目录），遍历完成时自动释放，提前放弃游标时需要调用 close
+ *
+ * @param <K>
+ */
+public class KeyCursor<K> implements Closeable {
+
+    private final Iterator<K> iterator;
+
+    public KeyCursor(Iterator<K> iterator) {
+        this.iterator = iterator;
+    }
+
+    /**
+     * 取下一页，最多 batchSize 个key
+     */
+    public KeyPage<K> next(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive!");
+        }
+        List<K> keys = new ArrayList<>(Math.min(batchSize, 1024));
+        while (keys.size() < batchSize && iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        if (iterator.hasNext()) {
+            return new KeyPage<>(keys, this);
+        }
+        close();
+        return new KeyPage<>(keys, null);
+    }
+
+    /**
+     * 释放底层迭代器持有的资源
+     */
+    @Override
+    public void close() {
+        if (iterator instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) iterator);
+        }
+    }
+
+}
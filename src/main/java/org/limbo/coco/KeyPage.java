@@ -0,0 +1,41 @@
+package org.limbo.coco;
+
+import java.util.List;
+
+/**
+ * 分页遍历key时的一页
+ *
+ * @param <K>
+ */
+public class KeyPage<K> {
+
+    private final List<K> keys;
+
+    private final KeyCursor<K> cursor;
+
+    KeyPage(List<K> keys, KeyCursor<K> cursor) {
+        this.keys = keys;
+        this.cursor = cursor;
+    }
+
+    /**
+     * 本页的key
+     */
+    public List<K> getKeys() {
+        return keys;
+    }
+
+    /**
+     * 取下一页使用的游标，已经遍历完时返回null
+     */
+    public KeyCursor<K> getCursor() {
+        return cursor;
+    }
+
+    /**
+     * 是否为最后一页
+     */
+    public boolean isLast() {
+        return cursor == null;
+    }
+}
@@ -0,0 +1,22 @@
+package org.limbo.coco;
+
+import org.limbo.coco.primitive.LongHashSet;
+
+import java.util.Set;
+
+/**
+ * key为long的索引，每个索引值对应的key集合使用 {@link LongHashSet}，不存储Long对象
+ *
+ * @param <V>
+ */
+public class LongIndex<V> extends Index<Long, V> {
+
+    public LongIndex(IndexBuilder<V> indexBuilder) {
+        super(indexBuilder);
+    }
+
+    @Override
+    protected Set<Long> newKeySet() {
+        return new LongHashSet();
+    }
+}
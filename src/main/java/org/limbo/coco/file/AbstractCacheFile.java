@@ -1,13 +1,21 @@
 package org.limbo.coco.file;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.limbo.coco.file.directory.SpillableKeyDirectory;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -34,9 +42,21 @@ public abstract class AbstractCacheFile<K> implements Closeable {
      */
     protected AtomicLong usedBytes;
 
+    /**
+     * {@link #openValue(Object)} 共用的只读文件通道，第一次打开时创建；在 {@link #lock()} 内访问
+     */
+    private SharedReadChannel readChannel;
+
     public AbstractCacheFile(String filePath) {
+        this(filePath, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @param cachedData 键目录，默认为堆内的 ConcurrentHashMap，也可以使用可溢出到磁盘的目录
+     */
+    public AbstractCacheFile(String filePath, Map<K, ValueDescriptor> cachedData) {
         this.cacheFilePath = Paths.get(filePath);
-        this.cachedData = new ConcurrentHashMap<>();
+        this.cachedData = cachedData;
         this.usedBytes = new AtomicLong(0);
         this.status = new AtomicReference<>(CacheFileStatus.NORMAL);
 
@@ -51,6 +71,23 @@ public abstract class AbstractCacheFile<K> implements Closeable {
         }
     }
 
+    /**
+     * 打开一个已经写好数据的缓存文件，不会删除文件内容
+     *
+     * @param cachedData 文件中数据的键目录
+     * @param usedBytes  有效缓存数据的字节数
+     */
+    public AbstractCacheFile(String filePath, Map<K, ValueDescriptor> cachedData, long usedBytes) {
+        this.cacheFilePath = Paths.get(filePath);
+        this.cachedData = cachedData;
+        this.usedBytes = new AtomicLong(usedBytes);
+        this.status = new AtomicReference<>(CacheFileStatus.NORMAL);
+
+        if (!cacheFilePath.toFile().exists()) {
+            throw new CacheFileCreateException("Cache file[" + filePath + "] not exist!");
+        }
+    }
+
     /**
      * 确保缓存文件可用
      */
@@ -76,14 +113,36 @@ public abstract class AbstractCacheFile<K> implements Closeable {
     }
 
     /**
-     * 判断是否包含某个索引
+     * 弱一致的key迭代器，不加锁也不复制键目录；
+     * 键目录溢出到磁盘时返回的是 {@link CloseableIterator}，提前结束遍历时需要关闭
+     */
+    public Iterator<K> keyIterator() {
+        if (cachedData instanceof SpillableKeyDirectory) {
+            return ((SpillableKeyDirectory<K, ValueDescriptor>) cachedData).keyIterator();
+        }
+        return Collections.unmodifiableSet(cachedData.keySet()).iterator();
+    }
+
+    /**
+     * 判断是否包含某个索引；各种键目录都是线程安全的，不需要加锁，读取不会被写入阻塞
      */
     public boolean contains(K key) {
-        try {
-            lock();
-            return cachedData.containsKey(key);
-        } finally {
-            unlock();
+        return cachedData.containsKey(key);
+    }
+
+    /**
+     * 键目录
+     */
+    Map<K, ValueDescriptor> keyDirectory() {
+        return cachedData;
+    }
+
+    /**
+     * 关闭键目录，键目录溢出到磁盘时会删除对应的段文件
+     */
+    protected void closeCachedData() {
+        if (cachedData instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) cachedData);
         }
     }
 
@@ -112,8 +171,98 @@ public abstract class AbstractCacheFile<K> implements Closeable {
 
     public abstract void put(K key, byte[] data);
 
+    /**
+     * 批量写入，整批只加一次锁
+     */
+    public void putAll(List<K> keys, List<byte[]> data) {
+        try {
+            lock();
+            for (int i = 0; i < keys.size(); i++) {
+                put(keys.get(i), data.get(i));
+            }
+        } finally {
+            unlock();
+        }
+    }
+
     public abstract byte[] get(K key);
 
+    /**
+     * 将数据读入调用方提供的缓冲区，从dst的position开始写入，读取后position增加数据长度；
+     * dst剩余空间不足时不读取，只返回数据长度，调用方可以换用更大的缓冲区重试
+     *
+     * @return 数据长度，不存在时返回-1
+     */
+    public int get(K key, ByteBuffer dst) {
+        byte[] data = get(key);
+        if (data == null) {
+            return -1;
+        }
+        if (dst.remaining() >= data.length) {
+            dst.put(data);
+        }
+        return data.length;
+    }
+
+    /**
+     * 将写缓冲区中的数据写入文件
+     */
+    public abstract void flush();
+
+    /**
+     * 创建当前时刻的快照用于顺序扫描，创建前会先flush；
+     * 快照持有独立的文件通道，用完需要关闭
+     */
+    public CacheFileSnapshot<K> snapshot(int readBufferSize) {
+        try {
+            lock();
+            assertCacheFilAlive();
+            flush();
+            return new CacheFileSnapshot<>(cacheFilePath, cachedData, readBufferSize);
+        } catch (IOException e) {
+            log.error("Error while create snapshot of cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while create snapshot of cache file[" + this + "]", e);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 打开某个值在文件中的位置用于零拷贝传输，打开前会先flush；
+     * 不存在或值为null时返回null；同一个文件上打开的值共用一个只读文件通道
+     */
+    public ValueRegion openValue(K key) {
+        try {
+            lock();
+            assertCacheFilAlive();
+            ValueDescriptor vd = cachedData.get(key);
+            if (vd == null || vd.length == 0) {
+                return null;
+            }
+            flush();
+            if (readChannel == null) {
+                readChannel = new SharedReadChannel(FileChannel.open(cacheFilePath, StandardOpenOption.READ));
+            }
+            return new ValueRegion(readChannel.retain(), vd.offset, vd.length);
+        } catch (IOException e) {
+            log.error("Error while open value of cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while open value of cache file[" + this + "]", e);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 文件被swap替换或关闭后，在 {@link #lock()} 内调用，释放缓存文件对共用只读通道的引用；
+     * 已经打开的 {@link ValueRegion} 继续读取原文件，之后打开的使用新的通道
+     */
+    protected void releaseReadChannel() {
+        if (readChannel != null) {
+            readChannel.release();
+            readChannel = null;
+        }
+    }
+
     public abstract void lock();
 
     public abstract void unlock();
@@ -0,0 +1,75 @@
+package org.limbo.coco.file;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对齐的直接内存池，Direct IO 读写使用；
+ * 按2的幂划分容量等级，每个等级最多缓存 maxBuffersPerClass 个，超出的直接丢弃，内存占用可预期
+ */
+class AlignedBufferPool {
+
+    private static final Map<Integer, AlignedBufferPool> POOLS = new ConcurrentHashMap<>();
+
+    private static final int MAX_BUFFERS_PER_CLASS = 32;
+
+    private final int alignment;
+
+    private final Map<Integer, ConcurrentLinkedQueue<ByteBuffer>> buffers;
+
+    private final Map<Integer, AtomicInteger> pooledCounts;
+
+    private AlignedBufferPool(int alignment) {
+        this.alignment = alignment;
+        this.buffers = new ConcurrentHashMap<>();
+        this.pooledCounts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 获取指定对齐大小的内存池
+     */
+    static AlignedBufferPool forAlignment(int alignment) {
+        return POOLS.computeIfAbsent(alignment, AlignedBufferPool::new);
+    }
+
+    /**
+     * 获取一个容量不小于 capacity 的对齐缓冲区，position为0，limit为capacity
+     */
+    ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = buffers.computeIfAbsent(sizeClass, c -> new ConcurrentLinkedQueue<>()).poll();
+        if (buffer == null) {
+            buffer = DirectIo.allocateAligned(sizeClass, alignment);
+        } else {
+            pooledCounts.get(sizeClass).decrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区
+     */
+    void release(ByteBuffer buffer) {
+        int sizeClass = buffer.capacity();
+        AtomicInteger count = pooledCounts.computeIfAbsent(sizeClass, c -> new AtomicInteger(0));
+        if (count.incrementAndGet() > MAX_BUFFERS_PER_CLASS) {
+            count.decrementAndGet();
+            return;
+        }
+        buffers.computeIfAbsent(sizeClass, c -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+
+    int getAlignment() {
+        return alignment;
+    }
+
+    private int sizeClass(int capacity) {
+        int size = Math.max(capacity, alignment);
+        return Integer.bitCount(size) == 1 ? size : Integer.highestOneBit(size) << 1;
+    }
+}
@@ -0,0 +1,140 @@
+package org.limbo.coco.file;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存文件所在的目录，一般每个目录挂在一块独立的磁盘上；
+ * 新的缓存文件按 {@link CacheFilePlacement} 分布到各个目录，
+ * 可以为每个目录创建独立的IO线程，同一块磁盘上的读写由自己的线程执行，不同磁盘之间互不阻塞。
+ */
+@Slf4j
+class CacheFileDirectories implements Closeable {
+
+    private final List<String> directories;
+
+    private final CacheFilePlacement placement;
+
+    /**
+     * 每个目录的IO线程池，未开启时为空
+     */
+    private final Map<Path, ExecutorService> executors;
+
+    private final AtomicInteger roundRobin = new AtomicInteger(0);
+
+    /**
+     * @param ioThreadsPerDirectory 每个目录的IO线程数，小于等于0时不创建
+     */
+    CacheFileDirectories(List<String> directories, CacheFilePlacement placement, int ioThreadsPerDirectory) {
+        if (directories == null || directories.isEmpty()) {
+            throw new IllegalArgumentException("At least one cache file directory is required!");
+        }
+        this.directories = new ArrayList<>(directories);
+        this.placement = placement == null ? CacheFilePlacement.ROUND_ROBIN : placement;
+        this.executors = new HashMap<>();
+        if (ioThreadsPerDirectory > 0) {
+            for (String directory : this.directories) {
+                Path dir = normalize(Paths.get(directory));
+                if (executors.containsKey(dir)) {
+                    continue;
+                }
+                String threadName = "coco-io-" + dir.getFileName() + "-";
+                AtomicInteger threadId = new AtomicInteger(0);
+                executors.put(dir, Executors.newFixedThreadPool(ioThreadsPerDirectory, r -> {
+                    Thread thread = new Thread(r, threadName + threadId.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+            }
+        }
+    }
+
+    /**
+     * 选择下一个缓存文件所在的目录
+     */
+    String next() {
+        if (directories.size() == 1) {
+            return directories.get(0);
+        }
+        if (placement == CacheFilePlacement.FREE_SPACE) {
+            String directory = nextByFreeSpace();
+            if (directory != null) {
+                return directory;
+            }
+        }
+        return directories.get((roundRobin.getAndIncrement() & Integer.MAX_VALUE) % directories.size());
+    }
+
+    /**
+     * 按剩余空间加权随机选择，获取不到剩余空间时返回null
+     */
+    private String nextByFreeSpace() {
+        long[] usable = new long[directories.size()];
+        long total = 0;
+        for (int i = 0; i < directories.size(); i++) {
+            File dir = new File(directories.get(i));
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            usable[i] = Math.max(0, dir.getUsableSpace());
+            total += usable[i];
+        }
+        if (total <= 0) {
+            return null;
+        }
+
+        long r = ThreadLocalRandom.current().nextLong(total);
+        for (int i = 0; i < usable.length; i++) {
+            r -= usable[i];
+            if (r < 0) {
+                return directories.get(i);
+            }
+        }
+        return directories.get(directories.size() - 1);
+    }
+
+    /**
+     * 缓存文件所在目录的IO线程池，未开启IO线程时返回null
+     */
+    ExecutorService executorFor(AbstractCacheFile<?> cacheFile) {
+        if (executors.isEmpty()) {
+            return null;
+        }
+        return executors.get(normalize(cacheFile.cacheFilePath.getParent()));
+    }
+
+    List<String> getDirectories() {
+        return Collections.unmodifiableList(directories);
+    }
+
+    private static Path normalize(Path path) {
+        return path == null ? Paths.get("").toAbsolutePath() : path.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdown();
+        }
+        for (Map.Entry<Path, ExecutorService> entry : executors.entrySet()) {
+            try {
+                if (!entry.getValue().awaitTermination(10, TimeUnit.SECONDS)) {
+                    log.warn("IO threads of directory[{}] not terminated in 10s", entry.getKey());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
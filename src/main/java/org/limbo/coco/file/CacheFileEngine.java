@@ -0,0 +1,16 @@
+package org.limbo.coco.file;
+
+/**
+ * 缓存文件的读写实现
+ */
+public enum CacheFileEngine {
+
+    /** {@link ReentrantCacheFile}，RandomAccessFile + 写缓冲区，默认 */
+    REENTRANT,
+    /** {@link DirectIoCacheFile}，绕过操作系统页缓存，需要 JDK10+ 且文件系统支持 O_DIRECT，否则退化为普通IO */
+    DIRECT_IO,
+    /** {@link ReadWriteCacheFile}，读取不加锁，适合多线程读多写少的场景 */
+    READ_WRITE,
+    ;
+
+}
@@ -0,0 +1,14 @@
+package org.limbo.coco.file;
+
+/**
+ * 配置了多个缓存文件目录时，新缓存文件的放置策略
+ */
+public enum CacheFilePlacement {
+
+    /** 依次轮流放置到每个目录，默认 */
+    ROUND_ROBIN,
+    /** 按目录所在磁盘的剩余空间加权随机放置，剩余空间越大越容易被选中 */
+    FREE_SPACE,
+    ;
+
+}
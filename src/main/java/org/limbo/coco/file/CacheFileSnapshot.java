@@ -0,0 +1,253 @@
+package org.limbo.coco.file;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * 缓存文件某一时刻的快照，用于顺序扫描：
+ * 创建时复制键目录中的有效数据描述，按偏移量排序，并打开一个独立的只读文件通道；
+ * 读取时按偏移量从小到大用大块读取，已经被覆盖或移除的数据不在键目录中，会被直接跳过。
+ * <p>
+ * 快照创建后缓存文件发生swap也不影响读取：原文件被替换后，已经打开的通道仍然可以读到旧的内容。
+ * <p>
+ * 快照可以被多个线程按不同的范围同时读取，每个线程通过 {@link #reader(int)} 使用自己的读缓冲区。
+ *
+ * @param <K>
+ */
+@Slf4j
+public class CacheFileSnapshot<K> implements Closeable {
+
+    /**
+     * 默认的读缓冲区大小，1M
+     */
+    public static final int DEFAULT_READ_BUFFER_SIZE = 1 << 20;
+
+    private final Path cacheFilePath;
+
+    private final FileChannel channel;
+
+    /**
+     * 按偏移量排序后的key、偏移量、长度
+     */
+    private final Object[] keys;
+
+    private final long[] offsets;
+
+    private final int[] lengths;
+
+    private final int readBufferSize;
+
+    /**
+     * 单线程顺序读取时使用的读取器
+     */
+    private Reader reader;
+
+    /**
+     * 引用计数，归零时关闭文件通道
+     */
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * 在缓存文件的锁内调用，此时缓冲区的数据已经写入文件
+     */
+    CacheFileSnapshot(Path cacheFilePath, Map<K, ValueDescriptor> cachedData, int readBufferSize) throws IOException {
+        this.cacheFilePath = cacheFilePath;
+
+        List<Map.Entry<K, ValueDescriptor>> entries = new ArrayList<>(cachedData.size());
+        for (Map.Entry<K, ValueDescriptor> entry : cachedData.entrySet()) {
+            ValueDescriptor vd = entry.getValue();
+            // 复制一份描述对象，避免swap时原对象被修改
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), new ValueDescriptor(vd.offset, vd.length)));
+        }
+        entries.sort((e1, e2) -> Long.compare(e1.getValue().offset, e2.getValue().offset));
+
+        this.keys = new Object[entries.size()];
+        this.offsets = new long[entries.size()];
+        this.lengths = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            Map.Entry<K, ValueDescriptor> entry = entries.get(i);
+            keys[i] = entry.getKey();
+            offsets[i] = entry.getValue().offset;
+            lengths[i] = entry.getValue().length;
+        }
+
+        this.channel = FileChannel.open(cacheFilePath, StandardOpenOption.READ);
+        this.readBufferSize = readBufferSize;
+    }
+
+    /**
+     * 快照中的数据条数
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public K key(int i) {
+        return (K) keys[i];
+    }
+
+    /**
+     * 第i条数据在文件中的偏移量，按i递增
+     */
+    public long offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * 第一个偏移量不小于offset的数据位置，在 [from, to) 范围内二分查找
+     */
+    public int indexOf(long offset, int from, int to) {
+        int low = from, high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 读取第i条数据，长度为0的数据（null值）返回长度为0的数组；
+     * 按i递增的顺序读取时，文件只会被顺序读一遍
+     */
+    public byte[] read(int i) {
+        if (reader == null) {
+            reader = reader(readBufferSize);
+        }
+        return reader.read(i);
+    }
+
+    /**
+     * 依次读取 [from, to) 范围内的数据
+     */
+    public void forEach(int from, int to, BiConsumer<K, byte[]> consumer) {
+        for (int i = from; i < to; i++) {
+            consumer.accept(key(i), read(i));
+        }
+    }
+
+    /**
+     * 创建一个拥有独立读缓冲区的读取器，多个读取器可以在不同线程上同时读取
+     */
+    public Reader reader(int readBufferSize) {
+        return new Reader(readBufferSize);
+    }
+
+    /**
+     * 增加一次引用，需要对应调用一次 {@link #close()}
+     */
+    void retain() {
+        refCount.incrementAndGet();
+    }
+
+    public class Reader {
+
+        /**
+         * 读缓冲区，以及缓冲区内容在文件中的起始位置
+         */
+        private final ByteBuffer readBuffer;
+
+        private long windowStart = -1;
+
+        Reader(int readBufferSize) {
+            this.readBuffer = ByteBuffer.allocate(readBufferSize);
+        }
+
+        public byte[] read(int i) {
+            int length = lengths[i];
+            if (length == 0) {
+                return ValueDescriptor.EMPTY_DATA;
+            }
+
+            long offset = offsets[i];
+            byte[] data = new byte[length];
+            try {
+                if (length > readBuffer.capacity()) {
+                    // 超过缓冲区大小的数据直接读取
+                    readFully(ByteBuffer.wrap(data), offset);
+                    return data;
+                }
+                if (windowStart < 0 || offset < windowStart || offset + length > windowStart + readBuffer.limit()) {
+                    fill(offset);
+                }
+                int position = (int) (offset - windowStart);
+                if (position + length > readBuffer.limit()) {
+                    throw new EOFException("Unexpected end of cache file[" + cacheFilePath + "] at " + offset);
+                }
+                ByteBuffer view = readBuffer.duplicate();
+                view.position(position);
+                view.get(data);
+                return data;
+            } catch (IOException e) {
+                log.error("Error while scan cache file[" + cacheFilePath + "]", e);
+                throw new IllegalStateException("Error while scan cache file[" + cacheFilePath + "]", e);
+            }
+        }
+
+        /**
+         * 从offset开始填充读缓冲区，文件末尾不足缓冲区大小时只读到末尾
+         */
+        private void fill(long offset) throws IOException {
+            readBuffer.clear();
+            long position = offset;
+            while (readBuffer.hasRemaining()) {
+                int n = channel.read(readBuffer, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+            readBuffer.flip();
+            windowStart = offset;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of cache file[" + cacheFilePath + "] at " + position);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * 不论引用计数，直接关闭文件通道，用于提前结束遍历时回收资源
+     */
+    void forceClose() {
+        IOUtils.closeQuietly(channel);
+    }
+
+    /**
+     * 释放一次引用，最后一个引用释放时关闭文件通道
+     */
+    @Override
+    public void close() throws IOException {
+        if (refCount.decrementAndGet() == 0) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.limbo.coco.file;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单个缓存文件的写入流水线：
+ * 生产者在自己的线程上序列化后，把数据放入有界的环形缓冲区；
+ * 同一时刻只有一个写任务在 executor 上运行，批量取出数据后一次加锁写入缓存文件，写完后完成对应的future。
+ *
+ * @param <K>
+ */
+@Slf4j
+public class CacheFileWritePipeline<K> implements Closeable {
+
+    private final AbstractCacheFile<K> cacheFile;
+
+    private final WriteRingBuffer<WriteRequest<K>> ringBuffer;
+
+    private final Executor executor;
+
+    /**
+     * 是否由流水线自己创建的线程池，关闭时需要一起关闭
+     */
+    private final boolean ownExecutor;
+
+    private final WritePipelineBackpressure backpressure;
+
+    /**
+     * 每批最多写入的条目数
+     */
+    private final int batchSize;
+
+    /**
+     * 是否已经有写任务在运行或等待运行，保证单写者
+     */
+    private final AtomicBoolean draining;
+
+    private volatile boolean closed = false;
+
+    /**
+     * 使用独立的写线程
+     */
+    public CacheFileWritePipeline(AbstractCacheFile<K> cacheFile, int capacity, int batchSize,
+                                  WritePipelineBackpressure backpressure) {
+        this(cacheFile, capacity, batchSize, backpressure, null);
+    }
+
+    /**
+     * @param executor 写任务运行的线程池，为null时为该文件创建一个独立的写线程
+     */
+    public CacheFileWritePipeline(AbstractCacheFile<K> cacheFile, int capacity, int batchSize,
+                                  WritePipelineBackpressure backpressure, Executor executor) {
+        this.cacheFile = cacheFile;
+        this.ringBuffer = new WriteRingBuffer<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.backpressure = backpressure;
+        this.draining = new AtomicBoolean(false);
+        if (executor == null) {
+            String threadName = "coco-writer-" + cacheFile.cacheFilePath.getFileName();
+            this.executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.ownExecutor = true;
+        } else {
+            this.executor = executor;
+            this.ownExecutor = false;
+        }
+    }
+
+    /**
+     * 提交一次写入，数据写入缓存文件后future完成
+     */
+    public CompletableFuture<Void> submit(K key, byte[] data) {
+        WriteRequest<K> request = new WriteRequest<>(key, data);
+        if (closed) {
+            request.future.completeExceptionally(new IllegalStateException("Write pipeline of cache file[" + cacheFile + "] is closed!"));
+            return request.future;
+        }
+
+        while (!ringBuffer.offer(request)) {
+            if (closed) {
+                request.future.completeExceptionally(new IllegalStateException("Write pipeline of cache file[" + cacheFile + "] is closed!"));
+                return request.future;
+            }
+            switch (backpressure) {
+                case FAIL:
+                    request.future.completeExceptionally(new RejectedExecutionException("Write pipeline of cache file[" + cacheFile + "] is full!"));
+                    return request.future;
+                case CALLER_RUNS:
+                    // 取得写者身份后，先写完缓冲区中更早提交的数据，再写入本次数据，保证同一个key的写入顺序
+                    if (draining.compareAndSet(false, true)) {
+                        drainBuffer(ringBuffer.size());
+                        write(Collections.singletonList(request));
+                        draining.set(false);
+                        if (!ringBuffer.isEmpty()) {
+                            scheduleDrain();
+                        }
+                        return request.future;
+                    }
+                    // 写线程正在写入，等它腾出空间
+                    LockSupport.parkNanos(50_000L);
+                    break;
+                case BLOCK:
+                default:
+                    scheduleDrain();
+                    LockSupport.parkNanos(50_000L);
+            }
+        }
+
+        scheduleDrain();
+        return request.future;
+    }
+
+    /**
+     * 缓冲区中尚未写入的条目数
+     */
+    public int getPendingSize() {
+        return ringBuffer.size();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                log.error("Cannot schedule write task of cache file[" + cacheFile + "]", e);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        do {
+            drainBuffer(Integer.MAX_VALUE);
+            draining.set(false);
+            // 释放标记后可能有新的数据进入，需要再检查一次
+        } while (!ringBuffer.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * 持有写者身份时调用，按提交顺序分批写入缓冲区中的数据，最多写入 max 条
+     */
+    private void drainBuffer(int max) {
+        List<WriteRequest<K>> batch = new ArrayList<>(batchSize);
+        int drained = 0;
+        while (drained < max && ringBuffer.drainTo(batch, Math.min(batchSize, max - drained)) > 0) {
+            drained += batch.size();
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<WriteRequest<K>> batch) {
+        List<K> keys = new ArrayList<>(batch.size());
+        List<byte[]> data = new ArrayList<>(batch.size());
+        for (WriteRequest<K> request : batch) {
+            keys.add(request.key);
+            data.add(request.data);
+        }
+        try {
+            cacheFile.putAll(keys, data);
+            for (WriteRequest<K> request : batch) {
+                request.future.complete(null);
+            }
+        } catch (RuntimeException e) {
+            for (WriteRequest<K> request : batch) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 停止接收新的写入，等待已经提交的数据写完
+     */
+    @Override
+    public void close() {
+        closed = true;
+        while (!ringBuffer.isEmpty() || draining.get()) {
+            if (!draining.get()) {
+                try {
+                    scheduleDrain();
+                } catch (RejectedExecutionException e) {
+                    drain();
+                }
+            }
+            LockSupport.parkNanos(100_000L);
+        }
+        if (ownExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private static class WriteRequest<K> {
+
+        final K key;
+
+        final byte[] data;
+
+        final CompletableFuture<Void> future;
+
+        WriteRequest(K key, byte[] data) {
+            this.key = key;
+            this.data = data;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.limbo.coco.file;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * 持有文件等资源的迭代器，遍历结束时自动释放，提前结束遍历时需要手动关闭
+ */
+public interface CloseableIterator<E> extends Iterator<E>, Closeable {
+
+    @Override
+    void close();
+
+}
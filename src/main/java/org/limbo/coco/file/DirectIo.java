@@ -0,0 +1,47 @@
+package org.limbo.coco.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Direct IO 的平台相关操作；
+ * 这是 JDK8 下的实现，不支持 O_DIRECT，使用普通的文件IO。JDK11+ 下由多版本JAR中 META-INF/versions/11 的同名类替换。
+ */
+final class DirectIo {
+
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private DirectIo() {
+    }
+
+    /**
+     * 当前运行环境是否支持 O_DIRECT
+     */
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * 打开文件，支持时以 O_DIRECT 方式打开
+     */
+    static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * 文件所在设备的块大小，读写的偏移量和长度需要按块对齐
+     */
+    static int blockSize(Path path) {
+        return DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * 分配按 alignment 对齐的直接内存
+     */
+    static ByteBuffer allocateAligned(int capacity, int alignment) {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+}
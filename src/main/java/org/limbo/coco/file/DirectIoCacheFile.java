@@ -0,0 +1,398 @@
+package org.limbo.coco.file;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 绕过操作系统页缓存的缓存文件，避免与同机的其他进程争抢页缓存，也避免页缓存和JVM各缓存一份数据；
+ * 文件以 O_DIRECT 方式打开（见 {@link DirectIo}），读写的偏移量和长度都必须按块对齐：
+ * 每条数据写入时补齐到块大小的整数倍，写缓冲区和读缓冲区都是从 {@link AlignedBufferPool} 获取的对齐直接内存。
+ * <p>
+ * 由于每条数据至少占用一个块，适合单条数据较大的缓存。
+ */
+@Slf4j
+public class DirectIoCacheFile<K> extends AbstractCacheFile<K> {
+
+    private ReentrantLock lock;
+
+    private FileChannel channel;
+
+    /**
+     * 块大小，对齐单位
+     */
+    private final int blockSize;
+
+    private final AlignedBufferPool bufferPool;
+
+    /**
+     * 写缓冲区，容量为块大小的整数倍，使用从池中获取的全部容量
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * 已经写入文件的字节数，总是块大小的整数倍
+     */
+    private long fileLength = 0;
+
+    /**
+     * 单个缓存文件的大小，默认50M
+     */
+    private volatile long maxBytesPerCacheFile;
+
+    public DirectIoCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize) {
+        this(filePath, maxBytesPerCacheFile, maxBufferSize, new ConcurrentHashMap<>());
+    }
+
+    public DirectIoCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize, Map<K, ValueDescriptor> cachedData) {
+        super(filePath, cachedData);
+
+        this.lock = new ReentrantLock();
+        this.maxBytesPerCacheFile = maxBytesPerCacheFile;
+        this.blockSize = DirectIo.blockSize(cacheFilePath);
+        this.bufferPool = AlignedBufferPool.forAlignment(blockSize);
+        this.buffer = bufferPool.acquire(align(Math.max(maxBufferSize, blockSize)));
+        // 池中缓冲区的容量按2的幂取整，limit为请求的大小；写入按容量判断，这里与flush后clear的状态保持一致
+        this.buffer.limit(this.buffer.capacity());
+
+        try {
+            this.channel = DirectIo.open(cacheFilePath);
+        } catch (IOException e) {
+            bufferPool.release(buffer);
+            log.error("Cache file create failed due to exception", e);
+            throw new CacheFileCreateException(e);
+        }
+    }
+
+    @Override
+    public void put(K key, byte[] data) {
+        try {
+            lock();
+            assertCacheFilAlive();
+            ValueDescriptor oldValueDescriptor = cachedData.get(key);
+            if (data.length == 0) {
+                // 数据长度为0，则为null
+                cachedData.put(key, ValueDescriptor.NULL_VALUE_DESCRIPTOR);
+                if (oldValueDescriptor != null) {
+                    usedBytes.addAndGet(-align(oldValueDescriptor.length));
+                }
+                return;
+            }
+
+            int length = data.length;
+            int alignedLength = align(length);
+            long offset;
+            if (alignedLength > buffer.capacity()) {
+                // 单个值已经超过缓冲区大小了直接写入文件
+                flush();
+                ByteBuffer direct = bufferPool.acquire(alignedLength);
+                try {
+                    direct.put(data);
+                    direct.clear();
+                    direct.limit(alignedLength);
+                    offset = fileLength;
+                    writeFully(channel, direct, offset);
+                    fileLength += alignedLength;
+                } finally {
+                    bufferPool.release(direct);
+                }
+            } else {
+                if (buffer.position() + alignedLength > buffer.capacity()) {
+                    flush();
+                }
+                offset = fileLength + buffer.position();
+                int start = buffer.position();
+                buffer.put(data);
+                // 补齐到块边界
+                buffer.position(start + alignedLength);
+            }
+
+            cachedData.put(key, new ValueDescriptor(offset, length));
+            // 有效字节数按补齐后的长度计算，与实际占用的磁盘空间一致
+            if (oldValueDescriptor != null) {
+                usedBytes.addAndGet(-align(oldValueDescriptor.length));
+            }
+            usedBytes.addAndGet(alignedLength);
+            checkSwap();
+        } catch (IOException e) {
+            log.error("Error while write cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while write cache file[" + this + "]", e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public byte[] get(K key) {
+        try {
+            lock();
+            assertCacheFilAlive();
+            ValueDescriptor vd = cachedData.get(key);
+            if (vd == null) {
+                return null;
+            }
+            if (vd.length == 0) {
+                // 数据长度为0，则为null，直接返回一个长度为0的数组
+                return ValueDescriptor.EMPTY_DATA;
+            }
+
+            byte[] data = new byte[vd.length];
+            if (vd.offset >= fileLength) {
+                // 还在写缓冲区中
+                ByteBuffer view = buffer.duplicate();
+                view.position((int) (vd.offset - fileLength));
+                view.get(data);
+                return data;
+            }
+
+            ByteBuffer direct = bufferPool.acquire(align(vd.length));
+            try {
+                readFully(channel, direct, vd.offset);
+                direct.flip();
+                direct.get(data);
+            } finally {
+                bufferPool.release(direct);
+            }
+            return data;
+        } catch (IOException e) {
+            log.error("Error while read cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while read cache file[" + this + "]", e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public int get(K key, ByteBuffer dst) {
+        try {
+            lock();
+            assertCacheFilAlive();
+            ValueDescriptor vd = cachedData.get(key);
+            if (vd == null) {
+                return -1;
+            }
+            if (vd.length == 0 || dst.remaining() < vd.length) {
+                return vd.length;
+            }
+
+            if (vd.offset >= fileLength) {
+                // 还在写缓冲区中
+                ByteBuffer view = buffer.duplicate();
+                view.position((int) (vd.offset - fileLength));
+                view.limit(view.position() + vd.length);
+                dst.put(view);
+                return vd.length;
+            }
+
+            // O_DIRECT 只能读入对齐的缓冲区，从池中借用后再复制
+            ByteBuffer direct = bufferPool.acquire(align(vd.length));
+            try {
+                readFully(channel, direct, vd.offset);
+                direct.flip();
+                direct.limit(vd.length);
+                dst.put(direct);
+            } finally {
+                bufferPool.release(direct);
+            }
+            return vd.length;
+        } catch (IOException e) {
+            log.error("Error while read cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while read cache file[" + this + "]", e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(K key) {
+        try {
+            lock();
+            ValueDescriptor vd = cachedData.remove(key);
+            if (vd != null) {
+                usedBytes.addAndGet(-align(vd.length));
+                return true;
+            }
+            return false;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 将缓冲区内容写入文件末尾，缓冲区中的数据都已按块补齐
+     */
+    @Override
+    public void flush() {
+        try {
+            lock();
+            if (buffer.position() > 0) {
+                buffer.flip();
+                int written = buffer.limit();
+                writeFully(channel, buffer, fileLength);
+                fileLength += written;
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            log.error("Error while flush write cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while flush write cache file[" + this + "]", e);
+        } finally {
+            unlock();
+        }
+    }
+
+    private void checkSwap() {
+        // 文件大小超出 maxBytesPerCacheFile 80%的时候执行swap
+        if (fileLength + buffer.position() >= this.maxBytesPerCacheFile * 1.8) {
+            try {
+                do {
+                    assertCacheFilAlive();
+                } while (!status.compareAndSet(CacheFileStatus.NORMAL, CacheFileStatus.SWAPPING));
+                flush();
+                doSwap();
+            } finally {
+                status.compareAndSet(CacheFileStatus.SWAPPING, CacheFileStatus.NORMAL);
+            }
+        }
+    }
+
+    /**
+     * 将有效数据按块对齐依次写入swap文件，再原子地替换原缓存文件；
+     * 替换成功后才更新描述对象，任何一步失败时原缓存文件和描述对象都保持不变
+     */
+    private void doSwap() {
+        String cacheFilePathName = this.cacheFilePath.getName(this.cacheFilePath.getNameCount() - 1).toString();
+        Path swapFilePath = this.cacheFilePath.resolveSibling(cacheFilePathName + ".swap");
+        File swapFile = swapFilePath.toFile();
+        Map<K, ValueDescriptor> swapped = new HashMap<>();
+        FileChannel swapChannel = null;
+        ByteBuffer direct = null;
+        try {
+            lock();
+            FileUtils.deleteQuietly(swapFile);
+            swapChannel = DirectIo.open(swapFilePath);
+
+            long hasWritten = 0;
+            for (Map.Entry<K, ValueDescriptor> entry : this.cachedData.entrySet()) {
+                ValueDescriptor vd = entry.getValue();
+                if (vd.length == 0) {
+                    continue;
+                }
+                int alignedLength = align(vd.length);
+                if (direct == null || direct.capacity() < alignedLength) {
+                    if (direct != null) {
+                        bufferPool.release(direct);
+                    }
+                    direct = bufferPool.acquire(alignedLength);
+                }
+                direct.clear();
+                direct.limit(alignedLength);
+                readFully(channel, direct, vd.offset);
+                direct.flip();
+                writeFully(swapChannel, direct, hasWritten);
+
+                swapped.put(entry.getKey(), new ValueDescriptor(hasWritten, vd.length));
+                hasWritten += alignedLength;
+            }
+            swapChannel.force(false);
+            swapChannel.close();
+
+            IOUtils.closeQuietly(channel);
+            Files.move(swapFilePath, cacheFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Map.Entry<K, ValueDescriptor> entry : swapped.entrySet()) {
+                cachedData.put(entry.getKey(), entry.getValue());
+            }
+            fileLength = hasWritten;
+        } catch (IOException e) {
+            log.error("Unexpected exception while swap cache file" + this, e);
+            throw new IllegalStateException("Unexpected exception while swap cache file" + this, e);
+        } finally {
+            IOUtils.closeQuietly(swapChannel);
+            if (direct != null) {
+                bufferPool.release(direct);
+            }
+            FileUtils.deleteQuietly(swapFile);
+            try {
+                IOUtils.closeQuietly(channel);
+                channel = DirectIo.open(cacheFilePath);
+            } catch (IOException e) {
+                log.warn("未知的错误，导致swap后无法创建文件流！", e);
+            }
+            releaseReadChannel();
+            unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock();
+            while (!status.compareAndSet(CacheFileStatus.NORMAL, CacheFileStatus.CLOSED)) {
+                if (status.get() == CacheFileStatus.CLOSED) {
+                    return;
+                }
+                log.debug("Cache file closed");
+            }
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            bufferPool.release(buffer);
+            if (cacheFilePath != null) {
+                cacheFilePath.toFile().delete();
+            }
+            releaseReadChannel();
+            closeCachedData();
+        } catch (IOException e) {
+            log.error("Unexpected exception while close cache file", e);
+            throw e;
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public void lock() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * 向上补齐到块大小的整数倍
+     */
+    private int align(int length) {
+        return (length + blockSize - 1) / blockSize * blockSize;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+}
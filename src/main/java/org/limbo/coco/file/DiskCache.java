@@ -1,20 +1,31 @@
 package org.limbo.coco.file;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
 import org.limbo.coco.AbstractCache;
 import org.limbo.coco.IndexBuilder;
 import org.limbo.coco.MemoryUnit;
+import org.limbo.coco.file.directory.SpillableKeyDirectory;
 import org.limbo.coco.file.serializer.ValueSerializer;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 一个缓存中存在多个缓存文件；
@@ -32,14 +43,25 @@ import java.util.concurrent.locks.ReentrantLock;
  * 每个缓存文件记录 有效缓存字节数，总缓存文件字节数，当总缓存文件字节数超出单个缓存文件大小限制时，发生swap；
  * 缓存文件中的缓存数据发生变动时，会在同一个缓存文件的末尾写入新的数据，并更新value描述对象；
  * 当缓存文件的 有效缓存字节数 即将超过 单个缓存文件大小限制 时，改缓存文件将不再接收新的缓存数据；
+ * <p>
+ * 开启 spillKeyDirectory 后，不再在堆内维护 key 到缓存文件的映射，每个缓存文件的键目录使用 {@link SpillableKeyDirectory} 溢出到磁盘；
+ * 查找key时只序列化一次key，不加锁地依次询问各个缓存文件的键目录，由内存表和布隆过滤器过滤掉不包含该key的文件；
+ * <p>
+ * 可以配置多个缓存文件目录（一般每个目录对应一块磁盘），新的缓存文件按 {@link CacheFilePlacement} 分布到各个目录，
+ * 并可为每个目录开启独立的IO线程，写入流水线和 {@link #getAsync(Object)} 在缓存文件所在目录的线程上执行；
  */
 @Slf4j
 public class DiskCache<K, V> extends AbstractCache<K, V> implements Closeable {
 
     /**
-     * 缓存文件目录
+     * key锁的分段数量
+     */
+    private static final int KEY_LOCK_STRIPES = 64;
+
+    /**
+     * 缓存文件目录，可以有多个，新的缓存文件按放置策略分布到各个目录
      */
-    private String CACHE_FILE_DIRECTORY;
+    private CacheFileDirectories cacheFileDirectories;
 
     /**
      * 缓存名称
@@ -62,9 +84,13 @@ public class DiskCache<K, V> extends AbstractCache<K, V> implements Closeable {
     private long maxBytesInMemoryBufferPerCacheFile = MemoryUnit.KILOBYTES.toBytes(64);
 
     /**
-     * 缓存文件
+     * key所在的缓存文件，键目录溢出到磁盘时不使用，通过各个缓存文件的布隆过滤器定位key
      */
     private final Map<K, AbstractCacheFile<K>> cacheFiles;
+    /**
+     * 全部缓存文件
+     */
+    private final List<AbstractCacheFile<K>> cacheFileList;
     /**
      * 缓存文件个数
      */
@@ -72,8 +98,63 @@ public class DiskCache<K, V> extends AbstractCache<K, V> implements Closeable {
 
     private final ReentrantLock cacheFileGrowLock;
 
+    /**
+     * 按key分段的锁，存在索引时同一个key的读取旧值、写入和索引替换在锁内串行完成
+     */
+    private final ReentrantLock[] keyLocks;
+
     private ValueSerializer<V> valueSerializer;
 
+    /**
+     * 缓存文件的读写实现
+     */
+    private CacheFileEngine cacheFileEngine = CacheFileEngine.REENTRANT;
+
+    /**
+     * 是否将键目录溢出到磁盘
+     */
+    private boolean spillKeyDirectory = false;
+
+    private ValueSerializer<K> keySerializer;
+
+    private int maxKeysInMemoryPerCacheFile;
+
+    private int maxSortedRunsPerCacheFile;
+
+    /**
+     * 是否开启写入流水线
+     */
+    private boolean writePipelineEnabled = false;
+
+    private int writePipelineCapacity;
+
+    private int writePipelineBatchSize;
+
+    private WritePipelineBackpressure writePipelineBackpressure;
+
+    private int writePipelineThreads;
+
+    /**
+     * 未开启目录IO线程时，所有缓存文件的写入流水线共享的写线程池
+     */
+    private ExecutorService writePipelineExecutor;
+
+    /**
+     * 每个缓存文件的写入流水线
+     */
+    private final Map<AbstractCacheFile<K>, CacheFileWritePipeline<K>> writePipelines;
+
+    /**
+     * 已经提交到流水线、尚未写入缓存文件的key
+     */
+    private final Map<K, PendingWrite<K, V>> pendingWrites;
+
+    /**
+     * 键目录溢出到磁盘时，已经分配了缓存文件、尚未写入该文件键目录的新key；
+     * 在 cacheFileGrowLock 内登记，保证同一个新key的并发写入只分配一次、只计数一次
+     */
+    private final Map<K, AbstractCacheFile<K>> allocatingKeys;
+
     /**
      * 缓存条目数量
      */
@@ -86,7 +167,7 @@ public class DiskCache<K, V> extends AbstractCache<K, V> implements Closeable {
     public DiskCache(String dir, String name, ValueSerializer<V> serializer, long maxBytesPerCacheFile) {
         this();
 
-        this.CACHE_FILE_DIRECTORY = dir;
+        this.cacheFileDirectories = new CacheFileDirectories(Collections.singletonList(dir), CacheFilePlacement.ROUND_ROBIN, 0);
         this.name = name;
         this.valueSerializer = serializer;
         this.maxBytesPerCacheFile = maxBytesPerCacheFile;
@@ -94,19 +175,47 @@ public class DiskCache<K, V> extends AbstractCache<K, V> implements Closeable {
 
     public DiskCache(DiskCacheConfiguration<K, V> config) {
         this();
+        List<String> directories = config.getDirectories().isEmpty()
+                ? Collections.singletonList(config.getDirectory()) : config.getDirectories();
+        this.cacheFileDirectories = new CacheFileDirectories(directories, config.getCacheFilePlacement(),
+                config.getIoThreadsPerDirectory());
         this.name = config.getName();
         this.valueSerializer = config.getValueSerializer();
         this.maxBytesPerCacheFile = config.getMaxBytesPerCacheFile();
         this.maxBytesInMemoryBufferPerCacheFile = config.getMaxBytesInMemoryBufferPerCacheFile();
+        this.cacheFileEngine = config.getCacheFileEngine();
         for (IndexBuilder<V> ib : config.getIndexBuilders()) {
             this.addIndex(ib);
         }
+        if (config.isSpillKeyDirectory()) {
+            if (config.getKeySerializer() == null) {
+                throw new IllegalArgumentException("KeySerializer is required when spill key directory!");
+            }
+            this.spillKeyDirectory = true;
+            this.keySerializer = config.getKeySerializer();
+            this.maxKeysInMemoryPerCacheFile = config.getMaxKeysInMemoryPerCacheFile();
+            this.maxSortedRunsPerCacheFile = config.getMaxSortedRunsPerCacheFile();
+        }
+        this.writePipelineEnabled = config.isWritePipelineEnabled();
+        this.writePipelineCapacity = config.getWritePipelineCapacity();
+        this.writePipelineBatchSize = config.getWritePipelineBatchSize();
+        this.writePipelineBackpressure = config.getWritePipelineBackpressure();
+        this.writePipelineThreads = Math.max(1, config.getWritePipelineThreads());
     }
 
     public DiskCache() {
         this.name = getClass().getName() + "_" + System.currentTimeMillis();
-        this.cacheFiles = new HashMap<>();
+        this.cacheFileDirectories = new CacheFileDirectories(Collections.singletonList("."), CacheFilePlacement.ROUND_ROBIN, 0);
+        this.cacheFiles = newKeyFileMap();
+        this.cacheFileList = new CopyOnWriteArrayList<>();
+        this.writePipelines = new ConcurrentHashMap<>();
+        this.pendingWrites = new ConcurrentHashMap<>();
+        this.allocatingKeys = new ConcurrentHashMap<>();
         this.cacheFileGrowLock = new ReentrantLock();
+        this.keyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            this.keyLocks[i] = new ReentrantLock();
+        }
         this.size = new AtomicInteger(0);
         this.cacheFileSize = new AtomicInteger(0);
     }
@@ -114,84 +223,506 @@ public class DiskCache<K, V> extends AbstractCache<K, V> implements Closeable {
     @Override
     public List<K> getKeys() {
         assertCacheAlive();
-        return new ArrayList<>(cacheFiles.keySet());
+        if (!spillKeyDirectory) {
+            return new ArrayList<>(cacheFiles.keySet());
+        }
+
+        List<K> keys = new ArrayList<>(size.get());
+        for (AbstractCacheFile<K> cacheFile : cacheFileList) {
+            keys.addAll(cacheFile.keyList());
+        }
+        return keys;
     }
 
     @Override
-    public boolean put(K key, V value) {
-        AbstractCacheFile<K> cacheFileToPut = null;
-        boolean exist = false;
-        byte[] data = value == null ? new byte[0] : this.valueSerializer.serialize(value);
-        try {
-            cacheFileGrowLock.lock();
-            assertCacheAlive();
+    public Iterator<K> keyIterator() {
+        assertCacheAlive();
+        if (!spillKeyDirectory) {
+            return Collections.unmodifiableSet(cacheFiles.keySet()).iterator();
+        }
+
+        // 依次遍历每个缓存文件的键目录，遍历磁盘上的有序段时持有文件流，切换到下一个文件或关闭时释放
+        Iterator<AbstractCacheFile<K>> files = cacheFileList.iterator();
+        return new CloseableIterator<K>() {
 
-            if (cacheFiles.containsKey(key)) {
-                // 先查找是否已经存在key，存在则覆盖
-                cacheFileToPut = cacheFiles.get(key);
-                exist = true;
-            } else {
-                for (AbstractCacheFile<K> cacheFile : cacheFiles.values()) {
-                    // 不存在则从容量足够的缓存文件中选择一个
-                    // usedBytes + data.length < maxBytesPerCacheFile 即认为是缓存文件容量不足
-                    long minBytesInNeed = maxBytesPerCacheFile - data.length;
-                    if (cacheFile.getUsedBytes() < minBytesInNeed) {
-                        cacheFileToPut = cacheFile;
+            private Iterator<K> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    closeCurrent();
+                    if (!files.hasNext()) {
+                        return false;
                     }
+                    current = files.next().keyIterator();
                 }
+                return true;
+            }
 
-                // 若所有的缓存文件容量都不够，则新增一个
-                if (cacheFileToPut == null) {
-                    String filePath = CACHE_FILE_DIRECTORY + "/" + this.name + "_cache_" + cacheFileSize.get() + ".data";
-                    cacheFileToPut = new ReentrantCacheFile<>(filePath, maxBytesPerCacheFile, (int) maxBytesInMemoryBufferPerCacheFile);
-//                    cacheFileToPut = new MappedByteBufferCacheFile<>(filePath, maxBytesPerCacheFile, (int) maxBytesInMemoryBufferPerCacheFile);
-                    cacheFileSize.incrementAndGet();
+            @Override
+            public K next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                return current.next();
+            }
 
-                // key与文件的映射关系
-                cacheFiles.put(key, cacheFileToPut);
+            @Override
+            public void close() {
+                closeCurrent();
+                current = Collections.emptyIterator();
+                while (files.hasNext()) {
+                    files.next();
+                }
             }
 
-            putIndex(key, value);
+            private void closeCurrent() {
+                if (current instanceof Closeable) {
+                    IOUtils.closeQuietly((Closeable) current);
+                }
+            }
+        };
+    }
+
+    /**
+     * 写入缓存，覆盖已有的key时同时移除旧值的索引
+     */
+    @Override
+    public boolean put(K key, V value) {
+        if (writePipelineEnabled) {
+            // 开启流水线后所有写入都经过流水线，保证同一个key的写入顺序
+            return putAsync(key, value).join();
+        }
+
+        byte[] data = value == null ? ValueDescriptor.EMPTY_DATA : this.valueSerializer.serialize(value);
+        if (!hasIndex()) {
+            return doPut(key, value, data);
+        }
+
+        ReentrantLock keyLock = keyLock(key);
+        try {
+            keyLock.lock();
+            return doPut(key, value, data);
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * 存在索引时在key的锁内调用，旧值在获取全局锁之前读取，读取旧值不阻塞其他key的写入
+     */
+    private boolean doPut(K key, V value, byte[] data) {
+        V oldValue = null;
+        if (hasIndex()) {
+            AbstractCacheFile<K> existFile = locate(key);
+            if (existFile != null) {
+                oldValue = read(existFile, key);
+            }
+        }
+
+        AbstractCacheFile<K> cacheFileToPut;
+        boolean exist;
+        try {
+            cacheFileGrowLock.lock();
+            assertCacheAlive();
+
+            AbstractCacheFile<K> existFile = locate(key);
+            // 先查找是否已经存在key，存在则覆盖，不存在则分配一个缓存文件
+            exist = existFile != null;
+            cacheFileToPut = exist ? existFile : allocateCacheFile(key, data.length);
         } finally {
             cacheFileGrowLock.unlock();
         }
 
-        cacheFileToPut.put(key, data);
+        try {
+            cacheFileToPut.put(key, data);
+        } finally {
+            if (!exist && spillKeyDirectory) {
+                allocatingKeys.remove(key, cacheFileToPut);
+            }
+        }
         if (!exist) {
             size.incrementAndGet();
         }
+        replaceIndex(key, oldValue, value);
         return exist;
     }
 
+    private void replaceIndex(K key, V oldValue, V value) {
+        if (oldValue != null) {
+            removeIndex(key, oldValue);
+        }
+        putIndex(key, value);
+    }
+
+    private ReentrantLock keyLock(K key) {
+        int h = key.hashCode();
+        return keyLocks[(h ^ (h >>> 16)) & (KEY_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * 异步写入，序列化在调用线程完成，写入缓存文件由该文件的写线程批量完成；
+     * 同一个key的查找、提交和登记在key的锁内完成，保证按提交顺序写入，只有为新key分配缓存文件时才需要全局锁；
+     * 写入失败（流水线已满或IO异常）时撤销本次写入对映射关系、索引和计数的修改；
+     * 未开启写入流水线时同步写入。
+     *
+     * @return 数据写入缓存文件后完成，结果与 {@link #put(Object, Object)} 的返回值相同
+     */
+    public CompletableFuture<Boolean> putAsync(K key, V value) {
+        if (!writePipelineEnabled) {
+            return CompletableFuture.completedFuture(put(key, value));
+        }
+
+        byte[] data = value == null ? ValueDescriptor.EMPTY_DATA : this.valueSerializer.serialize(value);
+        PendingWrite<K, V> pending;
+        ReentrantLock keyLock = keyLock(key);
+        try {
+            keyLock.lock();
+            assertCacheAlive();
+
+            PendingWrite<K, V> previous = pendingWrites.get(key);
+            AbstractCacheFile<K> cacheFileToPut = previous != null ? previous.cacheFile : locate(key);
+            boolean exist = cacheFileToPut != null;
+            V oldValue = null;
+            if (exist && hasIndex()) {
+                // 流水线中尚未写入的值比缓存文件中的值更新
+                oldValue = previous != null ? previous.value : read(cacheFileToPut, key);
+            }
+            if (!exist) {
+                try {
+                    cacheFileGrowLock.lock();
+                    assertCacheAlive();
+                    cacheFileToPut = allocateCacheFile(key, data.length);
+                } finally {
+                    cacheFileGrowLock.unlock();
+                }
+                size.incrementAndGet();
+            }
+            replaceIndex(key, oldValue, value);
+
+            // 前一次写入仍在流水线中时，它对计数的修改由本次写入接管
+            boolean added = !exist || previous != null && previous.added;
+            pending = new PendingWrite<>(cacheFileToPut, value, exist, added,
+                    writePipelines.get(cacheFileToPut).submit(key, data));
+            pendingWrites.put(key, pending);
+            if (!exist && spillKeyDirectory) {
+                // 流水线中的key通过 pendingWrites 定位
+                allocatingKeys.remove(key, cacheFileToPut);
+            }
+        } finally {
+            keyLock.unlock();
+        }
+
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        pending.future.whenComplete((v, e) -> {
+            if (e == null) {
+                pendingWrites.remove(key, pending);
+                result.complete(pending.exist);
+                return;
+            }
+            // 回滚需要key的锁，不能在写线程上执行：持有该锁的生产者可能正在等待写线程腾出空间
+            CompletableFuture.runAsync(() -> rollbackPut(key, pending)).whenComplete((r, re) -> {
+                if (re != null) {
+                    log.error("Rollback failed write of key[" + key + "] in cache[" + this.name + "]", re);
+                }
+                result.completeExceptionally(e);
+            });
+        });
+        return result;
+    }
+
+    /**
+     * 写入失败时，撤销已经登记的映射关系、索引和计数；之后又有同一个key的写入时由它接管，不做处理
+     */
+    private void rollbackPut(K key, PendingWrite<K, V> pending) {
+        ReentrantLock keyLock = keyLock(key);
+        try {
+            keyLock.lock();
+            pendingWrites.remove(key, pending);
+            if (pendingWrites.containsKey(key)) {
+                return;
+            }
+            removeIndex(key, pending.value);
+            if (pending.cacheFile.contains(key)) {
+                // 覆盖失败，缓存文件中仍是之前的值，恢复它的索引
+                if (hasIndex()) {
+                    putIndex(key, read(pending.cacheFile, key));
+                }
+                return;
+            }
+            if (pending.added) {
+                if (!spillKeyDirectory) {
+                    cacheFiles.remove(key, pending.cacheFile);
+                }
+                size.decrementAndGet();
+            }
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * 为新的key分配一个容量足够的缓存文件，在 cacheFileGrowLock 内调用
+     */
+    private AbstractCacheFile<K> allocateCacheFile(K key, int dataLength) {
+        AbstractCacheFile<K> cacheFileToPut = null;
+        for (AbstractCacheFile<K> cacheFile : cacheFileList) {
+            // 不存在则从容量足够的缓存文件中选择一个
+            // usedBytes + data.length < maxBytesPerCacheFile 即认为是缓存文件容量不足
+            long minBytesInNeed = maxBytesPerCacheFile - dataLength;
+            if (cacheFile.getUsedBytes() < minBytesInNeed) {
+                cacheFileToPut = cacheFile;
+            }
+        }
+
+        // 若所有的缓存文件容量都不够，则新增一个
+        if (cacheFileToPut == null) {
+            cacheFileToPut = createCacheFile(nextCacheFilePath());
+            registerCacheFile(cacheFileToPut);
+        }
+
+        // key与文件的映射关系，键目录溢出到磁盘时先登记为分配中，写入文件的键目录后移除
+        if (!spillKeyDirectory) {
+            cacheFiles.put(key, cacheFileToPut);
+        } else {
+            allocatingKeys.put(key, cacheFileToPut);
+        }
+        return cacheFileToPut;
+    }
+
+    /**
+     * 登记新的缓存文件，开启写入流水线时为其创建流水线
+     */
+    private void registerCacheFile(AbstractCacheFile<K> cacheFile) {
+        if (writePipelineEnabled) {
+            // 开启了目录IO线程时，写任务在缓存文件所在目录的线程上执行，否则所有缓存文件共享有限个写线程
+            Executor executor = cacheFileDirectories.executorFor(cacheFile);
+            if (executor == null) {
+                executor = writePipelineExecutor();
+            }
+            writePipelines.put(cacheFile, new CacheFileWritePipeline<>(cacheFile, writePipelineCapacity,
+                    writePipelineBatchSize, writePipelineBackpressure, executor));
+        }
+        cacheFileList.add(cacheFile);
+        cacheFileSize.incrementAndGet();
+    }
+
+    /**
+     * 未开启目录IO线程时所有写入流水线共享的写线程池，在 cacheFileGrowLock 内调用
+     */
+    private ExecutorService writePipelineExecutor() {
+        if (writePipelineExecutor == null) {
+            String threadName = "coco-writer-" + this.name + "-";
+            AtomicInteger threadId = new AtomicInteger(0);
+            writePipelineExecutor = Executors.newFixedThreadPool(writePipelineThreads, r -> {
+                Thread thread = new Thread(r, threadName + threadId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return writePipelineExecutor;
+    }
+
     @Override
     public V get(K key) {
         assertCacheAlive();
-        if (cacheFiles.containsKey(key)) {
-            byte[] data = cacheFiles.get(key).get(key);
-            return data == null ? null : this.valueSerializer.deserialize(data);
+        AbstractCacheFile<K> cacheFile = locate(key);
+        if (cacheFile != null) {
+            return read(cacheFile, key);
         } else {
             return null;
         }
     }
 
+    /**
+     * 读入当前线程的读缓冲区后直接反序列化，读路径上除了反序列化出的对象外不分配内存
+     */
+    private V read(AbstractCacheFile<K> cacheFile, K key) {
+        ByteBuffer buffer = ReadBuffers.acquire();
+        int length;
+        while ((length = cacheFile.get(key, buffer)) > buffer.capacity()) {
+            // 缓冲区不够大，扩容后重新读取
+            buffer = ReadBuffers.acquire(length);
+        }
+        if (length <= 0) {
+            // 不存在或为null值
+            return null;
+        }
+        return this.valueSerializer.deserialize(buffer.array(), buffer.arrayOffset(), length);
+    }
+
+    /**
+     * 异步读取，开启了目录IO线程时在缓存文件所在目录的IO线程上读取和反序列化，
+     * 不同磁盘上的读取互不阻塞；未开启时同步读取
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        assertCacheAlive();
+        AbstractCacheFile<K> cacheFile = locate(key);
+        if (cacheFile == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Executor executor = cacheFileDirectories.executorFor(cacheFile);
+        if (executor == null) {
+            return CompletableFuture.completedFuture(get(key));
+        }
+        return CompletableFuture.supplyAsync(() -> read(cacheFile, key), executor);
+    }
+
+    /**
+     * 打开key对应的值在缓存文件中的位置，用于把序列化后的数据零拷贝地发送出去；
+     * 不存在、值为null或者仍在写入流水线中时返回null，此时应改用 {@link #get(Object)}
+     */
+    public ValueRegion openValue(K key) {
+        assertCacheAlive();
+        if (pendingWrites.containsKey(key)) {
+            return null;
+        }
+        AbstractCacheFile<K> cacheFile = locate(key);
+        return cacheFile == null ? null : cacheFile.openValue(key);
+    }
+
+    /**
+     * 按文件顺序扫描全部缓存：依次为每个缓存文件创建快照，按数据在文件中的位置顺序读取并反序列化，
+     * 已经被覆盖或移除的数据直接跳过；扫描开始后的写入不一定能被看到，流水线中尚未写入文件的数据不会被扫描到
+     */
+    public void scan(BiConsumer<K, V> consumer) {
+        assertCacheAlive();
+        for (AbstractCacheFile<K> cacheFile : cacheFileList) {
+            try (CacheFileSnapshot<K> snapshot = cacheFile.snapshot(CacheFileSnapshot.DEFAULT_READ_BUFFER_SIZE)) {
+                snapshot.forEach(0, snapshot.size(), (key, data) -> consumer.accept(key, deserialize(data)));
+            } catch (IOException e) {
+                log.error("IOException while scan cache[" + this.name + "]", e);
+                throw new IllegalStateException("IOException while scan cache[" + this.name + "]", e);
+            }
+        }
+    }
+
+    /**
+     * 按文件顺序遍历全部缓存，一致性与 {@link #scan(BiConsumer)} 相同；
+     * 同一时刻只打开一个缓存文件，提前结束遍历时需要调用 close
+     */
+    public CloseableIterator<Map.Entry<K, V>> entryIterator() {
+        assertCacheAlive();
+        Iterator<AbstractCacheFile<K>> files = cacheFileList.iterator();
+        return new CloseableIterator<Map.Entry<K, V>>() {
+
+            private CacheFileSnapshot<K> snapshot;
+
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                while (snapshot == null || position >= snapshot.size()) {
+                    close();
+                    if (!files.hasNext()) {
+                        return false;
+                    }
+                    snapshot = files.next().snapshot(CacheFileSnapshot.DEFAULT_READ_BUFFER_SIZE);
+                    position = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                K key = snapshot.key(position);
+                V value = deserialize(snapshot.read(position++));
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+
+            @Override
+            public void close() {
+                if (snapshot != null) {
+                    IOUtils.closeQuietly(snapshot);
+                    snapshot = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * 先按缓存文件、再按文件内的字节范围拆分，每部分在自己的范围内顺序读取；
+     * 提前结束遍历时打开的快照不会被关闭，应优先使用 {@link #stream()}/{@link #parallelStream()} 并关闭流
+     */
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return entrySpliterator(new ConcurrentLinkedQueue<>());
+    }
+
+    private Spliterator<Map.Entry<K, V>> entrySpliterator(Queue<CacheFileSnapshot<K>> opened) {
+        assertCacheAlive();
+        return new DiskCacheSpliterator<>(new ArrayList<>(cacheFileList), this::deserialize,
+                CacheFileSnapshot.DEFAULT_READ_BUFFER_SIZE, opened);
+    }
+
+    /**
+     * 流关闭时会关闭遍历过程中打开的全部快照
+     */
+    @Override
+    public Stream<Map.Entry<K, V>> stream() {
+        return stream(false);
+    }
+
+    @Override
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        return stream(true);
+    }
+
+    private Stream<Map.Entry<K, V>> stream(boolean parallel) {
+        Queue<CacheFileSnapshot<K>> opened = new ConcurrentLinkedQueue<>();
+        return StreamSupport.stream(entrySpliterator(opened), parallel)
+                .onClose(() -> opened.forEach(CacheFileSnapshot::forceClose));
+    }
+
+    private V deserialize(byte[] data) {
+        // 长度为0的数据表示null
+        return data.length == 0 ? null : this.valueSerializer.deserialize(data);
+    }
+
     @Override
     public boolean contains(K key) {
         assertCacheAlive();
-        return cacheFiles.containsKey(key);
+        return locate(key) != null;
     }
 
     @Override
     public boolean remove(K key) {
         assertCacheAlive();
+        if (!hasIndex()) {
+            return doRemove(key);
+        }
+
+        ReentrantLock keyLock = keyLock(key);
+        try {
+            keyLock.lock();
+            return doRemove(key);
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private boolean doRemove(K key) {
+        // 等待流水线中尚未写入的数据，避免移除后又被写入
+        PendingWrite<K, V> pending = pendingWrites.get(key);
+        if (pending != null) {
+            pending.future.exceptionally(e -> null).join();
+        }
 
         V existValue = get(key);
         if (existValue == null) {
             return false;
         }
 
-        AbstractCacheFile<K> cacheFile = cacheFiles.get(key);
-        cacheFiles.remove(key);
+        AbstractCacheFile<K> cacheFile = locate(key);
+        if (cacheFile == null) {
+            return false;
+        }
+        if (!spillKeyDirectory) {
+            cacheFiles.remove(key);
+        }
         if (cacheFile.remove(key)) {
             size.decrementAndGet();
             removeIndex(key, existValue);
@@ -214,15 +745,138 @@ public class DiskCache<K, V> extends AbstractCache<K, V> implements Closeable {
                     break;
                 }
             } while (!cacheAlive.compareAndSet(true, false));
-            for (AbstractCacheFile<K> cacheFile : cacheFiles.values()) {
+            for (CacheFileWritePipeline<K> pipeline : writePipelines.values()) {
+                pipeline.close();
+            }
+            if (writePipelineExecutor != null) {
+                writePipelineExecutor.shutdown();
+            }
+            for (AbstractCacheFile<K> cacheFile : cacheFileList) {
                 cacheFile.close();
             }
+            cacheFileDirectories.close();
         } catch (IOException e) {
             log.error("IOException while close cache[" + this, e);
             throw new IllegalStateException("IOException while close cache[" + this, e);
         }
     }
 
+    /**
+     * 找到key所在的缓存文件，不存在返回null；
+     * 键目录溢出到磁盘时key只序列化一次，不加锁地依次询问每个缓存文件的键目录：
+     * 不包含key的文件由内存表和布隆过滤器拦截，不产生IO，包含key的文件通过稀疏索引一次读取即可确认
+     */
+    private AbstractCacheFile<K> locate(K key) {
+        PendingWrite<K, V> pending = pendingWrites.get(key);
+        if (pending != null) {
+            return pending.cacheFile;
+        }
+        if (!spillKeyDirectory) {
+            return cacheFiles.get(key);
+        }
+        AbstractCacheFile<K> allocating = allocatingKeys.get(key);
+        if (allocating != null) {
+            return allocating;
+        }
+
+        byte[] keyBytes = keySerializer.serialize(key);
+        for (AbstractCacheFile<K> cacheFile : cacheFileList) {
+            Map<K, ValueDescriptor> directory = cacheFile.keyDirectory();
+            boolean found = directory instanceof SpillableKeyDirectory
+                    ? ((SpillableKeyDirectory<K, ValueDescriptor>) directory).containsSerializedKey(keyBytes)
+                    : directory.containsKey(key);
+            if (found) {
+                return cacheFile;
+            }
+        }
+        return null;
+    }
+
+    private AbstractCacheFile<K> createCacheFile(String filePath) {
+        switch (cacheFileEngine) {
+            case DIRECT_IO:
+                return new DirectIoCacheFile<>(filePath, maxBytesPerCacheFile, (int) maxBytesInMemoryBufferPerCacheFile, createKeyDirectory(filePath));
+            case READ_WRITE:
+                return new ReadWriteCacheFile<>(filePath, maxBytesPerCacheFile, (int) maxBytesInMemoryBufferPerCacheFile, createKeyDirectory(filePath));
+            case REENTRANT:
+            default:
+                return new ReentrantCacheFile<>(filePath, maxBytesPerCacheFile, (int) maxBytesInMemoryBufferPerCacheFile, createKeyDirectory(filePath));
+        }
+    }
+
+    // ====================================================== BulkLoader 批量加载 ==================================================
+
+    /**
+     * 下一个缓存文件的路径，目录按放置策略选择
+     */
+    String nextCacheFilePath() {
+        return cacheFileDirectories.next() + "/" + this.name + "_cache_" + cacheFileSize.get() + ".data";
+    }
+
+    /**
+     * 创建缓存文件的键目录
+     */
+    Map<K, ValueDescriptor> createKeyDirectory(String filePath) {
+        if (!spillKeyDirectory) {
+            return newInMemoryKeyDirectory();
+        }
+        return new SpillableKeyDirectory<>(Paths.get(filePath + ".keys"), keySerializer, ValueDescriptorCodec.INSTANCE,
+                maxKeysInMemoryPerCacheFile, maxSortedRunsPerCacheFile);
+    }
+
+    /**
+     * 创建堆内的键目录，子类可以针对key的类型使用更紧凑的实现
+     */
+    Map<K, ValueDescriptor> newInMemoryKeyDirectory() {
+        return new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 创建key到所在缓存文件的映射，在构造方法中调用，子类可以针对key的类型使用更紧凑的实现
+     */
+    Map<K, AbstractCacheFile<K>> newKeyFileMap() {
+        return new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 打开已经写好数据的缓存文件，作为本缓存的一个普通缓存文件使用；
+     * 批量写入的数据是紧密排列的，没有按块对齐，因此统一使用 {@link ReentrantCacheFile} 打开
+     */
+    AbstractCacheFile<K> attachCacheFile(String filePath, Map<K, ValueDescriptor> cachedData, long usedBytes) {
+        AbstractCacheFile<K> cacheFile = new ReentrantCacheFile<>(filePath, maxBytesPerCacheFile,
+                (int) maxBytesInMemoryBufferPerCacheFile, cachedData, usedBytes);
+        try {
+            cacheFileGrowLock.lock();
+            assertCacheAlive();
+            if (!spillKeyDirectory) {
+                for (K key : cachedData.keySet()) {
+                    cacheFiles.put(key, cacheFile);
+                }
+            }
+            registerCacheFile(cacheFile);
+            size.addAndGet(cachedData.size());
+        } finally {
+            cacheFileGrowLock.unlock();
+        }
+        return cacheFile;
+    }
+
+    void bulkPutIndex(K key, V value) {
+        putIndex(key, value);
+    }
+
+    void bulkRemoveIndex(K key, V value) {
+        removeIndex(key, value);
+    }
+
+    public ValueSerializer<V> getValueSerializer() {
+        return valueSerializer;
+    }
+
+    long getMaxBytesPerCacheFile() {
+        return maxBytesPerCacheFile;
+    }
+
     private void assertCacheAlive() {
         if (!cacheAlive.get()) {
             throw new IllegalStateException("Cache[" + this.name + "] already closed!");
@@ -239,4 +893,34 @@ public class DiskCache<K, V> extends AbstractCache<K, V> implements Closeable {
         this.maxBytesInMemoryBufferPerCacheFile = unit.toBytes(size);
         return this;
     }
+
+    private static class PendingWrite<K, V> {
+
+        final AbstractCacheFile<K> cacheFile;
+
+        /**
+         * 写入的值，覆盖同一个key时用于移除旧值的索引
+         */
+        final V value;
+
+        /**
+         * 提交时key是否已经存在，作为写入的结果返回
+         */
+        final boolean exist;
+
+        /**
+         * 该key是否由本次写入或仍在流水线中的前一次写入计入了缓存条目数量，写入失败回滚时使用
+         */
+        final boolean added;
+
+        final CompletableFuture<Void> future;
+
+        PendingWrite(AbstractCacheFile<K> cacheFile, V value, boolean exist, boolean added, CompletableFuture<Void> future) {
+            this.cacheFile = cacheFile;
+            this.value = value;
+            this.exist = exist;
+            this.added = added;
+            this.future = future;
+        }
+    }
 }
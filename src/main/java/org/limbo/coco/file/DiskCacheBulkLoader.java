@@ -0,0 +1,259 @@
+package org.limbo.coco.file;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * 离线批量构建 {@link DiskCache}，用于预热一个全新的缓存：
+ * 从迭代器中按批读取条目，在 ForkJoinPool 上并行序列化并构建索引，
+ * 同时由当前线程将上一批数据顺序写入缓存文件（大块顺序写，不经过 put 的锁），
+ * 写满一个文件后直接作为普通缓存文件挂到缓存上。
+ * <p>
+ * 条目的key最好不重复；重复的key以后出现的为准，会走较慢的覆盖流程。
+ *
+ * @param <K>
+ * @param <V>
+ */
+@Slf4j
+public class DiskCacheBulkLoader<K, V> {
+
+    private final DiskCacheConfiguration<K, V> config;
+
+    /**
+     * 并行序列化、构建索引使用的线程池，默认为 commonPool
+     */
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * 每批处理的条目数
+     */
+    private int batchSize = 8192;
+
+    /**
+     * 写文件时的缓冲区大小，默认1M
+     */
+    private int writeBufferSize = 1 << 20;
+
+    public DiskCacheBulkLoader(DiskCacheConfiguration<K, V> config) {
+        this.config = config;
+    }
+
+    public DiskCacheBulkLoader<K, V> setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public DiskCacheBulkLoader<K, V> setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public DiskCacheBulkLoader<K, V> setWriteBufferSize(int writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+        return this;
+    }
+
+    public DiskCache<K, V> load(Stream<? extends Map.Entry<K, V>> entries) {
+        return load(entries.iterator());
+    }
+
+    /**
+     * 读取全部条目，构建并返回一个可以正常使用的缓存
+     */
+    public DiskCache<K, V> load(Iterator<? extends Map.Entry<K, V>> entries) {
+        DiskCache<K, V> cache = new DiskCache<>(config);
+        Writer writer = new Writer(cache);
+        long t1 = System.currentTimeMillis();
+        try {
+            ForkJoinTask<Batch> pending = null;
+            while (entries.hasNext() || pending != null) {
+                Batch next = readBatch(entries);
+                // 序列化下一批的同时，写入上一批
+                ForkJoinTask<Batch> task = next == null ? null : pool.submit(() -> next.prepare(cache));
+                if (pending != null) {
+                    writer.write(pending.join());
+                }
+                pending = task;
+            }
+            writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            cache.close();
+            log.error("Error while bulk load cache[" + config.getName() + "]", e);
+            throw new IllegalStateException("Error while bulk load cache[" + config.getName() + "]", e);
+        } catch (RuntimeException e) {
+            writer.abort();
+            cache.close();
+            throw e;
+        }
+
+        log.info("Bulk loaded {} entries into cache[{}] in {}ms", cache.getSize(), config.getName(), System.currentTimeMillis() - t1);
+        return cache;
+    }
+
+    /**
+     * 读取一批条目，批次内相同的key只保留最后一个
+     */
+    private Batch readBatch(Iterator<? extends Map.Entry<K, V>> entries) {
+        if (!entries.hasNext()) {
+            return null;
+        }
+        Map<K, V> batch = new LinkedHashMap<>(batchSize * 4 / 3 + 1);
+        while (entries.hasNext() && batch.size() < batchSize) {
+            Map.Entry<K, V> entry = entries.next();
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        return new Batch(batch);
+    }
+
+    private class Batch {
+
+        private final List<K> keys;
+
+        private final List<V> values;
+
+        private final byte[][] data;
+
+        Batch(Map<K, V> entries) {
+            this.keys = new ArrayList<>(entries.keySet());
+            this.values = new ArrayList<>(entries.values());
+            this.data = new byte[keys.size()][];
+        }
+
+        /**
+         * 并行序列化和构建索引，在 pool 中执行
+         */
+        Batch prepare(DiskCache<K, V> cache) {
+            ValueSerializer<V> serializer = cache.getValueSerializer();
+            IntStream.range(0, keys.size()).parallel().forEach(i -> {
+                V value = values.get(i);
+                data[i] = value == null ? ValueDescriptor.EMPTY_DATA : serializer.serialize(value);
+                cache.bulkPutIndex(keys.get(i), value);
+            });
+            return this;
+        }
+    }
+
+    /**
+     * 顺序写入缓存文件，写满 maxBytesPerCacheFile 后换下一个文件
+     */
+    private class Writer {
+
+        private final DiskCache<K, V> cache;
+
+        private String filePath;
+
+        private OutputStream out;
+
+        private Map<K, ValueDescriptor> cachedData;
+
+        private long position;
+
+        private long usedBytes;
+
+        Writer(DiskCache<K, V> cache) {
+            this.cache = cache;
+        }
+
+        void write(Batch batch) throws IOException {
+            for (int i = 0; i < batch.keys.size(); i++) {
+                K key = batch.keys.get(i);
+                V value = batch.values.get(i);
+                byte[] data = batch.data[i];
+
+                if (out == null) {
+                    open();
+                }
+
+                if (cache.contains(key)) {
+                    // 之前的文件中已经存在，按普通的缓存更新处理
+                    cache.put(key, value);
+                    continue;
+                }
+                ValueDescriptor old = cachedData.get(key);
+                if (old != null) {
+                    overwrite(key, old, value);
+                }
+
+                if (data.length == 0) {
+                    cachedData.put(key, ValueDescriptor.NULL_VALUE_DESCRIPTOR);
+                } else {
+                    out.write(data);
+                    cachedData.put(key, new ValueDescriptor(position, data.length));
+                    position += data.length;
+                    usedBytes += data.length;
+                }
+
+                if (position >= cache.getMaxBytesPerCacheFile()) {
+                    finish();
+                }
+            }
+        }
+
+        /**
+         * 当前文件中已经存在该key，读出旧值以移除旧的索引，再重新建立新值的索引
+         */
+        private void overwrite(K key, ValueDescriptor old, V value) throws IOException {
+            if (old.length > 0) {
+                out.flush();
+                byte[] oldData = new byte[old.length];
+                try (RandomAccessFile raf = new RandomAccessFile(filePath, "r")) {
+                    raf.seek(old.offset);
+                    raf.readFully(oldData);
+                }
+                cache.bulkRemoveIndex(key, cache.getValueSerializer().deserialize(oldData));
+                usedBytes -= old.length;
+            } else {
+                cache.bulkRemoveIndex(key, null);
+            }
+            cache.bulkPutIndex(key, value);
+        }
+
+        private void open() throws IOException {
+            filePath = cache.nextCacheFilePath();
+            File file = new File(filePath);
+            if (file.exists()) {
+                file.delete();
+            }
+            File parentFile = file.getParentFile();
+            if (!parentFile.exists()) {
+                parentFile.mkdirs();
+            }
+            out = new BufferedOutputStream(new FileOutputStream(file), writeBufferSize);
+            cachedData = cache.createKeyDirectory(filePath);
+            position = 0;
+            usedBytes = 0;
+        }
+
+        /**
+         * 关闭当前文件，挂到缓存上
+         */
+        void finish() throws IOException {
+            if (out == null) {
+                return;
+            }
+            out.close();
+            out = null;
+            cache.attachCacheFile(filePath, cachedData, usedBytes);
+            cachedData = null;
+        }
+
+        void abort() {
+            IOUtils.closeQuietly(out);
+            if (cachedData instanceof Closeable) {
+                IOUtils.closeQuietly((Closeable) cachedData);
+            }
+            if (filePath != null) {
+                new File(filePath).delete();
+            }
+        }
+    }
+}
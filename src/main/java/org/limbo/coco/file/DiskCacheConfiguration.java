@@ -12,6 +12,18 @@ import java.util.List;
 @Getter
 public class DiskCacheConfiguration<K, V> {
 
+    /** 缓存文件目录 */
+    private String directory;
+
+    /** 多个缓存文件目录，一般每个目录对应一块磁盘，缓存文件分布到各个目录；为空时只使用 directory */
+    private List<String> directories;
+
+    /** 多个目录时新缓存文件的放置策略，默认轮询 */
+    private CacheFilePlacement cacheFilePlacement = CacheFilePlacement.ROUND_ROBIN;
+
+    /** 每个目录的IO线程数，大于0时写入流水线和异步读取在缓存文件所在目录的线程上执行，默认0不开启 */
+    private int ioThreadsPerDirectory = 0;
+
     private String name;
 
     /** 单个缓存文件的大小，默认50M */
@@ -22,10 +34,66 @@ public class DiskCacheConfiguration<K, V> {
 
     private ValueSerializer<V> valueSerializer;
 
+    /** 缓存文件的读写实现，默认 {@link CacheFileEngine#REENTRANT} */
+    private CacheFileEngine cacheFileEngine = CacheFileEngine.REENTRANT;
+
     private List<IndexBuilder<V>> indexBuilders;
 
+    /** 是否将键目录溢出到磁盘，开启后堆内只保留少量key，需要设置 keySerializer */
+    private boolean spillKeyDirectory = false;
+
+    /** key的序列化方式，键目录溢出到磁盘时使用 */
+    private ValueSerializer<K> keySerializer;
+
+    /** 键目录溢出到磁盘时，每个缓存文件在内存中保留的key数量，默认10万 */
+    private int maxKeysInMemoryPerCacheFile = 100000;
+
+    /** 键目录溢出到磁盘时，每个缓存文件最多的有序段数量，超过后合并，默认8 */
+    private int maxSortedRunsPerCacheFile = 8;
+
+    /** 是否开启写入流水线，开启后每个缓存文件同一时刻由一个写线程批量写入 */
+    private boolean writePipelineEnabled = false;
+
+    /** 每个缓存文件写入流水线的环形缓冲区大小 */
+    private int writePipelineCapacity = 4096;
+
+    /** 写线程每批最多写入的条目数 */
+    private int writePipelineBatchSize = 256;
+
+    /** 写线程跟不上时的处理策略，默认阻塞生产者 */
+    private WritePipelineBackpressure writePipelineBackpressure = WritePipelineBackpressure.BLOCK;
+
+    /** 未开启目录IO线程时，所有缓存文件的写入流水线共享的写线程数，默认为处理器个数 */
+    private int writePipelineThreads = Runtime.getRuntime().availableProcessors();
+
     public DiskCacheConfiguration() {
         this.indexBuilders = new LinkedList<>();
+        this.directories = new LinkedList<>();
+    }
+
+    public DiskCacheConfiguration<K, V> setDirectory(String directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> addDirectory(String directory) {
+        this.directories.add(directory);
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> addDirectories(Collection<String> directories) {
+        this.directories.addAll(directories);
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setCacheFilePlacement(CacheFilePlacement cacheFilePlacement) {
+        this.cacheFilePlacement = cacheFilePlacement;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setIoThreadsPerDirectory(int ioThreadsPerDirectory) {
+        this.ioThreadsPerDirectory = ioThreadsPerDirectory;
+        return this;
     }
 
     public DiskCacheConfiguration<K, V> setName(String name) {
@@ -48,6 +116,11 @@ public class DiskCacheConfiguration<K, V> {
         return this;
     }
 
+    public DiskCacheConfiguration<K, V> setCacheFileEngine(CacheFileEngine cacheFileEngine) {
+        this.cacheFileEngine = cacheFileEngine;
+        return this;
+    }
+
     public DiskCacheConfiguration<K, V> addIndices(Collection<IndexBuilder<V>> indexBuilders) {
         this.indexBuilders.addAll(indexBuilders);
         return this;
@@ -57,4 +130,49 @@ public class DiskCacheConfiguration<K, V> {
         this.indexBuilders.add(indexBuilder);
         return this;
     }
+
+    public DiskCacheConfiguration<K, V> setSpillKeyDirectory(boolean spillKeyDirectory) {
+        this.spillKeyDirectory = spillKeyDirectory;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setKeySerializer(ValueSerializer<K> keySerializer) {
+        this.keySerializer = keySerializer;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setMaxKeysInMemoryPerCacheFile(int maxKeysInMemoryPerCacheFile) {
+        this.maxKeysInMemoryPerCacheFile = maxKeysInMemoryPerCacheFile;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setMaxSortedRunsPerCacheFile(int maxSortedRunsPerCacheFile) {
+        this.maxSortedRunsPerCacheFile = maxSortedRunsPerCacheFile;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setWritePipelineEnabled(boolean writePipelineEnabled) {
+        this.writePipelineEnabled = writePipelineEnabled;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setWritePipelineCapacity(int writePipelineCapacity) {
+        this.writePipelineCapacity = writePipelineCapacity;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setWritePipelineBatchSize(int writePipelineBatchSize) {
+        this.writePipelineBatchSize = writePipelineBatchSize;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setWritePipelineBackpressure(WritePipelineBackpressure writePipelineBackpressure) {
+        this.writePipelineBackpressure = writePipelineBackpressure;
+        return this;
+    }
+
+    public DiskCacheConfiguration<K, V> setWritePipelineThreads(int writePipelineThreads) {
+        this.writePipelineThreads = writePipelineThreads;
+        return this;
+    }
 }
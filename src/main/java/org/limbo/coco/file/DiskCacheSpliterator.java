@@ -0,0 +1,176 @@
+package org.limbo.coco.file;
+
+import org.apache.commons.io.IOUtils;
+
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 遍历 {@link DiskCache} 的 Spliterator：
+ * 先按缓存文件对半拆分，只剩一个文件时为其创建快照，再按数据在文件中的字节范围对半拆分；
+ * 每个拆分出的部分使用自己的读缓冲区，在各自的范围内顺序读取并反序列化。
+ * <p>
+ * 拆分出的部分都读完后快照自动关闭；提前结束遍历时，由流关闭时统一关闭打开过的快照。
+ *
+ * @param <K>
+ * @param <V>
+ */
+class DiskCacheSpliterator<K, V> implements Spliterator<Map.Entry<K, V>> {
+
+    /**
+     * 单个文件内拆分后每部分至少包含的条目数，太小的范围拆分后读缓冲区的开销大于并行收益
+     */
+    private static final int MIN_SPLIT_ENTRIES = 1024;
+
+    private final List<AbstractCacheFile<K>> files;
+
+    /**
+     * 尚未打开的文件范围 [fileFrom, fileTo)
+     */
+    private int fileFrom;
+
+    private final int fileTo;
+
+    private final Function<byte[], V> deserializer;
+
+    private final int readBufferSize;
+
+    /**
+     * 打开过的快照，流关闭时统一关闭
+     */
+    private final Queue<CacheFileSnapshot<K>> opened;
+
+    /**
+     * 当前正在读取的快照，以及快照中尚未读取的范围 [from, to)
+     */
+    private CacheFileSnapshot<K> snapshot;
+
+    private CacheFileSnapshot<K>.Reader reader;
+
+    private int from;
+
+    private int to;
+
+    DiskCacheSpliterator(List<AbstractCacheFile<K>> files, Function<byte[], V> deserializer,
+                         int readBufferSize, Queue<CacheFileSnapshot<K>> opened) {
+        this(files, 0, files.size(), deserializer, readBufferSize, opened);
+    }
+
+    private DiskCacheSpliterator(List<AbstractCacheFile<K>> files, int fileFrom, int fileTo, Function<byte[], V> deserializer,
+                                 int readBufferSize, Queue<CacheFileSnapshot<K>> opened) {
+        this.files = files;
+        this.fileFrom = fileFrom;
+        this.fileTo = fileTo;
+        this.deserializer = deserializer;
+        this.readBufferSize = readBufferSize;
+        this.opened = opened;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+        while (true) {
+            if (snapshot != null && from < to) {
+                if (reader == null) {
+                    reader = snapshot.reader(readBufferSize);
+                }
+                K key = snapshot.key(from);
+                V value = deserializer.apply(reader.read(from));
+                from++;
+                if (from >= to) {
+                    release();
+                }
+                action.accept(new AbstractMap.SimpleImmutableEntry<>(key, value));
+                return true;
+            }
+            release();
+            if (fileFrom >= fileTo) {
+                return false;
+            }
+            open(files.get(fileFrom++));
+        }
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> trySplit() {
+        if (fileTo - fileFrom > 1 || (snapshot != null && fileTo > fileFrom)) {
+            // 还有多个文件未打开，先按文件拆分
+            if (snapshot == null) {
+                int mid = (fileFrom + fileTo) >>> 1;
+                DiskCacheSpliterator<K, V> prefix = new DiskCacheSpliterator<>(files, fileFrom, mid, deserializer, readBufferSize, opened);
+                fileFrom = mid;
+                return prefix;
+            }
+            // 当前文件已经打开，把剩余的文件拆出去
+            DiskCacheSpliterator<K, V> suffix = new DiskCacheSpliterator<>(files, fileFrom, fileTo, deserializer, readBufferSize, opened);
+            fileFrom = fileTo;
+            return suffix;
+        }
+
+        if (snapshot == null) {
+            if (fileFrom >= fileTo) {
+                return null;
+            }
+            open(files.get(fileFrom++));
+        }
+
+        // 只剩一个文件，按字节范围拆分
+        if (to - from < MIN_SPLIT_ENTRIES * 2) {
+            return null;
+        }
+        long midOffset = (snapshot.offset(from) + snapshot.offset(to - 1)) >>> 1;
+        int mid = snapshot.indexOf(midOffset, from + 1, to);
+        if (mid - from < MIN_SPLIT_ENTRIES || to - mid < MIN_SPLIT_ENTRIES) {
+            // 数据大小分布不均时退化为按条数拆分
+            mid = (from + to) >>> 1;
+        }
+
+        DiskCacheSpliterator<K, V> prefix = new DiskCacheSpliterator<>(files, fileTo, fileTo, deserializer, readBufferSize, opened);
+        snapshot.retain();
+        prefix.snapshot = snapshot;
+        prefix.from = from;
+        prefix.to = mid;
+        this.from = mid;
+        this.reader = null;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        long size = snapshot == null ? 0 : to - from;
+        for (int i = fileFrom; i < fileTo; i++) {
+            size += files.get(i).cachedData.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        int characteristics = DISTINCT | NONNULL;
+        if (fileFrom >= fileTo) {
+            // 只剩已经打开的快照时，大小是确定的
+            characteristics |= SIZED | SUBSIZED;
+        }
+        return characteristics;
+    }
+
+    private void open(AbstractCacheFile<K> cacheFile) {
+        snapshot = cacheFile.snapshot(readBufferSize);
+        opened.add(snapshot);
+        reader = null;
+        from = 0;
+        to = snapshot.size();
+    }
+
+    private void release() {
+        if (snapshot != null) {
+            IOUtils.closeQuietly(snapshot);
+            snapshot = null;
+            reader = null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.limbo.coco.file;
+
+import org.limbo.coco.Index;
+import org.limbo.coco.IndexBuilder;
+import org.limbo.coco.LongIndex;
+import org.limbo.coco.file.serializer.ValueSerializer;
+import org.limbo.coco.primitive.ConcurrentLongObjectMap;
+
+import java.util.Map;
+
+/**
+ * key为long的 {@link DiskCache}：
+ * key到缓存文件的映射使用 {@link ConcurrentLongObjectMap}，每个缓存文件的堆内键目录使用 {@link LongKeyDirectory}，
+ * 索引的key集合使用基本类型的集合，百万级key时堆内不再为每个key保留Long、Entry和 {@link ValueDescriptor} 对象。
+ * <p>
+ * 基本类型的方法会转调 {@link DiskCache} 的方法，调用过程中仍会产生短生命周期的Long对象，但不会被长期持有；
+ * 开启 spillKeyDirectory 时键目录仍然溢出到磁盘。
+ *
+ * @param <V>
+ */
+public class LongDiskCache<V> extends DiskCache<Long, V> {
+
+    public LongDiskCache(String dir, String name, ValueSerializer<V> serializer) {
+        super(dir, name, serializer);
+    }
+
+    public LongDiskCache(String dir, String name, ValueSerializer<V> serializer, long maxBytesPerCacheFile) {
+        super(dir, name, serializer, maxBytesPerCacheFile);
+    }
+
+    public LongDiskCache(DiskCacheConfiguration<Long, V> config) {
+        super(config);
+    }
+
+    public LongDiskCache() {
+        super();
+    }
+
+    public boolean put(long key, V value) {
+        return put(Long.valueOf(key), value);
+    }
+
+    public V get(long key) {
+        return get(Long.valueOf(key));
+    }
+
+    public boolean remove(long key) {
+        return remove(Long.valueOf(key));
+    }
+
+    public boolean contains(long key) {
+        return contains(Long.valueOf(key));
+    }
+
+    @Override
+    Map<Long, ValueDescriptor> newInMemoryKeyDirectory() {
+        return new LongKeyDirectory();
+    }
+
+    @Override
+    Map<Long, AbstractCacheFile<Long>> newKeyFileMap() {
+        return new ConcurrentLongObjectMap<>();
+    }
+
+    @Override
+    protected Index<Long, V> createIndex(IndexBuilder<V> indexBuilder) {
+        return new LongIndex<>(indexBuilder);
+    }
+}
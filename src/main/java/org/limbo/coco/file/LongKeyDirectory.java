@@ -0,0 +1,290 @@
+package org.limbo.coco.file;
+
+import java.util.*;
+
+/**
+ * key为long的缓存文件键目录，开放寻址表，key、偏移量、长度分别存储在三个基本类型数组中，
+ * 每个条目只占用20个字节（加上装载因子的空闲槽），不创建Long和 {@link ValueDescriptor} 对象；
+ * 读取时返回新建的 {@link ValueDescriptor}，修改返回的对象不会影响目录。
+ * <p>
+ * 方法加锁，线程安全；遍历时逐个槽位加锁读取，弱一致。
+ */
+public class LongKeyDirectory extends AbstractMap<Long, ValueDescriptor> {
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * 空槽的长度标记
+     */
+    private static final int EMPTY = -1;
+
+    private long[] keys;
+
+    private long[] offsets;
+
+    /**
+     * 数据长度，{@link #EMPTY} 表示空槽
+     */
+    private int[] lengths;
+
+    private int mask;
+
+    private int size;
+
+    private int resizeAt;
+
+    /**
+     * 修改次数，扩容或删除后移时遍历需要重新定位
+     */
+    private int modCount;
+
+    public LongKeyDirectory() {
+        this(16);
+    }
+
+    public LongKeyDirectory(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    @Override
+    public synchronized ValueDescriptor get(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        int i = find((Long) key);
+        return i < 0 ? null : descriptorAt(i);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return key instanceof Long && find((Long) key) >= 0;
+    }
+
+    @Override
+    public synchronized ValueDescriptor put(Long key, ValueDescriptor value) {
+        long k = key;
+        int i = slot(k);
+        while (lengths[i] != EMPTY) {
+            if (keys[i] == k) {
+                ValueDescriptor old = descriptorAt(i);
+                offsets[i] = value.offset;
+                lengths[i] = value.length;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = k;
+        offsets[i] = value.offset;
+        lengths[i] = value.length;
+        modCount++;
+        if (++size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized ValueDescriptor remove(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        int i = find((Long) key);
+        if (i < 0) {
+            return null;
+        }
+        ValueDescriptor old = descriptorAt(i);
+        shiftBack(i);
+        size--;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        Arrays.fill(lengths, EMPTY);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Entry<Long, ValueDescriptor>> entrySet() {
+        return new AbstractSet<Entry<Long, ValueDescriptor>>() {
+            @Override
+            public Iterator<Entry<Long, ValueDescriptor>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return LongKeyDirectory.this.size();
+            }
+        };
+    }
+
+    /**
+     * 按槽位顺序遍历；遍历期间发生扩容或删除后移时，剩余部分改为遍历当时的全部key的副本，
+     * 可能重复返回少量已经遍历过的key，但不会遗漏遍历开始前就存在且未被删除的key
+     */
+    private class EntryIterator implements Iterator<Entry<Long, ValueDescriptor>> {
+
+        private int slot = 0;
+
+        private int expectedModCount;
+
+        private Entry<Long, ValueDescriptor> next;
+
+        private Entry<Long, ValueDescriptor> last;
+
+        /**
+         * 发生结构变化后使用的副本
+         */
+        private Iterator<Long> fallback;
+
+        EntryIterator() {
+            synchronized (LongKeyDirectory.this) {
+                this.expectedModCount = modCount;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            synchronized (LongKeyDirectory.this) {
+                if (fallback == null && expectedModCount != modCount) {
+                    // 结构发生变化，槽位可能移动过，改为遍历剩余key的副本
+                    fallback = keysFromSlot(0).iterator();
+                }
+                if (fallback != null) {
+                    while (fallback.hasNext()) {
+                        Long key = fallback.next();
+                        int i = find(key);
+                        if (i >= 0) {
+                            next = new SimpleImmutableEntry<>(key, descriptorAt(i));
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                while (slot < lengths.length) {
+                    int i = slot++;
+                    if (lengths[i] != EMPTY) {
+                        next = new SimpleImmutableEntry<>(keys[i], descriptorAt(i));
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public Entry<Long, ValueDescriptor> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = null;
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            LongKeyDirectory.this.remove(last.getKey());
+            last = null;
+        }
+    }
+
+    /**
+     * 从某个槽位开始的全部key，在锁内调用
+     */
+    private List<Long> keysFromSlot(int from) {
+        List<Long> result = new ArrayList<>(size);
+        for (int i = from; i < lengths.length; i++) {
+            if (lengths[i] != EMPTY) {
+                result.add(keys[i]);
+            }
+        }
+        return result;
+    }
+
+    private ValueDescriptor descriptorAt(int i) {
+        int length = lengths[i];
+        return length == 0 && offsets[i] == 0 ? ValueDescriptor.NULL_VALUE_DESCRIPTOR : new ValueDescriptor(offsets[i], length);
+    }
+
+    private int find(long key) {
+        int i = slot(key);
+        while (lengths[i] != EMPTY) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void shiftBack(int i) {
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (lengths[j] == EMPTY) {
+                break;
+            }
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                offsets[gap] = offsets[j];
+                lengths[gap] = lengths[j];
+                gap = j;
+            }
+        }
+        lengths[gap] = EMPTY;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        long[] oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        allocate(newCapacity);
+        for (int i = 0; i < oldLengths.length; i++) {
+            if (oldLengths[i] != EMPTY) {
+                int j = slot(oldKeys[i]);
+                while (lengths[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                offsets[j] = oldOffsets[i];
+                lengths[j] = oldLengths[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.offsets = new long[capacity];
+        this.lengths = new int[capacity];
+        Arrays.fill(this.lengths, EMPTY);
+        this.mask = capacity - 1;
+        this.resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        long capacity = Math.max(4L, (long) Math.ceil(expectedSize / LOAD_FACTOR) + 1);
+        return (int) (Long.highestOneBit(capacity - 1) << 1);
+    }
+}
@@ -4,10 +4,17 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 基于内存映射的缓存文件，创建时按最大大小映射整个文件；
+ * 只能追加写入，被覆盖或移除的数据占用的空间不会回收，写满后再写入会抛出 IllegalStateException
+ */
 @Slf4j
 public class MappedByteBufferCacheFile<K> extends AbstractCacheFile<K> {
 
@@ -29,9 +36,21 @@ public class MappedByteBufferCacheFile<K> extends AbstractCacheFile<K> {
      * 当前缓冲区大小
      */
     private int bufferSize = 0;
+    /**
+     * 已经追加写入的字节数，包括缓冲区中的数据
+     */
+    private volatile long appendedBytes = 0;
 
     public MappedByteBufferCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize) {
-        super(filePath);
+        this(filePath, maxBytesPerCacheFile, maxBufferSize, new ConcurrentHashMap<>());
+    }
+
+    public MappedByteBufferCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize, Map<K, ValueDescriptor> cachedData) {
+        super(filePath, cachedData);
+        if (maxBytesPerCacheFile > Integer.MAX_VALUE) {
+            // 单个 MappedByteBuffer 最大只能映射2G
+            throw new IllegalArgumentException("MappedByteBufferCacheFile cannot be larger than 2G, use another CacheFileEngine!");
+        }
 
         this.lock = new ReentrantLock();
 
@@ -56,7 +75,7 @@ public class MappedByteBufferCacheFile<K> extends AbstractCacheFile<K> {
                 ValueDescriptor oldValueDescriptor = cachedData.get(key);
                 cachedData.put(key, ValueDescriptor.NULL_VALUE_DESCRIPTOR);
                 if (oldValueDescriptor != null) {
-                    usedBytes.addAndGet(oldValueDescriptor.length);
+                    usedBytes.addAndGet(-oldValueDescriptor.length);
                 }
                 return;
             }
@@ -65,40 +84,62 @@ public class MappedByteBufferCacheFile<K> extends AbstractCacheFile<K> {
             ValueDescriptor newValueDescriptor;
             // 写入到缓冲区
             int length = data.length;
+            long offset;
+            if (appendedBytes + length > mappedByteBuffer.capacity()) {
+                throw new IllegalStateException("MappedByteBufferCacheFile[" + this + "] is full, need " + length
+                        + " bytes but only " + getWritableBytes() + " left: it is append-only and space of overwritten or removed values is never reclaimed");
+            }
 
             if (length > maxBufferSize) { // 如果单个值已经超过缓冲区大小了直接写入文件
                 flush(); // 先flush 保证数据位置
+                offset = mappedByteBuffer.position();
                 mappedByteBuffer.put(data);
             } else {
                 // 缓冲区 提升性能
                 if ((bufferSize + length) > maxBufferSize) {
                     flush();
                 }
+                // mbb的position是已经写入的数据长度
+                offset = mappedByteBuffer.position() + bufferSize;
                 System.arraycopy(data, 0, buffer, bufferSize, length);
                 bufferSize += length;
             }
 
+            appendedBytes += length;
             oldValueDescriptor = this.cachedData.get(key);
-            newValueDescriptor = new ValueDescriptor(usedBytes.intValue(), length);
+            newValueDescriptor = new ValueDescriptor(offset, length);
 
             cachedData.put(key, newValueDescriptor);
-            if (oldValueDescriptor == null) {
-                usedBytes.addAndGet(newValueDescriptor.length);
+            if (oldValueDescriptor != null) {
+                usedBytes.addAndGet(-oldValueDescriptor.length);
             }
+            usedBytes.addAndGet(newValueDescriptor.length);
 
         } finally {
             unlock();
         }
     }
 
+    /**
+     * 还能追加写入的字节数，被覆盖或移除的数据占用的空间不会回收
+     */
+    public long getWritableBytes() {
+        return mappedByteBuffer.capacity() - appendedBytes;
+    }
+
     /**
      * 将缓冲区数据刷入mbb
      */
-    private void flush() {
-        if (bufferSize > 0) {
-            mappedByteBuffer.put(buffer);
-            bufferSize = 0;
-            buffer = new byte[maxBufferSize];
+    @Override
+    public void flush() {
+        try {
+            lock();
+            if (bufferSize > 0) {
+                mappedByteBuffer.put(buffer, 0, bufferSize);
+                bufferSize = 0;
+            }
+        } finally {
+            unlock();
         }
     }
 
@@ -119,20 +160,63 @@ public class MappedByteBufferCacheFile<K> extends AbstractCacheFile<K> {
             assertCacheFilAlive();
 
             ValueDescriptor vd = this.cachedData.get(key);
+            if (vd == null) {
+                return null;
+            }
             if (vd.length == 0) {
                 // 数据长度为0，则为null，直接返回一个长度为0的数组
-                return new byte[0];
+                return ValueDescriptor.EMPTY_DATA;
             }
 
             byte[] data = new byte[vd.length];
-            mappedByteBuffer.position(vd.offset);
-            mappedByteBuffer.get(data, 0, vd.length);
+            read(vd, ByteBuffer.wrap(data));
             return data;
         } finally {
             this.lock.unlock();
         }
     }
 
+    @Override
+    public int get(K key, ByteBuffer dst) {
+        try {
+            this.lock.lock();
+            assertCacheFilAlive();
+
+            ValueDescriptor vd = this.cachedData.get(key);
+            if (vd == null) {
+                return -1;
+            }
+            if (vd.length == 0 || dst.remaining() < vd.length) {
+                return vd.length;
+            }
+            read(vd, dst);
+            return vd.length;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * 从mbb中读取数据，mbb的position是下一次写入的位置，读取后需要恢复
+     */
+    private void read(ValueDescriptor vd, ByteBuffer dst) {
+        int writePosition = mappedByteBuffer.position();
+        if (vd.offset >= writePosition) {
+            // 还在缓冲区中
+            dst.put(buffer, (int) (vd.offset - writePosition), vd.length);
+            return;
+        }
+        int limit = mappedByteBuffer.limit();
+        try {
+            mappedByteBuffer.limit((int) vd.offset + vd.length);
+            mappedByteBuffer.position((int) vd.offset);
+            dst.put(mappedByteBuffer);
+        } finally {
+            mappedByteBuffer.limit(limit);
+            mappedByteBuffer.position(writePosition);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         try {
@@ -150,6 +234,8 @@ public class MappedByteBufferCacheFile<K> extends AbstractCacheFile<K> {
             if (cacheFilePath != null) {
                 cacheFilePath.toFile().delete();
             }
+            releaseReadChannel();
+            closeCachedData();
         } catch (IOException e) {
             log.error("Unexpected exception while close cache randomAccessFile", e);
             throw e;
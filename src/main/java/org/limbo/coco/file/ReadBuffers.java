@@ -0,0 +1,52 @@
+package org.limbo.coco.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 读路径使用的线程本地缓冲区，读取缓存数据时不再为每次读取分配 byte[]；
+ * 缓冲区按需扩容，超过 {@link #MAX_RETAINED_SIZE} 的缓冲区只使用一次，不在线程上保留，避免大值长期占用内存
+ */
+public final class ReadBuffers {
+
+    /**
+     * 初始大小，4K
+     */
+    private static final int INITIAL_SIZE = 4 << 10;
+
+    /**
+     * 线程上最多保留的缓冲区大小，1M
+     */
+    private static final int MAX_RETAINED_SIZE = 1 << 20;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_SIZE));
+
+    private ReadBuffers() {
+    }
+
+    /**
+     * 获取当前线程的缓冲区，已经清空
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 获取容量至少为 minCapacity 的缓冲区，已经清空
+     */
+    public static ByteBuffer acquire(int minCapacity) {
+        ByteBuffer buffer = BUFFERS.get();
+        if (buffer.capacity() >= minCapacity) {
+            buffer.clear();
+            return buffer;
+        }
+
+        int capacity = Math.max(minCapacity, Math.min(buffer.capacity() << 1, MAX_RETAINED_SIZE));
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        if (capacity <= MAX_RETAINED_SIZE) {
+            BUFFERS.set(grown);
+        }
+        return grown;
+    }
+}
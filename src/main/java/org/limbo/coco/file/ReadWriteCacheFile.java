@@ -4,354 +4,434 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
-import java.io.*;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 读多写少场景下的缓存文件，读取不加锁：
+ * <ul>
+ *     <li>写操作之间用 ReentrantLock 互斥，与其他缓存文件一样通过 {@link #lock()} 暴露给批量写入等调用方；</li>
+ *     <li>写缓冲区中的数据使用 {@link StampedLock} 乐观读，写缓冲区被清空（flush）或交换文件时写锁使乐观读失效，读取方重试；</li>
+ *     <li>已写入文件的数据不会被修改，使用 FileChannel 的按位置读取，多个线程可以同时读，不共享文件游标；</li>
+ *     <li>交换文件会改变数据的位置，交换前后把 epoch 各加1，读取方在 epoch 为奇数或读取前后 epoch 不同时重试。</li>
+ * </ul>
+ * 乐观读连续失败时退化为加锁读取。
+ */
 @Slf4j
-public class ReadWriteCacheFile<K> implements Closeable {
-
-    private ReadWriteLock readWriteLock;
-    private Lock readLock;
-    private Lock writeLock;
+public class ReadWriteCacheFile<K> extends AbstractCacheFile<K> {
 
-    private AtomicReference<CacheFileStatus> status;
     /**
-     * 文件存储路径
+     * 乐观读的最大重试次数，超过后加锁读取
      */
-    private Path cacheFilePath;
+    private static final int MAX_OPTIMISTIC_READS = 3;
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final ReentrantLock lock;
 
-    private RandomAccessFile randomAccessFile;
+    /**
+     * 写缓冲区的版本，写缓冲区中的数据失效时获取写锁
+     */
+    private final StampedLock bufferLock;
 
     /**
-     * 该文件中缓存的数据 K 主键 V 表示数据在文件的位置
+     * 交换文件的次数*2，交换进行中为奇数
      */
-    private ConcurrentHashMap<K, ValueDescriptor> cachedData;
+    private volatile long epoch = 0;
 
-    // 缓存文件中，有效缓存数据已使用的字节数
-    private AtomicLong usedBytes;
+    private volatile FileChannel channel;
 
     /**
      * 缓冲区数据
      */
-    private byte[] buffer;
+    private final byte[] buffer;
     /**
      * 缓冲区最大大小
      */
-    private int maxBufferSize;
+    private final int maxBufferSize;
     /**
-     * 当前缓冲区大小
+     * 当前缓冲区大小，只在持有锁时访问
      */
     private int bufferSize = 0;
+    /**
+     * 已经写入文件的字节数，缓冲区中的数据从这个位置开始
+     */
+    private volatile long fileLength = 0;
     /**
      * 单个缓存文件的大小，默认50M
      */
     private volatile long maxBytesPerCacheFile;
 
     public ReadWriteCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize) {
-        this.usedBytes = new AtomicLong(0);
-        this.cachedData = new ConcurrentHashMap<>();
-        this.status = new AtomicReference<>(CacheFileStatus.NORMAL);
+        this(filePath, maxBytesPerCacheFile, maxBufferSize, new ConcurrentHashMap<>());
+    }
 
-        this.readWriteLock = new ReentrantReadWriteLock();
-        readLock = readWriteLock.readLock();
-        writeLock = readWriteLock.writeLock();
+    public ReadWriteCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize, Map<K, ValueDescriptor> cachedData) {
+        super(filePath, cachedData);
 
+        this.lock = new ReentrantLock();
+        this.bufferLock = new StampedLock();
         this.maxBytesPerCacheFile = maxBytesPerCacheFile;
         this.maxBufferSize = maxBufferSize;
-        this.cacheFilePath = Paths.get(filePath);
         this.buffer = new byte[maxBufferSize];
 
         try {
-            // 缓存文件已经存在的话，则重新创建
-            File cacheFile = this.cacheFilePath.toFile();
-            if (cacheFile.exists()) {
-                cacheFile.delete();
-            }
-            File parentFile = cacheFile.getParentFile();
-            if (!parentFile.exists()) {
-                parentFile.mkdirs();
-            }
-            this.randomAccessFile = new RandomAccessFile(cacheFile, "rwd");
-        } catch (FileNotFoundException e) {
-            log.error("Cache randomAccessFile create failed due to exception", e);
+            this.channel = openChannel(cacheFilePath);
+        } catch (IOException e) {
+            log.error("Cache file channel create failed due to exception", e);
             throw new CacheFileCreateException(e);
         }
     }
 
-    public List<K> keyList() {
-        try {
-            writeLock.lock();
-            return new ArrayList<>(cachedData.keySet());
-        } catch (Exception e) {
-            log.error("Unexpected exception when read cache randomAccessFile[" + this + "]", e);
-            throw new ConcurrentModificationException("Unexpected exception when read cache randomAccessFile[" + this + "]");
-        } finally {
-            writeLock.unlock();
-        }
+    private static FileChannel openChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
     }
 
-    public void put(K key, byte[] data) {
-        try {
-            internalPut(key, data, false);
-        } catch (IOException e) {
-            log.error("Error while write cache file[" + this + "]", e);
-            throw new IllegalStateException("Error while write cache file[" + this + "]", e);
+    @Override
+    public byte[] get(K key) {
+        while (true) {
+            // 先取得长度再按长度分配数组，两次读取之间值被修改时重新读取
+            int length = get(key, EMPTY_BUFFER);
+            if (length < 0) {
+                return null;
+            }
+            if (length == 0) {
+                // 数据长度为0，则为null，直接返回一个长度为0的数组
+                return ValueDescriptor.EMPTY_DATA;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer dst = ByteBuffer.wrap(data);
+            if (get(key, dst) == length && !dst.hasRemaining()) {
+                return data;
+            }
         }
     }
 
-    private void internalPut(K key, byte[] data, boolean withFlush) throws IOException {
-        try {
-            this.writeLock.lock();
-            if (data.length == 0) {
-                // 数据长度为0，则为null
-                ValueDescriptor oldValueDescriptor = cachedData.get(key);
-                cachedData.put(key, ValueDescriptor.NULL_VALUE_DESCRIPTOR);
-                if (oldValueDescriptor != null) {
-                    usedBytes.addAndGet(oldValueDescriptor.length);
+    @Override
+    public int get(K key, ByteBuffer dst) {
+        assertCacheFilAlive();
+        for (int i = 0; i < MAX_OPTIMISTIC_READS; i++) {
+            long currentEpoch = epoch;
+            if ((currentEpoch & 1) != 0) {
+                // 正在交换文件，等交换完成后加锁读取
+                break;
+            }
+            long stamp = bufferLock.tryOptimisticRead();
+            ValueDescriptor vd = cachedData.get(key);
+            if (vd == null || vd.length == 0 || dst.remaining() < vd.length) {
+                if (bufferLock.validate(stamp) && epoch == currentEpoch) {
+                    return vd == null ? -1 : vd.length;
                 }
-                return;
+                continue;
             }
 
-            ValueDescriptor oldValueDescriptor;
-            ValueDescriptor newValueDescriptor;
-            // 写入到缓冲区
-            int offset = (int) (randomAccessFile.length() + bufferSize);
-            int length = data.length;
-
-            // 缓冲区 提升性能
-            if ((bufferSize + length) > maxBufferSize) {
-                flush();
+            int start = dst.position();
+            long flushed = fileLength;
+            if (vd.offset >= flushed) {
+                // 还在缓冲区中，复制后校验缓冲区在此期间没有被清空
+                long bufferOffset = vd.offset - flushed;
+                if (bufferOffset + vd.length <= maxBufferSize) {
+                    dst.put(buffer, (int) bufferOffset, vd.length);
+                    if (bufferLock.validate(stamp) && epoch == currentEpoch) {
+                        return vd.length;
+                    }
+                    dst.position(start);
+                }
+                continue;
             }
-            System.arraycopy(data, 0, buffer, bufferSize, length);
-            bufferSize += length;
-
-            oldValueDescriptor = this.cachedData.get(key);
-            newValueDescriptor = new ValueDescriptor(offset, length);
 
-            this.cachedData.put(key, newValueDescriptor);
-            if (oldValueDescriptor != null) {
-                this.usedBytes.addAndGet(-oldValueDescriptor.length);
+            // 文件中的数据不会被修改，只需要校验期间没有交换文件
+            ByteBuffer view = dst.duplicate();
+            view.limit(start + vd.length);
+            try {
+                readFully(channel, view, vd.offset);
+            } catch (ClosedByInterruptException e) {
+                reopenChannel();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while read cache file[" + this + "]", e);
+            } catch (ClosedChannelException e) {
+                // 交换文件时关闭了旧的文件通道
+                continue;
+            } catch (IOException e) {
+                if (epoch != currentEpoch) {
+                    continue;
+                }
+                log.error("Error while read cache file[" + this + "]", e);
+                throw new IllegalStateException("Error while read cache file[" + this + "]", e);
             }
-            this.usedBytes.addAndGet(newValueDescriptor.length);
-
-            if (withFlush) {
-                this.flush();
+            if (epoch == currentEpoch) {
+                dst.position(start + vd.length);
+                return vd.length;
             }
-            this.checkSwap();
-        } finally {
-            this.writeLock.unlock();
         }
+        return lockedGet(key, dst);
     }
 
     /**
-     * 将缓冲区内容写入文件末尾
+     * 加锁读取，此时没有写操作和交换文件
      */
-    public void flush() {
+    private int lockedGet(K key, ByteBuffer dst) {
         try {
-            this.writeLock.lock();
-            if (bufferSize > 0) {
-                randomAccessFile.seek(randomAccessFile.length());
-                randomAccessFile.write(buffer, 0, bufferSize);
-                bufferSize = 0;
+            lock();
+            assertCacheFilAlive();
+            ValueDescriptor vd = cachedData.get(key);
+            if (vd == null) {
+                return -1;
+            }
+            if (vd.length == 0 || dst.remaining() < vd.length) {
+                return vd.length;
             }
+
+            if (vd.offset >= fileLength) {
+                // offset大于文件长度，则应该从buffer中读取
+                dst.put(buffer, (int) (vd.offset - fileLength), vd.length);
+            } else {
+                int limit = dst.limit();
+                dst.limit(dst.position() + vd.length);
+                try {
+                    readFully(channel, dst, vd.offset);
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+            return vd.length;
         } catch (IOException e) {
-            log.error("Error while flush write cache file[" + this + "]", e);
-            throw new IllegalStateException("Error while flush write cache file[" + this + "]", e);
+            log.error("Error while read cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while read cache file[" + this + "]", e);
         } finally {
-            this.writeLock.unlock();
+            unlock();
         }
     }
 
-    public boolean remove(K key) {
+    /**
+     * 读取的线程被中断时 FileChannel 会被关闭，重新打开以免影响其他线程
+     */
+    private void reopenChannel() {
         try {
-            this.writeLock.lock();
-            if (cachedData.containsKey(key)) {
-                ValueDescriptor vd = cachedData.remove(key);
-                if (vd != null) {
-                    usedBytes.addAndGet(-vd.length);
-                }
-                return true;
+            lock();
+            if (!channel.isOpen() && status.get() != CacheFileStatus.CLOSED) {
+                channel = openChannel(cacheFilePath);
             }
-            return false;
+        } catch (IOException e) {
+            log.error("Error while reopen cache file[" + this + "]", e);
         } finally {
-            this.writeLock.unlock();
+            unlock();
         }
     }
 
-    public byte[] get(K key) {
+    @Override
+    public void put(K key, byte[] data) {
         try {
-            this.readLock.lock();
-            assertCacheAlive();
-
-            ValueDescriptor vd = this.cachedData.get(key);
-            if (vd.length == 0) {
-                // 数据长度为0，则为null，直接返回一个长度为0的数组
-                return new byte[0];
+            lock();
+            assertCacheFilAlive();
+            ValueDescriptor oldValueDescriptor = cachedData.get(key);
+            int length = data.length;
+            if (length == 0) {
+                // 数据长度为0，则为null
+                cachedData.put(key, ValueDescriptor.NULL_VALUE_DESCRIPTOR);
+                if (oldValueDescriptor != null) {
+                    usedBytes.addAndGet(-oldValueDescriptor.length);
+                }
+                return;
             }
 
-            byte[] data = new byte[vd.length];
-
-            if (vd.offset >= randomAccessFile.length()) {
-                // offset大于文件长度，则应该从buffer中读取
-                int bufferOffset = (int) (vd.offset - randomAccessFile.length());
-                System.arraycopy(buffer, bufferOffset, data, 0, vd.length);
+            long offset;
+            if (length > maxBufferSize) { // 如果单个值已经超过缓冲区大小了直接写入文件
+                flush(); // 先flush 保证数据位置
+                offset = fileLength;
+                writeFully(channel, ByteBuffer.wrap(data), offset);
+                fileLength += length;
             } else {
-                this.randomAccessFile.seek(vd.offset);
-                this.randomAccessFile.read(data, 0, vd.length);
+                // 缓冲区 提升性能，追加的位置不会被正在读取的线程访问，不需要使乐观读失效
+                if ((bufferSize + length) > maxBufferSize) {
+                    flush();
+                }
+                offset = fileLength + bufferSize;
+                System.arraycopy(data, 0, buffer, bufferSize, length);
+                bufferSize += length;
             }
 
-            return data;
+            // 数据写入后再发布描述对象
+            cachedData.put(key, new ValueDescriptor(offset, length));
+            if (oldValueDescriptor != null) {
+                usedBytes.addAndGet(-oldValueDescriptor.length);
+            }
+            usedBytes.addAndGet(length);
+            checkSwap();
         } catch (IOException e) {
-            log.error("Error while read cache file[" + this + "]", e);
-            throw new IllegalStateException("Error while read cache file[" + this + "]", e);
+            log.error("Error while write cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while write cache file[" + this + "]", e);
         } finally {
-            this.readLock.unlock();
+            unlock();
         }
     }
 
-    public boolean contains(K key) {
+    /**
+     * 将缓冲区内容写入文件末尾，写入后在写锁中清空缓冲区，使正在读取缓冲区的乐观读失效
+     */
+    @Override
+    public void flush() {
         try {
-            readLock.lock();
-            return cachedData.containsKey(key);
+            lock();
+            if (bufferSize > 0) {
+                writeFully(channel, ByteBuffer.wrap(buffer, 0, bufferSize), fileLength);
+                long stamp = bufferLock.writeLock();
+                try {
+                    fileLength += bufferSize;
+                    bufferSize = 0;
+                } finally {
+                    bufferLock.unlockWrite(stamp);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error while flush write cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while flush write cache file[" + this + "]", e);
         } finally {
-            readLock.unlock();
+            unlock();
         }
     }
 
     private void checkSwap() {
         // 在此处，文件大小 超出 maxBytesPerCacheFile 80%的时候执行swap；
-        try {
-            if ((this.randomAccessFile.length() + bufferSize) >= this.maxBytesPerCacheFile * 1.8) {
-                try {
-                    do {
-                        assertCacheAlive();
-                    } while (!status.compareAndSet(CacheFileStatus.NORMAL, CacheFileStatus.SWAPPING));
-                    flush();// 先flush，保证所有数据都在文件中之后，再进行swap
-                    doSwap();
-                } finally {
-                    status.compareAndSet(CacheFileStatus.SWAPPING, CacheFileStatus.NORMAL);
-                }
+        if ((fileLength + bufferSize) >= this.maxBytesPerCacheFile * 1.8) {
+            try {
+                do {
+                    assertCacheFilAlive();
+                } while (!status.compareAndSet(CacheFileStatus.NORMAL, CacheFileStatus.SWAPPING));
+                flush();// 先flush，保证所有数据都在文件中之后，再进行swap
+                doSwap();
+            } finally {
+                status.compareAndSet(CacheFileStatus.SWAPPING, CacheFileStatus.NORMAL);
             }
-        } catch (IOException e) {
-            log.error("Unexpected IOException while checkSwap", e);
-            throw new IllegalStateException("Unexpected IOException while checkSwap", e);
         }
     }
 
+    /**
+     * 将有效数据复制到swap文件，期间读取方继续读取原文件；
+     * 复制完成后在写锁中、epoch为奇数时替换文件和描述对象，描述对象是新建的，不修改读取方可能持有的旧对象
+     */
     private void doSwap() {
         String cacheFilePathName = this.cacheFilePath.getName(this.cacheFilePath.getNameCount() - 1).toString();
-        Path swapFilePath = this.cacheFilePath.resolveSibling(cacheFilePathName + ".swap");
         // **.data.swap
-        File swapFile = swapFilePath.toFile();
+        File swapFile = this.cacheFilePath.resolveSibling(cacheFilePathName + ".swap").toFile();
         // **.data
         File cacheFile = this.cacheFilePath.toFile();
-        // **.data.swap.1
-        File tempSwapFile = this.cacheFilePath.resolveSibling(cacheFilePathName + ".swap.1").toFile();
-        OutputStream swapOut = null;
-        try {
-            this.writeLock.lock();
 
-            // 将可用数据保存到swap文件
-            swapOut = new FileOutputStream(swapFile);//Files.newOutputStream(swapFilePath, StandardOpenOption.WRITE);
+        Map<K, ValueDescriptor> swapped = new HashMap<>();
+        long hasWritten = 0;
+        try (FileChannel swapChannel = FileChannel.open(swapFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
             byte[] data = null;
-            int hasWritten = 0;
             for (Map.Entry<K, ValueDescriptor> entry : this.cachedData.entrySet()) {
                 ValueDescriptor vd = entry.getValue();
+                if (vd.length == 0) {
+                    // null值不占用文件空间
+                    continue;
+                }
                 if (data == null || data.length < vd.length) {
                     data = new byte[vd.length];
                 }
-                randomAccessFile.seek(vd.offset);
-                randomAccessFile.read(data, 0, vd.length);
-                vd.offset = hasWritten;
-                swapOut.write(data, 0, vd.length);
+                readFully(channel, ByteBuffer.wrap(data, 0, vd.length), vd.offset);
+                writeFully(swapChannel, ByteBuffer.wrap(data, 0, vd.length), hasWritten);
+                swapped.put(entry.getKey(), new ValueDescriptor(hasWritten, vd.length));
                 hasWritten += vd.length;
             }
+            swapChannel.force(false);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(swapFile);
+            log.error("Unexpected exception while swap cache file" + this, e);
+            throw new IllegalStateException("Unexpected exception while swap cache file" + this, e);
+        }
 
-            // 关闭文件流
-            IOUtils.closeQuietly(this.randomAccessFile);
-            this.randomAccessFile = null;
-            IOUtils.closeQuietly(swapOut);
-
-            // 将原缓存文件命名为 swap.1
-            cacheFile.renameTo(tempSwapFile);
-
-            // 将swap文件命名为缓存文件
-            swapFile.renameTo(cacheFile);
-
-            // 删除原缓存文件
-            FileUtils.deleteQuietly(tempSwapFile);
+        FileChannel oldChannel = channel;
+        long stamp = bufferLock.writeLock();
+        epoch++;
+        try {
+            // 将swap文件命名为缓存文件，原文件在旧的文件通道关闭后释放
+            if (!swapFile.renameTo(cacheFile)) {
+                FileUtils.deleteQuietly(swapFile);
+                throw new IllegalStateException("Cannot rename swap file to cache file" + this);
+            }
+            channel = openChannel(cacheFilePath);
+            for (Map.Entry<K, ValueDescriptor> entry : swapped.entrySet()) {
+                cachedData.put(entry.getKey(), entry.getValue());
+            }
+            fileLength = hasWritten;
         } catch (IOException e) {
             log.error("Unexpected exception while swap cache file" + this, e);
             throw new IllegalStateException("Unexpected exception while swap cache file" + this, e);
         } finally {
-            if (!cacheFile.exists()) {
-                if (tempSwapFile.exists()) {
-                    tempSwapFile.renameTo(cacheFile);
-                } else if (swapFile.exists()) {
-                    swapFile.renameTo(cacheFile);
-                } else {
-                    throw new IllegalStateException("Bad cache file! Cannot reset cache file!");
-                }
+            epoch++;
+            bufferLock.unlockWrite(stamp);
+            if (oldChannel != channel) {
+                IOUtils.closeQuietly(oldChannel);
             }
-            FileUtils.deleteQuietly(swapFile);
-            FileUtils.deleteQuietly(tempSwapFile);
+            releaseReadChannel();
+        }
+    }
 
-            try {
-                IOUtils.closeQuietly(this.randomAccessFile);
-                this.randomAccessFile = new RandomAccessFile(cacheFile, "rwd");
-            } catch (FileNotFoundException e) {
-                // ?? impossible
-                log.warn("未知的错误，导致swap后无法创建文件流！", e);
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new EOFException();
             }
-            IOUtils.closeQuietly(swapOut);
-            this.writeLock.unlock();
+            position += n;
         }
+    }
 
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
     }
 
     @Override
     public void close() throws IOException {
         try {
-            writeLock.lock();
+            lock();
             while (!status.compareAndSet(CacheFileStatus.NORMAL, CacheFileStatus.CLOSED)) {
                 if (status.get() == CacheFileStatus.CLOSED) {
                     break;
                 }
-                log.debug("Cache randomAccessFile closed");
+                log.debug("Cache file channel closed");
             }
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
-                randomAccessFile = null;
+            if (channel != null) {
+                channel.close();
             }
             if (cacheFilePath != null) {
                 cacheFilePath.toFile().delete();
             }
+            releaseReadChannel();
+            closeCachedData();
         } catch (IOException e) {
-            log.error("Unexpected exception while close cache randomAccessFile", e);
+            log.error("Unexpected exception while close cache file channel", e);
             throw e;
         } finally {
-            writeLock.unlock();
+            unlock();
         }
     }
 
-    public long getUsedBytes() {
-        return usedBytes.get();
+    @Override
+    public void lock() {
+        lock.lock();
     }
 
-    private void assertCacheAlive() {
-        if (status.get() == CacheFileStatus.CLOSED) {
-            throw new IllegalStateException("Cache file[" + this + "] is closed!");
-        }
+    @Override
+    public void unlock() {
+        lock.unlock();
     }
 }
@@ -5,8 +5,13 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
@@ -28,18 +33,40 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
      * 当前缓冲区大小
      */
     private int bufferSize = 0;
+    /**
+     * 缓冲区中的数据，按写入顺序排列
+     */
+    private List<BufferedRecord<K>> bufferedRecords;
+    /**
+     * 缓冲区中每个key最新的一条数据，用于合并尚未写入文件的覆盖写
+     */
+    private Map<K, BufferedRecord<K>> bufferedKeys;
+    /**
+     * 缓冲区中已经被覆盖或移除的字节数，写入文件前会被压缩掉
+     */
+    private int deadBytesInBuffer = 0;
+    /**
+     * 已经写入文件的字节数，缓冲区中的数据从这个位置开始
+     */
+    private long fileLength = 0;
     /**
      * 单个缓存文件的大小，默认50M
      */
     private volatile long maxBytesPerCacheFile;
 
     public ReentrantCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize) {
-        super(filePath);
+        this(filePath, maxBytesPerCacheFile, maxBufferSize, new ConcurrentHashMap<>());
+    }
+
+    public ReentrantCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize, Map<K, ValueDescriptor> cachedData) {
+        super(filePath, cachedData);
 
         this.lock = new ReentrantLock();
         this.maxBytesPerCacheFile = maxBytesPerCacheFile;
         this.maxBufferSize = maxBufferSize;
         this.buffer = new byte[maxBufferSize];
+        this.bufferedRecords = new ArrayList<>();
+        this.bufferedKeys = new HashMap<>();
 
         try {
             this.randomAccessFile = new RandomAccessFile(cacheFilePath.toFile(), "rwd");
@@ -50,15 +77,43 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
     }
 
     /**
-     * 将缓冲区内容写入文件末尾
+     * 打开一个已经写好数据的缓存文件，如 {@link DiskCacheBulkLoader} 生成的文件
+     */
+    public ReentrantCacheFile(String filePath, long maxBytesPerCacheFile, int maxBufferSize,
+                              Map<K, ValueDescriptor> cachedData, long usedBytes) {
+        super(filePath, cachedData, usedBytes);
+
+        this.lock = new ReentrantLock();
+        this.maxBytesPerCacheFile = maxBytesPerCacheFile;
+        this.maxBufferSize = maxBufferSize;
+        this.buffer = new byte[maxBufferSize];
+        this.bufferedRecords = new ArrayList<>();
+        this.bufferedKeys = new HashMap<>();
+
+        try {
+            this.randomAccessFile = new RandomAccessFile(cacheFilePath.toFile(), "rwd");
+            this.fileLength = randomAccessFile.length();
+        } catch (IOException e) {
+            log.error("Cache randomAccessFile create failed due to exception", e);
+            throw new CacheFileCreateException(e);
+        }
+    }
+
+    /**
+     * 将缓冲区内容写入文件末尾，写入前先压缩掉已经被覆盖或移除的数据
      */
+    @Override
     public void flush() {
         try {
             lock();
             if (bufferSize > 0) {
-                randomAccessFile.seek(randomAccessFile.length());
+                compactBuffer();
+                randomAccessFile.seek(fileLength);
                 randomAccessFile.write(buffer, 0, bufferSize);
+                fileLength += bufferSize;
                 bufferSize = 0;
+                bufferedRecords.clear();
+                bufferedKeys.clear();
             }
         } catch (IOException e) {
             log.error("Error while flush write cache file[" + this + "]", e);
@@ -74,16 +129,19 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
             lock();
             assertCacheFilAlive();
             ValueDescriptor vd = cachedData.get(key);
+            if (vd == null) {
+                return null;
+            }
             if (vd.length == 0) {
                 // 数据长度为0，则为null，直接返回一个长度为0的数组
-                return new byte[0];
+                return ValueDescriptor.EMPTY_DATA;
             }
 
             byte[] data = new byte[vd.length];
 
-            if (vd.offset >= randomAccessFile.length()) {
+            if (vd.offset >= fileLength) {
                 // offset大于文件长度，则应该从buffer中读取
-                int bufferOffset = (int) (vd.offset - randomAccessFile.length());
+                int bufferOffset = (int) (vd.offset - fileLength);
                 System.arraycopy(buffer, bufferOffset, data, 0, vd.length);
             } else {
                 this.randomAccessFile.seek(vd.offset);
@@ -99,11 +157,53 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
         }
     }
 
+    @Override
+    public int get(K key, ByteBuffer dst) {
+        try {
+            lock();
+            assertCacheFilAlive();
+            ValueDescriptor vd = cachedData.get(key);
+            if (vd == null) {
+                return -1;
+            }
+            if (vd.length == 0 || dst.remaining() < vd.length) {
+                return vd.length;
+            }
+
+            if (vd.offset >= fileLength) {
+                // offset大于文件长度，则应该从buffer中读取
+                dst.put(buffer, (int) (vd.offset - fileLength), vd.length);
+            } else if (dst.hasArray()) {
+                this.randomAccessFile.seek(vd.offset);
+                this.randomAccessFile.readFully(dst.array(), dst.arrayOffset() + dst.position(), vd.length);
+                dst.position(dst.position() + vd.length);
+            } else {
+                int limit = dst.limit();
+                dst.limit(dst.position() + vd.length);
+                long position = vd.offset;
+                while (dst.hasRemaining()) {
+                    int n = randomAccessFile.getChannel().read(dst, position);
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    position += n;
+                }
+                dst.limit(limit);
+            }
+            return vd.length;
+        } catch (IOException e) {
+            log.error("Error while read cache file[" + this + "]", e);
+            throw new IllegalStateException("Error while read cache file[" + this + "]", e);
+        } finally {
+            unlock();
+        }
+    }
+
     private void checkSwap() {
         // 在此处，文件大小 超出 maxBytesPerCacheFile 80%的时候执行swap；
         try {
             lock();
-            if ((this.randomAccessFile.length() + bufferSize) >= this.maxBytesPerCacheFile * 1.8) {
+            if ((fileLength + bufferSize) >= this.maxBytesPerCacheFile * 1.8) {
                 try {
                     do {
                         assertCacheFilAlive();
@@ -114,9 +214,6 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
                     status.compareAndSet(CacheFileStatus.SWAPPING, CacheFileStatus.NORMAL);
                 }
             }
-        } catch (IOException e) {
-            log.error("Unexpected IOException while checkSwap", e);
-            throw new IllegalStateException("Unexpected IOException while checkSwap", e);
         } finally {
             unlock();
         }
@@ -138,9 +235,13 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
             // 将可用数据保存到swap文件
             swapOut = new FileOutputStream(swapFile);//Files.newOutputStream(swapFilePath, StandardOpenOption.WRITE);
             byte[] data = null;
-            int hasWritten = 0;
+            long hasWritten = 0;
             for (Map.Entry<K, ValueDescriptor> entry : this.cachedData.entrySet()) {
                 ValueDescriptor vd = entry.getValue();
+                if (vd.length == 0) {
+                    // null值不占用文件空间
+                    continue;
+                }
                 if (data == null || data.length < vd.length) {
                     data = new byte[vd.length];
                 }
@@ -149,6 +250,8 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
                 vd.offset = hasWritten;
                 swapOut.write(data, 0, vd.length);
                 hasWritten += vd.length;
+                // 键目录溢出到磁盘时，取出的描述对象是副本，需要写回
+                cachedData.put(entry.getKey(), vd);
             }
 
             // 关闭文件流
@@ -183,11 +286,13 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
             try {
                 IOUtils.closeQuietly(this.randomAccessFile);
                 this.randomAccessFile = new RandomAccessFile(cacheFile, "rwd");
-            } catch (FileNotFoundException e) {
+                this.fileLength = randomAccessFile.length();
+            } catch (IOException e) {
                 // ?? impossible
                 log.warn("未知的错误，导致swap后无法创建文件流！", e);
             }
             IOUtils.closeQuietly(swapOut);
+            releaseReadChannel();
             unlock();
         }
 
@@ -210,6 +315,8 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
             if (cacheFilePath != null) {
                 cacheFilePath.toFile().delete();
             }
+            releaseReadChannel();
+            closeCachedData();
         } catch (IOException e) {
             log.error("Unexpected exception while close cache randomAccessFile", e);
             throw e;
@@ -222,41 +329,56 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
     public void put(K key, byte[] data) {
         try {
             lock();
-            if (data.length == 0) {
+            ValueDescriptor oldValueDescriptor = cachedData.get(key);
+            int length = data.length;
+            if (length == 0) {
                 // 数据长度为0，则为null
-                ValueDescriptor oldValueDescriptor = cachedData.get(key);
+                discardBuffered(key);
                 cachedData.put(key, ValueDescriptor.NULL_VALUE_DESCRIPTOR);
                 if (oldValueDescriptor != null) {
-                    usedBytes.addAndGet(oldValueDescriptor.length);
+                    usedBytes.addAndGet(-oldValueDescriptor.length);
                 }
                 return;
             }
 
-            ValueDescriptor oldValueDescriptor;
-            ValueDescriptor newValueDescriptor;
-            // 写入到缓冲区
-            int length = data.length;
+            BufferedRecord<K> buffered = bufferedKeys.get(key);
+            if (buffered != null && buffered.length == length) {
+                // 旧值还在缓冲区中且长度相同，直接原地覆盖，描述对象和有效字节数都不变
+                System.arraycopy(data, 0, buffer, buffered.position, length);
+                return;
+            }
+            // 旧值还在缓冲区中，标记为失效，写入文件前会被压缩掉
+            discardBuffered(key);
 
+            long offset;
             if (length > maxBufferSize) { // 如果单个值已经超过缓冲区大小了直接写入文件
                 flush(); // 先flush 保证数据位置
-                randomAccessFile.seek(randomAccessFile.length());
+                offset = fileLength;
+                randomAccessFile.seek(fileLength);
                 randomAccessFile.write(data, 0, length);
+                fileLength += length;
             } else {
                 // 缓冲区 提升性能
                 if ((bufferSize + length) > maxBufferSize) {
-                    flush();
+                    // 先尝试压缩掉缓冲区中的失效数据，空间仍然不够再写入文件
+                    compactBuffer();
+                    if ((bufferSize + length) > maxBufferSize) {
+                        flush();
+                    }
                 }
+                offset = fileLength + bufferSize;
                 System.arraycopy(data, 0, buffer, bufferSize, length);
+                BufferedRecord<K> record = new BufferedRecord<>(key, bufferSize, length);
+                bufferedRecords.add(record);
+                bufferedKeys.put(key, record);
                 bufferSize += length;
             }
 
-            oldValueDescriptor = this.cachedData.get(key);
-            newValueDescriptor = new ValueDescriptor(usedBytes.intValue(), length);
-
-            this.cachedData.put(key, newValueDescriptor);
-            if (oldValueDescriptor == null) {
-                this.usedBytes.addAndGet(newValueDescriptor.length);
+            this.cachedData.put(key, new ValueDescriptor(offset, length));
+            if (oldValueDescriptor != null) {
+                this.usedBytes.addAndGet(-oldValueDescriptor.length);
             }
+            this.usedBytes.addAndGet(length);
             this.checkSwap();
         } catch (IOException e) {
             log.error("Error while write buffer in cache file[" + this + "]", e);
@@ -266,6 +388,55 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
         }
     }
 
+    @Override
+    public boolean remove(K key) {
+        try {
+            lock();
+            discardBuffered(key);
+            return super.remove(key);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * key的旧值还在缓冲区中时，将其标记为失效
+     */
+    private void discardBuffered(K key) {
+        BufferedRecord<K> buffered = bufferedKeys.remove(key);
+        if (buffered != null) {
+            buffered.live = false;
+            deadBytesInBuffer += buffered.length;
+        }
+    }
+
+    /**
+     * 将缓冲区中仍然有效的数据依次前移，覆盖掉失效的数据，并更新移动过的数据的描述对象
+     */
+    private void compactBuffer() {
+        if (deadBytesInBuffer == 0) {
+            return;
+        }
+
+        int position = 0;
+        List<BufferedRecord<K>> liveRecords = new ArrayList<>(bufferedRecords.size());
+        for (BufferedRecord<K> record : bufferedRecords) {
+            if (!record.live) {
+                continue;
+            }
+            if (record.position != position) {
+                System.arraycopy(buffer, record.position, buffer, position, record.length);
+                record.position = position;
+                cachedData.put(record.key, new ValueDescriptor(fileLength + position, record.length));
+            }
+            position += record.length;
+            liveRecords.add(record);
+        }
+        bufferedRecords = liveRecords;
+        bufferSize = position;
+        deadBytesInBuffer = 0;
+    }
+
     @Override
     public void lock() {
         lock.lock();
@@ -275,4 +446,26 @@ public class ReentrantCacheFile<K> extends AbstractCacheFile<K> {
     public void unlock() {
         lock.unlock();
     }
+
+    /**
+     * 缓冲区中的一条数据
+     */
+    private static class BufferedRecord<K> {
+
+        final K key;
+
+        /** 在缓冲区中的位置 */
+        int position;
+
+        final int length;
+
+        /** 是否仍然有效，被覆盖或移除后失效 */
+        boolean live = true;
+
+        BufferedRecord(K key, int position, int length) {
+            this.key = key;
+            this.position = position;
+            this.length = length;
+        }
+    }
 }
@@ -0,0 +1,41 @@
+package org.limbo.coco.file;
+
+import org.apache.commons.io.IOUtils;
+
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个缓存文件上所有 {@link ValueRegion} 共用的只读文件通道，按引用计数关闭；
+ * <p>
+ * 缓存文件持有一个引用，swap或关闭时释放，之后打开的 {@link ValueRegion} 使用新的通道；
+ * 已经打开的 {@link ValueRegion} 各持有一个引用，仍然读取原文件，全部关闭后通道才关闭。
+ */
+class SharedReadChannel {
+
+    private final FileChannel channel;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    SharedReadChannel(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * 增加一个引用，只在缓存文件仍然持有引用时调用
+     */
+    SharedReadChannel retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    void release() {
+        if (refCount.decrementAndGet() == 0) {
+            IOUtils.closeQuietly(channel);
+        }
+    }
+}
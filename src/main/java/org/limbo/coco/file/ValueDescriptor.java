@@ -10,13 +10,16 @@ public class ValueDescriptor {
 
     public static final ValueDescriptor NULL_VALUE_DESCRIPTOR = new ValueDescriptor(0, 0);
 
-    /** 缓存偏移量 */
-    protected int offset;
+    /** null值对应的数据，所有长度为0的数据共用一个数组 */
+    public static final byte[] EMPTY_DATA = new byte[0];
+
+    /** 缓存偏移量，单个缓存文件可以超过2G */
+    protected long offset;
 
     /** 缓存数据长度 */
     protected int length;
 
-    public ValueDescriptor(int offset, int length) {
+    public ValueDescriptor(long offset, int length) {
         this.offset = offset;
         this.length = length;
     }
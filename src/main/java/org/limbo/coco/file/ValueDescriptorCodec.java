@@ -0,0 +1,35 @@
+package org.limbo.coco.file;
+
+import org.limbo.coco.file.directory.DirectoryEntryCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ValueDescriptor} 在键目录中的编码，共10个字节：offset(低48位，6字节) length(int)；
+ * 48位偏移量支持单个缓存文件最大256T，比直接写入long少占用2个字节
+ */
+public class ValueDescriptorCodec implements DirectoryEntryCodec<ValueDescriptor> {
+
+    public static final ValueDescriptorCodec INSTANCE = new ValueDescriptorCodec();
+
+    @Override
+    public int length() {
+        return 10;
+    }
+
+    @Override
+    public void encode(ValueDescriptor value, ByteBuffer buffer) {
+        if (value.offset >>> 48 != 0) {
+            throw new IllegalArgumentException("Offset " + value.offset + " exceeds 48 bits!");
+        }
+        buffer.putShort((short) (value.offset >>> 32));
+        buffer.putInt((int) value.offset);
+        buffer.putInt(value.length);
+    }
+
+    @Override
+    public ValueDescriptor decode(ByteBuffer buffer) {
+        long offset = ((buffer.getShort() & 0xFFFFL) << 32) | (buffer.getInt() & 0xFFFFFFFFL);
+        return new ValueDescriptor(offset, buffer.getInt());
+    }
+}
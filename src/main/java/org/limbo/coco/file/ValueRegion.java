@@ -0,0 +1,71 @@
+package org.limbo.coco.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 缓存值在缓存文件中的位置，引用缓存文件共用的只读文件通道，
+ * 可以通过 {@link FileChannel#transferTo(long, long, WritableByteChannel)} 零拷贝地发送到socket；
+ * <p>
+ * 创建后缓存文件发生swap也不影响读取，原文件被替换后引用的通道仍然可以读到旧的内容；用完需要关闭，释放对通道的引用。
+ */
+public class ValueRegion implements Closeable {
+
+    private final SharedReadChannel channel;
+
+    private final int length;
+
+    /**
+     * 下一次传输的起始位置
+     */
+    private long position;
+
+    private final long end;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * @param channel 已经为该区域增加过引用的通道
+     */
+    ValueRegion(SharedReadChannel channel, long offset, int length) {
+        this.channel = channel;
+        this.length = length;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * 值的字节数
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 尚未传输的字节数
+     */
+    public long remaining() {
+        return end - position;
+    }
+
+    /**
+     * 从上次传输结束的位置继续传输，非阻塞的目标通道可能只接收一部分
+     *
+     * @return 本次传输的字节数
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = channel.channel().transferTo(position, end - position, target);
+        position += transferred;
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            channel.release();
+        }
+    }
+}
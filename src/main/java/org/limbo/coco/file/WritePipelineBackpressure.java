@@ -0,0 +1,16 @@
+package org.limbo.coco.file;
+
+/**
+ * 写入流水线的环形缓冲区写满时的处理策略
+ */
+public enum WritePipelineBackpressure {
+
+    /** 阻塞生产者，直到写线程腾出空间 */
+    BLOCK,
+    /** 直接失败，put返回的future以 RejectedExecutionException 结束 */
+    FAIL,
+    /** 由生产者线程先写完缓冲区中更早提交的数据，再直接写入缓存文件，不打乱写入顺序 */
+    CALLER_RUNS,
+    ;
+
+}
@@ -0,0 +1,95 @@
+package org.limbo.coco.file;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界的多生产者、单消费者环形缓冲区；
+ * 每个槽位记录一个序号，生产者CAS抢占写入位置后写入元素并发布序号，消费者按序号判断槽位是否可读，全程无锁
+ *
+ * @param <E>
+ */
+class WriteRingBuffer<E> {
+
+    private final int mask;
+
+    private final AtomicReferenceArray<E> slots;
+
+    /**
+     * 槽位序号：等于写入位置时可写，等于写入位置+1时可读
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * 下一个写入位置，多个生产者竞争
+     */
+    private final AtomicLong tail;
+
+    /**
+     * 下一个读取位置，只有消费者修改
+     */
+    private volatile long head;
+
+    WriteRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.tail = new AtomicLong(0);
+        this.head = 0;
+    }
+
+    /**
+     * 放入元素，缓冲区已满返回false
+     */
+    boolean offer(E e) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(index, e);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 取出最多 max 个已发布的元素，只能由一个消费者调用
+     */
+    int drainTo(List<? super E> target, int max) {
+        long pos = head;
+        int drained = 0;
+        while (drained < max) {
+            int index = (int) pos & mask;
+            if (sequences.get(index) != pos + 1) {
+                break;
+            }
+            target.add(slots.get(index));
+            slots.lazySet(index, null);
+            sequences.set(index, pos + mask + 1);
+            pos++;
+            drained++;
+        }
+        head = pos;
+        return drained;
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+}
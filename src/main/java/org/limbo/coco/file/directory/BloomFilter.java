@@ -0,0 +1,91 @@
+package org.limbo.coco.file.directory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 有序段使用的布隆过滤器，默认每个key 10bit、7次哈希，误判率约1%
+ */
+class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+
+    private static final int HASH_COUNT = 7;
+
+    private final long[] bits;
+
+    private final int hashCount;
+
+    BloomFilter(long expectedKeys) {
+        long bitCount = Math.max(64, expectedKeys * BITS_PER_KEY);
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) >>> 6)];
+        this.hashCount = HASH_COUNT;
+    }
+
+    private BloomFilter(long[] bits, int hashCount) {
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    void add(byte[] key) {
+        long h = hash64(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long bitCount = (long) bits.length << 6;
+        for (int i = 1; i <= hashCount; i++) {
+            long combined = (h1 + (long) i * h2) & Long.MAX_VALUE;
+            long index = combined % bitCount;
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    boolean mightContain(byte[] key) {
+        long h = hash64(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long bitCount = (long) bits.length << 6;
+        for (int i = 1; i <= hashCount; i++) {
+            long combined = (h1 + (long) i * h2) & Long.MAX_VALUE;
+            long index = combined % bitCount;
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(hashCount);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    static BloomFilter readFrom(DataInput in) throws IOException {
+        int hashCount = in.readInt();
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, hashCount);
+    }
+
+    /**
+     * FNV-1a 后再做一次 murmur3 的 fmix64 打散
+     */
+    private static long hash64(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,21 @@
+package org.limbo.coco.file.directory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 键目录中值的定长编解码器，落盘的有序段中每个值占用固定的 {@link #length()} 字节
+ *
+ * @param <V>
+ */
+public interface DirectoryEntryCodec<V> {
+
+    /**
+     * 编码后的字节数
+     */
+    int length();
+
+    void encode(V value, ByteBuffer buffer);
+
+    V decode(ByteBuffer buffer);
+
+}
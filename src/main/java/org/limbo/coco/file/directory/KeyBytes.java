@@ -0,0 +1,51 @@
+package org.limbo.coco.file.directory;
+
+import java.util.Arrays;
+
+/**
+ * 序列化后的key，按无符号字节序比较，作为有序段中的排序依据
+ */
+final class KeyBytes implements Comparable<KeyBytes> {
+
+    final byte[] bytes;
+
+    private final int hash;
+
+    KeyBytes(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    static int compare(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    @Override
+    public int compareTo(KeyBytes o) {
+        return compare(bytes, o.bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof KeyBytes)) {
+            return false;
+        }
+        KeyBytes other = (KeyBytes) o;
+        return hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,316 @@
+package org.limbo.coco.file.directory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.limbo.coco.file.CloseableIterator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 键目录落盘后的一个不可变有序段，文件结构：
+ * <pre>
+ * [数据区] 按key升序排列的条目：keyLen(int) key(bytes) flag(byte) value(codec.length bytes)
+ * [稀疏索引] count(int) 每 SPARSE_INTERVAL 个条目记录一次：keyLen(int) key(bytes) offset(long)
+ * [布隆过滤器]
+ * [尾部] indexOffset(long) bloomOffset(long) entryCount(long) magic(int)
+ * </pre>
+ * 稀疏索引和布隆过滤器常驻内存：不存在的key由布隆过滤器拦截，不产生IO；存在的key通过稀疏索引定位到一个数据块，一次读取即可找到
+ */
+@Slf4j
+class SortedRun<V> implements Closeable {
+
+    /** 墓碑标记，表示key已被移除 */
+    static final Object TOMBSTONE = new Object();
+
+    private static final int MAGIC = 0x636f636b;
+
+    private static final int FOOTER_LENGTH = 8 + 8 + 8 + 4;
+
+    private static final byte FLAG_VALUE = 0;
+
+    private static final byte FLAG_TOMBSTONE = 1;
+
+    /** 每多少个条目记录一个稀疏索引 */
+    private static final int SPARSE_INTERVAL = 32;
+
+    private final Path path;
+
+    private final DirectoryEntryCodec<V> codec;
+
+    private final FileChannel channel;
+
+    private final byte[][] sparseKeys;
+
+    private final long[] sparseOffsets;
+
+    private final long indexOffset;
+
+    private final long entryCount;
+
+    private final BloomFilter bloomFilter;
+
+    private SortedRun(Path path, DirectoryEntryCodec<V> codec, FileChannel channel, byte[][] sparseKeys,
+                      long[] sparseOffsets, long indexOffset, long entryCount, BloomFilter bloomFilter) {
+        this.path = path;
+        this.codec = codec;
+        this.channel = channel;
+        this.sparseKeys = sparseKeys;
+        this.sparseOffsets = sparseOffsets;
+        this.indexOffset = indexOffset;
+        this.entryCount = entryCount;
+        this.bloomFilter = bloomFilter;
+    }
+
+    /**
+     * 将有序的条目写成一个新的段文件，value 为 {@link #TOMBSTONE} 时写入墓碑
+     *
+     * @param entries       按key升序排列的条目
+     * @param expectedCount 预计条目数，用于确定布隆过滤器的大小
+     */
+    static <V> SortedRun<V> write(Path path, Iterator<? extends Map.Entry<KeyBytes, Object>> entries,
+                                  DirectoryEntryCodec<V> codec, long expectedCount) throws IOException {
+        BloomFilter bloomFilter = new BloomFilter(expectedCount);
+        ByteBuffer valueBuffer = ByteBuffer.allocate(codec.length());
+        byte[] emptyValue = new byte[codec.length()];
+
+        ByteArrayOutputStream sparseBytes = new ByteArrayOutputStream();
+        DataOutputStream sparseOut = new DataOutputStream(sparseBytes);
+        int sparseCount = 0;
+
+        long position = 0;
+        long count = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile()), 1 << 16));
+        try {
+            while (entries.hasNext()) {
+                Map.Entry<KeyBytes, Object> entry = entries.next();
+                byte[] key = entry.getKey().bytes;
+                if (count % SPARSE_INTERVAL == 0) {
+                    sparseOut.writeInt(key.length);
+                    sparseOut.write(key);
+                    sparseOut.writeLong(position);
+                    sparseCount++;
+                }
+
+                out.writeInt(key.length);
+                out.write(key);
+                if (entry.getValue() == TOMBSTONE) {
+                    out.writeByte(FLAG_TOMBSTONE);
+                    out.write(emptyValue);
+                } else {
+                    valueBuffer.clear();
+                    @SuppressWarnings("unchecked")
+                    V value = (V) entry.getValue();
+                    codec.encode(value, valueBuffer);
+                    out.writeByte(FLAG_VALUE);
+                    out.write(valueBuffer.array(), 0, codec.length());
+                }
+                bloomFilter.add(key);
+                position += 4 + key.length + 1 + codec.length();
+                count++;
+            }
+
+            long indexOffset = position;
+            out.writeInt(sparseCount);
+            sparseBytes.writeTo(out);
+            long bloomOffset = indexOffset + 4 + sparseBytes.size();
+            bloomFilter.writeTo(out);
+
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+
+        return open(path, codec);
+    }
+
+    /**
+     * 打开已经存在的段文件，加载稀疏索引和布隆过滤器
+     */
+    static <V> SortedRun<V> open(Path path, DirectoryEntryCodec<V> codec) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long fileLength = channel.size();
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+            readFully(channel, footer, fileLength - FOOTER_LENGTH);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long entryCount = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Bad sorted run file " + path);
+            }
+
+            ByteBuffer meta = ByteBuffer.allocate((int) (fileLength - FOOTER_LENGTH - indexOffset));
+            readFully(channel, meta, indexOffset);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+            int sparseCount = in.readInt();
+            byte[][] sparseKeys = new byte[sparseCount][];
+            long[] sparseOffsets = new long[sparseCount];
+            for (int i = 0; i < sparseCount; i++) {
+                sparseKeys[i] = new byte[in.readInt()];
+                in.readFully(sparseKeys[i]);
+                sparseOffsets[i] = in.readLong();
+            }
+            BloomFilter bloomFilter = BloomFilter.readFrom(in);
+
+            return new SortedRun<>(path, codec, channel, sparseKeys, sparseOffsets, indexOffset, entryCount, bloomFilter);
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * 布隆过滤器判断key是否可能在本段中，不产生IO
+     */
+    boolean mightContain(byte[] key) {
+        return entryCount > 0 && bloomFilter.mightContain(key);
+    }
+
+    /**
+     * 查找key
+     *
+     * @return 不在本段中返回null；已被移除返回 {@link #TOMBSTONE}；否则返回解码后的值
+     */
+    Object find(byte[] key) throws IOException {
+        if (!mightContain(key)) {
+            return null;
+        }
+
+        // 找到最后一个 <= key 的稀疏索引
+        int low = 0;
+        int high = sparseKeys.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = KeyBytes.compare(sparseKeys[mid], key);
+            if (cmp <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+
+        long start = sparseOffsets[block];
+        long end = block + 1 < sparseOffsets.length ? sparseOffsets[block + 1] : indexOffset;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        readFully(channel, buffer, start);
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            byte[] current = new byte[buffer.getInt()];
+            buffer.get(current);
+            byte flag = buffer.get();
+            int cmp = KeyBytes.compare(current, key);
+            if (cmp == 0) {
+                return flag == FLAG_TOMBSTONE ? TOMBSTONE : codec.decode(buffer);
+            } else if (cmp > 0) {
+                return null;
+            }
+            buffer.position(buffer.position() + codec.length());
+        }
+        return null;
+    }
+
+    /**
+     * 按key升序顺序读取整个段，墓碑以 {@link #TOMBSTONE} 返回；
+     * 迭代器持有自己的文件流，段文件在迭代过程中被合并删除不影响已打开的迭代；
+     * 文件流在遍历结束时关闭，提前结束遍历时需要调用 close
+     */
+    CloseableIterator<Map.Entry<KeyBytes, Object>> iterator() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile()), 1 << 16));
+        return new CloseableIterator<Map.Entry<KeyBytes, Object>>() {
+
+            private long read = 0;
+
+            private boolean closed = false;
+
+            private final ByteBuffer valueBuffer = ByteBuffer.allocate(codec.length());
+
+            @Override
+            public boolean hasNext() {
+                if (!closed && read < entryCount) {
+                    return true;
+                }
+                close();
+                return false;
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    IOUtils.closeQuietly(in);
+                }
+            }
+
+            @Override
+            public Map.Entry<KeyBytes, Object> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    byte[] key = new byte[in.readInt()];
+                    in.readFully(key);
+                    byte flag = in.readByte();
+                    in.readFully(valueBuffer.array());
+                    valueBuffer.clear();
+                    read++;
+                    Object value = flag == FLAG_TOMBSTONE ? TOMBSTONE : codec.decode(valueBuffer);
+                    return new AbstractMap.SimpleImmutableEntry<>(new KeyBytes(key), value);
+                } catch (IOException e) {
+                    close();
+                    log.error("Error while read sorted run[" + path + "]", e);
+                    throw new IllegalStateException("Error while read sorted run[" + path + "]", e);
+                }
+            }
+        };
+    }
+
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 关闭并删除段文件
+     */
+    void delete() {
+        IOUtils.closeQuietly(this);
+        FileUtils.deleteQuietly(path.toFile());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package org.limbo.coco.file.directory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.limbo.coco.file.CloseableIterator;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 可溢出到磁盘的键目录，结构类似LSM：
+ * 写入先进入内存中的有序表，条目数达到 maxEntriesInMemory 后落盘为一个不可变的有序段 {@link SortedRun}；
+ * 有序段数量超过 maxSortedRuns 时分层合并：只合并较新的、大小相近的几个段，较大的旧段很少被重写，
+ * 合并范围包含最旧的段时丢弃墓碑；
+ * 每个段在内存中只保留布隆过滤器和稀疏索引，不存在的key不产生IO，存在的key最多读取一个数据块。
+ * <p>
+ * 对同一个key的写入需要调用方保证串行（DiskCache/缓存文件的锁已经保证），否则size可能不准确；读取和迭代不加锁，迭代为弱一致。
+ *
+ * @param <K> 缓存key，通过 keySerializer 序列化后按字节序排列
+ * @param <V> 目录中的值，通过 {@link DirectoryEntryCodec} 定长编码
+ */
+@Slf4j
+public class SpillableKeyDirectory<K, V> extends AbstractMap<K, V> implements Closeable {
+
+    /**
+     * 段文件所在目录
+     */
+    private final Path directory;
+
+    private final ValueSerializer<K> keySerializer;
+
+    private final DirectoryEntryCodec<V> codec;
+
+    /**
+     * 内存中最多保留的条目数
+     */
+    private final int maxEntriesInMemory;
+
+    /**
+     * 有序段最大数量，超过后触发合并
+     */
+    private final int maxSortedRuns;
+
+    /**
+     * 当前接收写入的内存表，value为V或 {@link SortedRun#TOMBSTONE}
+     */
+    private volatile ConcurrentSkipListMap<KeyBytes, Object> memTable;
+
+    /**
+     * 正在落盘的内存表
+     */
+    private volatile ConcurrentSkipListMap<KeyBytes, Object> flushingMemTable;
+
+    /**
+     * 有序段，新的在前
+     */
+    private volatile List<SortedRun<V>> sortedRuns;
+
+    /**
+     * 切换内存表、替换有序段时持有写锁，读写条目时持有读锁
+     */
+    private final ReadWriteLock switchLock;
+
+    /**
+     * 落盘和合并串行执行
+     */
+    private final Object flushMonitor = new Object();
+
+    private final AtomicInteger runSequence;
+
+    private final AtomicLong size;
+
+    public SpillableKeyDirectory(Path directory, ValueSerializer<K> keySerializer, DirectoryEntryCodec<V> codec,
+                                 int maxEntriesInMemory, int maxSortedRuns) {
+        this.directory = directory;
+        this.keySerializer = keySerializer;
+        this.codec = codec;
+        this.maxEntriesInMemory = maxEntriesInMemory;
+        this.maxSortedRuns = Math.max(2, maxSortedRuns);
+        this.memTable = new ConcurrentSkipListMap<>();
+        this.sortedRuns = Collections.emptyList();
+        this.switchLock = new ReentrantReadWriteLock();
+        this.runSequence = new AtomicInteger(0);
+        this.size = new AtomicLong(0);
+
+        // 目录已经存在的话，删除旧的段文件
+        File dir = directory.toFile();
+        if (dir.exists()) {
+            FileUtils.deleteQuietly(dir);
+        }
+        dir.mkdirs();
+    }
+
+    @Override
+    public V get(Object key) {
+        return toValue(find(toKeyBytes(key)));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return containsSerializedKey(keySerializer.serialize(toKey(key)));
+    }
+
+    /**
+     * 按序列化后的key查找，调用方在多个目录中查找同一个key时只需序列化一次；
+     * 不存在的key由内存表和布隆过滤器判断，不产生IO
+     */
+    public boolean containsSerializedKey(byte[] key) {
+        Object value = find(new KeyBytes(key));
+        return value != null && value != SortedRun.TOMBSTONE;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Value can't be null!");
+        }
+        KeyBytes keyBytes = toKeyBytes(key);
+        V old;
+        switchLock.readLock().lock();
+        try {
+            old = toValue(find(keyBytes));
+            memTable.put(keyBytes, value);
+        } finally {
+            switchLock.readLock().unlock();
+        }
+        if (old == null) {
+            size.incrementAndGet();
+        }
+        checkFlush();
+        return old;
+    }
+
+    @Override
+    public V remove(Object key) {
+        KeyBytes keyBytes = toKeyBytes(key);
+        V old;
+        switchLock.readLock().lock();
+        try {
+            old = toValue(find(keyBytes));
+            if (old == null) {
+                return null;
+            }
+            if (sortedRuns.isEmpty() && flushingMemTable == null) {
+                // 还没有落盘过，直接从内存表中移除即可
+                memTable.remove(keyBytes);
+            } else {
+                memTable.put(keyBytes, SortedRun.TOMBSTONE);
+            }
+        } finally {
+            switchLock.readLock().unlock();
+        }
+        size.decrementAndGet();
+        checkFlush();
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, size.get());
+    }
+
+    @Override
+    public void clear() {
+        synchronized (flushMonitor) {
+            List<SortedRun<V>> oldRuns;
+            switchLock.writeLock().lock();
+            try {
+                oldRuns = sortedRuns;
+                memTable = new ConcurrentSkipListMap<>();
+                sortedRuns = Collections.emptyList();
+                size.set(0);
+            } finally {
+                switchLock.writeLock().unlock();
+            }
+            for (SortedRun<V> run : oldRuns) {
+                run.delete();
+            }
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return entryIterator();
+            }
+
+            @Override
+            public int size() {
+                return SpillableKeyDirectory.this.size();
+            }
+        };
+    }
+
+    /**
+     * 有序段数量，主要用于观察合并情况
+     */
+    public int getSortedRunCount() {
+        return sortedRuns.size();
+    }
+
+    @Override
+    public void close() {
+        synchronized (flushMonitor) {
+            clear();
+            FileUtils.deleteQuietly(directory.toFile());
+        }
+    }
+
+    /**
+     * 依次从内存表、落盘中的内存表、有序段（由新到旧）中查找
+     */
+    private Object find(KeyBytes key) {
+        Object value = memTable.get(key);
+        if (value != null) {
+            return value;
+        }
+        ConcurrentSkipListMap<KeyBytes, Object> flushing = flushingMemTable;
+        if (flushing != null && (value = flushing.get(key)) != null) {
+            return value;
+        }
+
+        switchLock.readLock().lock();
+        try {
+            for (SortedRun<V> run : sortedRuns) {
+                value = run.find(key.bytes);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            log.error("Error while read key directory[" + directory + "]", e);
+            throw new IllegalStateException("Error while read key directory[" + directory + "]", e);
+        } finally {
+            switchLock.readLock().unlock();
+        }
+    }
+
+    private void checkFlush() {
+        if (memTable.size() < maxEntriesInMemory) {
+            return;
+        }
+
+        synchronized (flushMonitor) {
+            if (memTable.size() < maxEntriesInMemory) {
+                return;
+            }
+
+            switchLock.writeLock().lock();
+            try {
+                flushingMemTable = memTable;
+                memTable = new ConcurrentSkipListMap<>();
+            } finally {
+                switchLock.writeLock().unlock();
+            }
+
+            try {
+                ConcurrentSkipListMap<KeyBytes, Object> flushing = flushingMemTable;
+                SortedRun<V> run = SortedRun.write(nextRunPath(), flushing.entrySet().iterator(), codec, flushing.size());
+                List<SortedRun<V>> runs = new ArrayList<>(sortedRuns.size() + 1);
+                runs.add(run);
+                runs.addAll(sortedRuns);
+
+                switchLock.writeLock().lock();
+                try {
+                    sortedRuns = Collections.unmodifiableList(runs);
+                    flushingMemTable = null;
+                } finally {
+                    switchLock.writeLock().unlock();
+                }
+
+                compact();
+            } catch (IOException e) {
+                log.error("Error while flush key directory[" + directory + "]", e);
+                throw new IllegalStateException("Error while flush key directory[" + directory + "]", e);
+            }
+        }
+    }
+
+    /**
+     * 有序段数量超过上限时分层合并，在 flushMonitor 内调用：
+     * 从最新的段开始向旧的段扩展合并范围，下一个段的条目数不超过已选范围的条目数之和时一并合并，
+     * 且至少合并到段数量回到上限以内；这样每个条目被重写的次数与段大小的层数成正比，而不是每次合并都重写整个目录
+     */
+    private void compact() throws IOException {
+        List<SortedRun<V>> runs = sortedRuns;
+        if (runs.size() <= maxSortedRuns) {
+            return;
+        }
+
+        int minCount = runs.size() - maxSortedRuns + 1;
+        long entries = runs.get(0).getEntryCount();
+        int count = 1;
+        while (count < runs.size() && (count < minCount || runs.get(count).getEntryCount() <= entries)) {
+            entries += runs.get(count).getEntryCount();
+            count++;
+        }
+        merge(runs.subList(0, count), count == runs.size());
+    }
+
+    /**
+     * 合并最新的若干个有序段，合并范围包含最旧的段时不再保留墓碑
+     */
+    private void merge(List<SortedRun<V>> toMerge, boolean oldest) throws IOException {
+        List<CloseableIterator<Map.Entry<KeyBytes, Object>>> sources = new ArrayList<>(toMerge.size());
+        long expected = 0;
+        SortedRun<V> merged;
+        try {
+            for (SortedRun<V> run : toMerge) {
+                sources.add(run.iterator());
+                expected += run.getEntryCount();
+            }
+            merged = SortedRun.write(nextRunPath(), new MergingIterator(sources, oldest), codec, expected);
+        } finally {
+            for (CloseableIterator<Map.Entry<KeyBytes, Object>> source : sources) {
+                source.close();
+            }
+        }
+
+        List<SortedRun<V>> runs = new ArrayList<>(sortedRuns.size() - toMerge.size() + 1);
+        runs.add(merged);
+        runs.addAll(sortedRuns.subList(toMerge.size(), sortedRuns.size()));
+        switchLock.writeLock().lock();
+        try {
+            sortedRuns = Collections.unmodifiableList(runs);
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+        for (SortedRun<V> run : toMerge) {
+            run.delete();
+        }
+        log.debug("Key directory[{}] merged {} sorted runs into {} entries", directory, toMerge.size(), merged.getEntryCount());
+    }
+
+    /**
+     * 弱一致的key迭代器，遍历有序段时持有文件流，遍历结束时自动关闭，提前结束遍历时需要调用 close
+     */
+    public CloseableIterator<K> keyIterator() {
+        CloseableIterator<Entry<K, V>> entries = entryIterator();
+        return new CloseableIterator<K>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public K next() {
+                return entries.next().getKey();
+            }
+
+            @Override
+            public void close() {
+                entries.close();
+            }
+        };
+    }
+
+    /**
+     * 弱一致的条目迭代器，关闭方式同 {@link #keyIterator()}
+     */
+    public CloseableIterator<Entry<K, V>> entryIterator() {
+        List<Iterator<Map.Entry<KeyBytes, Object>>> sources = new ArrayList<>();
+        switchLock.readLock().lock();
+        try {
+            sources.add(memTable.entrySet().iterator());
+            ConcurrentSkipListMap<KeyBytes, Object> flushing = flushingMemTable;
+            if (flushing != null) {
+                sources.add(flushing.entrySet().iterator());
+            }
+            for (SortedRun<V> run : sortedRuns) {
+                sources.add(run.iterator());
+            }
+        } catch (IOException e) {
+            for (Iterator<Map.Entry<KeyBytes, Object>> source : sources) {
+                closeSource(source);
+            }
+            log.error("Error while iterate key directory[" + directory + "]", e);
+            throw new IllegalStateException("Error while iterate key directory[" + directory + "]", e);
+        } finally {
+            switchLock.readLock().unlock();
+        }
+
+        final MergingIterator merging = new MergingIterator(sources, true);
+        return new CloseableIterator<Entry<K, V>>() {
+            @Override
+            public boolean hasNext() {
+                return merging.hasNext();
+            }
+
+            @Override
+            public Entry<K, V> next() {
+                Map.Entry<KeyBytes, Object> entry = merging.next();
+                return new SimpleImmutableEntry<>(keySerializer.deserialize(entry.getKey().bytes), toValue(entry.getValue()));
+            }
+
+            @Override
+            public void close() {
+                merging.close();
+            }
+        };
+    }
+
+    private static void closeSource(Iterator<?> source) {
+        if (source instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) source);
+        }
+    }
+
+    private Path nextRunPath() {
+        return directory.resolve(String.format("run_%08d.sst", runSequence.getAndIncrement()));
+    }
+
+    private KeyBytes toKeyBytes(Object key) {
+        return new KeyBytes(keySerializer.serialize(toKey(key)));
+    }
+
+    /**
+     * Map接口的key参数为Object，按K处理，类型不符时由keySerializer报错
+     */
+    @SuppressWarnings("unchecked")
+    private K toKey(Object key) {
+        return (K) key;
+    }
+
+    /**
+     * 内存表和有序段中的值只有V和墓碑两种
+     */
+    @SuppressWarnings("unchecked")
+    private V toValue(Object value) {
+        return value == null || value == SortedRun.TOMBSTONE ? null : (V) value;
+    }
+
+    /**
+     * 多路归并多个有序来源，同一个key以排在前面（更新）的来源为准；遍历结束或关闭时关闭全部来源
+     */
+    private static class MergingIterator implements CloseableIterator<Map.Entry<KeyBytes, Object>> {
+
+        private final List<? extends Iterator<Map.Entry<KeyBytes, Object>>> sources;
+
+        private final PriorityQueue<Head> heads;
+
+        private final boolean skipTombstones;
+
+        private Map.Entry<KeyBytes, Object> next;
+
+        MergingIterator(List<? extends Iterator<Map.Entry<KeyBytes, Object>>> sources, boolean skipTombstones) {
+            this.sources = sources;
+            this.skipTombstones = skipTombstones;
+            this.heads = new PriorityQueue<>(Math.max(1, sources.size()));
+            for (int i = 0; i < sources.size(); i++) {
+                Iterator<Map.Entry<KeyBytes, Object>> source = sources.get(i);
+                if (source.hasNext()) {
+                    heads.add(new Head(i, source, source.next()));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !heads.isEmpty()) {
+                Head head = heads.poll();
+                Map.Entry<KeyBytes, Object> candidate = head.current;
+                advance(head);
+
+                // 丢弃其他来源中相同key的旧条目
+                while (!heads.isEmpty() && heads.peek().current.getKey().equals(candidate.getKey())) {
+                    advance(heads.poll());
+                }
+
+                if (!(skipTombstones && candidate.getValue() == SortedRun.TOMBSTONE)) {
+                    next = candidate;
+                }
+            }
+            if (next == null) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            heads.clear();
+            for (Iterator<Map.Entry<KeyBytes, Object>> source : sources) {
+                closeSource(source);
+            }
+        }
+
+        @Override
+        public Map.Entry<KeyBytes, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<KeyBytes, Object> result = next;
+            next = null;
+            return result;
+        }
+
+        private void advance(Head head) {
+            if (head.source.hasNext()) {
+                head.current = head.source.next();
+                heads.add(head);
+            }
+        }
+
+        private static class Head implements Comparable<Head> {
+
+            final int priority;
+
+            final Iterator<Map.Entry<KeyBytes, Object>> source;
+
+            Map.Entry<KeyBytes, Object> current;
+
+            Head(int priority, Iterator<Map.Entry<KeyBytes, Object>> source, Map.Entry<KeyBytes, Object> current) {
+                this.priority = priority;
+                this.source = source;
+                this.current = current;
+            }
+
+            @Override
+            public int compareTo(Head o) {
+                int cmp = current.getKey().compareTo(o.current.getKey());
+                return cmp != 0 ? cmp : Integer.compare(priority, o.priority);
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.limbo.coco.file.serializer;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.limbo.coco.file.ValueDescriptor;
 import org.limbo.utils.JacksonUtils;
 
 import java.nio.charset.StandardCharsets;
@@ -23,7 +24,7 @@ public class ClassJsonValueSerializer<V> implements ValueSerializer<V> {
     @Override
     public byte[] serialize(V value) {
         if (value == null) {
-            return new byte[0];
+            return ValueDescriptor.EMPTY_DATA;
         }
 
         String jsonStr = JacksonUtils.toJSONString(value);
@@ -51,4 +52,20 @@ public class ClassJsonValueSerializer<V> implements ValueSerializer<V> {
             throw e;
         }
     }
+
+    @Override
+    public V deserialize(byte[] data, int offset, int length) {
+        if (data == null || length == 0) {
+            return null;
+        }
+
+        try {
+            String jsonStr = new String(data, offset, length, StandardCharsets.UTF_8);
+            return StringUtils.isBlank(jsonStr) ? null : JacksonUtils.parseObject(jsonStr, clazz);
+        } catch (RuntimeException e) {
+            // ignore
+            log.error("反序列化JSON报错！", e);
+            throw e;
+        }
+    }
 }
@@ -31,10 +31,15 @@ public class ObjectStreamValueSerializer<V> implements ValueSerializer<V> {
 
     @Override
     public V deserialize(byte[] data) {
+        return deserialize(data, 0, data.length);
+    }
+
+    @Override
+    public V deserialize(byte[] data, int offset, int length) {
         ByteArrayInputStream bin = null;
         ObjectInputStream oin = null;
         try {
-            bin = new ByteArrayInputStream(data);
+            bin = new ByteArrayInputStream(data, offset, length);
             oin = new ObjectInputStream(bin);
             Object objValue = oin.readObject();
             return (V) objValue;
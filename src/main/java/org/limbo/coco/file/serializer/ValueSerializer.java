@@ -1,9 +1,20 @@
 package org.limbo.coco.file.serializer;
 
+import java.util.Arrays;
+
 public interface ValueSerializer<V> {
 
     byte [] serialize(V value);
 
     V deserialize(byte[] data);
 
+    /**
+     * 从数组的一段中反序列化，用于从复用的读缓冲区中直接反序列化，返回的对象不能引用 data；
+     * 默认总是复制出这一段后调用 {@link #deserialize(byte[])}，因为 {@link #deserialize(byte[])} 可能直接使用传入的数组，
+     * 确定不会引用 data 的实现类应覆盖以避免复制
+     */
+    default V deserialize(byte[] data, int offset, int length) {
+        return deserialize(Arrays.copyOfRange(data, offset, offset + length));
+    }
+
 }
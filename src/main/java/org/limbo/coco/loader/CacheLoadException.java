@@ -0,0 +1,24 @@
+package org.limbo.coco.loader;
+
+/**
+ * {@link CacheLoader} 加载数据失败，原始异常作为cause
+ */
+public class CacheLoadException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CacheLoadException() {
+    }
+
+    public CacheLoadException(String message) {
+        super(message);
+    }
+
+    public CacheLoadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public CacheLoadException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,49 @@
+package org.limbo.coco.loader;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 缓存未命中时从数据源加载数据
+ *
+ * @param <K>
+ * @param <V>
+ */
+public interface CacheLoader<K, V> {
+
+    /**
+     * 加载单个key的数据
+     *
+     * @return 数据源中不存在时返回null
+     */
+    V load(K key) throws Exception;
+
+    /**
+     * 刷新已经缓存的数据，默认调用 {@link #load(Object)}；
+     * 数据源支持按版本增量查询时可以覆盖此方法，根据旧值判断是否需要重新加载
+     *
+     * @param oldValue 当前缓存中的值
+     * @return 数据源中已经不存在时返回null，缓存中的值会被移除
+     */
+    default V reload(K key, V oldValue) throws Exception {
+        return load(key);
+    }
+
+    /**
+     * 批量加载，默认逐个调用 {@link #load(Object)}，数据源支持批量查询时应当覆盖此方法
+     *
+     * @return 数据源中存在的key及其数据，不存在的key不需要出现在结果中
+     */
+    default Map<K, V> loadAll(Collection<? extends K> keys) throws Exception {
+        Map<K, V> result = new HashMap<>();
+        for (K key : keys) {
+            V value = load(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+}
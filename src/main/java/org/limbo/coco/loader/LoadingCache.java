@@ -0,0 +1,581 @@
+package org.limbo.coco.loader;
+
+import lombok.extern.slf4j.Slf4j;
+import org.limbo.coco.Cache;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 读穿透缓存，包装任意 {@link Cache}（{@link org.limbo.coco.memory.MapCache}、{@link org.limbo.coco.file.DiskCache} 等）：
+ * get未命中时通过 {@link CacheLoader} 加载数据并写入被包装的缓存；
+ * <p>
+ * 同一个key并发未命中时只有一个线程调用加载器，其他线程等待同一个加载结果；加载期间该key被put或remove时，加载结果不会覆盖它；
+ * {@link #getAll(Collection)} 中未命中且没有正在加载的key合并为一次 {@link CacheLoader#loadAll(Collection)}；
+ * <p>
+ * 开启负缓存后，数据源中不存在的key在有效期内不会重复加载，put该key时负缓存立即失效。
+ * <p>
+ * 开启写后刷新后，距上次写入超过刷新时间的key被读取时立即返回当前值，同时在有界的刷新线程池上异步调用
+ * {@link CacheLoader#reload(Object, Object)}，刷新结果通过被包装缓存的put写入，由其保证值与索引一起替换；
+ * 同一个key同一时刻只有一个刷新任务，刷新期间该key被put或remove时丢弃刷新结果；线程池满时跳过本次刷新。
+ * <p>
+ * 被包装的缓存中值为null与不存在无法区分，加载器返回null视为数据源中不存在。
+ *
+ * @param <K>
+ * @param <V>
+ */
+@Slf4j
+public class LoadingCache<K, V> implements Cache<K, V> {
+
+    /**
+     * 负缓存默认最多记录的key数量
+     */
+    private static final int DEFAULT_MAX_ABSENT_KEYS = 10000;
+
+    /**
+     * 默认刷新线程池的线程数和队列长度
+     */
+    private static final int DEFAULT_REFRESH_THREADS = 2;
+
+    private static final int DEFAULT_REFRESH_QUEUE_SIZE = 1024;
+
+    /**
+     * 写入锁的分段数量，同一个key的put、remove、加载和刷新结果写入串行执行
+     */
+    private static final int WRITE_LOCK_STRIPES = 64;
+
+    private static final AtomicInteger REFRESH_THREAD_COUNTER = new AtomicInteger(0);
+
+    /**
+     * 写入时间的记录数不超过该值时不清理
+     */
+    private static final int MIN_WRITE_TIME_PRUNE = 1024;
+
+    private final Cache<K, V> cache;
+
+    private final CacheLoader<K, V> loader;
+
+    /**
+     * 正在加载的key，同一个key的并发未命中共用一个加载结果；put和remove会移除登记，使加载结果不再写入缓存
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading;
+
+    /**
+     * 负缓存，数据源中不存在的key及其失效时间（System.nanoTime）
+     */
+    private final ConcurrentHashMap<K, Long> absentKeys;
+
+    /**
+     * 负缓存有效期，0表示不开启负缓存
+     */
+    private long absentKeyTtlNanos = 0;
+
+    private int maxAbsentKeys = DEFAULT_MAX_ABSENT_KEYS;
+
+    /**
+     * 每个key最近一次写入的时间，只在开启写后刷新时记录；
+     * 被包装的缓存自行淘汰的key不会经过本缓存，记录数超过 {@link #nextWriteTimePrune} 时清理缓存中已经不存在的key
+     */
+    private final ConcurrentHashMap<K, WriteTime> writeTimes;
+
+    private volatile int nextWriteTimePrune = MIN_WRITE_TIME_PRUNE;
+
+    private final AtomicBoolean pruningWriteTimes;
+
+    /**
+     * 正在刷新的key
+     */
+    private final Set<K> refreshing;
+
+    private final Object[] writeLocks;
+
+    /**
+     * 写后刷新时间，0表示不开启刷新
+     */
+    private volatile long refreshAfterWriteNanos = 0;
+
+    private volatile Executor refreshExecutor;
+
+    /**
+     * 刷新线程池是否由本缓存创建，关闭时需要一起关闭
+     */
+    private boolean ownRefreshExecutor = false;
+
+    public LoadingCache(Cache<K, V> cache, CacheLoader<K, V> loader) {
+        this.cache = Objects.requireNonNull(cache, "cache");
+        this.loader = Objects.requireNonNull(loader, "loader");
+        this.loading = new ConcurrentHashMap<>();
+        this.absentKeys = new ConcurrentHashMap<>();
+        this.writeTimes = new ConcurrentHashMap<>();
+        this.pruningWriteTimes = new AtomicBoolean(false);
+        this.refreshing = ConcurrentHashMap.newKeySet();
+        this.writeLocks = new Object[WRITE_LOCK_STRIPES];
+        for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+            this.writeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * 读取缓存，未命中时加载；同一个key的并发未命中只加载一次
+     *
+     * @return 数据源中也不存在时返回null
+     * @throws CacheLoadException 加载器抛出异常，等待同一个加载结果的线程都会收到该异常
+     */
+    @Override
+    public V get(K key) {
+        V value = cache.get(key);
+        if (value != null) {
+            refreshIfNeeded(key, value);
+            return value;
+        }
+        if (isAbsent(key)) {
+            return null;
+        }
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            return join(existing);
+        }
+
+        try {
+            // 未命中之后、登记之前，上一次加载可能已经完成并写入缓存
+            value = cache.get(key);
+            if (value == null) {
+                value = afterLoad(key, loader.load(key), future);
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            CacheLoadException ex = loadFailed(Collections.singletonList(key), e);
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * 批量读取，未命中且没有正在加载的key合并为一次批量加载，正在被其他线程加载的key等待其结果
+     *
+     * @return 存在的key及其数据，数据源中也不存在的key不会出现在结果中
+     * @throws CacheLoadException 加载器抛出异常
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> owned = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> waiting = new LinkedHashMap<>();
+        for (K key : keys) {
+            if (result.containsKey(key) || owned.containsKey(key) || waiting.containsKey(key)) {
+                continue;
+            }
+            V value = cache.get(key);
+            if (value != null) {
+                refreshIfNeeded(key, value);
+                result.put(key, value);
+                continue;
+            }
+            if (isAbsent(key)) {
+                continue;
+            }
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> existing = loading.putIfAbsent(key, future);
+            if (existing != null) {
+                waiting.put(key, existing);
+            } else {
+                owned.put(key, future);
+            }
+        }
+
+        if (!owned.isEmpty()) {
+            loadOwned(owned, result);
+        }
+
+        for (Map.Entry<K, CompletableFuture<V>> entry : waiting.entrySet()) {
+            V value = join(entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量加载本线程登记的key，加载结束后无论成功与否都要完成future并移除登记
+     */
+    private void loadOwned(Map<K, CompletableFuture<V>> owned, Map<K, V> result) {
+        try {
+            List<K> toLoad = new ArrayList<>(owned.size());
+            for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                V value = cache.get(entry.getKey());
+                if (value != null) {
+                    result.put(entry.getKey(), value);
+                    entry.getValue().complete(value);
+                } else {
+                    toLoad.add(entry.getKey());
+                }
+            }
+
+            if (!toLoad.isEmpty()) {
+                Map<K, V> loaded = toLoad.size() == 1
+                        ? Collections.singletonMap(toLoad.get(0), loader.load(toLoad.get(0)))
+                        : loader.loadAll(toLoad);
+                for (K key : toLoad) {
+                    V value = afterLoad(key, loaded == null ? null : loaded.get(key), owned.get(key));
+                    if (value != null) {
+                        result.put(key, value);
+                    }
+                    owned.get(key).complete(value);
+                }
+            }
+        } catch (Throwable e) {
+            CacheLoadException ex = loadFailed(owned.keySet(), e);
+            for (CompletableFuture<V> future : owned.values()) {
+                future.completeExceptionally(ex);
+            }
+            throw ex;
+        } finally {
+            for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                loading.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 只读取缓存，不触发加载
+     */
+    public V getIfPresent(K key) {
+        return cache.get(key);
+    }
+
+    /**
+     * 加载完成后写入缓存，数据源中不存在时记入负缓存；
+     * 加载期间该key被put或remove时（登记的加载已经被移除），丢弃加载结果，返回缓存中的当前值
+     *
+     * @param future 本次加载登记在 loading 中的future
+     * @return 读取方应当得到的值
+     */
+    private V afterLoad(K key, V value, CompletableFuture<V> future) {
+        synchronized (writeLock(key)) {
+            if (loading.get(key) != future) {
+                return cache.get(key);
+            }
+            if (value != null) {
+                cache.put(key, value);
+                absentKeys.remove(key);
+                recordWrite(key);
+            } else {
+                markAbsent(key);
+            }
+            return value;
+        }
+    }
+
+    // ====================================================== 写后刷新 ==================================================
+
+    /**
+     * 距上次写入超过刷新时间时提交异步刷新，不阻塞当前读取
+     */
+    private void refreshIfNeeded(K key, V value) {
+        long refreshAfter = refreshAfterWriteNanos;
+        if (refreshAfter <= 0) {
+            return;
+        }
+        WriteTime writeTime = writeTimes.get(key);
+        if (writeTime == null) {
+            // 直接写入被包装缓存的数据没有写入时间，从第一次读取开始计时
+            writeTimes.putIfAbsent(key, new WriteTime());
+            pruneWriteTimes();
+            return;
+        }
+        if (System.nanoTime() - writeTime.nanos < refreshAfter || !refreshing.add(key)) {
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(() -> refresh(key, value, writeTime));
+        } catch (RejectedExecutionException e) {
+            // 线程池已满，留给之后的读取再次尝试
+            refreshing.remove(key);
+        }
+    }
+
+    private void refresh(K key, V oldValue, WriteTime writeTime) {
+        try {
+            V value = loader.reload(key, oldValue);
+            synchronized (writeLock(key)) {
+                if (writeTimes.get(key) != writeTime) {
+                    // 刷新期间key已经被写入或移除，丢弃刷新结果
+                    return;
+                }
+                if (value != null) {
+                    cache.put(key, value);
+                    recordWrite(key);
+                } else {
+                    cache.remove(key);
+                    writeTimes.remove(key);
+                    markAbsent(key);
+                }
+            }
+        } catch (Throwable e) {
+            // 刷新失败时保留旧值，之后的读取会再次触发刷新
+            log.warn("Error while refresh cache key " + key, e);
+        } finally {
+            refreshing.remove(key);
+        }
+    }
+
+    private void recordWrite(K key) {
+        if (refreshAfterWriteNanos > 0) {
+            writeTimes.put(key, new WriteTime());
+            pruneWriteTimes();
+        }
+    }
+
+    /**
+     * 记录数超过阈值时，移除被包装的缓存中已经不存在的key，之后把阈值设为剩余记录数的两倍，清理的开销均摊到每次写入；
+     * 同一时刻只有一个线程清理，只移除检查时的那条记录，不会误删清理期间新的写入时间
+     */
+    private void pruneWriteTimes() {
+        if (writeTimes.size() <= nextWriteTimePrune || !pruningWriteTimes.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Map.Entry<K, WriteTime> entry : writeTimes.entrySet()) {
+                if (!cache.contains(entry.getKey())) {
+                    writeTimes.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            nextWriteTimePrune = Math.max(MIN_WRITE_TIME_PRUNE, writeTimes.size() * 2);
+        } finally {
+            pruningWriteTimes.set(false);
+        }
+    }
+
+    /**
+     * 当前记录的写入时间个数
+     */
+    int getWriteTimeCount() {
+        return writeTimes.size();
+    }
+
+    private Object writeLock(K key) {
+        int h = key.hashCode();
+        return writeLocks[(h ^ (h >>> 16)) & (WRITE_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * 写入时间，刷新结果写入前按对象判断期间是否有新的写入
+     */
+    private static class WriteTime {
+
+        final long nanos = System.nanoTime();
+
+    }
+
+    private boolean isAbsent(K key) {
+        if (absentKeyTtlNanos <= 0) {
+            return false;
+        }
+        Long expireAt = absentKeys.get(key);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt - System.nanoTime() > 0) {
+            return true;
+        }
+        absentKeys.remove(key, expireAt);
+        return false;
+    }
+
+    private void markAbsent(K key) {
+        if (absentKeyTtlNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (absentKeys.size() >= maxAbsentKeys) {
+            // 先清理过期的key，仍然已满则不再记录，避免负缓存无限增长
+            absentKeys.values().removeIf(expireAt -> expireAt - now <= 0);
+            if (absentKeys.size() >= maxAbsentKeys) {
+                return;
+            }
+        }
+        absentKeys.put(key, now + absentKeyTtlNanos);
+    }
+
+    private V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof CacheLoadException) {
+                throw (CacheLoadException) e.getCause();
+            }
+            throw new CacheLoadException(e.getCause());
+        }
+    }
+
+    private CacheLoadException loadFailed(Collection<K> keys, Throwable e) {
+        if (e instanceof CacheLoadException) {
+            return (CacheLoadException) e;
+        }
+        log.error("Error while load cache keys " + keys, e);
+        return new CacheLoadException("Error while load cache keys " + keys, e);
+    }
+
+    /**
+     * 写入缓存，同时使该key的负缓存和正在进行的加载失效
+     */
+    @Override
+    public boolean put(K key, V value) {
+        synchronized (writeLock(key)) {
+            // 正在进行的加载读到的可能是旧数据，使其结果失效
+            loading.remove(key);
+            absentKeys.remove(key);
+            boolean existed = cache.put(key, value);
+            recordWrite(key);
+            return existed;
+        }
+    }
+
+    @Override
+    public boolean remove(K key) {
+        synchronized (writeLock(key)) {
+            loading.remove(key);
+            writeTimes.remove(key);
+            return cache.remove(key);
+        }
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return cache.contains(key);
+    }
+
+    @Override
+    public List<K> getKeys() {
+        return cache.getKeys();
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return cache.keyIterator();
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return cache.entrySpliterator();
+    }
+
+    @Override
+    public Stream<Map.Entry<K, V>> stream() {
+        return cache.stream();
+    }
+
+    @Override
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        return cache.parallelStream();
+    }
+
+    @Override
+    public int getSize() {
+        return cache.getSize();
+    }
+
+    @Override
+    public List<V> getByIndex(String indexName, Object indexAttr) {
+        return cache.getByIndex(indexName, indexAttr);
+    }
+
+    @Override
+    public int countByIndex(String indexName, Object indexAttr) {
+        return cache.countByIndex(indexName, indexAttr);
+    }
+
+    @Override
+    public List<K> keysByIndex(String indexName, Object indexAttr, int offset, int limit) {
+        return cache.keysByIndex(indexName, indexAttr, offset, limit);
+    }
+
+    @Override
+    public boolean existsByIndex(String indexName, Object indexAttr) {
+        return cache.existsByIndex(indexName, indexAttr);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (ownRefreshExecutor) {
+            ((ExecutorService) refreshExecutor).shutdownNow();
+            ownRefreshExecutor = false;
+        }
+        absentKeys.clear();
+        writeTimes.clear();
+        cache.close();
+    }
+
+    /**
+     * 被包装的缓存
+     */
+    public Cache<K, V> getCache() {
+        return cache;
+    }
+
+    /**
+     * 开启负缓存，数据源中不存在的key在有效期内不再加载
+     */
+    public LoadingCache<K, V> setAbsentKeyTtl(long ttl, TimeUnit unit) {
+        this.absentKeyTtlNanos = unit.toNanos(ttl);
+        if (absentKeyTtlNanos <= 0) {
+            absentKeys.clear();
+        }
+        return this;
+    }
+
+    /**
+     * 开启写后刷新，未设置刷新线程池时创建一个有界的默认线程池
+     */
+    public synchronized LoadingCache<K, V> setRefreshAfterWrite(long duration, TimeUnit unit) {
+        if (refreshExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_REFRESH_THREADS, DEFAULT_REFRESH_THREADS,
+                    60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(DEFAULT_REFRESH_QUEUE_SIZE), r -> {
+                Thread thread = new Thread(r, "coco-refresh-" + REFRESH_THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            this.refreshExecutor = executor;
+            this.ownRefreshExecutor = true;
+        }
+        this.refreshAfterWriteNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * 使用自定义的刷新线程池，线程池满时应当抛出 {@link RejectedExecutionException}，本次刷新会被跳过
+     */
+    public synchronized LoadingCache<K, V> setRefreshExecutor(Executor refreshExecutor) {
+        if (ownRefreshExecutor) {
+            ((ExecutorService) this.refreshExecutor).shutdown();
+            ownRefreshExecutor = false;
+        }
+        this.refreshExecutor = Objects.requireNonNull(refreshExecutor, "refreshExecutor");
+        return this;
+    }
+
+    /**
+     * 负缓存最多记录的key数量，超出后不再记录新的key
+     */
+    public LoadingCache<K, V> setMaxAbsentKeys(int maxAbsentKeys) {
+        this.maxAbsentKeys = maxAbsentKeys;
+        return this;
+    }
+
+    /**
+     * 使某个key的负缓存失效，下次读取时重新加载
+     */
+    public void invalidateAbsent(K key) {
+        absentKeys.remove(key);
+    }
+}
@@ -0,0 +1,133 @@
+package org.limbo.coco.memory;
+
+import org.limbo.coco.AbstractCache;
+import org.limbo.coco.Index;
+import org.limbo.coco.IndexBuilder;
+import org.limbo.coco.LongIndex;
+import org.limbo.coco.primitive.ConcurrentLongObjectMap;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * key为long的 {@link MapCache}，使用分段加锁的开放寻址表 {@link ConcurrentLongObjectMap} 存储，
+ * 不为key创建Long对象和Entry对象；索引的key集合也使用基本类型的集合。
+ * <p>
+ * 基本类型的方法（put(long, V)、get(long) 等）不会装箱，{@link org.limbo.coco.Cache} 接口中的方法会装箱后转调；不允许null值。
+ *
+ * @param <V>
+ */
+public class LongMapCache<V> extends AbstractCache<Long, V> {
+
+    private final ConcurrentLongObjectMap<V> internalMap;
+
+    public LongMapCache() {
+        this.internalMap = new ConcurrentLongObjectMap<>();
+    }
+
+    /**
+     * @param concurrencyLevel 分段数量
+     */
+    public LongMapCache(int concurrencyLevel) {
+        this.internalMap = new ConcurrentLongObjectMap<>(concurrencyLevel);
+    }
+
+    /**
+     * 在段锁内完成替换和索引维护
+     */
+    public boolean put(long key, V value) {
+        Objects.requireNonNull(value, "Null value is not supported!");
+        if (!hasIndex()) {
+            return internalMap.put(key, value) != null;
+        }
+
+        boolean[] existed = new boolean[1];
+        internalMap.compute(key, (k, old) -> {
+            if (old != null) {
+                existed[0] = true;
+                removeIndex(k, old);
+            }
+            putIndex(k, value);
+            return value;
+        });
+        return existed[0];
+    }
+
+    public V get(long key) {
+        return internalMap.get(key);
+    }
+
+    public boolean remove(long key) {
+        if (!hasIndex()) {
+            return internalMap.remove(key) != null;
+        }
+
+        boolean[] existed = new boolean[1];
+        internalMap.compute(key, (k, old) -> {
+            if (old != null) {
+                existed[0] = true;
+                removeIndex(k, old);
+            }
+            return null;
+        });
+        return existed[0];
+    }
+
+    public boolean contains(long key) {
+        return internalMap.containsKey(key);
+    }
+
+    @Override
+    public List<Long> getKeys() {
+        return new ArrayList<>(internalMap.keySet());
+    }
+
+    @Override
+    public Iterator<Long> keyIterator() {
+        // 逐段复制key，不允许通过迭代器移除，否则索引无法同步更新
+        return Collections.unmodifiableSet(internalMap.keySet()).iterator();
+    }
+
+    @Override
+    public Spliterator<Map.Entry<Long, V>> entrySpliterator() {
+        // 按段拆分，每段在遍历到时复制
+        return IntStream.range(0, internalMap.segmentCount()).boxed()
+                .flatMap(i -> internalMap.segmentEntries(i).stream())
+                .spliterator();
+    }
+
+    @Override
+    public boolean put(Long key, V value) {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public V get(Long key) {
+        return get(key.longValue());
+    }
+
+    @Override
+    public boolean remove(Long key) {
+        return remove(key.longValue());
+    }
+
+    @Override
+    public boolean contains(Long key) {
+        return contains(key.longValue());
+    }
+
+    @Override
+    public int getSize() {
+        return internalMap.size();
+    }
+
+    @Override
+    public void close() {
+        this.internalMap.clear();
+    }
+
+    @Override
+    protected Index<Long, V> createIndex(IndexBuilder<V> indexBuilder) {
+        return new LongIndex<>(indexBuilder);
+    }
+}
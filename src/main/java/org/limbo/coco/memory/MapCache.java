@@ -1,17 +1,100 @@
 package org.limbo.coco.memory;
 
 import org.limbo.coco.AbstractCache;
+import org.limbo.coco.Index;
+import org.limbo.coco.IndexBuilder;
+import org.limbo.coco.MemoryUnit;
+import org.limbo.coco.file.serializer.ValueSerializer;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+/**
+ * 基于 ConcurrentHashMap 的内存缓存；
+ * <p>
+ * 可以设置堆内存预算，此时写入时通过 {@link ObjectSizeEstimator} 估算每个条目的大小并累计，
+ * 超出预算后按写入顺序（先写入的key先淘汰，覆盖不改变顺序）淘汰条目，直到回到预算以内；不允许null值。
+ * <p>
+ * 可以通过 {@link #snapshot(Path, ValueSerializer, ValueSerializer)} 把全部条目并行写入快照文件，
+ * 重启后通过 {@link #restore(Path, ValueSerializer, ValueSerializer)} 并行加载，避免冷启动；
+ * 有索引时快照旁边会同时写入索引文件，恢复时直接加载其中的倒排表，不再对每个value构建索引。
+ *
+ * @param <K>
+ * @param <V>
+ */
 public class MapCache<K, V> extends AbstractCache<K, V> {
 
+    /**
+     * 每个条目除key和value外的固定开销估算值：ConcurrentHashMap的节点及其在table中的槽位
+     */
+    private static final int ENTRY_OVERHEAD = 48;
+
+    /**
+     * 设置了预算时每个条目额外的开销估算值：淘汰队列的节点、队列条目及其在 {@link #queuedEntries} 中的节点
+     */
+    private static final int EVICTION_OVERHEAD = 80;
+
     private final ConcurrentHashMap<K, V> internalMap;
 
+    /**
+     * 堆内存预算，单位字节，0表示不限制
+     */
+    private final long maxBytes;
+
+    private final ObjectSizeEstimator sizeEstimator;
+
+    /**
+     * 当前估算占用的字节数，只在设置了预算时统计
+     */
+    private final AtomicLong usedBytes;
+
+    /**
+     * 淘汰队列，按写入顺序记录新增的key；被移除的key对应的条目标记为失效，不会立即出队，队列过长时原地清理失效的条目
+     */
+    private final ConcurrentLinkedQueue<QueuedKey<K>> evictionQueue;
+
+    /**
+     * 每个key当前有效的队列条目，只在设置了预算时记录；与 internalMap 中同一个key的修改在 compute 内一起完成
+     */
+    private final ConcurrentHashMap<K, QueuedKey<K>> queuedEntries;
+
+    private final AtomicInteger evictionQueueSize;
+
+    private final ReentrantLock evictionLock;
+
     public MapCache() {
+        this(0, ReflectiveObjectSizeEstimator.INSTANCE);
+    }
+
+    /**
+     * @param maxHeapSize 堆内存预算，如 512m、2g，格式同 {@link MemoryUnit#parseSizeInBytes(String)}
+     */
+    public MapCache(String maxHeapSize) {
+        this(MemoryUnit.parseSizeInBytes(maxHeapSize), ReflectiveObjectSizeEstimator.INSTANCE);
+    }
+
+    /**
+     * @param maxBytes      堆内存预算，单位字节，0表示不限制
+     * @param sizeEstimator 条目大小的估算方式
+     */
+    public MapCache(long maxBytes, ObjectSizeEstimator sizeEstimator) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("MaxBytes cannot be negative!");
+        }
         this.internalMap = new ConcurrentHashMap<>();
+        this.maxBytes = maxBytes;
+        this.sizeEstimator = Objects.requireNonNull(sizeEstimator, "sizeEstimator");
+        this.usedBytes = new AtomicLong(0);
+        this.evictionQueue = new ConcurrentLinkedQueue<>();
+        this.queuedEntries = new ConcurrentHashMap<>();
+        this.evictionQueueSize = new AtomicInteger(0);
+        this.evictionLock = new ReentrantLock();
     }
 
     @Override
@@ -20,10 +103,115 @@ public class MapCache<K, V> extends AbstractCache<K, V> {
     }
 
     @Override
-    public synchronized boolean put(K key, V value) {
-        boolean existed = internalMap.putIfAbsent(key, value) != null;
-        putIndex(key, value);
-        return existed;
+    public Iterator<K> keyIterator() {
+        // 不允许通过迭代器移除，否则索引无法同步更新
+        return Collections.unmodifiableSet(this.internalMap.keySet()).iterator();
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return new ImmutableEntrySpliterator<>(this.internalMap.entrySet().spliterator());
+    }
+
+    /**
+     * 在 compute 中完成替换和索引维护，同一个key的写入由 ConcurrentHashMap 的桶锁串行，不同key之间互不影响；
+     * 不允许null值，否则 compute 会移除该key，而索引中仍然留有它
+     */
+    @Override
+    public boolean put(K key, V value) {
+        Objects.requireNonNull(value, "Null value is not supported!");
+        if (maxBytes > 0) {
+            return putWithinBudget(key, value);
+        }
+
+        boolean[] existed = new boolean[1];
+        internalMap.compute(key, (k, old) -> {
+            if (old != null) {
+                existed[0] = true;
+                removeIndex(k, old);
+            }
+            putIndex(k, value);
+            return value;
+        });
+        return existed[0];
+    }
+
+    /**
+     * 新值的大小在锁外估算，旧值的大小在 compute 中估算，保证扣减的是被替换掉的那个值
+     */
+    private boolean putWithinBudget(K key, V value) {
+        long valueBytes = sizeEstimator.estimate(value);
+        boolean[] existed = new boolean[1];
+        long[] delta = new long[1];
+        internalMap.compute(key, (k, old) -> {
+            if (old != null) {
+                existed[0] = true;
+                removeIndex(k, old);
+                delta[0] = valueBytes - sizeEstimator.estimate(old);
+            } else {
+                delta[0] = valueBytes + entryBytes(k);
+                // 移除后重新写入的key排到队尾，之前的条目已经在移除时失效
+                QueuedKey<K> queued = new QueuedKey<>(k);
+                queuedEntries.put(k, queued);
+                evictionQueue.add(queued);
+                evictionQueueSize.incrementAndGet();
+            }
+            putIndex(k, value);
+            return value;
+        });
+        if (usedBytes.addAndGet(delta[0]) > maxBytes) {
+            evict();
+        }
+        return existed[0];
+    }
+
+    /**
+     * 按写入顺序淘汰，直到回到预算以内；同一时刻只有一个线程在淘汰，其他线程直接返回
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            while (usedBytes.get() > maxBytes) {
+                QueuedKey<K> queued = evictionQueue.poll();
+                if (queued == null) {
+                    break;
+                }
+                evictionQueueSize.decrementAndGet();
+                if (queued.live) {
+                    doRemove(queued.key, queued);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 被移除的key的失效条目仍留在淘汰队列中，队列长度超过条目数的两倍时原地移除失效的条目；
+     * 不重建队列，有效条目的先后顺序不变，清理期间新增的条目照常入队
+     */
+    private void compactEvictionQueue() {
+        int size = internalMap.size();
+        if (evictionQueueSize.get() <= size * 2 + 1024 || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            Iterator<QueuedKey<K>> iterator = evictionQueue.iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().live) {
+                    iterator.remove();
+                    evictionQueueSize.decrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private long entryBytes(K key) {
+        return sizeEstimator.estimate(key) + ENTRY_OVERHEAD + EVICTION_OVERHEAD;
     }
 
     @Override
@@ -32,12 +220,39 @@ public class MapCache<K, V> extends AbstractCache<K, V> {
     }
 
     @Override
-    public synchronized boolean remove(K key) {
-        V existed = internalMap.remove(key);
-        if (existed != null) {
-            removeIndex(key, existed);
+    public boolean remove(K key) {
+        boolean existed = doRemove(key, null);
+        if (existed && maxBytes > 0) {
+            compactEvictionQueue();
         }
-        return existed != null;
+        return existed;
+    }
+
+    /**
+     * @param evicting 淘汰时传入出队的条目，key已经被移除后重新写入时不再淘汰；主动移除时为null
+     */
+    private boolean doRemove(K key, QueuedKey<K> evicting) {
+        boolean[] existed = new boolean[1];
+        long[] released = new long[1];
+        internalMap.computeIfPresent(key, (k, old) -> {
+            if (maxBytes > 0) {
+                if (evicting != null && queuedEntries.get(k) != evicting) {
+                    return old;
+                }
+                QueuedKey<K> queued = queuedEntries.remove(k);
+                if (queued != null) {
+                    queued.live = false;
+                }
+                released[0] = sizeEstimator.estimate(old) + entryBytes(k);
+            }
+            existed[0] = true;
+            removeIndex(k, old);
+            return null;
+        });
+        if (released[0] > 0) {
+            usedBytes.addAndGet(-released[0]);
+        }
+        return existed[0];
     }
 
     @Override
@@ -53,5 +268,147 @@ public class MapCache<K, V> extends AbstractCache<K, V> {
     @Override
     public void close() {
         this.internalMap.clear();
+        this.queuedEntries.clear();
+        this.evictionQueue.clear();
+        this.evictionQueueSize.set(0);
+        this.usedBytes.set(0);
+    }
+
+    /**
+     * 把全部条目并行写入快照文件，写入期间的修改可能包含也可能不包含在快照中；
+     * 先写入同目录下的临时文件，完成后替换目标文件。
+     * 有索引时同时写入索引文件（快照文件名加 .idx），索引值按快照中的条目构建，和快照内容一致
+     *
+     * @return 写入的条目数
+     */
+    public long snapshot(Path file, ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer) {
+        MapCacheIndexFile.Writer<V> indexWriter = null;
+        if (hasIndex()) {
+            List<IndexBuilder<V>> indexBuilders = new ArrayList<>();
+            for (Index<K, V> index : getIndices()) {
+                indexBuilders.add(index.getIndexBuilder());
+            }
+            indexWriter = new MapCacheIndexFile.Writer<>(indexBuilders);
+        }
+        return MapCacheSnapshot.write(internalMap.entrySet().spliterator(), file, keySerializer, valueSerializer, indexWriter);
+    }
+
+    /**
+     * 并行加载快照文件，各数据块在不同线程上反序列化，条目和索引在各自线程上通过put写入；
+     * 已经存在的key会被覆盖，设置了堆内存预算时照常淘汰。
+     * <p>
+     * 未设置预算且快照有匹配的索引文件时，索引文件中有的索引在全部条目写入后从索引文件加载，
+     * 不调用 {@link IndexBuilder#buildIndex(Object)}；此时恢复期间不应有其他线程写入，否则这些索引可能和数据不一致
+     *
+     * @return 加载的条目数
+     */
+    public long restore(Path file, ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer) {
+        MapCacheIndexFile indexFile = null;
+        MapCacheSnapshot.Header header = null;
+        if (hasIndex() && maxBytes == 0) {
+            header = MapCacheSnapshot.readHeader(file);
+            if (header.getEntryCount() < Integer.MAX_VALUE) {
+                indexFile = MapCacheIndexFile.open(file, header.getSnapshotId(), header.getEntryCount());
+            }
+        }
+        if (indexFile == null) {
+            return MapCacheSnapshot.read(file, keySerializer, valueSerializer, (id, key, value) -> put(key, value));
+        }
+
+        List<Index<K, V>> loaded = new ArrayList<>();
+        List<Index<K, V>> built = new ArrayList<>();
+        for (Index<K, V> index : getIndices()) {
+            (indexFile.getIndexNames().contains(index.getName()) ? loaded : built).add(index);
+        }
+        Object[] keysById = new Object[(int) header.getEntryCount()];
+        long restored = MapCacheSnapshot.read(file, keySerializer, valueSerializer, (id, key, value) -> {
+            keysById[(int) id] = key;
+            putWithIndices(key, value, built);
+        });
+        for (Index<K, V> index : loaded) {
+            indexFile.load(index, keysById);
+        }
+        return restored;
+    }
+
+    /**
+     * 写入条目，只维护指定的索引；被覆盖的旧值仍然从全部索引中移除
+     */
+    private void putWithIndices(K key, V value, List<Index<K, V>> indices) {
+        internalMap.compute(key, (k, old) -> {
+            if (old != null) {
+                removeIndex(k, old);
+            }
+            for (Index<K, V> index : indices) {
+                index.addKey(index.getIndexBuilder().buildIndex(value), k);
+            }
+            return value;
+        });
+    }
+
+    /**
+     * 当前估算占用的堆内存字节数，未设置预算时为0
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * 堆内存预算，0表示不限制
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * 淘汰队列中的条目，key被移除时标记为失效；同一个key移除后重新写入会产生新的条目
+     */
+    private static class QueuedKey<K> {
+
+        final K key;
+
+        volatile boolean live = true;
+
+        QueuedKey(K key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * ConcurrentHashMap 的条目调用 setValue 会直接写入map，绕过索引维护，因此转换为不可修改的条目
+     */
+    private static class ImmutableEntrySpliterator<K, V> implements Spliterator<Map.Entry<K, V>> {
+
+        private final Spliterator<Map.Entry<K, V>> spliterator;
+
+        ImmutableEntrySpliterator(Spliterator<Map.Entry<K, V>> spliterator) {
+            this.spliterator = spliterator;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            return spliterator.tryAdvance(e -> action.accept(new AbstractMap.SimpleImmutableEntry<>(e)));
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+            spliterator.forEachRemaining(e -> action.accept(new AbstractMap.SimpleImmutableEntry<>(e)));
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            Spliterator<Map.Entry<K, V>> prefix = spliterator.trySplit();
+            return prefix == null ? null : new ImmutableEntrySpliterator<>(prefix);
+        }
+
+        @Override
+        public long estimateSize() {
+            return spliterator.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return spliterator.characteristics();
+        }
     }
 }
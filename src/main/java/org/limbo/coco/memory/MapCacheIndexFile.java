@@ -0,0 +1,398 @@
+package org.limbo.coco.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.limbo.coco.Index;
+import org.limbo.coco.IndexBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link MapCache} 快照的索引文件，和快照文件放在同一目录，文件名为快照文件名加 {@link #SUFFIX}；
+ * 恢复时直接加载索引文件中的倒排表，不需要对每个value调用 {@link IndexBuilder#buildIndex(Object)}。
+ * <p>
+ * 文件格式：
+ * <pre>
+ * [文件头] magic(int) version(int) snapshotId(long) entryCount(long) indexCount(int)
+ * [索引]* nameLength(int) name(UTF-8) sectionLength(long) attrCount(int) [索引值]*
+ * [索引值] attrLength(int) attr(bytes) keyCount(int) keyIds(varint)
+ * </pre>
+ * keyId 是条目在快照文件中的序号，按数据块在文件中的顺序和块内记录的顺序编号；
+ * 每个索引值的 keyId 升序排列，存储和前一个 keyId 的差值。
+ * 文件头中的 snapshotId 和 entryCount 必须和快照文件一致，否则整个索引文件被忽略，恢复时照常构建索引。
+ */
+@Slf4j
+class MapCacheIndexFile {
+
+    static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x434F4958;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_SHORT = 4;
+    private static final byte TYPE_BYTE = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+    private static final byte TYPE_CHAR = 7;
+    private static final byte TYPE_DOUBLE = 8;
+    private static final byte TYPE_FLOAT = 9;
+    /** 其他类型使用Java序列化 */
+    private static final byte TYPE_SERIALIZED = 10;
+
+    private final MappedByteBuffer mapped;
+
+    /**
+     * 索引名称 -> 该索引第一个索引值的位置
+     */
+    private final Map<String, Integer> sections;
+
+    private MapCacheIndexFile(MappedByteBuffer mapped, Map<String, Integer> sections) {
+        this.mapped = mapped;
+        this.sections = sections;
+    }
+
+    static Path pathOf(Path snapshotFile) {
+        return snapshotFile.resolveSibling(snapshotFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * 映射快照对应的索引文件，文件不存在、和快照不匹配或者损坏时返回null
+     */
+    static MapCacheIndexFile open(Path snapshotFile, long snapshotId, long entryCount) {
+        Path file = pathOf(snapshotFile);
+        if (snapshotId == 0 || !Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                log.warn("Ignore index file[{}], unexpected size {}", file, size);
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                log.warn("Ignore index file[{}], unknown format", file);
+                return null;
+            }
+            if (mapped.getLong() != snapshotId || mapped.getLong() != entryCount) {
+                log.warn("Ignore index file[{}], it does not belong to snapshot[{}]", file, snapshotFile);
+                return null;
+            }
+
+            int indexCount = mapped.getInt();
+            Map<String, Integer> sections = new HashMap<>();
+            for (int i = 0; i < indexCount; i++) {
+                byte[] name = new byte[mapped.getInt()];
+                mapped.get(name);
+                long sectionLength = mapped.getLong();
+                int start = mapped.position();
+                if (sectionLength < 0 || start + sectionLength > size) {
+                    throw new IOException("Index file is truncated or corrupted");
+                }
+                sections.put(new String(name, StandardCharsets.UTF_8), start);
+                mapped.position((int) (start + sectionLength));
+            }
+            if (mapped.position() != size) {
+                throw new IOException("Index file is truncated or corrupted");
+            }
+            return new MapCacheIndexFile(mapped, sections);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignore index file[" + file + "]", e);
+            return null;
+        }
+    }
+
+    /**
+     * 索引文件中包含的索引名称
+     */
+    Set<String> getIndexNames() {
+        return Collections.unmodifiableSet(sections.keySet());
+    }
+
+    /**
+     * 把索引文件中的倒排表加入索引
+     *
+     * @param keysById keyId -> key
+     */
+    <K, V> void load(Index<K, V> index, Object[] keysById) {
+        Integer start = sections.get(index.getName());
+        if (start == null) {
+            throw new IllegalArgumentException("Index[" + index.getName() + "] is not in index file");
+        }
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position(start);
+        int attrCount = buffer.getInt();
+        for (int i = 0; i < attrCount; i++) {
+            byte[] attrData = new byte[buffer.getInt()];
+            buffer.get(attrData);
+            Object attr = decodeAttr(attrData);
+
+            int keyCount = buffer.getInt();
+            List<K> keys = new ArrayList<>(keyCount);
+            int id = 0;
+            for (int j = 0; j < keyCount; j++) {
+                id += readVarInt(buffer);
+                @SuppressWarnings("unchecked")
+                K key = (K) keysById[id];
+                keys.add(key);
+            }
+            index.addKeys(attr, keys);
+        }
+    }
+
+    /**
+     * 写快照时收集各条目的索引值，可以被多个写入线程同时调用
+     */
+    static class Writer<V> {
+
+        private final List<IndexBuilder<V>> indexBuilders;
+
+        /**
+         * 每个索引：索引值 -> keyId
+         */
+        private final List<ConcurrentHashMap<Object, Postings>> postings;
+
+        Writer(List<IndexBuilder<V>> indexBuilders) {
+            this.indexBuilders = indexBuilders;
+            this.postings = new ArrayList<>(indexBuilders.size());
+            for (int i = 0; i < indexBuilders.size(); i++) {
+                this.postings.add(new ConcurrentHashMap<>());
+            }
+        }
+
+        /**
+         * 计算一个value在各个索引上的索引值
+         */
+        Object[] attrs(V value) {
+            Object[] attrs = new Object[indexBuilders.size()];
+            for (int i = 0; i < attrs.length; i++) {
+                attrs[i] = indexBuilders.get(i).buildIndex(value);
+            }
+            return attrs;
+        }
+
+        /**
+         * 一个数据块写入文件后，按块内的记录顺序记录索引值
+         *
+         * @param firstId 数据块第一条记录的keyId
+         */
+        void add(long firstId, List<Object[]> recordAttrs) {
+            for (int i = 0; i < recordAttrs.size(); i++) {
+                Object[] attrs = recordAttrs.get(i);
+                for (int j = 0; j < attrs.length; j++) {
+                    if (attrs[j] != null) {
+                        postings.get(j).computeIfAbsent(attrs[j], attr -> new Postings()).add((int) (firstId + i));
+                    }
+                }
+            }
+        }
+
+        /**
+         * 写入索引文件，先写入临时文件，完成后替换目标文件；
+         * 索引值无法序列化的索引不写入，恢复时照常构建
+         */
+        void write(Path snapshotFile, long snapshotId, long entryCount) throws IOException {
+            Path file = pathOf(snapshotFile);
+            Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                List<byte[]> names = new ArrayList<>();
+                List<byte[]> sections = new ArrayList<>();
+                for (int i = 0; i < indexBuilders.size(); i++) {
+                    String name = indexBuilders.get(i).name();
+                    byte[] section = encodeSection(name, postings.get(i));
+                    if (section != null) {
+                        names.add(name.getBytes(StandardCharsets.UTF_8));
+                        sections.add(section);
+                    }
+                }
+
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+                data.writeLong(snapshotId);
+                data.writeLong(entryCount);
+                data.writeInt(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    data.writeInt(names.get(i).length);
+                    data.write(names.get(i));
+                    data.writeLong(sections.get(i).length);
+                    data.write(sections.get(i));
+                }
+                data.flush();
+            } catch (IOException | RuntimeException e) {
+                FileUtils.deleteQuietly(tempFile.toFile());
+                throw e;
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static byte[] encodeSection(String name, Map<Object, Postings> postings) throws IOException {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(section);
+            data.writeInt(postings.size());
+            for (Map.Entry<Object, Postings> entry : postings.entrySet()) {
+                byte[] attr;
+                try {
+                    attr = encodeAttr(entry.getKey());
+                } catch (IOException e) {
+                    log.warn("Index[{}] is not persisted, attr {} cannot be serialized: {}", name, entry.getKey(), e.toString());
+                    return null;
+                }
+                data.writeInt(attr.length);
+                data.write(attr);
+
+                int[] ids = entry.getValue().sorted();
+                data.writeInt(ids.length);
+                int last = 0;
+                for (int id : ids) {
+                    writeVarInt(data, id - last);
+                    last = id;
+                }
+            }
+            data.flush();
+            return section.toByteArray();
+        }
+    }
+
+    /**
+     * 一个索引值对应的keyId，写入顺序不固定，写文件前排序
+     */
+    private static class Postings {
+
+        private int[] ids = new int[4];
+
+        private int size;
+
+        synchronized void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        synchronized int[] sorted() {
+            int[] sorted = Arrays.copyOf(ids, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private static byte[] encodeAttr(Object attr) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream data = new DataOutputStream(bytes);
+        if (attr instanceof String) {
+            data.writeByte(TYPE_STRING);
+            data.write(((String) attr).getBytes(StandardCharsets.UTF_8));
+        } else if (attr instanceof Integer) {
+            data.writeByte(TYPE_INT);
+            data.writeInt((Integer) attr);
+        } else if (attr instanceof Long) {
+            data.writeByte(TYPE_LONG);
+            data.writeLong((Long) attr);
+        } else if (attr instanceof Short) {
+            data.writeByte(TYPE_SHORT);
+            data.writeShort((Short) attr);
+        } else if (attr instanceof Byte) {
+            data.writeByte(TYPE_BYTE);
+            data.writeByte((Byte) attr);
+        } else if (attr instanceof Boolean) {
+            data.writeByte(TYPE_BOOLEAN);
+            data.writeBoolean((Boolean) attr);
+        } else if (attr instanceof Character) {
+            data.writeByte(TYPE_CHAR);
+            data.writeChar((Character) attr);
+        } else if (attr instanceof Double) {
+            data.writeByte(TYPE_DOUBLE);
+            data.writeDouble((Double) attr);
+        } else if (attr instanceof Float) {
+            data.writeByte(TYPE_FLOAT);
+            data.writeFloat((Float) attr);
+        } else {
+            data.writeByte(TYPE_SERIALIZED);
+            data.flush();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(attr);
+            }
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Object decodeAttr(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1);
+        switch (data[0]) {
+            case TYPE_STRING:
+                return new String(data, 1, data.length - 1, StandardCharsets.UTF_8);
+            case TYPE_INT:
+                return buffer.getInt();
+            case TYPE_LONG:
+                return buffer.getLong();
+            case TYPE_SHORT:
+                return buffer.getShort();
+            case TYPE_BYTE:
+                return buffer.get();
+            case TYPE_BOOLEAN:
+                return buffer.get() != 0;
+            case TYPE_CHAR:
+                return buffer.getChar();
+            case TYPE_DOUBLE:
+                return buffer.getDouble();
+            case TYPE_FLOAT:
+                return buffer.getFloat();
+            case TYPE_SERIALIZED:
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, 1, data.length - 1))) {
+                    return in.readObject();
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new IllegalStateException("Error while deserialize index attr", e);
+                }
+            default:
+                throw new IllegalStateException("Unknown index attr type " + data[0]);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.limbo.coco.memory;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collector;
+import java.util.stream.StreamSupport;
+
+/**
+ * {@link MapCache} 快照文件的读写。
+ * <p>
+ * 文件格式：
+ * <pre>
+ * [文件头] magic(int) version(int) snapshotId(long) entryCount(long) chunkCount(int)
+ * [数据块]* dataLength(int) recordCount(int) [记录]*
+ * [记录] keyLength(int) valueLength(int) key(bytes) value(bytes)
+ * </pre>
+ * 写入时每个并行任务把记录序列化到自己的缓冲区，攒满一个数据块后在文件末尾预留位置并按位置写入，数据块之间的顺序不固定；
+ * 读取时先顺着数据块头找到每个数据块的位置，再并行地把各个数据块读入堆内数组并反序列化；
+ * 反序列化需要 byte[]，映射后仍要整块复制一次，因此直接按位置读取，不使用 mmap。
+ * <p>
+ * 条目按数据块在文件中的顺序和块内记录的顺序编号，{@link MapCacheIndexFile} 通过该编号引用条目，
+ * snapshotId 每次写入时随机生成，用于确认索引文件属于这个快照。版本1的文件没有 snapshotId，仍然可以读取。
+ */
+@Slf4j
+class MapCacheSnapshot {
+
+    private static final int MAGIC = 0x434F434F;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private static final int HEADER_SIZE_V1 = 4 + 4 + 8 + 4;
+
+    private static final int CHUNK_HEADER_SIZE = 4 + 4;
+
+    /**
+     * 数据块的目标大小，单条记录超过该大小时独占一个数据块
+     */
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    private MapCacheSnapshot() {
+    }
+
+    /**
+     * 快照文件头
+     */
+    @Getter
+    static class Header {
+
+        private final int version;
+
+        /** 版本1的文件为0 */
+        private final long snapshotId;
+
+        private final long entryCount;
+
+        private final int chunkCount;
+
+        Header(int version, long snapshotId, long entryCount, int chunkCount) {
+            this.version = version;
+            this.snapshotId = snapshotId;
+            this.entryCount = entryCount;
+            this.chunkCount = chunkCount;
+        }
+
+        int size() {
+            return version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE;
+        }
+    }
+
+    /**
+     * 并行写入全部条目，先写入临时文件，完成后替换目标文件；
+     * indexWriter不为null时同时写入索引文件，否则删除目标文件对应的旧索引文件
+     *
+     * @return 写入的条目数
+     */
+    static <K, V> long write(Spliterator<Map.Entry<K, V>> entries, Path file,
+                             ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer,
+                             MapCacheIndexFile.Writer<V> indexWriter) {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        long snapshotId;
+        long written;
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ChunkPosition position = new ChunkPosition();
+
+                StreamSupport.stream(entries, true).collect(Collector.of(
+                        () -> new ChunkWriter<>(channel, position, keySerializer, valueSerializer, indexWriter),
+                        ChunkWriter::add,
+                        (left, right) -> {
+                            right.flush();
+                            return left;
+                        },
+                        writer -> {
+                            writer.flush();
+                            return null;
+                        }));
+
+                snapshotId = newSnapshotId();
+                written = position.entryCount;
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(snapshotId).putLong(written).putInt(position.chunkCount);
+                header.flip();
+                writeFully(channel, header, 0);
+                channel.force(false);
+            }
+
+            // 关闭文件后再替换目标文件
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(tempFile.toFile());
+            log.error("Error while write snapshot file[" + file + "]", e);
+            throw new IllegalStateException("Error while write snapshot file[" + file + "]", e);
+        }
+
+        // 快照已经写入，索引文件写入失败时恢复会照常构建索引，不影响快照本身
+        try {
+            if (indexWriter != null) {
+                indexWriter.write(file, snapshotId, written);
+            } else {
+                Files.deleteIfExists(MapCacheIndexFile.pathOf(file));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Error while write index file of snapshot[" + file + "]", e);
+            FileUtils.deleteQuietly(MapCacheIndexFile.pathOf(file).toFile());
+        }
+        return written;
+    }
+
+    private static long newSnapshotId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong() ^ System.nanoTime();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * 读取快照文件头
+     */
+    static Header readHeader(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(channel);
+        } catch (IOException e) {
+            log.error("Error while read snapshot file[" + file + "]", e);
+            throw new IllegalStateException("Error while read snapshot file[" + file + "]", e);
+        }
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.limit(4 + 4);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        int version = header.getInt();
+        if (version != VERSION && version != 1) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        header.clear();
+        header.limit((version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE) - 8);
+        readFully(channel, header, 8);
+        header.flip();
+        long snapshotId = version == 1 ? 0 : header.getLong();
+        return new Header(version, snapshotId, header.getLong(), header.getInt());
+    }
+
+    /**
+     * 读取到的一条记录
+     */
+    interface RecordConsumer<K, V> {
+
+        /**
+         * @param id 条目在快照中的编号
+         */
+        void accept(long id, K key, V value);
+    }
+
+    /**
+     * 并行读取快照文件，每条记录交给consumer，consumer会在多个线程上被调用
+     *
+     * @return 读取的条目数
+     */
+    static <K, V> long read(Path file, ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer,
+                            RecordConsumer<K, V> consumer) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            long entryCount = header.getEntryCount();
+            int chunkCount = header.getChunkCount();
+            long position = header.size();
+
+            // 顺着数据块头定位每个数据块：{数据起始位置, 数据长度, 第一条记录的编号}
+            List<long[]> chunks = new ArrayList<>(chunkCount);
+            ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+            long firstId = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                chunkHeader.clear();
+                readFully(channel, chunkHeader, position);
+                chunkHeader.flip();
+                int dataLength = chunkHeader.getInt();
+                int recordCount = chunkHeader.getInt();
+                chunks.add(new long[]{position + CHUNK_HEADER_SIZE, dataLength, firstId});
+                position += CHUNK_HEADER_SIZE + dataLength;
+                firstId += recordCount;
+            }
+            if (position != channel.size()) {
+                throw new IOException("Snapshot file is truncated or corrupted");
+            }
+
+            long restored = chunks.parallelStream()
+                    .mapToLong(chunk -> readChunk(channel, chunk[0], (int) chunk[1], chunk[2], keySerializer, valueSerializer, consumer))
+                    .sum();
+            if (restored != entryCount) {
+                throw new IOException("Snapshot file expects " + entryCount + " entries but " + restored + " found");
+            }
+            return restored;
+        } catch (IOException | RuntimeException e) {
+            log.error("Error while read snapshot file[" + file + "]", e);
+            throw new IllegalStateException("Error while read snapshot file[" + file + "]", e);
+        }
+    }
+
+    private static <K, V> long readChunk(FileChannel channel, long offset, int length, long firstId,
+                                         ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer,
+                                         RecordConsumer<K, V> consumer) {
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            readFully(channel, buffer, offset);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error while read snapshot chunk at " + offset, e);
+        }
+
+        buffer.flip();
+        long count = 0;
+        while (buffer.hasRemaining()) {
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            int keyOffset = buffer.position();
+            K key = keySerializer.deserialize(data, keyOffset, keyLength);
+            V value = valueSerializer.deserialize(data, keyOffset + keyLength, valueLength);
+            buffer.position(keyOffset + keyLength + valueLength);
+            consumer.accept(firstId + count, key, value);
+            count++;
+        }
+        return count;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of snapshot file at " + position);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * 已经写入的数据块，预留文件位置和分配条目编号在同一个锁内完成，保证编号顺序和数据块在文件中的顺序一致
+     */
+    private static class ChunkPosition {
+
+        private long position = HEADER_SIZE;
+
+        private long entryCount;
+
+        private int chunkCount;
+
+        /**
+         * @return {数据块的写入位置, 第一条记录的编号}
+         */
+        synchronized long[] reserve(int length, int records) {
+            long[] reserved = {position, entryCount};
+            position += length;
+            entryCount += records;
+            chunkCount++;
+            return reserved;
+        }
+    }
+
+    /**
+     * 一个并行任务的写缓冲区，攒满一个数据块后写入文件
+     */
+    private static class ChunkWriter<K, V> {
+
+        private final FileChannel channel;
+
+        private final ChunkPosition position;
+
+        private final ValueSerializer<K> keySerializer;
+
+        private final ValueSerializer<V> valueSerializer;
+
+        private final MapCacheIndexFile.Writer<V> indexWriter;
+
+        /**
+         * 当前数据块中各条记录的索引值，没有索引时为null
+         */
+        private final List<Object[]> recordAttrs;
+
+        private final ByteArrayOutputStream buffer;
+
+        private final ByteBuffer lengths = ByteBuffer.allocate(8);
+
+        private int records;
+
+        ChunkWriter(FileChannel channel, ChunkPosition position, ValueSerializer<K> keySerializer,
+                    ValueSerializer<V> valueSerializer, MapCacheIndexFile.Writer<V> indexWriter) {
+            this.channel = channel;
+            this.position = position;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            this.indexWriter = indexWriter;
+            this.recordAttrs = indexWriter == null ? null : new ArrayList<>();
+            this.buffer = new ByteArrayOutputStream(CHUNK_HEADER_SIZE + 64 * 1024);
+            this.buffer.write(new byte[CHUNK_HEADER_SIZE], 0, CHUNK_HEADER_SIZE);
+        }
+
+        void add(Map.Entry<K, V> entry) {
+            byte[] key = keySerializer.serialize(entry.getKey());
+            byte[] value = valueSerializer.serialize(entry.getValue());
+            lengths.clear();
+            lengths.putInt(key.length).putInt(value.length);
+            buffer.write(lengths.array(), 0, 8);
+            buffer.write(key, 0, key.length);
+            buffer.write(value, 0, value.length);
+            if (indexWriter != null) {
+                recordAttrs.add(indexWriter.attrs(entry.getValue()));
+            }
+            records++;
+            if (buffer.size() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (records == 0) {
+                return;
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(buffer.toByteArray());
+            chunk.putInt(0, chunk.remaining() - CHUNK_HEADER_SIZE);
+            chunk.putInt(4, records);
+            long[] reserved = position.reserve(chunk.remaining(), records);
+            try {
+                writeFully(channel, chunk, reserved[0]);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error while write snapshot chunk", e);
+            }
+            if (indexWriter != null) {
+                indexWriter.add(reserved[1], recordAttrs);
+                recordAttrs.clear();
+            }
+
+            buffer.reset();
+            buffer.write(new byte[CHUNK_HEADER_SIZE], 0, CHUNK_HEADER_SIZE);
+            records = 0;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.limbo.coco.memory;
+
+/**
+ * 估算对象在堆中占用的字节数，用于按内存大小限制 {@link MapCache}；
+ * 对同一个未被修改的对象，多次估算的结果需要相同，否则覆盖、移除时扣减的大小会与写入时不一致
+ */
+public interface ObjectSizeEstimator {
+
+    /**
+     * 对象及其引用的对象占用的字节数，null返回0
+     */
+    long estimate(Object obj);
+
+}
@@ -0,0 +1,231 @@
+package org.limbo.coco.memory;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 通过反射遍历对象图估算大小，每个类的字段布局（对象大小、引用字段）只计算一次并缓存；
+ * <p>
+ * 按HotSpot的内存布局估算：64位JVM在最大堆小于32G时按开启压缩指针计算，对象按8字节对齐，不考虑字段重排产生的空隙；
+ * Class对象和枚举是全局共享的，不计入大小；模块未开放、无法反射读取的引用字段只计算引用本身，
+ * 其中JDK的集合类改为通过集合接口遍历元素，内部的数组和节点按元素个数估算；
+ * 被多个缓存值共享的对象会被重复计算，估算结果偏大。
+ */
+public class ReflectiveObjectSizeEstimator implements ObjectSizeEstimator {
+
+    public static final ReflectiveObjectSizeEstimator INSTANCE = new ReflectiveObjectSizeEstimator();
+
+    private static final int OBJECT_ALIGNMENT = 8;
+
+    /**
+     * 开启压缩指针的最大堆大小
+     */
+    private static final long COMPRESSED_OOPS_MAX_HEAP = 32L << 30;
+
+    /**
+     * 无法反射遍历的Map中每个条目的节点大小估算值
+     */
+    private static final int MAP_NODE_SIZE = 32;
+
+    /**
+     * JDK9 及以上默认开启 Compact Strings
+     */
+    private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version", "1.8").startsWith("1.");
+
+    private final int referenceSize;
+
+    private final int objectHeaderSize;
+
+    private final int arrayHeaderSize;
+
+    /**
+     * 每个类的字段布局
+     */
+    private final ClassValue<ClassLayout> layouts = new ClassValue<ClassLayout>() {
+        @Override
+        protected ClassLayout computeValue(Class<?> type) {
+            return new ClassLayout(type);
+        }
+    };
+
+    public ReflectiveObjectSizeEstimator() {
+        boolean is64Bit = !"32".equals(System.getProperty("sun.arch.data.model"));
+        boolean compressedOops = is64Bit && Runtime.getRuntime().maxMemory() < COMPRESSED_OOPS_MAX_HEAP;
+        this.referenceSize = !is64Bit || compressedOops ? 4 : 8;
+        this.objectHeaderSize = !is64Bit ? 8 : compressedOops ? 12 : 16;
+        this.arrayHeaderSize = objectHeaderSize + 4;
+    }
+
+    @Override
+    public long estimate(Object obj) {
+        if (obj == null || isShared(obj)) {
+            return 0;
+        }
+
+        long size = 0;
+        Map<Object, Boolean> visited = new IdentityHashMap<>();
+        Deque<Object> pending = new ArrayDeque<>();
+        visited.put(obj, Boolean.TRUE);
+        pending.push(obj);
+        while (!pending.isEmpty()) {
+            Object current = pending.pop();
+            Class<?> type = current.getClass();
+
+            if (type == String.class) {
+                // String内部的数组在高版本JDK中无法反射读取，按编码估算
+                String str = (String) current;
+                size += layouts.get(type).shallowSize + arraySize(str.length(), bytesPerChar(str));
+                continue;
+            }
+
+            if (type.isArray()) {
+                int length = Array.getLength(current);
+                Class<?> componentType = type.getComponentType();
+                if (componentType.isPrimitive()) {
+                    size += arraySize(length, primitiveSize(componentType));
+                } else {
+                    size += arraySize(length, referenceSize);
+                    for (Object element : (Object[]) current) {
+                        visit(element, visited, pending);
+                    }
+                }
+                continue;
+            }
+
+            ClassLayout layout = layouts.get(type);
+            size += layout.shallowSize;
+            if (layout.inaccessible && (current instanceof Collection || current instanceof Map)) {
+                size += visitElements(current, visited, pending);
+                continue;
+            }
+            for (Field field : layout.referenceFields) {
+                try {
+                    visit(field.get(current), visited, pending);
+                } catch (IllegalAccessException | RuntimeException e) {
+                    // 无法读取的字段只计算引用本身
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 通过集合接口遍历无法反射读取的集合，返回内部数组和节点的估算大小
+     */
+    private long visitElements(Object container, Map<Object, Boolean> visited, Deque<Object> pending) {
+        if (container instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) container;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                visit(entry.getKey(), visited, pending);
+                visit(entry.getValue(), visited, pending);
+            }
+            return arraySize(map.size(), referenceSize) + (long) map.size() * MAP_NODE_SIZE;
+        }
+        Collection<?> collection = (Collection<?>) container;
+        for (Object element : collection) {
+            visit(element, visited, pending);
+        }
+        return arraySize(collection.size(), referenceSize);
+    }
+
+    /**
+     * JDK9 开始默认开启 Compact Strings，只包含 Latin-1 字符的字符串每个字符占1个字节，其余占2个字节；
+     * JDK8 或者通过 -XX:-CompactStrings 关闭时都是2个字节，后者会被低估
+     */
+    private static int bytesPerChar(String str) {
+        if (!COMPACT_STRINGS) {
+            return 2;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) > 0xFF) {
+                return 2;
+            }
+        }
+        return 1;
+    }
+
+    private void visit(Object obj, Map<Object, Boolean> visited, Deque<Object> pending) {
+        if (obj != null && !isShared(obj) && visited.put(obj, Boolean.TRUE) == null) {
+            pending.push(obj);
+        }
+    }
+
+    private boolean isShared(Object obj) {
+        return obj instanceof Class || obj instanceof Enum;
+    }
+
+    private long arraySize(int length, int elementSize) {
+        return align(arrayHeaderSize + (long) length * elementSize);
+    }
+
+    private int fieldSize(Class<?> type) {
+        return type.isPrimitive() ? primitiveSize(type) : referenceSize;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + OBJECT_ALIGNMENT - 1) / OBJECT_ALIGNMENT * OBJECT_ALIGNMENT;
+    }
+
+    /**
+     * 类的字段布局：实例的浅大小和需要继续遍历的引用字段
+     */
+    private class ClassLayout {
+
+        final long shallowSize;
+
+        final Field[] referenceFields;
+
+        /**
+         * 是否存在无法反射读取的引用字段
+         */
+        final boolean inaccessible;
+
+        ClassLayout(Class<?> type) {
+            boolean inaccessible = false;
+            long fieldsSize = 0;
+            List<Field> references = new ArrayList<>();
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    fieldsSize += fieldSize(field.getType());
+                    if (field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        references.add(field);
+                    } catch (RuntimeException e) {
+                        // 模块未开放的字段无法读取，只计算引用本身
+                        inaccessible = true;
+                    }
+                }
+            }
+            this.shallowSize = align(objectHeaderSize + fieldsSize);
+            this.referenceFields = references.toArray(new Field[0]);
+            this.inaccessible = inaccessible;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.limbo.coco.primitive;
+
+import java.util.*;
+
+/**
+ * 分段加锁的 {@link LongObjectHashMap}，按key的hash分到不同的段，每段一把锁，不同段的读写互不影响；
+ * 同时实现了 Map&lt;Long, V&gt; 接口，方便替换原有的Map，但基本类型的方法不会装箱。
+ * <p>
+ * 遍历时逐段复制该段的内容，弱一致，不会抛出 ConcurrentModificationException；不允许null值。
+ *
+ * @param <V>
+ */
+public class ConcurrentLongObjectMap<V> extends AbstractMap<Long, V> {
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
+    private final LongObjectHashMap<V>[] segments;
+
+    private final int segmentMask;
+
+    public ConcurrentLongObjectMap() {
+        this(DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param concurrencyLevel 分段数量，会向上取整为2的幂
+     */
+    public ConcurrentLongObjectMap(int concurrencyLevel) {
+        int n = Integer.highestOneBit(Math.max(2, concurrencyLevel) - 1) << 1;
+        @SuppressWarnings("unchecked")
+        LongObjectHashMap<V>[] segments = (LongObjectHashMap<V>[]) new LongObjectHashMap<?>[n];
+        this.segments = segments;
+        for (int i = 0; i < n; i++) {
+            this.segments[i] = new LongObjectHashMap<>();
+        }
+        this.segmentMask = n - 1;
+    }
+
+    public V get(long key) {
+        LongObjectHashMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public V put(long key, V value) {
+        LongObjectHashMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    public V remove(long key) {
+        LongObjectHashMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    /**
+     * 在段锁内根据旧值计算新值，旧值不存在时为null，新值为null时移除；
+     * 同一个key的compute是串行的，函数内不能再访问本map
+     *
+     * @return 新值
+     */
+    public V compute(long key, LongObjectFunction<? super V, ? extends V> remapping) {
+        LongObjectHashMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            V old = segment.get(key);
+            V value = remapping.apply(key, old);
+            if (value != null) {
+                segment.put(key, value);
+            } else if (old != null) {
+                segment.remove(key);
+            }
+            return value;
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        return key instanceof Long ? get(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V put(Long key, V value) {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return key instanceof Long ? remove(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof Long)) {
+            return false;
+        }
+        long k = (Long) key;
+        LongObjectHashMap<V> segment = segmentFor(k);
+        synchronized (segment) {
+            V old = segment.get(k);
+            if (old != null && old.equals(value)) {
+                segment.remove(k);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (LongObjectHashMap<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (LongObjectHashMap<V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * 分段数量
+     */
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * 复制第i段的全部条目
+     */
+    public List<Map.Entry<Long, V>> segmentEntries(int i) {
+        LongObjectHashMap<V> segment = segments[i];
+        synchronized (segment) {
+            List<Map.Entry<Long, V>> entries = new ArrayList<>(segment.size());
+            segment.forEach((value, key) -> entries.add(new SimpleImmutableEntry<>(key, value)));
+            return entries;
+        }
+    }
+
+    @Override
+    public Set<Entry<Long, V>> entrySet() {
+        return new AbstractSet<Entry<Long, V>>() {
+            @Override
+            public Iterator<Entry<Long, V>> iterator() {
+                return new Iterator<Entry<Long, V>>() {
+
+                    private int nextSegment = 0;
+
+                    private Iterator<Entry<Long, V>> current = Collections.emptyIterator();
+
+                    private Entry<Long, V> last;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!current.hasNext()) {
+                            if (nextSegment >= segments.length) {
+                                return false;
+                            }
+                            current = segmentEntries(nextSegment++).iterator();
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public Entry<Long, V> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return last = current.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) {
+                            throw new IllegalStateException();
+                        }
+                        ConcurrentLongObjectMap.this.remove(last.getKey(), last.getValue());
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentLongObjectMap.this.size();
+            }
+        };
+    }
+
+    private LongObjectHashMap<V> segmentFor(long key) {
+        // 与段内的槽使用不同的hash位，避免同一段内的key聚集
+        return segments[LongObjectHashMap.slot(Long.rotateLeft(key, 17), segmentMask)];
+    }
+}
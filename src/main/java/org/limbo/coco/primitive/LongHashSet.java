@@ -0,0 +1,184 @@
+package org.limbo.coco.primitive;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 元素为基本类型long的开放寻址哈希集合，线程安全（方法加锁）；
+ * 作为索引的倒排列表使用，每个元素只占用一个long。
+ * 同时实现了 Set&lt;Long&gt; 接口，迭代时复制一份元素，弱一致。
+ */
+public class LongHashSet extends AbstractSet<Long> {
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] elements;
+
+    private boolean[] used;
+
+    private int mask;
+
+    private int size;
+
+    private int resizeAt;
+
+    public LongHashSet() {
+        this(4);
+    }
+
+    public LongHashSet(int expectedSize) {
+        allocate(LongObjectHashMap.tableSizeFor(expectedSize));
+    }
+
+    public synchronized boolean add(long e) {
+        int i = LongObjectHashMap.slot(e, mask);
+        while (used[i]) {
+            if (elements[i] == e) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        elements[i] = e;
+        used[i] = true;
+        if (++size >= resizeAt) {
+            rehash(elements.length << 1);
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(long e) {
+        int i = LongObjectHashMap.slot(e, mask);
+        while (used[i]) {
+            if (elements[i] == e) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public synchronized boolean remove(long e) {
+        int i = LongObjectHashMap.slot(e, mask);
+        while (used[i]) {
+            if (elements[i] == e) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * 全部元素的副本
+     */
+    public synchronized long[] toLongArray() {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < elements.length; i++) {
+            if (used[i]) {
+                result[n++] = elements[i];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean add(Long e) {
+        return add(e.longValue());
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Long && contains(((Long) o).longValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Long && remove(((Long) o).longValue());
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    @Override
+    public Iterator<Long> iterator() {
+        final long[] snapshot = toLongArray();
+        return new Iterator<Long>() {
+
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < snapshot.length;
+            }
+
+            @Override
+            public Long next() {
+                if (i >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                return snapshot[i++];
+            }
+
+            @Override
+            public void remove() {
+                if (i == 0) {
+                    throw new IllegalStateException();
+                }
+                LongHashSet.this.remove(snapshot[i - 1]);
+            }
+        };
+    }
+
+    private void shiftBack(int i) {
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (!used[j]) {
+                break;
+            }
+            int home = LongObjectHashMap.slot(elements[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                elements[gap] = elements[j];
+                gap = j;
+            }
+        }
+        used[gap] = false;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldElements = elements;
+        boolean[] oldUsed = used;
+        allocate(newCapacity);
+        for (int i = 0; i < oldElements.length; i++) {
+            if (oldUsed[i]) {
+                int j = LongObjectHashMap.slot(oldElements[i], mask);
+                while (used[j]) {
+                    j = (j + 1) & mask;
+                }
+                elements[j] = oldElements[i];
+                used[j] = true;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.elements = new long[capacity];
+        this.used = new boolean[capacity];
+        this.mask = capacity - 1;
+        this.resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+}
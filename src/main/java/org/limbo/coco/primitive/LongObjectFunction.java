@@ -0,0 +1,11 @@
+package org.limbo.coco.primitive;
+
+/**
+ * 参数为基本类型long和一个对象的函数
+ */
+@FunctionalInterface
+public interface LongObjectFunction<V, R> {
+
+    R apply(long key, V value);
+
+}
@@ -0,0 +1,203 @@
+package org.limbo.coco.primitive;
+
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * key为基本类型long的开放寻址哈希表，线性探测，删除时后移填补空位，不产生墓碑；
+ * 不存储key的包装对象和Entry对象，每个条目只占用一个long和一个引用。
+ * <p>
+ * 不允许null值，非线程安全。
+ *
+ * @param <V>
+ */
+public class LongObjectHashMap<V> {
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+
+    /**
+     * 值为null表示空槽
+     */
+    private Object[] values;
+
+    private int mask;
+
+    private int size;
+
+    /**
+     * 条目数达到该值时扩容
+     */
+    private int resizeAt;
+
+    public LongObjectHashMap() {
+        this(16);
+    }
+
+    public LongObjectHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public V get(long key) {
+        int i = slot(key, mask);
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) {
+                return valueAt(i);
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return 旧值，不存在时返回null
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null value is not supported!");
+        }
+        int i = slot(key, mask);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                V old = valueAt(i);
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return 被移除的值，不存在时返回null
+     */
+    public V remove(long key) {
+        int i = slot(key, mask);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                V value = valueAt(i);
+                shiftBack(i);
+                size--;
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 只有 put 会写入 values，槽中的对象一定是V
+     */
+    @SuppressWarnings("unchecked")
+    private V valueAt(int i) {
+        return (V) values[i];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public void forEach(ObjLongConsumer<V> consumer) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                consumer.accept(valueAt(i), keys[i]);
+            }
+        }
+    }
+
+    /**
+     * 全部key的副本
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 删除第i个槽后，把后面探测链上的条目前移，保证查找时不会在空槽处提前结束
+     */
+    private void shiftBack(int i) {
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                break;
+            }
+            int home = slot(keys[j], mask);
+            // home 不在 (gap, j] 范围内时，条目可以移到空位上
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i], mask);
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * 对key做一次混淆，避免连续的id聚集在相邻的槽中
+     */
+    static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    static int tableSizeFor(int expectedSize) {
+        long capacity = Math.max(4L, (long) Math.ceil(expectedSize / LOAD_FACTOR) + 1);
+        capacity = Long.highestOneBit(capacity - 1) << 1;
+        if (capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Too many entries: " + expectedSize);
+        }
+        return (int) capacity;
+    }
+}
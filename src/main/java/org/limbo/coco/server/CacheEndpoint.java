@@ -0,0 +1,209 @@
+package org.limbo.coco.server;
+
+import org.limbo.coco.Cache;
+import org.limbo.coco.file.DiskCache;
+import org.limbo.coco.file.ValueRegion;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.limbo.coco.server.CacheProtocol.*;
+
+/**
+ * 服务端注册的一个缓存，把请求解码后调用缓存，再把结果编码为响应；
+ * <p>
+ * 被注册的 {@link DiskCache} 与注册时使用同一个值序列化器时，GET直接把缓存文件中序列化好的数据
+ * 通过 {@link ValueRegion} 零拷贝发送，不经过反序列化和再次序列化。
+ *
+ * @param <K>
+ * @param <V>
+ */
+class CacheEndpoint<K, V> {
+
+    private final Cache<K, V> cache;
+
+    private final ValueSerializer<K> keySerializer;
+
+    private final ValueSerializer<V> valueSerializer;
+
+    /**
+     * 可以零拷贝读取的磁盘缓存，不支持时为null
+     */
+    private final DiskCache<K, V> diskCache;
+
+    CacheEndpoint(Cache<K, V> cache, ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer) {
+        this.cache = cache;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        if (cache instanceof DiskCache && ((DiskCache<K, V>) cache).getValueSerializer() == valueSerializer) {
+            this.diskCache = (DiskCache<K, V>) cache;
+        } else {
+            this.diskCache = null;
+        }
+    }
+
+    /**
+     * 处理一个请求，响应的各个部分（{@link ByteBuffer} 或 {@link ValueRegion}）依次放入out
+     */
+    void handle(byte opcode, int requestId, ByteBuffer payload, Queue<Object> out) {
+        switch (opcode) {
+            case GET:
+                get(requestId, key(payload), out);
+                return;
+            case PUT: {
+                K key = key(payload);
+                byte[] value = getBytes(payload);
+                boolean existed = cache.put(key, value == null ? null : valueSerializer.deserialize(value));
+                out.add(bool(requestId, existed));
+                return;
+            }
+            case REMOVE:
+                out.add(bool(requestId, cache.remove(key(payload))));
+                return;
+            case CONTAINS:
+                out.add(bool(requestId, cache.contains(key(payload))));
+                return;
+            case SIZE: {
+                ByteBuffer response = response(requestId, STATUS_OK, 4);
+                response.putInt(cache.getSize()).flip();
+                out.add(response);
+                return;
+            }
+            case MULTI_GET: {
+                int count = payload.getInt();
+                List<byte[]> values = new ArrayList<>(Math.min(count, 1024));
+                for (int i = 0; i < count; i++) {
+                    values.add(serialize(cache.get(key(payload))));
+                }
+                out.add(values(requestId, values));
+                return;
+            }
+            case KEYS: {
+                List<byte[]> keys = new ArrayList<>();
+                for (K key : cache.getKeys()) {
+                    keys.add(keySerializer.serialize(key));
+                }
+                out.add(values(requestId, keys));
+                return;
+            }
+            case GET_BY_INDEX: {
+                String indexName = utf8(getBytes(payload));
+                String attr = utf8(getBytes(payload));
+                List<byte[]> values = new ArrayList<>();
+                for (V value : cache.getByIndex(indexName, attr)) {
+                    values.add(serialize(value));
+                }
+                out.add(values(requestId, values));
+                return;
+            }
+            case COUNT_BY_INDEX: {
+                String indexName = utf8(getBytes(payload));
+                String attr = utf8(getBytes(payload));
+                ByteBuffer response = response(requestId, STATUS_OK, 4);
+                response.putInt(cache.countByIndex(indexName, attr)).flip();
+                out.add(response);
+                return;
+            }
+            case KEYS_BY_INDEX: {
+                String indexName = utf8(getBytes(payload));
+                String attr = utf8(getBytes(payload));
+                int offset = payload.getInt();
+                int limit = payload.getInt();
+                List<byte[]> keys = new ArrayList<>();
+                for (K key : cache.keysByIndex(indexName, attr, offset, limit)) {
+                    keys.add(keySerializer.serialize(key));
+                }
+                out.add(values(requestId, keys));
+                return;
+            }
+            case EXISTS_BY_INDEX: {
+                String indexName = utf8(getBytes(payload));
+                String attr = utf8(getBytes(payload));
+                out.add(bool(requestId, cache.existsByIndex(indexName, attr)));
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + opcode);
+        }
+    }
+
+    private void get(int requestId, K key, Queue<Object> out) {
+        if (diskCache != null) {
+            ValueRegion region = diskCache.openValue(key);
+            if (region != null) {
+                ByteBuffer header = header(requestId, STATUS_OK, region.length());
+                header.flip();
+                out.add(header);
+                out.add(region);
+                return;
+            }
+        }
+
+        byte[] value = serialize(cache.get(key));
+        if (value == null) {
+            ByteBuffer response = response(requestId, STATUS_NOT_FOUND, 0);
+            response.flip();
+            out.add(response);
+            return;
+        }
+        ByteBuffer response = response(requestId, STATUS_OK, value.length);
+        response.put(value).flip();
+        out.add(response);
+    }
+
+    private K key(ByteBuffer payload) {
+        byte[] key = getBytes(payload);
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+        return keySerializer.deserialize(key);
+    }
+
+    private byte[] serialize(V value) {
+        return value == null ? null : valueSerializer.serialize(value);
+    }
+
+    private static ByteBuffer bool(int requestId, boolean value) {
+        ByteBuffer response = response(requestId, STATUS_OK, 1);
+        response.put(value ? (byte) 1 : (byte) 0).flip();
+        return response;
+    }
+
+    private static ByteBuffer values(int requestId, List<byte[]> values) {
+        int length = 4;
+        for (byte[] value : values) {
+            length += sizeOf(value);
+        }
+        ByteBuffer response = response(requestId, STATUS_OK, length);
+        response.putInt(values.size());
+        for (byte[] value : values) {
+            putBytes(response, value);
+        }
+        response.flip();
+        return response;
+    }
+
+    /**
+     * 分配响应并写入响应头，payloadLength 为响应头之后的字节数
+     */
+    static ByteBuffer response(int requestId, byte status, int payloadLength) {
+        return header(ByteBuffer.allocate(RESPONSE_HEADER_LENGTH + payloadLength), requestId, status, payloadLength);
+    }
+
+    /**
+     * 只分配响应头，payload 另外发送
+     */
+    private static ByteBuffer header(int requestId, byte status, int payloadLength) {
+        return header(ByteBuffer.allocate(RESPONSE_HEADER_LENGTH), requestId, status, payloadLength);
+    }
+
+    private static ByteBuffer header(ByteBuffer buffer, int requestId, byte status, int payloadLength) {
+        buffer.putInt(4 + 1 + payloadLength);
+        buffer.putInt(requestId);
+        buffer.put(status);
+        return buffer;
+    }
+}
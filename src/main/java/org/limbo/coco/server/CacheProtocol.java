@@ -0,0 +1,97 @@
+package org.limbo.coco.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link CacheServer} 与 {@link RemoteCache} 之间的二进制协议，所有整数均为大端序。
+ * <pre>
+ * 请求：length(int) opcode(byte) requestId(int) cacheNameLength(short) cacheName(bytes) payload
+ * 响应：length(int) requestId(int) status(byte) payload
+ * </pre>
+ * length 为其后的字节数；同一个连接上可以连续发送多个请求而不等待响应，服务端按请求顺序返回响应。
+ * <pre>
+ * GET           请求 key            响应 value（OK）或空（NOT_FOUND）
+ * PUT           请求 key value      响应 existed(byte)
+ * REMOVE        请求 key            响应 existed(byte)
+ * CONTAINS      请求 key            响应 contains(byte)
+ * SIZE          请求 空             响应 size(int)
+ * MULTI_GET     请求 count(int) key* 响应 count(int) value*，不存在的value长度为-1
+ * KEYS          请求 空             响应 count(int) key*
+ * GET_BY_INDEX  请求 indexName attr 响应 count(int) value*，attr为UTF-8字符串
+ * COUNT_BY_INDEX  请求 indexName attr                       响应 count(int)
+ * KEYS_BY_INDEX   请求 indexName attr offset(int) limit(int) 响应 count(int) key*
+ * EXISTS_BY_INDEX 请求 indexName attr                       响应 exists(byte)
+ * </pre>
+ * 其中 key、value、indexName、attr 均编码为 length(int) bytes；GET响应的value直接占满payload，不带长度前缀。
+ */
+final class CacheProtocol {
+
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte REMOVE = 3;
+    static final byte CONTAINS = 4;
+    static final byte SIZE = 5;
+    static final byte MULTI_GET = 6;
+    static final byte KEYS = 7;
+    static final byte GET_BY_INDEX = 8;
+    static final byte COUNT_BY_INDEX = 9;
+    static final byte KEYS_BY_INDEX = 10;
+    static final byte EXISTS_BY_INDEX = 11;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NOT_FOUND = 1;
+    static final byte STATUS_ERROR = 2;
+
+    /**
+     * 单个请求或响应的最大长度，64M
+     */
+    static final int MAX_FRAME_LENGTH = 64 << 20;
+
+    /**
+     * 响应头：length(int) requestId(int) status(byte)
+     */
+    static final int RESPONSE_HEADER_LENGTH = 4 + 4 + 1;
+
+    /**
+     * null值的长度
+     */
+    static final int NULL_LENGTH = -1;
+
+    private CacheProtocol() {
+    }
+
+    static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(NULL_LENGTH);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed frame, length " + length + " exceeds " + buffer.remaining());
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String utf8(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,477 @@
+package org.limbo.coco.server;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.limbo.coco.Cache;
+import org.limbo.coco.file.ValueRegion;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.limbo.coco.server.CacheProtocol.*;
+
+/**
+ * 通过 {@link CacheProtocol} 对外提供若干个命名缓存，同一台机器上的多个进程可以通过 {@link RemoteCache} 共用一份缓存数据；
+ * <p>
+ * 使用单个selector线程读写所有连接，请求交给工作线程池执行，慢的缓存操作不会阻塞其他连接的读写；
+ * 同一个连接上的请求可以流水线发送，由工作线程按到达顺序依次执行，响应按请求顺序返回，不同连接的请求并行执行；
+ * 一个连接上未完成和等待发送的响应过多时暂停读取该连接，直到响应发送出去，避免客户端只发不收时占用过多内存和文件句柄。
+ * <p>
+ * 注册的 {@link org.limbo.coco.file.DiskCache} 与注册时使用同一个值序列化器时，GET通过 FileChannel.transferTo 零拷贝发送缓存文件中的数据。
+ */
+@Slf4j
+public class CacheServer implements Closeable {
+
+    /**
+     * 单个连接最多执行中的请求和等待发送的响应部分数量，超出后暂停读取该连接
+     */
+    private static final int MAX_PENDING_RESPONSES = 1024;
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress bindAddress;
+
+    private final Map<String, CacheEndpoint<?, ?>> endpoints;
+
+    private ServerSocketChannel serverChannel;
+
+    private Selector selector;
+
+    private Thread selectorThread;
+
+    private volatile boolean running = false;
+
+    /**
+     * 执行缓存操作的工作线程数
+     */
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+    private ExecutorService workers;
+
+    /**
+     * 有请求执行完成、等待selector线程发送响应的连接
+     */
+    private final Queue<Connection> completedConnections = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 只监听本机回环地址
+     */
+    public CacheServer(int port) {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public CacheServer(InetSocketAddress bindAddress) {
+        this.bindAddress = bindAddress;
+        this.endpoints = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 注册一个缓存，客户端通过name访问；启动前后都可以注册
+     */
+    public <K, V> CacheServer register(String name, Cache<K, V> cache,
+                                       ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer) {
+        if (utf8(name).length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Cache name is too long!");
+        }
+        endpoints.put(name, new CacheEndpoint<>(cache, keySerializer, valueSerializer));
+        return this;
+    }
+
+    public void unregister(String name) {
+        endpoints.remove(name);
+    }
+
+    /**
+     * 执行缓存操作的工作线程数，默认为CPU核数，需要在启动前设置
+     */
+    public CacheServer setWorkerThreads(int workerThreads) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException("workerThreads must be positive!");
+        }
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    public synchronized CacheServer start() {
+        if (running) {
+            return this;
+        }
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(bindAddress);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(serverChannel);
+            IOUtils.closeQuietly(selector);
+            log.error("Error while start cache server at " + bindAddress, e);
+            throw new IllegalStateException("Error while start cache server at " + bindAddress, e);
+        }
+
+        String threadName = "coco-server-" + getLocalAddress().getPort();
+        AtomicInteger workerId = new AtomicInteger(0);
+        workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = new Thread(r, threadName + "-worker-" + workerId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running = true;
+        selectorThread = new Thread(this::runSelector, threadName);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        return this;
+    }
+
+    /**
+     * 实际监听的地址，端口为0时由系统分配
+     */
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void runSelector() {
+        while (running) {
+            try {
+                selector.select();
+                Connection completed;
+                while ((completed = completedConnections.poll()) != null) {
+                    try {
+                        completed.collectResponses();
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("Connection " + completed + " closed: " + e.getMessage());
+                        completed.close();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("Connection " + connection + " closed: " + e.getMessage());
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Unexpected exception in cache server selector", e);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+            workers.shutdown();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        Connection completed;
+        while ((completed = completedConnections.poll()) != null) {
+            completed.close();
+        }
+        IOUtils.closeQuietly(serverChannel);
+        IOUtils.closeQuietly(selector);
+    }
+
+    /**
+     * 一个客户端连接，除了请求和响应队列，只在selector线程上访问
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+        /**
+         * 等待发送的响应部分，{@link ByteBuffer} 或 {@link ValueRegion}
+         */
+        private final ArrayDeque<Object> pendingResponses = new ArrayDeque<>();
+
+        /**
+         * 已经读取、等待工作线程执行的请求
+         */
+        private final Queue<ByteBuffer> requests = new ConcurrentLinkedQueue<>();
+
+        /**
+         * 工作线程执行完成的请求的响应部分，按请求顺序排列
+         */
+        private final Queue<ArrayDeque<Object>> responses = new ConcurrentLinkedQueue<>();
+
+        /**
+         * 是否有工作线程正在执行该连接的请求，同一时刻只有一个，保证请求按顺序执行
+         */
+        private final AtomicBoolean processing = new AtomicBoolean(false);
+
+        /**
+         * 已经交给工作线程、响应尚未放入 pendingResponses 的请求数
+         */
+        private int dispatched;
+
+        private volatile boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            processFrames();
+            write();
+        }
+
+        /**
+         * 把读缓冲区中所有完整的请求复制出来交给工作线程，执行中和等待发送的响应过多时暂停
+         *
+         * @return 交给工作线程的请求数
+         */
+        private int processFrames() {
+            int handled = 0;
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 4 && !tooManyResponses()) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length <= 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IllegalStateException("Illegal frame length " + length);
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    break;
+                }
+                ByteBuffer source = readBuffer.duplicate();
+                source.position(readBuffer.position() + 4);
+                source.limit(readBuffer.position() + 4 + length);
+                readBuffer.position(readBuffer.position() + 4 + length);
+                // 读缓冲区会被复用，交给工作线程前复制一份
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                frame.put(source).flip();
+                requests.add(frame);
+                dispatched++;
+                handled++;
+            }
+            readBuffer.compact();
+            if (handled > 0) {
+                scheduleRequests();
+            }
+
+            // 缓冲区装不下下一个请求时扩容
+            if (readBuffer.position() >= 4) {
+                int length = readBuffer.getInt(0);
+                if (length > 0 && length <= MAX_FRAME_LENGTH && 4 + length > readBuffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    readBuffer.flip();
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                }
+            }
+            return handled;
+        }
+
+        private boolean tooManyResponses() {
+            return dispatched + pendingResponses.size() >= MAX_PENDING_RESPONSES;
+        }
+
+        private void scheduleRequests() {
+            if (processing.compareAndSet(false, true)) {
+                workers.execute(this::executeRequests);
+            }
+        }
+
+        /**
+         * 在工作线程上依次执行等待中的请求，完成后通知selector线程发送响应
+         */
+        private void executeRequests() {
+            boolean completed = false;
+            ByteBuffer frame;
+            while (!closed && (frame = requests.poll()) != null) {
+                ArrayDeque<Object> parts = new ArrayDeque<>(2);
+                handle(frame, parts);
+                responses.add(parts);
+                completed = true;
+            }
+            processing.set(false);
+            if (completed) {
+                completedConnections.add(this);
+                selector.wakeup();
+            }
+            // 释放标记之前selector线程可能又放入了请求
+            if (!closed && !requests.isEmpty()) {
+                scheduleRequests();
+            }
+        }
+
+        /**
+         * 在selector线程上取出工作线程完成的响应并发送
+         */
+        void collectResponses() throws IOException {
+            if (closed) {
+                discardResponses();
+                return;
+            }
+            ArrayDeque<Object> parts;
+            while ((parts = responses.poll()) != null) {
+                pendingResponses.addAll(parts);
+                dispatched--;
+            }
+            write();
+        }
+
+        private void handle(ByteBuffer frame, Queue<Object> out) {
+            byte opcode = frame.get();
+            int requestId = frame.getInt();
+            try {
+                byte[] name = new byte[frame.getShort()];
+                frame.get(name);
+                String cacheName = utf8(name);
+                CacheEndpoint<?, ?> endpoint = endpoints.get(cacheName);
+                if (endpoint == null) {
+                    throw new IllegalArgumentException("Cache[" + cacheName + "] is not registered!");
+                }
+                endpoint.handle(opcode, requestId, frame, out);
+            } catch (Exception e) {
+                closeRegions(out);
+                out.clear();
+                byte[] message = utf8(String.valueOf(e.getMessage()));
+                ByteBuffer response = CacheEndpoint.response(requestId, STATUS_ERROR, message.length);
+                response.put(message).flip();
+                out.add(response);
+            }
+        }
+
+        /**
+         * 尽可能多地发送等待中的响应，发送不完时关注可写事件
+         */
+        void write() throws IOException {
+            while (!pendingResponses.isEmpty()) {
+                Object part = pendingResponses.peek();
+                if (part instanceof ByteBuffer) {
+                    ByteBuffer buffer = (ByteBuffer) part;
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                } else {
+                    ValueRegion region = (ValueRegion) part;
+                    region.transferTo(channel);
+                    if (region.remaining() > 0) {
+                        break;
+                    }
+                    region.close();
+                }
+                pendingResponses.poll();
+            }
+
+            // 响应发出后继续处理读缓冲区中因响应过多而暂停的请求
+            if (!tooManyResponses() && readBuffer.position() > 0) {
+                processFrames();
+            }
+
+            int ops = pendingResponses.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+            if (!tooManyResponses()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            closed = true;
+            key.cancel();
+            IOUtils.closeQuietly(channel);
+            closeRegions(pendingResponses);
+            pendingResponses.clear();
+            requests.clear();
+            discardResponses();
+        }
+
+        /**
+         * 连接关闭后工作线程仍可能放入响应，其中打开的 {@link ValueRegion} 需要关闭
+         */
+        private void discardResponses() {
+            ArrayDeque<Object> parts;
+            while ((parts = responses.poll()) != null) {
+                closeRegions(parts);
+            }
+        }
+
+        private void closeRegions(Iterable<Object> parts) {
+            for (Object part : parts) {
+                if (part instanceof ValueRegion) {
+                    IOUtils.closeQuietly((ValueRegion) part);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+    }
+}
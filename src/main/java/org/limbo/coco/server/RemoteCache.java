@@ -0,0 +1,405 @@
+package org.limbo.coco.server;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.limbo.coco.Cache;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.limbo.coco.server.CacheProtocol.*;
+
+/**
+ * 访问 {@link CacheServer} 上某个命名缓存的客户端，实现了 {@link Cache} 接口；
+ * <p>
+ * 使用一个连接，多个线程的请求在同一个连接上流水线发送，由读线程按requestId把响应分发给对应的future；
+ * 同步方法等待对应的异步方法完成，服务端处理出错或连接断开时抛出 {@link RemoteCacheException}。
+ * <p>
+ * 按索引查询的方法把索引值以字符串形式发送给服务端，只适用于索引值为字符串的索引。
+ *
+ * @param <K>
+ * @param <V>
+ */
+@Slf4j
+public class RemoteCache<K, V> implements Cache<K, V> {
+
+    /**
+     * 遍历全部条目时每次批量读取的key数量
+     */
+    private static final int ENTRY_BATCH_SIZE = 1000;
+
+    private final String cacheName;
+
+    private final byte[] cacheNameBytes;
+
+    private final ValueSerializer<K> keySerializer;
+
+    private final ValueSerializer<V> valueSerializer;
+
+    private final SocketChannel channel;
+
+    private final Object writeLock = new Object();
+
+    private final AtomicInteger requestIds = new AtomicInteger(0);
+
+    /**
+     * 已发送、尚未收到响应的请求
+     */
+    private final Map<Integer, CompletableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<>();
+
+    private final Thread reader;
+
+    private volatile boolean closed = false;
+
+    public RemoteCache(InetSocketAddress address, String cacheName,
+                       ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer) {
+        this.cacheName = cacheName;
+        this.cacheNameBytes = utf8(cacheName);
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        try {
+            this.channel = SocketChannel.open(address);
+            this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            log.error("Error while connect to cache server " + address, e);
+            throw new RemoteCacheException("Error while connect to cache server " + address, e);
+        }
+        this.reader = new Thread(this::readResponses, "coco-remote-cache-" + cacheName);
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    // ====================================================== 异步方法 ==================================================
+
+    public CompletableFuture<V> getAsync(K key) {
+        byte[] keyBytes = keySerializer.serialize(key);
+        ByteBuffer request = request(GET, sizeOf(keyBytes));
+        putBytes(request, keyBytes);
+        return send(request).thenApply(response -> {
+            if (response.get() == STATUS_NOT_FOUND) {
+                return null;
+            }
+            return valueSerializer.deserialize(response.array(), response.arrayOffset() + response.position(), response.remaining());
+        });
+    }
+
+    public CompletableFuture<Boolean> putAsync(K key, V value) {
+        byte[] keyBytes = keySerializer.serialize(key);
+        byte[] valueBytes = value == null ? null : valueSerializer.serialize(value);
+        ByteBuffer request = request(PUT, sizeOf(keyBytes) + sizeOf(valueBytes));
+        putBytes(request, keyBytes);
+        putBytes(request, valueBytes);
+        return send(request).thenApply(RemoteCache::bool);
+    }
+
+    public CompletableFuture<Boolean> removeAsync(K key) {
+        return sendKey(REMOVE, key).thenApply(RemoteCache::bool);
+    }
+
+    /**
+     * 一次请求读取多个key
+     *
+     * @return 存在的key及其数据
+     */
+    public CompletableFuture<Map<K, V>> getAllAsync(Collection<? extends K> keys) {
+        List<K> keyList = new ArrayList<>(keys);
+        List<byte[]> keyBytes = new ArrayList<>(keyList.size());
+        int length = 4;
+        for (K key : keyList) {
+            byte[] bytes = keySerializer.serialize(key);
+            keyBytes.add(bytes);
+            length += sizeOf(bytes);
+        }
+        ByteBuffer request = request(MULTI_GET, length);
+        request.putInt(keyBytes.size());
+        for (byte[] bytes : keyBytes) {
+            putBytes(request, bytes);
+        }
+        return send(request).thenApply(response -> {
+            List<byte[]> values = values(response);
+            Map<K, V> result = new LinkedHashMap<>();
+            for (int i = 0; i < keyList.size(); i++) {
+                byte[] value = values.get(i);
+                if (value != null) {
+                    result.put(keyList.get(i), valueSerializer.deserialize(value));
+                }
+            }
+            return result;
+        });
+    }
+
+    // ====================================================== Cache ==================================================
+
+    @Override
+    public V get(K key) {
+        return join(getAsync(key));
+    }
+
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        return join(getAllAsync(keys));
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        return join(putAsync(key, value));
+    }
+
+    @Override
+    public boolean remove(K key) {
+        return join(removeAsync(key));
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return join(sendKey(CONTAINS, key).thenApply(RemoteCache::bool));
+    }
+
+    @Override
+    public int getSize() {
+        return join(send(request(SIZE, 0)).thenApply(response -> {
+            response.get();
+            return response.getInt();
+        }));
+    }
+
+    @Override
+    public List<K> getKeys() {
+        return join(send(request(KEYS, 0)).thenApply(response -> {
+            List<K> keys = new ArrayList<>();
+            for (byte[] key : values(response)) {
+                keys.add(keySerializer.deserialize(key));
+            }
+            return keys;
+        }));
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return Collections.unmodifiableList(getKeys()).iterator();
+    }
+
+    /**
+     * 先读取全部key，再按批读取数据
+     */
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        List<K> keys = getKeys();
+        List<Map.Entry<K, V>> entries = new ArrayList<>(keys.size());
+        for (int from = 0; from < keys.size(); from += ENTRY_BATCH_SIZE) {
+            Map<K, V> batch = getAll(keys.subList(from, Math.min(keys.size(), from + ENTRY_BATCH_SIZE)));
+            for (Map.Entry<K, V> entry : batch.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+        }
+        return entries.spliterator();
+    }
+
+    @Override
+    public List<V> getByIndex(String indexName, Object indexAttr) {
+        return join(send(indexRequest(GET_BY_INDEX, indexName, indexAttr, 0)).thenApply(response -> {
+            List<V> values = new ArrayList<>();
+            for (byte[] value : values(response)) {
+                values.add(value == null ? null : valueSerializer.deserialize(value));
+            }
+            return values;
+        }));
+    }
+
+    @Override
+    public int countByIndex(String indexName, Object indexAttr) {
+        return join(send(indexRequest(COUNT_BY_INDEX, indexName, indexAttr, 0)).thenApply(response -> {
+            response.get();
+            return response.getInt();
+        }));
+    }
+
+    @Override
+    public List<K> keysByIndex(String indexName, Object indexAttr, int offset, int limit) {
+        ByteBuffer request = indexRequest(KEYS_BY_INDEX, indexName, indexAttr, 4 + 4);
+        request.putInt(offset).putInt(limit);
+        return join(send(request).thenApply(response -> {
+            List<K> keys = new ArrayList<>();
+            for (byte[] key : values(response)) {
+                keys.add(keySerializer.deserialize(key));
+            }
+            return keys;
+        }));
+    }
+
+    @Override
+    public boolean existsByIndex(String indexName, Object indexAttr) {
+        return join(send(indexRequest(EXISTS_BY_INDEX, indexName, indexAttr, 0)).thenApply(RemoteCache::bool));
+    }
+
+    /**
+     * 断开连接，尚未收到响应的请求以 {@link RemoteCacheException} 结束；不会关闭服务端的缓存
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOUtils.closeQuietly(channel);
+        failAll(new RemoteCacheException("Remote cache[" + cacheName + "] is closed"));
+    }
+
+    // ====================================================== 请求与响应 ==================================================
+
+    private CompletableFuture<ByteBuffer> sendKey(byte opcode, K key) {
+        byte[] keyBytes = keySerializer.serialize(key);
+        ByteBuffer request = request(opcode, sizeOf(keyBytes));
+        putBytes(request, keyBytes);
+        return send(request);
+    }
+
+    /**
+     * 写入 indexName attr 的按索引查询请求，extraLength 为其后留给调用方写入的字节数
+     */
+    private ByteBuffer indexRequest(byte opcode, String indexName, Object indexAttr, int extraLength) {
+        byte[] name = utf8(indexName);
+        byte[] attr = utf8(String.valueOf(indexAttr));
+        ByteBuffer request = request(opcode, sizeOf(name) + sizeOf(attr) + extraLength);
+        putBytes(request, name);
+        putBytes(request, attr);
+        return request;
+    }
+
+    /**
+     * 分配请求并写入请求头，requestId 在发送时填写
+     */
+    private ByteBuffer request(byte opcode, int payloadLength) {
+        int length = 1 + 4 + 2 + cacheNameBytes.length + payloadLength;
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Request is too large: " + length + " bytes");
+        }
+        ByteBuffer request = ByteBuffer.allocate(4 + length);
+        request.putInt(length);
+        request.put(opcode);
+        request.putInt(0);
+        request.putShort((short) cacheNameBytes.length);
+        request.put(cacheNameBytes);
+        return request;
+    }
+
+    /**
+     * 发送请求，响应的future在读线程上完成，结果为响应的 status 及之后的部分
+     */
+    private CompletableFuture<ByteBuffer> send(ByteBuffer request) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        int requestId = requestIds.incrementAndGet();
+        request.putInt(5, requestId);
+        request.flip();
+        inFlight.put(requestId, future);
+        try {
+            synchronized (writeLock) {
+                if (closed) {
+                    throw new IOException("Remote cache[" + cacheName + "] is closed");
+                }
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+            }
+        } catch (IOException e) {
+            inFlight.remove(requestId);
+            future.completeExceptionally(new RemoteCacheException("Error while send request to remote cache[" + cacheName + "]", e));
+            return future;
+        }
+
+        return future.thenApply(response -> {
+            if (response.get(response.position()) == STATUS_ERROR) {
+                response.get();
+                byte[] message = new byte[response.remaining()];
+                response.get(message);
+                throw new RemoteCacheException(utf8(message));
+            }
+            return response;
+        });
+    }
+
+    private void readResponses() {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        try {
+            while (!closed) {
+                header.clear();
+                readFully(header);
+                header.flip();
+                int length = header.getInt();
+                int requestId = header.getInt();
+                if (length < 5 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Illegal response length " + length);
+                }
+                ByteBuffer body = ByteBuffer.allocate(length - 4);
+                readFully(body);
+                body.flip();
+                CompletableFuture<ByteBuffer> future = inFlight.remove(requestId);
+                if (future != null) {
+                    future.complete(body);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.error("Connection of remote cache[" + cacheName + "] is broken", e);
+            }
+        }
+        closed = true;
+        IOUtils.closeQuietly(channel);
+        failAll(new RemoteCacheException("Connection of remote cache[" + cacheName + "] is closed"));
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by cache server");
+            }
+        }
+    }
+
+    private void failAll(RemoteCacheException e) {
+        for (Integer requestId : new ArrayList<>(inFlight.keySet())) {
+            CompletableFuture<ByteBuffer> future = inFlight.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static boolean bool(ByteBuffer response) {
+        response.get();
+        return response.get() != 0;
+    }
+
+    /**
+     * 解析 count(int) value* 格式的响应
+     */
+    private static List<byte[]> values(ByteBuffer response) {
+        response.get();
+        int count = response.getInt();
+        List<byte[]> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(getBytes(response));
+        }
+        return values;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RemoteCacheException) {
+                throw (RemoteCacheException) e.getCause();
+            }
+            throw new RemoteCacheException(String.valueOf(e.getCause().getMessage()), e.getCause());
+        }
+    }
+}
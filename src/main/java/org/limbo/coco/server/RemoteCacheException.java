@@ -0,0 +1,17 @@
+package org.limbo.coco.server;
+
+/**
+ * 远程缓存调用失败：服务端处理请求时出错，或者与服务端的连接已经断开
+ */
+public class RemoteCacheException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RemoteCacheException(String message) {
+        super(message);
+    }
+
+    public RemoteCacheException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
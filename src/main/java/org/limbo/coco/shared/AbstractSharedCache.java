@@ -0,0 +1,174 @@
+package org.limbo.coco.shared;
+
+import org.limbo.coco.Cache;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * 基于 {@link SharedCacheFile} 的缓存的读操作，读操作不加锁，直接读取映射内存；
+ * 共享文件中只保存key和value，不支持索引。
+ *
+ * @param <K>
+ * @param <V>
+ */
+public abstract class AbstractSharedCache<K, V> implements Cache<K, V> {
+
+    protected final ValueSerializer<K> keySerializer;
+
+    protected final ValueSerializer<V> valueSerializer;
+
+    protected AbstractSharedCache(ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer) {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+    }
+
+    /**
+     * 当前使用的共享文件
+     */
+    abstract SharedCacheFile currentFile();
+
+    @Override
+    public V get(K key) {
+        SharedCacheFile file = currentFile();
+        byte[] keyBytes = keySerializer.serialize(key);
+        int record = file.findRecord(keyBytes, SharedCacheFile.hash(keyBytes));
+        return record < 0 ? null : value(file, record);
+    }
+
+    /**
+     * 获取value序列化后的数据，返回的是共享内存的只读视图，不复制数据；
+     * key不存在或value为null时返回null。写进程重建文件后，视图仍然指向重建前的数据
+     */
+    public ByteBuffer getBuffer(K key) {
+        SharedCacheFile file = currentFile();
+        byte[] keyBytes = keySerializer.serialize(key);
+        int record = file.findRecord(keyBytes, SharedCacheFile.hash(keyBytes));
+        return record < 0 ? null : file.value(record);
+    }
+
+    @Override
+    public boolean contains(K key) {
+        byte[] keyBytes = keySerializer.serialize(key);
+        return currentFile().findRecord(keyBytes, SharedCacheFile.hash(keyBytes)) >= 0;
+    }
+
+    @Override
+    public int getSize() {
+        return currentFile().size();
+    }
+
+    @Override
+    public List<K> getKeys() {
+        List<K> keys = new ArrayList<>();
+        keyIterator().forEachRemaining(keys::add);
+        return keys;
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        SharedCacheFile file = currentFile();
+        return Spliterators.iterator(new SlotSpliterator<>(file, 0, file.slotCount(),
+                record -> keySerializer.deserialize(file.key(record))));
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        SharedCacheFile file = currentFile();
+        return new SlotSpliterator<>(file, 0, file.slotCount(), record -> new AbstractMap.SimpleImmutableEntry<>(
+                keySerializer.deserialize(file.key(record)), value(file, record)));
+    }
+
+    @Override
+    public List<V> getByIndex(String indexName, Object indexAttr) {
+        throw new UnsupportedOperationException("Shared cache does not support index");
+    }
+
+    @Override
+    public int countByIndex(String indexName, Object indexAttr) {
+        throw new UnsupportedOperationException("Shared cache does not support index");
+    }
+
+    @Override
+    public List<K> keysByIndex(String indexName, Object indexAttr, int offset, int limit) {
+        throw new UnsupportedOperationException("Shared cache does not support index");
+    }
+
+    @Override
+    public boolean existsByIndex(String indexName, Object indexAttr) {
+        throw new UnsupportedOperationException("Shared cache does not support index");
+    }
+
+    private V value(SharedCacheFile file, int record) {
+        ByteBuffer value = file.value(record);
+        if (value == null) {
+            return null;
+        }
+        byte[] data = new byte[value.remaining()];
+        value.get(data);
+        return valueSerializer.deserialize(data);
+    }
+
+    /**
+     * 按槽位范围遍历存活的记录，拆分时把槽位范围对半分
+     */
+    private static class SlotSpliterator<T> implements Spliterator<T> {
+
+        private final SharedCacheFile file;
+
+        private final IntFunction<T> mapper;
+
+        private int index;
+
+        private final int end;
+
+        SlotSpliterator(SharedCacheFile file, int from, int end, IntFunction<T> mapper) {
+            this.file = file;
+            this.index = from;
+            this.end = end;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (index < end) {
+                long slot = file.readSlot(index++);
+                if (SharedCacheFile.slotState(slot) == SharedCacheFile.STATE_LIVE) {
+                    action.accept(mapper.apply(SharedCacheFile.slotRecord(slot)));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int mid = (index + end) >>> 1;
+            if (end - index < 1024) {
+                return null;
+            }
+            SlotSpliterator<T> prefix = new SlotSpliterator<>(file, index, mid, mapper);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return (long) file.size() * (end - index) / Math.max(1, file.slotCount());
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.NONNULL;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.limbo.coco.shared;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * 共享内存读写时使用的内存屏障；
+ * 这是 JDK8 下的实现，通过反射调用 sun.misc.Unsafe 的屏障方法，不可用时退化为读写一个volatile字段。
+ * JDK11+ 下由多版本JAR中 META-INF/versions/11 的同名类替换，使用 VarHandle 的屏障方法。
+ */
+final class MemoryFences {
+
+    private static final MethodHandle LOAD_FENCE;
+
+    private static final MethodHandle STORE_FENCE;
+
+    private static volatile int fence;
+
+    static {
+        MethodHandle loadFence = null;
+        MethodHandle storeFence = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            loadFence = lookup.findVirtual(unsafeClass, "loadFence", MethodType.methodType(void.class)).bindTo(unsafe);
+            storeFence = lookup.findVirtual(unsafeClass, "storeFence", MethodType.methodType(void.class)).bindTo(unsafe);
+        } catch (Throwable e) {
+            loadFence = null;
+            storeFence = null;
+        }
+        LOAD_FENCE = loadFence;
+        STORE_FENCE = storeFence;
+    }
+
+    private MemoryFences() {
+    }
+
+    /**
+     * 屏障之前的读不会与屏障之后的读写重排序
+     */
+    static void loadFence() {
+        if (LOAD_FENCE == null) {
+            int ignored = fence;
+            return;
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 屏障之前的读写不会与屏障之后的写重排序
+     */
+    static void storeFence() {
+        if (STORE_FENCE == null) {
+            fence = 0;
+            return;
+        }
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
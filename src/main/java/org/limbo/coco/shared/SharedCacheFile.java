@@ -0,0 +1,432 @@
+package org.limbo.coco.shared;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 一个写进程、多个读进程共享的映射文件，key目录（槽位表）和数据都保存在文件中，整个文件映射为一个 {@link MappedByteBuffer}，
+ * 与 {@link org.limbo.coco.file.MappedByteBufferCacheFile} 一样最大只能映射2G。
+ * <p>
+ * 文件格式：
+ * <pre>
+ * [文件头 64字节] magic(int) version(int) slotCount(int) stale(int) dataEnd(long) size(int) deleted(int) liveBytes(long)
+ * [槽位表] slotCount个槽位 seq(long) slot(long)，slot = hash(高32位) | 记录位置/8(30位) | 状态(低2位)
+ * [数据区] 只追加、按8字节对齐的记录 keyLength(int) valueLength(int，-1表示null) key value
+ * </pre>
+ * 槽位使用seqlock：写进程修改槽位前把seq加1变为奇数，修改完成后再加1变为偶数；
+ * 读进程读取前后seq相同且为偶数时，读到的槽位是完整的，否则重试，读取过程不加锁。
+ * 记录写入后不再修改，读进程拿到记录位置后可以直接读取映射内存，不需要复制；删除只把槽位标记为已删除。
+ * <p>
+ * 数据区写满或槽位过多时，写进程把存活的记录复制到新文件并原子地替换原文件，再把原文件标记为过期；
+ * 原文件的映射在读进程中仍然有效，读进程在下一次访问时发现过期并重新打开文件。
+ */
+@Slf4j
+class SharedCacheFile {
+
+    private static final int MAGIC = 0x434F5348;
+
+    private static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 16;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int RECORD_ALIGNMENT = 8;
+
+    private static final int OFFSET_SLOT_COUNT = 8;
+    private static final int OFFSET_STALE = 12;
+    private static final int OFFSET_DATA_END = 16;
+    private static final int OFFSET_SIZE = 24;
+    private static final int OFFSET_DELETED = 28;
+    private static final int OFFSET_LIVE_BYTES = 32;
+
+    static final int STATE_EMPTY = 0;
+    static final int STATE_LIVE = 1;
+    static final int STATE_DELETED = 2;
+
+    /**
+     * 槽位被写进程修改时读进程自旋的次数，超过后让出CPU
+     */
+    private static final int SPIN_TRIES = 100;
+
+    /**
+     * 读进程读取一个槽位的最大重试次数，超过说明写进程很可能在修改槽位时崩溃了
+     */
+    private static final int MAX_READ_TRIES = 1 << 20;
+
+    private final Path path;
+
+    private final MappedByteBuffer buffer;
+
+    private final int slotCount;
+
+    private final int slotMask;
+
+    private final int dataStart;
+
+    private final int fileLength;
+
+    private SharedCacheFile(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+        this.slotCount = buffer.getInt(OFFSET_SLOT_COUNT);
+        this.slotMask = slotCount - 1;
+        this.dataStart = HEADER_SIZE + slotCount * SLOT_SIZE;
+        this.fileLength = buffer.capacity();
+    }
+
+    /**
+     * 创建一个空文件，写进程在文件内容准备好之后通过 {@link #publish(Path)} 替换正式文件
+     *
+     * @param slotCount    槽位数，必须是2的幂
+     * @param dataCapacity 数据区大小
+     */
+    static SharedCacheFile create(Path path, int slotCount, long dataCapacity) {
+        long length = HEADER_SIZE + (long) slotCount * SLOT_SIZE + dataCapacity;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Shared cache file cannot be larger than 2G, slotCount=" + slotCount
+                    + " dataCapacity=" + dataCapacity);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+            buffer.putInt(OFFSET_STALE, 0);
+            buffer.putLong(OFFSET_DATA_END, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+            return new SharedCacheFile(path, buffer);
+        } catch (IOException e) {
+            log.error("Error while create shared cache file[" + path + "]", e);
+            throw new IllegalStateException("Error while create shared cache file[" + path + "]", e);
+        }
+    }
+
+    /**
+     * 打开一个已存在的文件
+     *
+     * @param writable 写进程以读写方式映射，读进程以只读方式映射
+     */
+    static SharedCacheFile open(Path path, boolean writable) {
+        try (FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a shared cache file");
+            }
+            MappedByteBuffer buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a shared cache file");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported shared cache file version " + buffer.getInt(4));
+            }
+            return new SharedCacheFile(path, buffer);
+        } catch (IOException e) {
+            log.error("Error while open shared cache file[" + path + "]", e);
+            throw new IllegalStateException("Error while open shared cache file[" + path + "]", e);
+        }
+    }
+
+    /**
+     * 把文件原子地移动到target，替换已存在的文件，之后新打开target的读进程看到的是这个文件
+     */
+    void publish(Path target) {
+        try {
+            Files.move(path, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error while publish shared cache file[" + path + "] to " + target, e);
+            throw new IllegalStateException("Error while publish shared cache file[" + path + "] to " + target, e);
+        }
+    }
+
+    /**
+     * key的hash，读写进程必须得到相同的结果，因此只依赖序列化后的字节；
+     * 使用FNV-1a加murmur3的混合步骤，{@link java.util.Arrays#hashCode(byte[])} 对定长的数字key分布太集中，线性探测时冲突链很长
+     */
+    static int hash(byte[] key) {
+        int h = 0x811C9DC5;
+        for (byte b : key) {
+            h = (h ^ (b & 0xff)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static int recordLength(byte[] key, byte[] value) {
+        int length = RECORD_HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+        return (length + RECORD_ALIGNMENT - 1) / RECORD_ALIGNMENT * RECORD_ALIGNMENT;
+    }
+
+    static int slotHash(long slot) {
+        return (int) (slot >>> 32);
+    }
+
+    static int slotState(long slot) {
+        return (int) (slot & 3);
+    }
+
+    static int slotRecord(long slot) {
+        return (int) ((slot & 0xFFFFFFFFL) >>> 2) * RECORD_ALIGNMENT;
+    }
+
+    private static long slot(int hash, int record, int state) {
+        return ((long) hash << 32) | ((long) (record / RECORD_ALIGNMENT) << 2) | state;
+    }
+
+    // ====================================================== 读 ==================================================
+
+    boolean isStale() {
+        return buffer.getInt(OFFSET_STALE) != 0;
+    }
+
+    int size() {
+        return buffer.getInt(OFFSET_SIZE);
+    }
+
+    int slotCount() {
+        return slotCount;
+    }
+
+    /**
+     * 按seqlock协议读取一个完整的槽位
+     */
+    long readSlot(int index) {
+        int base = HEADER_SIZE + index * SLOT_SIZE;
+        for (int tries = 0; tries < MAX_READ_TRIES; tries++) {
+            long seq = buffer.getLong(base);
+            if ((seq & 1) == 0) {
+                MemoryFences.loadFence();
+                long slot = buffer.getLong(base + 8);
+                MemoryFences.loadFence();
+                if (buffer.getLong(base) == seq) {
+                    return slot;
+                }
+            }
+            if (tries >= SPIN_TRIES) {
+                Thread.yield();
+            }
+        }
+        throw new IllegalStateException("Slot " + index + " of shared cache file[" + path
+                + "] is being written for too long, the writer may have crashed");
+    }
+
+    /**
+     * 查找key的记录位置，不存在时返回-1
+     */
+    int findRecord(byte[] key, int hash) {
+        for (int i = hash & slotMask, probes = 0; probes < slotCount; i = (i + 1) & slotMask, probes++) {
+            long slot = readSlot(i);
+            int state = slotState(slot);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            if (state == STATE_LIVE && slotHash(slot) == hash && keyEquals(slotRecord(slot), key)) {
+                return slotRecord(slot);
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int record, byte[] key) {
+        if (buffer.getInt(record) != key.length) {
+            return false;
+        }
+        int keyStart = record + RECORD_HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(keyStart + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] key(int record) {
+        byte[] key = new byte[buffer.getInt(record)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(record + RECORD_HEADER_SIZE);
+        view.get(key);
+        return key;
+    }
+
+    /**
+     * 记录中value的长度，null返回-1
+     */
+    int valueLength(int record) {
+        return buffer.getInt(record + 4);
+    }
+
+    /**
+     * 记录中value所在映射内存的只读视图，不复制数据；value为null时返回null
+     */
+    ByteBuffer value(int record) {
+        int valueLength = valueLength(record);
+        if (valueLength < 0) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(record + RECORD_HEADER_SIZE + buffer.getInt(record));
+        view.limit(view.position() + valueLength);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    // ====================================================== 写，只在写进程中调用 ==================================================
+
+    /**
+     * 数据区是否还能追加length字节
+     */
+    boolean hasRoom(int length) {
+        return buffer.getLong(OFFSET_DATA_END) + length <= fileLength;
+    }
+
+    /**
+     * 再占用一个空槽位后，已使用和已删除的槽位是否超过槽位数的3/4
+     */
+    boolean isSlotsFull() {
+        return (long) (size() + buffer.getInt(OFFSET_DELETED) + 1) * 4 > (long) slotCount * 3;
+    }
+
+    long liveBytes() {
+        return buffer.getLong(OFFSET_LIVE_BYTES);
+    }
+
+    /**
+     * 写进程查找key所在的槽位；不存在时返回 -(可以插入的槽位 + 1)，优先复用已删除的槽位
+     */
+    int probe(byte[] key, int hash) {
+        int insertAt = -1;
+        for (int i = hash & slotMask, probes = 0; probes < slotCount; i = (i + 1) & slotMask, probes++) {
+            long slot = buffer.getLong(HEADER_SIZE + i * SLOT_SIZE + 8);
+            int state = slotState(slot);
+            if (state == STATE_EMPTY) {
+                return -((insertAt < 0 ? i : insertAt) + 1);
+            }
+            if (state == STATE_DELETED) {
+                if (insertAt < 0) {
+                    insertAt = i;
+                }
+            } else if (slotHash(slot) == hash && keyEquals(slotRecord(slot), key)) {
+                return i;
+            }
+        }
+        return -(insertAt + 1);
+    }
+
+    /**
+     * 追加一条记录并发布到槽位
+     *
+     * @param index {@link #probe(byte[], int)} 的返回值
+     */
+    void put(int index, int hash, byte[] key, byte[] value) {
+        int recordLength = recordLength(key, value);
+        int record = append(key, value, recordLength);
+        if (index >= 0) {
+            long old = buffer.getLong(HEADER_SIZE + index * SLOT_SIZE + 8);
+            writeSlot(index, slot(hash, record, STATE_LIVE));
+            addLiveBytes(recordLength - recordLength(slotRecord(old)));
+            return;
+        }
+
+        index = -index - 1;
+        long old = buffer.getLong(HEADER_SIZE + index * SLOT_SIZE + 8);
+        writeSlot(index, slot(hash, record, STATE_LIVE));
+        if (slotState(old) == STATE_DELETED) {
+            buffer.putInt(OFFSET_DELETED, buffer.getInt(OFFSET_DELETED) - 1);
+        }
+        buffer.putInt(OFFSET_SIZE, size() + 1);
+        addLiveBytes(recordLength);
+    }
+
+    /**
+     * 把槽位标记为已删除，记录本身保留到下次重建文件
+     */
+    void remove(int index) {
+        long old = buffer.getLong(HEADER_SIZE + index * SLOT_SIZE + 8);
+        writeSlot(index, (old & ~3L) | STATE_DELETED);
+        buffer.putInt(OFFSET_SIZE, size() - 1);
+        buffer.putInt(OFFSET_DELETED, buffer.getInt(OFFSET_DELETED) + 1);
+        addLiveBytes(-recordLength(slotRecord(old)));
+    }
+
+    /**
+     * 把本文件的存活记录复制到target，target是刚创建的空文件，还没有读进程访问
+     */
+    void copyTo(SharedCacheFile target) {
+        for (int i = 0; i < slotCount; i++) {
+            long slot = buffer.getLong(HEADER_SIZE + i * SLOT_SIZE + 8);
+            if (slotState(slot) != STATE_LIVE) {
+                continue;
+            }
+            int record = slotRecord(slot);
+            byte[] key = key(record);
+            ByteBuffer value = value(record);
+            byte[] valueBytes = null;
+            if (value != null) {
+                valueBytes = new byte[value.remaining()];
+                value.get(valueBytes);
+            }
+            int hash = slotHash(slot);
+            target.put(target.probe(key, hash), hash, key, valueBytes);
+        }
+    }
+
+    /**
+     * 标记为过期，读进程下次访问时重新打开文件
+     */
+    void markStale() {
+        MemoryFences.storeFence();
+        buffer.putInt(OFFSET_STALE, 1);
+    }
+
+    private int append(byte[] key, byte[] value, int recordLength) {
+        int record = (int) buffer.getLong(OFFSET_DATA_END);
+        ByteBuffer view = buffer.duplicate();
+        view.position(record);
+        view.putInt(key.length);
+        view.putInt(value == null ? -1 : value.length);
+        view.put(key);
+        if (value != null) {
+            view.put(value);
+        }
+        buffer.putLong(OFFSET_DATA_END, record + recordLength);
+        return record;
+    }
+
+    private int recordLength(int record) {
+        int valueLength = valueLength(record);
+        int length = RECORD_HEADER_SIZE + buffer.getInt(record) + Math.max(valueLength, 0);
+        return (length + RECORD_ALIGNMENT - 1) / RECORD_ALIGNMENT * RECORD_ALIGNMENT;
+    }
+
+    /**
+     * 按seqlock协议修改槽位，之前追加的记录在槽位发布前对读进程可见
+     */
+    private void writeSlot(int index, long slot) {
+        int base = HEADER_SIZE + index * SLOT_SIZE;
+        long seq = buffer.getLong(base);
+        buffer.putLong(base, seq + 1);
+        MemoryFences.storeFence();
+        buffer.putLong(base + 8, slot);
+        MemoryFences.storeFence();
+        buffer.putLong(base, seq + 2);
+    }
+
+    private void addLiveBytes(long delta) {
+        buffer.putLong(OFFSET_LIVE_BYTES, liveBytes() + delta);
+    }
+}
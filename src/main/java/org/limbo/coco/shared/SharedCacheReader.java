@@ -0,0 +1,64 @@
+package org.limbo.coco.shared;
+
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 共享缓存的读端，只读地映射 {@link SharedCacheWriter} 写入的文件，读取不加锁、不经过写进程；
+ * 写进程重建文件后，下一次读取时自动重新打开文件。不支持写操作。
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class SharedCacheReader<K, V> extends AbstractSharedCache<K, V> {
+
+    private final Path path;
+
+    private volatile SharedCacheFile file;
+
+    private volatile boolean closed = false;
+
+    public SharedCacheReader(String path, ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer) {
+        super(keySerializer, valueSerializer);
+        this.path = Paths.get(path).toAbsolutePath();
+        this.file = SharedCacheFile.open(this.path, false);
+    }
+
+    @Override
+    SharedCacheFile currentFile() {
+        if (closed) {
+            throw new IllegalStateException("Shared cache reader[" + path + "] is closed");
+        }
+        SharedCacheFile current = file;
+        if (current.isStale()) {
+            synchronized (this) {
+                current = file;
+                while (current.isStale()) {
+                    current = SharedCacheFile.open(path, false);
+                }
+                file = current;
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        throw new UnsupportedOperationException("Shared cache reader is read-only");
+    }
+
+    @Override
+    public boolean remove(K key) {
+        throw new UnsupportedOperationException("Shared cache reader is read-only");
+    }
+
+    /**
+     * 映射会在对象被回收后释放
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,192 @@
+package org.limbo.coco.shared;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.limbo.coco.MemoryUnit;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 共享缓存的写端，同一个文件同一时间只能有一个写进程，通过文件锁保证；
+ * 同一台机器上的其他进程使用 {@link SharedCacheReader} 读取，所有进程共用页缓存中的一份数据。
+ * <p>
+ * 写操作在进程内串行执行，读操作不加锁。数据区写满或槽位使用过多时，
+ * 把存活的数据复制到新文件后替换原文件，重建期间写操作阻塞，读操作继续读取原文件。
+ * 关闭后文件保留，读进程仍然可以读取关闭前的数据；再次创建写端时会替换成一个空文件。
+ *
+ * @param <K>
+ * @param <V>
+ */
+@Slf4j
+public class SharedCacheWriter<K, V> extends AbstractSharedCache<K, V> {
+
+    private static final int DEFAULT_SLOT_COUNT = 1 << 16;
+
+    private final Path path;
+
+    private final int initialSlotCount;
+
+    private final long initialDataCapacity;
+
+    private final FileChannel lockChannel;
+
+    private final FileLock lock;
+
+    private volatile SharedCacheFile file;
+
+    private volatile boolean closed = false;
+
+    public SharedCacheWriter(String path, ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer) {
+        this(path, keySerializer, valueSerializer, DEFAULT_SLOT_COUNT, MemoryUnit.MEGABYTES.toBytes(64));
+    }
+
+    /**
+     * @param slotCount    初始槽位数，会向上取整为2的幂
+     * @param dataCapacity 初始数据区大小
+     */
+    public SharedCacheWriter(String path, ValueSerializer<K> keySerializer, ValueSerializer<V> valueSerializer,
+                             int slotCount, long dataCapacity) {
+        super(keySerializer, valueSerializer);
+        this.path = Paths.get(path).toAbsolutePath();
+        this.initialSlotCount = tableSizeFor(slotCount);
+        this.initialDataCapacity = dataCapacity;
+
+        Path lockPath = this.path.resolveSibling(this.path.getFileName() + ".lock");
+        FileChannel channel = null;
+        FileLock fileLock = null;
+        try {
+            Files.createDirectories(this.path.getParent());
+            channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            fileLock = channel.tryLock();
+        } catch (IOException | OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            IOUtils.closeQuietly(channel);
+            throw new IllegalStateException("Shared cache file[" + path + "] is already opened by another writer");
+        }
+        this.lockChannel = channel;
+        this.lock = fileLock;
+
+        SharedCacheFile previous = null;
+        if (Files.exists(this.path)) {
+            try {
+                previous = SharedCacheFile.open(this.path, true);
+            } catch (IllegalStateException e) {
+                log.warn("Replace invalid shared cache file[" + path + "]");
+            }
+        }
+        SharedCacheFile created = SharedCacheFile.create(tempPath(), initialSlotCount, initialDataCapacity);
+        created.publish(this.path);
+        if (previous != null) {
+            previous.markStale();
+        }
+        this.file = created;
+    }
+
+    @Override
+    SharedCacheFile currentFile() {
+        if (closed) {
+            throw new IllegalStateException("Shared cache writer[" + path + "] is closed");
+        }
+        return file;
+    }
+
+    @Override
+    public synchronized boolean put(K key, V value) {
+        SharedCacheFile file = currentFile();
+        byte[] keyBytes = keySerializer.serialize(key);
+        byte[] valueBytes = value == null ? null : valueSerializer.serialize(value);
+        int hash = SharedCacheFile.hash(keyBytes);
+        int recordLength = SharedCacheFile.recordLength(keyBytes, valueBytes);
+
+        int index = file.probe(keyBytes, hash);
+        if (!file.hasRoom(recordLength) || (index < 0 && file.isSlotsFull())) {
+            file = rebuild(recordLength);
+            index = file.probe(keyBytes, hash);
+        }
+        file.put(index, hash, keyBytes, valueBytes);
+        return index >= 0;
+    }
+
+    @Override
+    public synchronized boolean remove(K key) {
+        SharedCacheFile file = currentFile();
+        byte[] keyBytes = keySerializer.serialize(key);
+        int index = file.probe(keyBytes, SharedCacheFile.hash(keyBytes));
+        if (index < 0) {
+            return false;
+        }
+        file.remove(index);
+        return true;
+    }
+
+    /**
+     * 把存活的数据复制到按当前数据量重新分配大小的新文件，替换原文件
+     *
+     * @param reserved 需要额外预留的数据区大小
+     */
+    private SharedCacheFile rebuild(int reserved) {
+        SharedCacheFile old = file;
+        int slotCount = initialSlotCount;
+        while ((long) (old.size() + 1) * 2 > slotCount) {
+            slotCount <<= 1;
+        }
+        long dataCapacity = Math.max(initialDataCapacity, (old.liveBytes() + reserved) * 2);
+
+        Path tempPath = tempPath();
+        try {
+            SharedCacheFile rebuilt = SharedCacheFile.create(tempPath, slotCount, dataCapacity);
+            old.copyTo(rebuilt);
+            rebuilt.publish(path);
+            old.markStale();
+            file = rebuilt;
+            log.debug("Shared cache file[" + path + "] rebuilt, slotCount=" + slotCount + " dataCapacity=" + dataCapacity);
+            return rebuilt;
+        } catch (RuntimeException e) {
+            FileUtils.deleteQuietly(tempPath.toFile());
+            throw e;
+        }
+    }
+
+    private Path tempPath() {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * 释放写锁，文件保留给读进程继续读取
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            lock.release();
+        } catch (IOException e) {
+            log.error("Error while release lock of shared cache file[" + path + "]", e);
+        }
+        IOUtils.closeQuietly(lockChannel);
+    }
+
+    private static int tableSizeFor(int n) {
+        if (n <= 0 || n > 1 << 30) {
+            throw new IllegalArgumentException("Illegal slot count " + n);
+        }
+        int size = 1;
+        while (size < n) {
+            size <<= 1;
+        }
+        return size;
+    }
+}
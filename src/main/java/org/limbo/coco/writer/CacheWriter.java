@@ -0,0 +1,25 @@
+package org.limbo.coco.writer;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 将缓存的修改批量写回后端存储，由 {@link WriteBehindCache} 在后台线程上调用；
+ * 调用失败时同一批数据会被重试，因此实现需要是幂等的
+ *
+ * @param <K>
+ * @param <V>
+ */
+public interface CacheWriter<K, V> {
+
+    /**
+     * 批量写入新增或修改的数据
+     */
+    void writeAll(Map<K, V> entries) throws Exception;
+
+    /**
+     * 批量删除已经从缓存中移除的key
+     */
+    void deleteAll(Collection<K> keys) throws Exception;
+
+}
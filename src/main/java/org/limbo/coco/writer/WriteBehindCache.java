@@ -0,0 +1,452 @@
+package org.limbo.coco.writer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.limbo.coco.Cache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * 异步写回的缓存，包装任意 {@link Cache}：
+ * put、remove修改被包装的缓存，同时记录这次修改，由后台线程批量调用 {@link CacheWriter} 写回后端存储；
+ * <p>
+ * 每个脏key只记录最近一次修改：put记录写入的值，remove（或put null）记录为删除，同一个key的多次修改在写回前合并为一次；
+ * 写回的是记录下来的修改，而不是写回时缓存中的值，被包装的缓存淘汰了某个key不会导致后端存储中的数据被删除；
+ * <p>
+ * 脏key数量达到批大小时立即写回，否则每隔写回间隔写回一次；写回失败时按退避时间重试，
+ * 重试仍然失败则把这批修改重新记录下来（期间又有新的修改时以新的为准），等待下一次写回；
+ * 脏key数量超过上限时，put、remove阻塞直到写回腾出空间，保证内存有界。
+ *
+ * @param <K>
+ * @param <V>
+ */
+@Slf4j
+public class WriteBehindCache<K, V> implements Cache<K, V> {
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(0);
+
+    /**
+     * 写入锁的分段数量，同一个key对缓存的修改和修改记录在锁内一起完成，保证记录的是缓存中最终的修改
+     */
+    private static final int WRITE_LOCK_STRIPES = 64;
+
+    private final Cache<K, V> cache;
+
+    private final CacheWriter<K, V> writer;
+
+    /**
+     * 尚未写回的key及其最近一次修改
+     */
+    private final ConcurrentHashMap<K, PendingWrite<V>> dirtyKeys;
+
+    private final Object[] writeLocks;
+
+    private final ReentrantLock lock;
+
+    /**
+     * 脏key达到批大小或关闭时唤醒写回线程
+     */
+    private final Condition flushNeeded;
+
+    /**
+     * 写回后唤醒因脏key超过上限而阻塞的写入者
+     */
+    private final Condition notFull;
+
+    /**
+     * 保证同一时刻只有一个线程在写回
+     */
+    private final ReentrantLock flushLock;
+
+    private final Thread flusher;
+
+    private volatile boolean closed = false;
+
+    /**
+     * 每批写回的最大key数量，默认1000
+     */
+    private volatile int batchSize = 1000;
+
+    /**
+     * 写回间隔，默认1秒
+     */
+    private volatile long flushIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 脏key数量上限，默认10万
+     */
+    private volatile int maxDirtyKeys = 100000;
+
+    /**
+     * 单批写回失败后的重试次数，默认3次
+     */
+    private volatile int maxRetries = 3;
+
+    /**
+     * 第一次重试前等待的时间，之后每次翻倍，默认100毫秒
+     */
+    private volatile long retryBackoffMillis = 100;
+
+    public WriteBehindCache(Cache<K, V> cache, CacheWriter<K, V> writer) {
+        this.cache = Objects.requireNonNull(cache, "cache");
+        this.writer = Objects.requireNonNull(writer, "writer");
+        this.dirtyKeys = new ConcurrentHashMap<>();
+        this.writeLocks = new Object[WRITE_LOCK_STRIPES];
+        for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+            this.writeLocks[i] = new Object();
+        }
+        this.lock = new ReentrantLock();
+        this.flushNeeded = lock.newCondition();
+        this.notFull = lock.newCondition();
+        this.flushLock = new ReentrantLock();
+
+        this.flusher = new Thread(this::runFlusher, "coco-write-behind-" + THREAD_COUNTER.incrementAndGet());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        assertNotClosed();
+        boolean existed;
+        boolean newlyDirty;
+        synchronized (writeLock(key)) {
+            existed = cache.put(key, value);
+            newlyDirty = dirtyKeys.put(key, new PendingWrite<>(value)) == null;
+        }
+        if (newlyDirty) {
+            afterMarkDirty();
+        }
+        return existed;
+    }
+
+    @Override
+    public boolean remove(K key) {
+        assertNotClosed();
+        boolean existed;
+        boolean newlyDirty;
+        synchronized (writeLock(key)) {
+            existed = cache.remove(key);
+            // 缓存中不存在的key在后端存储中仍可能存在，同样需要删除
+            newlyDirty = dirtyKeys.put(key, new PendingWrite<>(null)) == null;
+        }
+        if (newlyDirty) {
+            afterMarkDirty();
+        }
+        return existed;
+    }
+
+    private Object writeLock(K key) {
+        int h = key.hashCode();
+        return writeLocks[(h ^ (h >>> 16)) & (WRITE_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * 新增脏key后，达到批大小时唤醒写回线程，超过上限时阻塞
+     */
+    private void afterMarkDirty() {
+        int dirty = dirtyKeys.size();
+        if (dirty >= batchSize) {
+            signal(flushNeeded);
+        }
+        if (dirty > maxDirtyKeys) {
+            awaitNotFull();
+        }
+    }
+
+    /**
+     * 脏key超过上限时阻塞，直到写回线程腾出空间或缓存关闭
+     */
+    private void awaitNotFull() {
+        lock.lock();
+        try {
+            flushNeeded.signal();
+            while (dirtyKeys.size() > maxDirtyKeys && !closed) {
+                notFull.await(flushIntervalNanos, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runFlusher() {
+        boolean lastFailed = false;
+        while (!closed) {
+            lock.lock();
+            try {
+                // 上一次写回失败时等满一个间隔再重试，避免后端存储不可用时空转
+                if ((lastFailed || dirtyKeys.size() < batchSize) && !closed) {
+                    flushNeeded.awaitNanos(flushIntervalNanos);
+                }
+            } catch (InterruptedException e) {
+                if (closed) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                lastFailed = !flush();
+            } catch (Throwable e) {
+                lastFailed = true;
+                log.error("Unexpected exception while write behind", e);
+            }
+        }
+    }
+
+    /**
+     * 在当前线程上写回全部脏key，某一批重试后仍然失败时停止，失败的key留到下一次写回
+     *
+     * @return 是否全部写回成功
+     */
+    public boolean flush() {
+        flushLock.lock();
+        try {
+            while (true) {
+                Map<K, PendingWrite<V>> batch = drain(batchSize);
+                if (batch.isEmpty()) {
+                    return true;
+                }
+                boolean success = writeBatch(batch);
+                signal(notFull);
+                if (!success) {
+                    return false;
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 取出最多max个脏key及其修改，取出后key不再是脏的，之后的修改会重新记录
+     */
+    private Map<K, PendingWrite<V>> drain(int max) {
+        Map<K, PendingWrite<V>> batch = new LinkedHashMap<>();
+        Iterator<Map.Entry<K, PendingWrite<V>>> iterator = dirtyKeys.entrySet().iterator();
+        while (batch.size() < max && iterator.hasNext()) {
+            Map.Entry<K, PendingWrite<V>> entry = iterator.next();
+            if (dirtyKeys.remove(entry.getKey(), entry.getValue())) {
+                batch.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return batch;
+    }
+
+    private boolean writeBatch(Map<K, PendingWrite<V>> batch) {
+        Map<K, V> writes = new LinkedHashMap<>();
+        List<K> deletes = new ArrayList<>();
+        for (Map.Entry<K, PendingWrite<V>> entry : batch.entrySet()) {
+            V value = entry.getValue().value;
+            if (value != null) {
+                writes.put(entry.getKey(), value);
+            } else {
+                deletes.add(entry.getKey());
+            }
+        }
+
+        boolean written = writes.isEmpty();
+        boolean deleted = deletes.isEmpty();
+        long backoff = retryBackoffMillis;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (!written) {
+                    writer.writeAll(writes);
+                    written = true;
+                }
+                if (!deleted) {
+                    writer.deleteAll(deletes);
+                    deleted = true;
+                }
+                return true;
+            } catch (Exception e) {
+                if (attempt >= maxRetries || closed && attempt > 0) {
+                    log.error("Write behind failed after " + (attempt + 1) + " attempts, " + batch.size() + " keys will be retried later", e);
+                    break;
+                }
+                log.warn("Write behind failed, retry in " + backoff + "ms", e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoff <<= 1;
+            }
+        }
+
+        // 重新记录失败的修改，已经写成功的部分不需要重试；期间又有新的修改时以新的为准
+        if (!written) {
+            for (K key : writes.keySet()) {
+                dirtyKeys.putIfAbsent(key, batch.get(key));
+            }
+        }
+        if (!deleted) {
+            for (K key : deletes) {
+                dirtyKeys.putIfAbsent(key, batch.get(key));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 一个key尚未写回的修改
+     */
+    private static class PendingWrite<V> {
+
+        /**
+         * 写入的值，null表示删除
+         */
+        final V value;
+
+        PendingWrite(V value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * 尚未写回的key数量
+     */
+    public int getDirtySize() {
+        return dirtyKeys.size();
+    }
+
+    @Override
+    public V get(K key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return cache.contains(key);
+    }
+
+    @Override
+    public List<K> getKeys() {
+        return cache.getKeys();
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return cache.keyIterator();
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return cache.entrySpliterator();
+    }
+
+    @Override
+    public Stream<Map.Entry<K, V>> stream() {
+        return cache.stream();
+    }
+
+    @Override
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        return cache.parallelStream();
+    }
+
+    @Override
+    public int getSize() {
+        return cache.getSize();
+    }
+
+    @Override
+    public List<V> getByIndex(String indexName, Object indexAttr) {
+        return cache.getByIndex(indexName, indexAttr);
+    }
+
+    @Override
+    public int countByIndex(String indexName, Object indexAttr) {
+        return cache.countByIndex(indexName, indexAttr);
+    }
+
+    @Override
+    public List<K> keysByIndex(String indexName, Object indexAttr, int offset, int limit) {
+        return cache.keysByIndex(indexName, indexAttr, offset, limit);
+    }
+
+    @Override
+    public boolean existsByIndex(String indexName, Object indexAttr) {
+        return cache.existsByIndex(indexName, indexAttr);
+    }
+
+    /**
+     * 停止写回线程，在当前线程上写回剩余的脏key后关闭被包装的缓存；仍然写回失败的key会被丢弃
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        signal(flushNeeded);
+        signal(notFull);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!flush()) {
+            log.error("Write behind cache closed with " + dirtyKeys.size() + " keys not written back");
+        }
+        cache.close();
+    }
+
+    private void assertNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Write behind cache is closed!");
+        }
+    }
+
+    /**
+     * 被包装的缓存
+     */
+    public Cache<K, V> getCache() {
+        return cache;
+    }
+
+    public WriteBehindCache<K, V> setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    public WriteBehindCache<K, V> setFlushInterval(long interval, TimeUnit unit) {
+        this.flushIntervalNanos = unit.toNanos(interval);
+        signal(flushNeeded);
+        return this;
+    }
+
+    public WriteBehindCache<K, V> setMaxDirtyKeys(int maxDirtyKeys) {
+        this.maxDirtyKeys = maxDirtyKeys;
+        return this;
+    }
+
+    public WriteBehindCache<K, V> setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public WriteBehindCache<K, V> setRetryBackoff(long backoff, TimeUnit unit) {
+        this.retryBackoffMillis = unit.toMillis(backoff);
+        return this;
+    }
+}
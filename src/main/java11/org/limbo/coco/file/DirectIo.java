@@ -0,0 +1,55 @@
+package org.limbo.coco.file;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Direct IO 的平台相关操作，JDK11+ 的实现，使用 {@link ExtendedOpenOption#DIRECT} 绕过页缓存；
+ * 文件系统不支持 O_DIRECT（如tmpfs）时退化为普通的文件IO。
+ */
+@Slf4j
+final class DirectIo {
+
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private DirectIo() {
+    }
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static FileChannel open(Path path) throws IOException {
+        try {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    ExtendedOpenOption.DIRECT);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Cannot open cache file[{}] with O_DIRECT, fallback to buffered io: {}", path, e.getMessage());
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    static int blockSize(Path path) {
+        try {
+            Path existing = path;
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            long blockSize = existing == null ? DEFAULT_BLOCK_SIZE : Files.getFileStore(existing).getBlockSize();
+            return (int) Math.max(DEFAULT_BLOCK_SIZE, blockSize);
+        } catch (IOException | UnsupportedOperationException e) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    static ByteBuffer allocateAligned(int capacity, int alignment) {
+        return ByteBuffer.allocateDirect(capacity + alignment).alignedSlice(alignment).limit(capacity).slice();
+    }
+}
@@ -0,0 +1,20 @@
+package org.limbo.coco.shared;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * 共享内存读写时使用的内存屏障，JDK11+ 的实现，使用 {@link VarHandle} 的屏障方法。
+ */
+final class MemoryFences {
+
+    private MemoryFences() {
+    }
+
+    static void loadFence() {
+        VarHandle.acquireFence();
+    }
+
+    static void storeFence() {
+        VarHandle.releaseFence();
+    }
+}
@@ -0,0 +1,137 @@
+package org.limbo.coco;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * 只实现了必要方法的 {@link Cache}，其余方法使用接口的默认实现
+ */
+public class CacheDefaultsTest {
+
+    private static class SimpleCache implements Cache<Long, String> {
+
+        private final Map<Long, String> map = new LinkedHashMap<>();
+
+        @Override
+        public List<Long> getKeys() {
+            return new ArrayList<>(map.keySet());
+        }
+
+        @Override
+        public boolean put(Long key, String value) {
+            return map.put(key, value) != null;
+        }
+
+        @Override
+        public String get(Long key) {
+            return map.get(key);
+        }
+
+        @Override
+        public boolean remove(Long key) {
+            return map.remove(key) != null;
+        }
+
+        @Override
+        public boolean contains(Long key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public int getSize() {
+            return map.size();
+        }
+
+        @Override
+        public void close() {
+            map.clear();
+        }
+
+        /**
+         * 索引值为value的长度
+         */
+        @Override
+        public List<String> getByIndex(String indexName, Object indexAttr) {
+            return map.values().stream().filter(v -> v.length() == (Integer) indexAttr).collect(Collectors.toList());
+        }
+    }
+
+    private static SimpleCache cache() {
+        SimpleCache cache = new SimpleCache();
+        for (long i = 0; i < 200; i++) {
+            cache.put(i, "v" + i);
+        }
+        return cache;
+    }
+
+    @Test
+    public void testKeyIteratorAndPaging() {
+        SimpleCache cache = cache();
+        Iterator<Long> it = cache.keyIterator();
+        Assert.assertEquals(Long.valueOf(0), it.next());
+        try {
+            it.remove();
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        Set<Long> keys = new HashSet<>();
+        KeyPage<Long> page = cache.keys(null, 30);
+        keys.addAll(page.getKeys());
+        while (page.getCursor() != null) {
+            page = cache.keys(page.getCursor(), 30);
+            keys.addAll(page.getKeys());
+        }
+        Assert.assertEquals(200, keys.size());
+    }
+
+    @Test
+    public void testEntrySpliterator() {
+        SimpleCache cache = cache();
+        Map<Long, String> entries = cache.parallelStream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        Assert.assertEquals(200, entries.size());
+        Assert.assertEquals("v42", entries.get(42L));
+    }
+
+    @Test
+    public void testByIndex() {
+        SimpleCache cache = cache();
+        // v10 ~ v99
+        Assert.assertEquals(90, cache.countByIndex("length", 3));
+        Assert.assertTrue(cache.existsByIndex("length", 2));
+        Assert.assertFalse(cache.existsByIndex("length", 5));
+        Assert.assertEquals(Arrays.asList(15L, 16L, 17L), cache.keysByIndex("length", 3, 5, 3));
+        Assert.assertEquals(10, cache.keysByIndex("length", 2, 0, 100).size());
+        Assert.assertTrue(cache.keysByIndex("length", 3, 90, 10).isEmpty());
+        Assert.assertTrue(cache.keysByIndex("length", 3, 0, 0).isEmpty());
+    }
+
+    /**
+     * 与 {@link Index#getKeys(Object, int, int)} 一样，offset或limit为负数时抛出异常
+     */
+    @Test
+    public void testKeysByIndexRejectsNegative() {
+        SimpleCache cache = cache();
+        try {
+            cache.keysByIndex("length", 3, -1, 10);
+            Assert.fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            cache.keysByIndex("length", 3, 0, -1);
+            Assert.fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        // 没有匹配的数据时同样校验
+        try {
+            cache.keysByIndex("length", 5, -1, 10);
+            Assert.fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
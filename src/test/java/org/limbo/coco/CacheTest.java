@@ -33,8 +33,8 @@ public class CacheTest {
 
     /**
      * 原先 ReentrantCacheFile 使用 ReentrantLock write:14491 read:15656 由于多线程 锁争夺 导致耗时比单线程还要高
-     * 使用 ReadWriteLock 改写 ReentrantCacheFile write:14715 read:59
-     * bug 使用读写锁的时候，由于游标问题，会导致数据读取有问题
+     * 使用 ReadWriteLock 改写 ReentrantCacheFile write:14715 read:59，但多个读线程共用 RandomAccessFile 的游标，会读到错误的数据；
+     * 现在的 ReadWriteCacheFile 使用 FileChannel 按位置读取，不共享游标，读取不加锁，并发读取的正确性见 ReadWriteCacheFileTest
      */
     @Test
     public void testNoIndexThreads() throws InterruptedException {
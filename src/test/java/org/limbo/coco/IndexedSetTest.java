@@ -0,0 +1,157 @@
+package org.limbo.coco;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class IndexedSetTest {
+
+    private static IndexBuilder<Long> modIndex() {
+        return new IndexBuilder<Long>() {
+            @Override
+            public String name() {
+                return "mod";
+            }
+
+            @Override
+            public Object buildIndex(Long value) {
+                return value % 10;
+            }
+        };
+    }
+
+    /**
+     * 并发添加和移除的同时不加锁地读取，结束后索引和元素一致
+     */
+    @Test
+    public void testConcurrentAddRemoveKeepsIndex() throws Exception {
+        IndexedSet<Long> set = new IndexedSet<>(8);
+        set.addIndex(modIndex());
+        int threads = 4;
+        int elements = 1000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int round = 0; round < 20; round++) {
+                    for (long e = 0; e < elements; e++) {
+                        if ((e + round + id) % 3 == 0) {
+                            set.remove(e);
+                        } else {
+                            set.add(e);
+                        }
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        List<Throwable> readErrors = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (writing.get()) {
+                    for (Long e : set) {
+                        Assert.assertTrue(e >= 0 && e < elements);
+                    }
+                    for (long mod = 0; mod < 10; mod++) {
+                        for (Long e : set.getByIndex("mod", mod)) {
+                            Assert.assertEquals(mod, e % 10);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                readErrors.add(e);
+            }
+        });
+        reader.start();
+
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        reader.join();
+        Assert.assertTrue(readErrors.toString(), readErrors.isEmpty());
+
+        Set<Long> indexed = new HashSet<>();
+        for (long mod = 0; mod < 10; mod++) {
+            List<Long> byIndex = set.getByIndex("mod", mod);
+            Assert.assertEquals(byIndex.size(), set.countByIndex("mod", mod));
+            indexed.addAll(byIndex);
+        }
+        Assert.assertEquals(new HashSet<>(set), indexed);
+    }
+
+    /**
+     * 重复添加已经存在的元素时，并发读取始终能通过索引看到它
+     */
+    @Test
+    public void testReAddKeepsIndexVisible() throws Exception {
+        IndexedSet<Long> set = new IndexedSet<>();
+        set.addIndex(modIndex());
+        for (long e = 0; e < 100; e++) {
+            set.add(e);
+        }
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (int round = 0; round < 2000; round++) {
+                for (long e = 0; e < 100; e++) {
+                    Assert.assertFalse(set.add(e));
+                }
+            }
+            writing.set(false);
+        });
+        List<Throwable> readErrors = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (writing.get()) {
+                    for (long mod = 0; mod < 10; mod++) {
+                        Assert.assertEquals(10, set.countByIndex("mod", mod));
+                        Assert.assertTrue(set.existsByIndex("mod", mod));
+                    }
+                }
+            } catch (Throwable e) {
+                readErrors.add(e);
+                writing.set(false);
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        Assert.assertTrue(readErrors.toString(), readErrors.isEmpty());
+        Assert.assertEquals(10, set.countByIndex("mod", 3L));
+    }
+
+    /**
+     * 通过迭代器移除时同步更新索引
+     */
+    @Test
+    public void testIteratorRemoveUpdatesIndex() {
+        IndexedSet<Long> set = new IndexedSet<>();
+        set.addIndex(modIndex());
+        for (long e = 0; e < 100; e++) {
+            set.add(e);
+        }
+        set.removeIf(e -> e % 10 == 3);
+
+        Assert.assertEquals(90, set.size());
+        Assert.assertFalse(set.existsByIndex("mod", 3L));
+        Assert.assertEquals(10, set.countByIndex("mod", 4L));
+    }
+}
@@ -0,0 +1,115 @@
+package org.limbo.coco.file;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CacheFileSnapshotTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_snapshot").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * 值的每个字节都相同，读到其他版本的数据时可以发现
+     */
+    private static byte[] value(int round, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) round);
+        return data;
+    }
+
+    /**
+     * 快照创建后的覆盖、移除、新增以及由此引起的swap都不影响快照：
+     * 快照中只有创建时的key，按偏移量递增，读到的是创建时的值，null值读到长度为0的数组
+     */
+    @Test
+    public void testWritesAfterSnapshotNotSeen() throws Exception {
+        ReentrantCacheFile<Long> cacheFile = new ReentrantCacheFile<>(dir.getAbsolutePath() + "/test.data",
+                16 * 1024, 4096);
+        Map<Long, byte[]> expected = new HashMap<>();
+        for (long key = 0; key < 50; key++) {
+            byte[] data = key % 10 == 0 ? ValueDescriptor.EMPTY_DATA : value((int) key, 32);
+            cacheFile.put(key, data);
+            expected.put(key, data);
+        }
+
+        CacheFileSnapshot<Long> snapshot = cacheFile.snapshot(1024);
+        for (int round = 1; round <= 20; round++) {
+            // 反复覆盖产生大量失效数据，文件写满时会swap
+            for (long key = 0; key < 25; key++) {
+                cacheFile.put(key, value(100 + round, 32));
+            }
+            for (long key = 25; key < 30; key++) {
+                cacheFile.put(key, value(100 + round, 16 + round));
+            }
+        }
+        for (long key = 30; key < 35; key++) {
+            cacheFile.remove(key);
+        }
+        for (long key = 50; key < 80; key++) {
+            cacheFile.put(key, value((int) key, 32));
+        }
+        Assert.assertArrayEquals(value(120, 32), cacheFile.get(0L));
+        Assert.assertFalse(cacheFile.contains(30L));
+
+        Assert.assertEquals(expected.size(), snapshot.size());
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        snapshot.forEach(0, snapshot.size(), (key, data) -> {
+            Assert.assertTrue("duplicate key " + key, seen.add(key));
+            Assert.assertArrayEquals("key " + key, expected.get(key), data);
+        });
+        Assert.assertEquals(expected.keySet(), seen);
+        for (int i = 1; i < snapshot.size(); i++) {
+            Assert.assertTrue(snapshot.offset(i - 1) <= snapshot.offset(i));
+        }
+        snapshot.close();
+        cacheFile.close();
+    }
+
+    /**
+     * 多个读取器使用各自的缓冲区按不同范围读取，与顺序读取的结果一致
+     */
+    @Test
+    public void testReadersReadSameData() throws Exception {
+        ReentrantCacheFile<Long> cacheFile = new ReentrantCacheFile<>(dir.getAbsolutePath() + "/test.data",
+                64 * 1024, 4096);
+        for (long key = 0; key < 200; key++) {
+            cacheFile.put(key, key % 17 == 0 ? ValueDescriptor.EMPTY_DATA : value((int) key, 10 + (int) (key % 50)));
+        }
+
+        try (CacheFileSnapshot<Long> snapshot = cacheFile.snapshot(256)) {
+            int half = snapshot.indexOf(snapshot.offset(snapshot.size() / 2), 0, snapshot.size());
+            CacheFileSnapshot<Long>.Reader first = snapshot.reader(64);
+            CacheFileSnapshot<Long>.Reader second = snapshot.reader(128);
+            for (int i = half; i < snapshot.size(); i++) {
+                Assert.assertArrayEquals(cacheFile.get(snapshot.key(i)), second.read(i));
+            }
+            for (int i = 0; i < half; i++) {
+                Assert.assertArrayEquals(cacheFile.get(snapshot.key(i)), first.read(i));
+            }
+            for (int i = 0; i < snapshot.size(); i++) {
+                Assert.assertArrayEquals(cacheFile.get(snapshot.key(i)), snapshot.read(i));
+            }
+        }
+        cacheFile.close();
+    }
+}
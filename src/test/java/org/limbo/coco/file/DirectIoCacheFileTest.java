@@ -0,0 +1,77 @@
+package org.limbo.coco.file;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class DirectIoCacheFileTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_direct_io").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private static byte[] value(int round, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) round);
+        return data;
+    }
+
+    /**
+     * 写缓冲区大小不是2的幂时，第一次写满缓冲区之前和之后的行为一致
+     */
+    @Test
+    public void testNonPowerOfTwoBufferSize() throws Exception {
+        int blockSize = DirectIo.DEFAULT_BLOCK_SIZE;
+        DirectIoCacheFile<Long> cacheFile = new DirectIoCacheFile<>(dir.getAbsolutePath() + "/test.data",
+                1 << 20, 3 * blockSize);
+        int keys = 10;
+        for (long key = 0; key < keys; key++) {
+            cacheFile.put(key, value((int) key, blockSize - 100));
+        }
+        for (long key = 0; key < keys; key++) {
+            Assert.assertArrayEquals(value((int) key, blockSize - 100), cacheFile.get(key));
+        }
+        cacheFile.flush();
+        ByteBuffer dst = ByteBuffer.allocate(blockSize);
+        Assert.assertEquals(blockSize - 100, cacheFile.get(3L, dst));
+        cacheFile.close();
+    }
+
+    /**
+     * 多次swap后所有key仍然可以读到最后一次写入的值，swap文件不会残留
+     */
+    @Test
+    public void testSwapKeepsValues() throws Exception {
+        int blockSize = DirectIo.DEFAULT_BLOCK_SIZE;
+        DirectIoCacheFile<Long> cacheFile = new DirectIoCacheFile<>(dir.getAbsolutePath() + "/swap.data",
+                16 * blockSize, 2 * blockSize);
+        int keys = 8;
+        int rounds = 50;
+        for (int round = 0; round < rounds; round++) {
+            for (long key = 0; key < keys; key++) {
+                cacheFile.put(key, value(round, 100 + (int) key));
+            }
+        }
+        for (long key = 0; key < keys; key++) {
+            Assert.assertArrayEquals(value(rounds - 1, 100 + (int) key), cacheFile.get(key));
+        }
+        Assert.assertEquals(keys * blockSize, cacheFile.getUsedBytes());
+        Assert.assertFalse(new File(dir, "swap.data.swap").exists());
+        cacheFile.close();
+    }
+}
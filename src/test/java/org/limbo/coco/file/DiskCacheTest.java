@@ -0,0 +1,623 @@
+package org.limbo.coco.file;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.limbo.coco.IndexBuilder;
+import org.limbo.coco.KeyCursor;
+import org.limbo.coco.KeyPage;
+import org.limbo.coco.file.serializer.SerializerFactory;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+public class DiskCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_disk").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private DiskCacheConfiguration<Long, String> config() {
+        return new DiskCacheConfiguration<Long, String>()
+                .setDirectory(dir.getAbsolutePath())
+                .setName("test")
+                .setValueSerializer(SerializerFactory.classJson(String.class));
+    }
+
+    private DiskCacheConfiguration<Long, String> spillConfig() {
+        return config()
+                .setSpillKeyDirectory(true)
+                .setKeySerializer(SerializerFactory.classJson(Long.class))
+                .setMaxBytesPerCacheFile(64 * 1024)
+                .setMaxKeysInMemoryPerCacheFile(100)
+                .setMaxSortedRunsPerCacheFile(3);
+    }
+
+    private static IndexBuilder<String> lengthIndex() {
+        return new IndexBuilder<String>() {
+            @Override
+            public String name() {
+                return "length";
+            }
+
+            @Override
+            public Object buildIndex(String value) {
+                return value.length();
+            }
+        };
+    }
+
+    private static IndexBuilder<String> valueIndex() {
+        return new IndexBuilder<String>() {
+            @Override
+            public String name() {
+                return "value";
+            }
+
+            @Override
+            public Object buildIndex(String value) {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * 批量加载跨多个缓存文件，重复的key以后出现的为准，索引和计数与逐条写入一致
+     */
+    @Test
+    public void testBulkLoad() {
+        List<Map.Entry<Long, String>> entries = new ArrayList<>();
+        for (long i = 0; i < 5000; i++) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(i, "v" + i));
+        }
+        // 重复的key，值的长度不同，覆盖时需要移除旧的索引
+        for (long i = 0; i < 5000; i += 100) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(i, "overwritten" + i));
+        }
+
+        DiskCache<Long, String> cache = new DiskCacheBulkLoader<>(config()
+                .setMaxBytesPerCacheFile(16 * 1024)
+                .addIndex(lengthIndex()))
+                .setBatchSize(700)
+                .load(entries.iterator());
+
+        Assert.assertEquals(5000, cache.getSize());
+        Assert.assertEquals("v1", cache.get(1L));
+        Assert.assertEquals("overwritten4900", cache.get(4900L));
+        Assert.assertEquals(9, cache.getByIndex("length", 2).size());
+        Assert.assertEquals(90, cache.getByIndex("length", 3).size());
+        Assert.assertEquals(891, cache.getByIndex("length", 4).size());
+        Assert.assertEquals(3960, cache.getByIndex("length", 5).size());
+        Assert.assertEquals(1, cache.getByIndex("length", 12).size());
+        Assert.assertEquals(9, cache.getByIndex("length", 14).size());
+        Assert.assertEquals(40, cache.getByIndex("length", 15).size());
+
+        cache.put(1L, "replaced");
+        Assert.assertEquals("replaced", cache.get(1L));
+        Assert.assertEquals(5000, cache.getSize());
+        cache.close();
+    }
+
+    /**
+     * 直接返回传入数组的序列化方式，读取时不能拿到复用的读缓冲区
+     */
+    @Test
+    public void testIdentitySerializerGetsOwnArray() throws Exception {
+        DiskCache<Long, byte[]> cache = new DiskCache<>(new DiskCacheConfiguration<Long, byte[]>()
+                .setDirectory(dir.getAbsolutePath())
+                .setName("identity")
+                .setValueSerializer(new ValueSerializer<byte[]>() {
+                    @Override
+                    public byte[] serialize(byte[] value) {
+                        return value;
+                    }
+
+                    @Override
+                    public byte[] deserialize(byte[] data) {
+                        return data;
+                    }
+                }));
+        // 值的长度与新线程上读缓冲区的初始大小相同，恰好占满整个缓冲区
+        byte[] ones = new byte[4096];
+        byte[] twos = new byte[4096];
+        Arrays.fill(ones, (byte) 1);
+        Arrays.fill(twos, (byte) 2);
+        cache.put(1L, ones);
+        cache.put(2L, twos);
+
+        List<byte[]> read = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            read.add(cache.get(1L));
+            read.add(cache.get(2L));
+        });
+        reader.start();
+        reader.join();
+        Assert.assertArrayEquals(ones, read.get(0));
+        Assert.assertArrayEquals(twos, read.get(1));
+        cache.close();
+    }
+
+    /**
+     * 多个线程并发覆盖同一批key，旧值的索引都被移除，索引与最终的值一致
+     */
+    @Test
+    public void testConcurrentOverwritesReplaceIndex() throws Exception {
+        DiskCache<Long, String> cache = new DiskCache<>(config().addIndex(lengthIndex()));
+        int threads = 4;
+        int keys = 200;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String value = repeat('x', t + 1);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int round = 0; round < 20; round++) {
+                    for (long key = 0; key < keys; key++) {
+                        cache.put(key, value);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        int[] counts = new int[threads + 1];
+        for (long key = 0; key < keys; key++) {
+            counts[cache.get(key).length()]++;
+        }
+        for (int length = 1; length <= threads; length++) {
+            Assert.assertEquals(counts[length], cache.countByIndex("length", length));
+        }
+        Assert.assertEquals(keys, cache.getSize());
+        cache.close();
+    }
+
+    /**
+     * 多个线程同时写入同一批新key，每个key只分配一次、只计数一次
+     */
+    @Test
+    public void testSpillConcurrentPutsOfSameKeys() throws Exception {
+        DiskCache<Long, String> cache = new DiskCache<>(spillConfig());
+        int threads = 4;
+        int keys = 2000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 0; i < keys; i++) {
+                    cache.put(i, "v" + i);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Assert.assertEquals(keys, cache.getSize());
+        for (long i = 0; i < keys; i++) {
+            Assert.assertEquals("v" + i, cache.get(i));
+        }
+        Assert.assertNull(cache.get((long) keys));
+        Assert.assertFalse(cache.contains((long) keys));
+        cache.close();
+    }
+
+    /**
+     * 环形缓冲区写满时由生产者写入，同一个key的多次写入仍按提交顺序生效
+     */
+    @Test
+    public void testPipelineCallerRunsKeepsOrder() throws Exception {
+        DiskCache<Long, String> cache = new DiskCache<>(config()
+                .setWritePipelineEnabled(true)
+                .setWritePipelineCapacity(8)
+                .setWritePipelineBatchSize(4)
+                .setWritePipelineThreads(1)
+                .setWritePipelineBackpressure(WritePipelineBackpressure.CALLER_RUNS));
+        int threads = 4;
+        int keysPerThread = 20;
+        int rounds = 100;
+        List<Thread> workers = new ArrayList<>();
+        List<CompletableFuture<Boolean>> futures = new CopyOnWriteArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long base = t * keysPerThread;
+            Thread worker = new Thread(() -> {
+                for (int round = 0; round < rounds; round++) {
+                    for (long key = base; key < base + keysPerThread; key++) {
+                        futures.add(cache.putAsync(key, "v" + round));
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (CompletableFuture<Boolean> future : futures) {
+            future.join();
+        }
+
+        Assert.assertEquals(threads * keysPerThread, cache.getSize());
+        for (long key = 0; key < threads * keysPerThread; key++) {
+            Assert.assertEquals("v" + (rounds - 1), cache.get(key));
+        }
+        cache.close();
+    }
+
+    /**
+     * 流水线写满被拒绝的写入需要回滚，新增的key不计数，覆盖失败的key恢复旧值的索引
+     */
+    @Test
+    public void testPipelineRejectedWritesRollBack() {
+        DiskCache<Long, String> cache = new DiskCache<>(config()
+                .setWritePipelineEnabled(true)
+                .setWritePipelineCapacity(2)
+                .setWritePipelineBatchSize(1)
+                .setWritePipelineThreads(1)
+                .setWritePipelineBackpressure(WritePipelineBackpressure.FAIL)
+                .addIndex(valueIndex()));
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            for (long key = 0; key < 200; key++) {
+                futures.add(cache.putAsync(key, "v" + round));
+            }
+        }
+        int rejected = 0;
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+                rejected++;
+            }
+        }
+        Assert.assertTrue(rejected > 0);
+
+        int stored = 0;
+        Map<String, Integer> counts = new HashMap<>();
+        for (long key = 0; key < 200; key++) {
+            String value = cache.get(key);
+            if (value == null) {
+                Assert.assertFalse(cache.contains(key));
+                continue;
+            }
+            stored++;
+            counts.merge(value, 1, Integer::sum);
+            Assert.assertTrue(cache.keysByIndex("value", value, 0, Integer.MAX_VALUE).contains(key));
+        }
+        Assert.assertEquals(stored, cache.getSize());
+        for (int round = 0; round < 5; round++) {
+            String value = "v" + round;
+            Assert.assertEquals(counts.getOrDefault(value, 0).intValue(), cache.countByIndex("value", value));
+        }
+        cache.close();
+    }
+
+    private List<File> createDirectories(int count) {
+        List<File> directories = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File directory = new File(dir, "disk" + i);
+            Assert.assertTrue(directory.mkdirs());
+            directories.add(directory);
+        }
+        return directories;
+    }
+
+    private DiskCacheConfiguration<Long, String> multiDirectoryConfig(List<File> directories, CacheFilePlacement placement) {
+        DiskCacheConfiguration<Long, String> config = new DiskCacheConfiguration<Long, String>()
+                .setName("test")
+                .setValueSerializer(SerializerFactory.classJson(String.class))
+                .setCacheFilePlacement(placement)
+                .setMaxBytesPerCacheFile(16 * 1024);
+        for (File directory : directories) {
+            config.addDirectory(directory.getAbsolutePath());
+        }
+        return config;
+    }
+
+    private static int countCacheFiles(File directory) {
+        File[] files = directory.listFiles((d, name) -> name.startsWith("test_cache_") && name.endsWith(".data"));
+        return files == null ? 0 : files.length;
+    }
+
+    /**
+     * 轮询放置时缓存文件均匀分布到各个目录，读写不受目录影响
+     */
+    @Test
+    public void testRoundRobinPlacement() {
+        List<File> directories = createDirectories(3);
+        DiskCache<Long, String> cache = new DiskCache<>(multiDirectoryConfig(directories, CacheFilePlacement.ROUND_ROBIN));
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, repeat('r', 100) + i);
+        }
+
+        int total = 0;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (File directory : directories) {
+            int count = countCacheFiles(directory);
+            total += count;
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        Assert.assertEquals(0, countCacheFiles(dir));
+        Assert.assertTrue("cache files: " + total, total >= 6);
+        Assert.assertTrue("min " + min + " max " + max, max - min <= 1);
+
+        for (long i = 0; i < 1000; i++) {
+            Assert.assertEquals(repeat('r', 100) + i, cache.get(i));
+        }
+        cache.close();
+    }
+
+    /**
+     * 按剩余空间放置时缓存文件只落在配置的目录里，文件足够多时每个目录都会用到
+     */
+    @Test
+    public void testFreeSpacePlacement() {
+        List<File> directories = createDirectories(2);
+        DiskCache<Long, String> cache = new DiskCache<>(multiDirectoryConfig(directories, CacheFilePlacement.FREE_SPACE));
+        for (long i = 0; i < 3000; i++) {
+            cache.put(i, repeat('f', 100) + i);
+        }
+
+        int total = 0;
+        for (File directory : directories) {
+            int count = countCacheFiles(directory);
+            // 两个目录在同一块磁盘上，剩余空间相同，二十多个文件全部落在同一个目录的概率可以忽略
+            Assert.assertTrue(directory + " has no cache file", count > 0);
+            total += count;
+        }
+        Assert.assertEquals(0, countCacheFiles(dir));
+        Assert.assertTrue("cache files: " + total, total >= 20);
+
+        for (long i = 0; i < 3000; i++) {
+            Assert.assertEquals(repeat('f', 100) + i, cache.get(i));
+        }
+        cache.close();
+    }
+
+    /**
+     * 每个目录独立的IO线程：流水线写入和异步读取在缓存文件所在目录的线程上执行，关闭缓存后线程全部退出
+     */
+    @Test
+    public void testPerDirectoryIoThreads() throws Exception {
+        List<File> directories = createDirectories(2);
+        DiskCache<Long, String> cache = new DiskCache<>(multiDirectoryConfig(directories, CacheFilePlacement.ROUND_ROBIN)
+                .setIoThreadsPerDirectory(2)
+                .setWritePipelineEnabled(true));
+        List<CompletableFuture<Boolean>> puts = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            puts.add(cache.putAsync(i, repeat('t', 100) + i));
+        }
+        for (CompletableFuture<Boolean> put : puts) {
+            Assert.assertFalse(put.join());
+        }
+        for (File directory : directories) {
+            Assert.assertTrue(countCacheFiles(directory) > 0);
+        }
+
+        Set<String> readThreads = new HashSet<>();
+        for (long i = 0; i < 1000; i++) {
+            long key = i;
+            Assert.assertEquals(repeat('t', 100) + i, cache.getAsync(key)
+                    .thenApply(value -> {
+                        synchronized (readThreads) {
+                            readThreads.add(Thread.currentThread().getName());
+                        }
+                        return value;
+                    })
+                    .join());
+            Assert.assertEquals(repeat('t', 100) + i, cache.get(key));
+        }
+        for (File directory : directories) {
+            String prefix = "coco-io-" + directory.getName() + "-";
+            Assert.assertTrue(prefix + " not used", readThreads.stream().anyMatch(name -> name.startsWith(prefix)));
+        }
+
+        List<Thread> ioThreads = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            for (File directory : directories) {
+                if (thread.getName().startsWith("coco-io-" + directory.getName() + "-")) {
+                    ioThreads.add(thread);
+                }
+            }
+        }
+        Assert.assertEquals(4, ioThreads.size());
+
+        cache.close();
+        for (Thread thread : ioThreads) {
+            thread.join(1000);
+            Assert.assertFalse(thread.getName() + " still alive", thread.isAlive());
+        }
+    }
+
+    /**
+     * 当前进程打开的、位于目录下的文件数，通过 /proc/self/fd 统计，不支持时返回-1
+     */
+    private static int countOpenFiles(File directory) throws Exception {
+        File[] fds = new File("/proc/self/fd").listFiles();
+        if (fds == null) {
+            return -1;
+        }
+        String prefix = directory.getCanonicalPath() + File.separator;
+        int count = 0;
+        for (File fd : fds) {
+            try {
+                if (Files.readSymbolicLink(fd.toPath()).toString().startsWith(prefix)) {
+                    count++;
+                }
+            } catch (Exception e) {
+                // 遍历期间已经关闭的fd
+            }
+        }
+        return count;
+    }
+
+    private DiskCache<Long, String> multiFileCache() {
+        DiskCache<Long, String> cache = new DiskCache<>(config().setMaxBytesPerCacheFile(16 * 1024));
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, i % 10 == 0 ? null : repeat('s', 50) + i);
+        }
+        for (long i = 0; i < 1000; i += 7) {
+            cache.remove(i);
+        }
+        for (long i = 1; i < 1000; i += 11) {
+            cache.put(i, "overwritten" + i);
+        }
+        return cache;
+    }
+
+    private static Map<Long, String> expectedEntries(DiskCache<Long, String> cache) {
+        Map<Long, String> expected = new HashMap<>();
+        for (long i = 0; i < 1000; i++) {
+            if (cache.contains(i)) {
+                expected.put(i, cache.get(i));
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * 扫描跨多个缓存文件，结果与逐个get一致：被移除和覆盖的旧数据不会出现，null值被扫描为null
+     */
+    @Test
+    public void testScanMatchesGet() {
+        DiskCache<Long, String> cache = multiFileCache();
+        Map<Long, String> expected = expectedEntries(cache);
+        Assert.assertEquals(cache.getSize(), expected.size());
+        Assert.assertTrue(expected.containsValue(null));
+
+        Map<Long, String> scanned = new HashMap<>();
+        cache.scan((key, value) -> {
+            Assert.assertFalse("duplicate key " + key, scanned.containsKey(key));
+            scanned.put(key, value);
+        });
+        Assert.assertEquals(expected, scanned);
+
+        Map<Long, String> iterated = new HashMap<>();
+        try (CloseableIterator<Map.Entry<Long, String>> iterator = cache.entryIterator()) {
+            while (iterator.hasNext()) {
+                Map.Entry<Long, String> entry = iterator.next();
+                Assert.assertFalse("duplicate key " + entry.getKey(), iterated.containsKey(entry.getKey()));
+                iterated.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Assert.assertEquals(expected, iterated);
+        cache.close();
+    }
+
+    /**
+     * 提前结束遍历时关闭迭代器释放快照的文件通道，遍历完的迭代器和扫描也不会留下打开的文件
+     */
+    @Test
+    public void testEntryIteratorEarlyClose() throws Exception {
+        DiskCache<Long, String> cache = multiFileCache();
+        int opened = countOpenFiles(dir);
+        Assume.assumeTrue(opened >= 0);
+
+        CloseableIterator<Map.Entry<Long, String>> iterator = cache.entryIterator();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(iterator.hasNext());
+            Map.Entry<Long, String> entry = iterator.next();
+            Assert.assertEquals(cache.get(entry.getKey()), entry.getValue());
+        }
+        Assert.assertEquals(opened + 1, countOpenFiles(dir));
+        iterator.close();
+        Assert.assertEquals(opened, countOpenFiles(dir));
+
+        try (CloseableIterator<Map.Entry<Long, String>> all = cache.entryIterator()) {
+            while (all.hasNext()) {
+                all.next();
+            }
+            Assert.assertEquals(opened, countOpenFiles(dir));
+        }
+        cache.scan((key, value) -> {
+        });
+        Assert.assertEquals(opened, countOpenFiles(dir));
+
+        cache.close();
+        Assert.assertEquals(0, countOpenFiles(dir));
+    }
+
+    private static String repeat(char c, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 溢出到磁盘的键目录分页遍历，提前放弃的游标可以关闭
+     */
+    @Test
+    public void testSpillKeyPaging() {
+        DiskCache<Long, String> cache = new DiskCache<>(spillConfig());
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, "v" + i);
+        }
+        for (long i = 0; i < 1000; i += 3) {
+            cache.remove(i);
+        }
+
+        Set<Long> keys = new HashSet<>();
+        KeyPage<Long> page = cache.keys(null, 97);
+        keys.addAll(page.getKeys());
+        while (page.getCursor() != null) {
+            page = cache.keys(page.getCursor(), 97);
+            keys.addAll(page.getKeys());
+        }
+        Assert.assertEquals(cache.getSize(), keys.size());
+        for (Long key : keys) {
+            Assert.assertNotEquals(0, key % 3);
+        }
+
+        KeyCursor<Long> abandoned = cache.keys(null, 10).getCursor();
+        Assert.assertNotNull(abandoned);
+        abandoned.close();
+        cache.close();
+    }
+
+}
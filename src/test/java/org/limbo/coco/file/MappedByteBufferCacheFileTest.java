@@ -0,0 +1,50 @@
+package org.limbo.coco.file;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class MappedByteBufferCacheFileTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_mapped").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * 只能追加写入，写满后拒绝写入并给出原因，已经写入的数据不受影响
+     */
+    @Test
+    public void testRejectsWritesWhenFull() throws Exception {
+        MappedByteBufferCacheFile<Long> cacheFile = new MappedByteBufferCacheFile<>(dir.getAbsolutePath() + "/test.data",
+                4096, 256);
+        byte[] value = new byte[100];
+        Arrays.fill(value, (byte) 1);
+        for (int i = 0; i < 40; i++) {
+            cacheFile.put(1L, value);
+        }
+        Assert.assertEquals(96, cacheFile.getWritableBytes());
+        try {
+            cacheFile.put(1L, value);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("append-only"));
+        }
+        Assert.assertArrayEquals(value, cacheFile.get(1L));
+        Assert.assertEquals(100, cacheFile.getUsedBytes());
+        cacheFile.close();
+    }
+}
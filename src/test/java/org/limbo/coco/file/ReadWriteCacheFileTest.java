@@ -0,0 +1,124 @@
+package org.limbo.coco.file;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ReadWriteCacheFileTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_read_write").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * 值的每个字节都等于key和轮次之和，读到其他key或者混杂了不同版本的数据时可以发现
+     */
+    private static byte[] value(long key, int round, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) (key + round));
+        return data;
+    }
+
+    private static void assertValue(long key, byte[] data) {
+        if (data == null || data.length == 0) {
+            return;
+        }
+        byte first = data[0];
+        for (byte b : data) {
+            Assert.assertEquals(first, b);
+        }
+        // 长度由key决定，读到其他key的数据时长度不符
+        Assert.assertEquals(16 + key % 7 * 8, data.length);
+    }
+
+    /**
+     * 多个线程不加锁地同时读取，期间写线程不断覆盖、flush并多次swap；
+     * 读到的数据不会串到其他key，也不会混杂不同版本，结束后每个key都是最后一次写入的值
+     */
+    @Test
+    public void testConcurrentReadsDuringWritesAndSwaps() throws Exception {
+        ReadWriteCacheFile<Long> cacheFile = new ReadWriteCacheFile<>(dir.getAbsolutePath() + "/test.data",
+                16 * 1024, 1024);
+        int keys = 64;
+        int rounds = 300;
+        for (long key = 0; key < keys; key++) {
+            cacheFile.put(key, value(key, 0, (int) (16 + key % 7 * 8)));
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Throwable> readErrors = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            boolean intoBuffer = t % 2 == 0;
+            Thread reader = new Thread(() -> {
+                ByteBuffer dst = ByteBuffer.allocate(128);
+                try {
+                    start.await();
+                    while (writing.get()) {
+                        for (long key = 0; key < keys; key++) {
+                            if (intoBuffer) {
+                                dst.clear();
+                                int length = cacheFile.get(key, dst);
+                                Assert.assertTrue(length > 0);
+                                dst.flip();
+                                byte[] data = new byte[dst.remaining()];
+                                dst.get(data);
+                                assertValue(key, data);
+                            } else {
+                                byte[] data = cacheFile.get(key);
+                                Assert.assertNotNull(data);
+                                assertValue(key, data);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (readErrors) {
+                        readErrors.add(e);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        start.countDown();
+        for (int round = 1; round <= rounds; round++) {
+            for (long key = 0; key < keys; key++) {
+                cacheFile.put(key, value(key, round, (int) (16 + key % 7 * 8)));
+            }
+            if (round % 10 == 0) {
+                cacheFile.flush();
+            }
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertTrue(readErrors.toString(), readErrors.isEmpty());
+
+        for (long key = 0; key < keys; key++) {
+            Assert.assertArrayEquals(value(key, rounds, (int) (16 + key % 7 * 8)), cacheFile.get(key));
+        }
+        cacheFile.close();
+    }
+}
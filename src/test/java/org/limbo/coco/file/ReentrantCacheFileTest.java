@@ -0,0 +1,186 @@
+package org.limbo.coco.file;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ReentrantCacheFileTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_reentrant").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * 值的每个字节都相同，读到的数据混杂了不同版本时可以发现
+     */
+    private static byte[] value(int round, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) round);
+        return data;
+    }
+
+    /**
+     * 多个线程覆盖各自的key，长度相同时在缓冲区内原地覆盖，长度不同时标记失效并压缩；
+     * 文件较小，期间会多次swap；同时有线程不断读取，读到的值不会混杂不同版本，结束后每个key都是最后一次写入的值
+     */
+    @Test
+    public void testConcurrentCoalescedOverwrites() throws Exception {
+        ReentrantCacheFile<Long> cacheFile = new ReentrantCacheFile<>(dir.getAbsolutePath() + "/test.data",
+                64 * 1024, 4096);
+        int threads = 4;
+        int keysPerThread = 16;
+        int rounds = 200;
+        int[] lengths = {32, 32, 48, 32, 0, 64};
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long base = t * keysPerThread;
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int round = 0; round < rounds; round++) {
+                    for (long key = base; key < base + keysPerThread; key++) {
+                        cacheFile.put(key, value(round, lengths[(int) ((round + key) % lengths.length)]));
+                    }
+                    if (round % 50 == 25) {
+                        cacheFile.remove(base);
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        List<Throwable> readErrors = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (writing.get()) {
+                    for (long key = 0; key < threads * keysPerThread; key++) {
+                        byte[] data = cacheFile.get(key);
+                        if (data == null || data.length == 0) {
+                            continue;
+                        }
+                        for (byte b : data) {
+                            Assert.assertEquals(data[0], b);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                readErrors.add(e);
+            }
+        });
+        reader.start();
+
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        reader.join();
+        Assert.assertTrue(readErrors.toString(), readErrors.isEmpty());
+
+        long usedBytes = 0;
+        int last = rounds - 1;
+        for (long key = 0; key < threads * keysPerThread; key++) {
+            byte[] expected = value(last, lengths[(int) ((last + key) % lengths.length)]);
+            Assert.assertArrayEquals(expected, cacheFile.get(key));
+            usedBytes += expected.length;
+        }
+        Assert.assertEquals(usedBytes, cacheFile.getUsedBytes());
+        cacheFile.close();
+    }
+
+    /**
+     * 已有数据超过2G的文件（稀疏文件）上继续写入，偏移量超过int范围后仍然可以读写
+     */
+    @Test
+    public void testOffsetsBeyond2G() throws Exception {
+        String path = dir.getAbsolutePath() + "/large.data";
+        long existing = 3L << 30;
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(existing);
+        }
+        ReentrantCacheFile<Long> cacheFile = new ReentrantCacheFile<>(path, 8L << 30, 64,
+                new ConcurrentHashMap<>(), 0);
+
+        byte[] small = value(1, 32);
+        byte[] large = value(2, 128);
+        cacheFile.put(1L, small);
+        cacheFile.put(2L, large);
+        cacheFile.flush();
+
+        Assert.assertEquals(existing, cacheFile.keyDirectory().get(1L).offset);
+        Assert.assertEquals(existing + small.length, cacheFile.keyDirectory().get(2L).offset);
+        Assert.assertArrayEquals(small, cacheFile.get(1L));
+        ByteBuffer dst = ByteBuffer.allocate(256);
+        Assert.assertEquals(large.length, cacheFile.get(2L, dst));
+        dst.flip();
+        byte[] read = new byte[dst.remaining()];
+        dst.get(read);
+        Assert.assertArrayEquals(large, read);
+        cacheFile.close();
+    }
+
+    /**
+     * 打开的值共用一个只读通道，swap之前打开的值仍然读取原文件，之后打开的读取新文件
+     */
+    @Test
+    public void testValueRegionsSurviveSwap() throws Exception {
+        ReentrantCacheFile<Long> cacheFile = new ReentrantCacheFile<>(dir.getAbsolutePath() + "/region.data",
+                4096, 256);
+        byte[] value = value(1, 100);
+        cacheFile.put(1L, value);
+        ValueRegion before = cacheFile.openValue(1L);
+        ValueRegion other = cacheFile.openValue(1L);
+
+        for (int round = 0; round < 200; round++) {
+            cacheFile.put(2L, value(round, 100));
+        }
+        ValueRegion after = cacheFile.openValue(1L);
+
+        Assert.assertArrayEquals(value, transfer(before));
+        other.close();
+        Assert.assertArrayEquals(value, transfer(after));
+        before.close();
+        after.close();
+        cacheFile.close();
+    }
+
+    private static byte[] transfer(ValueRegion region) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        while (region.remaining() > 0) {
+            region.transferTo(target);
+        }
+        return out.toByteArray();
+    }
+}
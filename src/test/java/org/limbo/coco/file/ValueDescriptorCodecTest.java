@@ -0,0 +1,38 @@
+package org.limbo.coco.file;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ValueDescriptorCodecTest {
+
+    private static ValueDescriptor roundTrip(ValueDescriptor vd) {
+        ByteBuffer buffer = ByteBuffer.allocate(ValueDescriptorCodec.INSTANCE.length());
+        ValueDescriptorCodec.INSTANCE.encode(vd, buffer);
+        Assert.assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        return ValueDescriptorCodec.INSTANCE.decode(buffer);
+    }
+
+    /**
+     * 超过int范围的偏移量按48位编码，高位和符号位都不会丢失
+     */
+    @Test
+    public void testRoundTrip() {
+        long[] offsets = {0, Integer.MAX_VALUE, 1L << 31, (1L << 32) + 7, 3L << 40, (1L << 48) - 1};
+        int[] lengths = {0, 1, Integer.MAX_VALUE};
+        for (long offset : offsets) {
+            for (int length : lengths) {
+                ValueDescriptor decoded = roundTrip(new ValueDescriptor(offset, length));
+                Assert.assertEquals(offset, decoded.offset);
+                Assert.assertEquals(length, decoded.length);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffsetBeyond48BitsRejected() {
+        roundTrip(new ValueDescriptor(1L << 48, 1));
+    }
+}
@@ -0,0 +1,87 @@
+package org.limbo.coco.file.directory;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.limbo.coco.file.CloseableIterator;
+import org.limbo.coco.file.ValueDescriptor;
+import org.limbo.coco.file.ValueDescriptorCodec;
+import org.limbo.coco.file.serializer.SerializerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class SpillableKeyDirectoryTest {
+
+    @Test
+    public void testSpillAndMerge() throws Exception {
+        Path dir = Files.createTempDirectory("coco_keys");
+        SpillableKeyDirectory<Long, ValueDescriptor> directory = new SpillableKeyDirectory<>(dir.resolve("keys"),
+                SerializerFactory.classJson(Long.class), ValueDescriptorCodec.INSTANCE, 1000, 4);
+
+        for (long i = 0; i < 20000; i++) {
+            directory.put(i, new ValueDescriptor(i, 1));
+        }
+        for (long i = 0; i < 20000; i += 2) {
+            directory.remove(i);
+        }
+
+        Assert.assertEquals(10000, directory.size());
+        Assert.assertTrue(directory.getSortedRunCount() <= 5);
+        Assert.assertNull(directory.get(10L));
+        Assert.assertFalse(directory.containsKey(30000L));
+        Assert.assertTrue(directory.containsKey(11L));
+        Assert.assertTrue(directory.get(19999L).toString().contains("19999"));
+
+        Set<Long> keys = new HashSet<>();
+        for (Map.Entry<Long, ValueDescriptor> entry : directory.entrySet()) {
+            Assert.assertEquals(1, entry.getKey() % 2);
+            keys.add(entry.getKey());
+        }
+        Assert.assertEquals(10000, keys.size());
+
+        directory.close();
+        Assert.assertFalse(dir.resolve("keys").toFile().exists());
+    }
+
+    /**
+     * 分层合并只重写较新的段，没有合并到最旧段的墓碑仍然遮住旧值；提前关闭的迭代器释放文件流
+     */
+    @Test
+    public void testTieredMergeAndIteratorClose() throws Exception {
+        Path dir = Files.createTempDirectory("coco_keys");
+        SpillableKeyDirectory<Long, ValueDescriptor> directory = new SpillableKeyDirectory<>(dir.resolve("keys"),
+                SerializerFactory.classJson(Long.class), ValueDescriptorCodec.INSTANCE, 100, 3);
+
+        for (long i = 0; i < 5000; i++) {
+            directory.put(i, new ValueDescriptor(i, 1));
+            if (i % 10 == 9) {
+                directory.remove(i - 5);
+            }
+            Assert.assertTrue(directory.getSortedRunCount() <= 3);
+        }
+
+        Assert.assertEquals(4500, directory.size());
+        for (long i = 0; i < 5000; i++) {
+            Assert.assertEquals(i % 10 != 4, directory.containsKey(i));
+        }
+        Assert.assertTrue(directory.containsSerializedKey(SerializerFactory.classJson(Long.class).serialize(4999L)));
+
+        int iterated = 0;
+        for (Map.Entry<Long, ValueDescriptor> ignored : directory.entrySet()) {
+            iterated++;
+        }
+        Assert.assertEquals(4500, iterated);
+
+        CloseableIterator<Long> keys = directory.keyIterator();
+        Assert.assertTrue(keys.hasNext());
+        keys.next();
+        keys.close();
+        Assert.assertFalse(keys.hasNext());
+
+        directory.close();
+    }
+
+}
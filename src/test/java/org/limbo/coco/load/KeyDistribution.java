@@ -0,0 +1,98 @@
+package org.limbo.coco.load;
+
+import java.util.SplittableRandom;
+
+/**
+ * 压测时访问的key的分布，key的范围是 [0, recordCount)
+ */
+public interface KeyDistribution {
+
+    long nextKey(SplittableRandom random);
+
+    /**
+     * 均匀分布
+     */
+    static KeyDistribution uniform(long recordCount) {
+        return random -> random.nextLong(recordCount);
+    }
+
+    /**
+     * YCSB的打散Zipfian分布：按Zipfian分布选出排名，再把排名hash到整个key空间，热点key不会集中在key范围的开头；
+     * theta越大越集中，YCSB默认0.99
+     */
+    static KeyDistribution zipfian(long recordCount, double theta) {
+        return new ZipfianKeyDistribution(recordCount, theta);
+    }
+
+    /**
+     * 按名称创建，uniform 或 zipfian
+     */
+    static KeyDistribution of(String name, long recordCount, double zipfianTheta) {
+        switch (name) {
+            case "uniform":
+                return uniform(recordCount);
+            case "zipfian":
+                return zipfian(recordCount, zipfianTheta);
+            default:
+                throw new IllegalArgumentException("Unknown key distribution " + name);
+        }
+    }
+
+    /**
+     * Gray等人的 Quickly Generating Billion-Record Synthetic Databases 中的Zipfian生成算法，与YCSB的实现相同
+     */
+    class ZipfianKeyDistribution implements KeyDistribution {
+
+        private final long items;
+
+        private final double theta;
+
+        private final double alpha;
+
+        private final double zetan;
+
+        private final double eta;
+
+        ZipfianKeyDistribution(long items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(items, theta);
+            double zeta2 = zeta(2, theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        @Override
+        public long nextKey(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+            }
+            return Math.floorMod(fnv64(Math.min(rank, items - 1)), items);
+        }
+
+        private static long fnv64(long value) {
+            long hash = 0xCBF29CE484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= value & 0xff;
+                hash *= 0x100000001B3L;
+                value >>>= 8;
+            }
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.limbo.coco.load;
+
+import java.util.Arrays;
+
+/**
+ * HDR风格的延迟直方图，单位纳秒；小于2048的值精确记录，更大的值按2的幂分段，每段1024个桶，相对误差小于0.1%；
+ * 超过 {@link #MAX_TRACKABLE} 的值按最大值记录。记录和读取都加锁，由一个压测线程和报告线程共用。
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 11;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+
+    /**
+     * 能够区分的最大延迟，约18分钟
+     */
+    public static final long MAX_TRACKABLE = (1L << 40) - 1;
+
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (40 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    private long totalCount;
+
+    private long sum;
+
+    private long max;
+
+    public synchronized void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_TRACKABLE);
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * 把other的记录累加到当前直方图
+     */
+    public void add(LatencyHistogram other) {
+        long[] otherCounts;
+        long otherTotal;
+        long otherSum;
+        long otherMax;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherTotal = other.totalCount;
+            otherSum = other.sum;
+            otherMax = other.max;
+        }
+        synchronized (this) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += otherCounts[i];
+            }
+            totalCount += otherTotal;
+            sum += otherSum;
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    /**
+     * 把记录累加到target后清空当前直方图，用于按时间段统计
+     */
+    public void drainTo(LatencyHistogram target) {
+        synchronized (this) {
+            synchronized (target) {
+                for (int i = 0; i < counts.length; i++) {
+                    target.counts[i] += counts[i];
+                }
+                target.totalCount += totalCount;
+                target.sum += sum;
+                target.max = Math.max(target.max, max);
+            }
+            reset();
+        }
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public synchronized long getTotalCount() {
+        return totalCount;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    /**
+     * 第percentile百分位的延迟，返回所在桶的上界
+     *
+     * @param percentile 0~100
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return (subBucket << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,348 @@
+package org.limbo.coco.load;
+
+import org.limbo.coco.Cache;
+import org.limbo.coco.IndexBuilder;
+import org.limbo.coco.file.CacheFileEngine;
+import org.limbo.coco.file.DiskCache;
+import org.limbo.coco.file.DiskCacheConfiguration;
+import org.limbo.coco.file.serializer.ValueSerializer;
+import org.limbo.coco.memory.LongMapCache;
+import org.limbo.coco.memory.MapCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * YCSB风格的缓存压测工具，可以压测任意 {@link Cache} 实现：
+ * 先写入 recordCount 条数据，再由多个线程按配置的比例执行读、写、删除和索引查询，
+ * 每个报告间隔输出一次吞吐量和延迟分位数，最大延迟超过阈值的间隔标记为卡顿（如缓存文件交换期间），
+ * 结束后输出每种操作的 p50/p99/p99.9 延迟。
+ * <p>
+ * value是随机长度的字节数组，前4个字节是索引值 key % indexGroups。
+ * <pre>
+ * java org.limbo.coco.load.LoadGenerator cache=disk dir=/data/cache engine=REENTRANT \
+ *     recordCount=1000000 threads=8 targetOpsPerSecond=200000 readProportion=0.8 writeProportion=0.2 valueSize=100-4000
+ * </pre>
+ * cache 可选 map、longmap、disk，其余参数见 {@link Workload} 的字段。
+ */
+public class LoadGenerator {
+
+    public static final String INDEX_NAME = "group";
+
+    private static final int MIN_VALUE_SIZE = 4;
+
+    public enum Operation {
+        READ, WRITE, REMOVE, INDEX_QUERY
+    }
+
+    private final Workload workload;
+
+    private final KeyDistribution keys;
+
+    private final ValueSizeDistribution valueSizes;
+
+    private final AtomicLong errors = new AtomicLong(0);
+
+    private volatile boolean stopped = false;
+
+    public LoadGenerator(Workload workload) {
+        this.workload = workload;
+        this.keys = KeyDistribution.of(workload.getKeyDistribution(), workload.getRecordCount(), workload.getZipfianTheta());
+        this.valueSizes = ValueSizeDistribution.parse(workload.getValueSize());
+    }
+
+    /**
+     * 按value前4个字节建立的索引，被压测的缓存需要添加该索引才能执行索引查询
+     */
+    public static IndexBuilder<byte[]> indexBuilder() {
+        return new IndexBuilder<byte[]>() {
+            @Override
+            public String name() {
+                return INDEX_NAME;
+            }
+
+            @Override
+            public Object buildIndex(byte[] value) {
+                return ByteBuffer.wrap(value).getInt();
+            }
+        };
+    }
+
+    public static ValueSerializer<byte[]> bytesSerializer() {
+        return new ValueSerializer<byte[]>() {
+            @Override
+            public byte[] serialize(byte[] value) {
+                return value;
+            }
+
+            @Override
+            public byte[] deserialize(byte[] data) {
+                return data;
+            }
+        };
+    }
+
+    /**
+     * 写入初始数据后执行压测
+     *
+     * @return 每种操作整个压测期间的延迟
+     */
+    public Map<Operation, LatencyHistogram> run(Cache<Long, byte[]> cache) throws InterruptedException {
+        System.out.println("workload: " + workload);
+        load(cache);
+
+        int threads = workload.getThreads();
+        List<Map<Operation, LatencyHistogram>> recorders = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            recorders.add(histograms());
+        }
+
+        CountDownLatch finished = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            int worker = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    runWorker(cache, worker, start, recorders.get(worker));
+                } finally {
+                    finished.countDown();
+                }
+            }, "coco-load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Map<Operation, LatencyHistogram> total = histograms();
+        report(recorders, total, finished, start);
+        printSummary(total, System.nanoTime() - start);
+        return total;
+    }
+
+    private void load(Cache<Long, byte[]> cache) {
+        long start = System.nanoTime();
+        SplittableRandom random = new SplittableRandom(workload.getSeed());
+        for (long key = 0; key < workload.getRecordCount(); key++) {
+            cache.put(key, newValue(key, random));
+        }
+        System.out.printf("loaded %d records in %d ms%n", workload.getRecordCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void runWorker(Cache<Long, byte[]> cache, int worker, long start, Map<Operation, LatencyHistogram> recorder) {
+        SplittableRandom random = new SplittableRandom(workload.getSeed() + worker + 1);
+        long operations = workload.getOperationCount() > 0
+                ? workload.getOperationCount() / workload.getThreads() + (worker < workload.getOperationCount() % workload.getThreads() ? 1 : 0)
+                : Long.MAX_VALUE;
+        long deadline = start + TimeUnit.SECONDS.toNanos(workload.getDurationSeconds());
+        long intervalNanos = workload.getTargetOpsPerSecond() > 0
+                ? TimeUnit.SECONDS.toNanos(workload.getThreads()) / workload.getTargetOpsPerSecond() : 0;
+        long scheduled = start;
+
+        for (long done = 0; done < operations && !stopped; done++) {
+            long intended;
+            if (intervalNanos > 0) {
+                intended = scheduled;
+                scheduled += intervalNanos;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                intended = System.nanoTime();
+            }
+            if (workload.getOperationCount() == 0 && intended - deadline >= 0) {
+                break;
+            }
+
+            Operation operation = nextOperation(random);
+            try {
+                execute(cache, operation, random);
+            } catch (RuntimeException e) {
+                if (errors.getAndIncrement() == 0) {
+                    e.printStackTrace();
+                }
+            }
+            recorder.get(operation).record(System.nanoTime() - intended);
+        }
+    }
+
+    private Operation nextOperation(SplittableRandom random) {
+        double p = random.nextDouble();
+        if ((p -= workload.getReadProportion()) < 0) {
+            return Operation.READ;
+        }
+        if ((p -= workload.getWriteProportion()) < 0) {
+            return Operation.WRITE;
+        }
+        if ((p -= workload.getRemoveProportion()) < 0) {
+            return Operation.REMOVE;
+        }
+        return workload.getIndexQueryProportion() > 0 ? Operation.INDEX_QUERY : Operation.READ;
+    }
+
+    private void execute(Cache<Long, byte[]> cache, Operation operation, SplittableRandom random) {
+        long key = keys.nextKey(random);
+        switch (operation) {
+            case READ:
+                cache.get(key);
+                break;
+            case WRITE:
+                cache.put(key, newValue(key, random));
+                break;
+            case REMOVE:
+                cache.remove(key);
+                break;
+            case INDEX_QUERY:
+                cache.getByIndex(INDEX_NAME, (int) (key % workload.getIndexGroups()));
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private byte[] newValue(long key, SplittableRandom random) {
+        byte[] value = new byte[Math.max(MIN_VALUE_SIZE, valueSizes.nextSize(random))];
+        ByteBuffer.wrap(value).putInt((int) (key % workload.getIndexGroups()));
+        return value;
+    }
+
+    /**
+     * 每个报告间隔汇总一次各线程的延迟，直到所有压测线程结束
+     */
+    private void report(List<Map<Operation, LatencyHistogram>> recorders, Map<Operation, LatencyHistogram> total,
+                        CountDownLatch finished, long start) throws InterruptedException {
+        System.out.println("  time    ops/s      p50(us)    p99(us)  p99.9(us)    max(us)");
+        long stallThreshold = TimeUnit.MILLISECONDS.toNanos(workload.getStallThresholdMillis());
+        int stalls = 0;
+        long last = start;
+        boolean done = false;
+        while (!done) {
+            done = finished.await(workload.getReportIntervalMillis(), TimeUnit.MILLISECONDS);
+            long now = System.nanoTime();
+
+            Map<Operation, LatencyHistogram> interval = histograms();
+            for (Map<Operation, LatencyHistogram> recorder : recorders) {
+                for (Operation operation : Operation.values()) {
+                    recorder.get(operation).drainTo(interval.get(operation));
+                }
+            }
+            LatencyHistogram all = new LatencyHistogram();
+            for (Operation operation : Operation.values()) {
+                all.add(interval.get(operation));
+                total.get(operation).add(interval.get(operation));
+            }
+            if (all.getTotalCount() == 0 && done) {
+                break;
+            }
+
+            boolean stall = all.getMax() >= stallThreshold;
+            stalls += stall ? 1 : 0;
+            System.out.printf("%5.1fs %9.0f %10.1f %10.1f %10.1f %10.1f%s%n",
+                    (now - start) / 1e9, all.getTotalCount() * 1e9 / Math.max(1, now - last),
+                    micros(all.getValueAtPercentile(50)), micros(all.getValueAtPercentile(99)),
+                    micros(all.getValueAtPercentile(99.9)), micros(all.getMax()), stall ? "  STALL" : "");
+            last = now;
+        }
+        System.out.println("stalled intervals: " + stalls + ", errors: " + errors.get());
+    }
+
+    private void printSummary(Map<Operation, LatencyHistogram> total, long elapsedNanos) {
+        System.out.println("operation        count      ops/s    mean(us)     p50(us)     p99(us)   p99.9(us)     max(us)");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = total.get(operation);
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            System.out.printf("%-11s %10d %10.0f %11.1f %11.1f %11.1f %11.1f %11.1f%n", operation,
+                    histogram.getTotalCount(), histogram.getTotalCount() * 1e9 / elapsedNanos,
+                    histogram.getMean() / 1000, micros(histogram.getValueAtPercentile(50)),
+                    micros(histogram.getValueAtPercentile(99)), micros(histogram.getValueAtPercentile(99.9)),
+                    micros(histogram.getMax()));
+        }
+    }
+
+    /**
+     * 提前结束压测
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    private static Map<Operation, LatencyHistogram> histograms() {
+        Map<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, new LatencyHistogram());
+        }
+        return histograms;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Workload workload = new Workload();
+        String cacheType = "map";
+        String dir = System.getProperty("java.io.tmpdir") + "/coco-load";
+        String engine = CacheFileEngine.REENTRANT.name();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Argument should be name=value: " + arg);
+            }
+            String name = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "cache":
+                    cacheType = value;
+                    break;
+                case "dir":
+                    dir = value;
+                    break;
+                case "engine":
+                    engine = value;
+                    break;
+                default:
+                    workload.apply(name, value);
+            }
+        }
+
+        Cache<Long, byte[]> cache;
+        switch (cacheType) {
+            case "map":
+                MapCache<Long, byte[]> mapCache = new MapCache<>();
+                mapCache.addIndex(indexBuilder());
+                cache = mapCache;
+                break;
+            case "longmap":
+                LongMapCache<byte[]> longMapCache = new LongMapCache<>();
+                longMapCache.addIndex(indexBuilder());
+                cache = longMapCache;
+                break;
+            case "disk":
+                cache = new DiskCache<>(new DiskCacheConfiguration<Long, byte[]>()
+                        .setDirectory(dir)
+                        .setName("load")
+                        .setValueSerializer(bytesSerializer())
+                        .setCacheFileEngine(CacheFileEngine.valueOf(engine))
+                        .addIndex(indexBuilder()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown cache " + cacheType);
+        }
+
+        try {
+            new LoadGenerator(workload).run(cache);
+        } finally {
+            cache.close();
+        }
+    }
+}
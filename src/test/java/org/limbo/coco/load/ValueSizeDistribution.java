@@ -0,0 +1,45 @@
+package org.limbo.coco.load;
+
+import java.util.SplittableRandom;
+
+/**
+ * 压测写入的value长度的分布，单位字节
+ */
+public interface ValueSizeDistribution {
+
+    int nextSize(SplittableRandom random);
+
+    static ValueSizeDistribution constant(int size) {
+        return random -> size;
+    }
+
+    /**
+     * [min, max] 之间的均匀分布
+     */
+    static ValueSizeDistribution uniform(int min, int max) {
+        return random -> min + random.nextInt(max - min + 1);
+    }
+
+    /**
+     * 大部分value较小、少量value很大的双峰分布，largeRatio为大value的比例
+     */
+    static ValueSizeDistribution bimodal(int small, int large, double largeRatio) {
+        return random -> random.nextDouble() < largeRatio ? large : small;
+    }
+
+    /**
+     * 按描述创建：固定长度 "100"，均匀分布 "100-1000"，双峰分布 "100|10000@0.01"
+     */
+    static ValueSizeDistribution parse(String spec) {
+        int at = spec.indexOf('@');
+        if (at > 0) {
+            String[] sizes = spec.substring(0, at).split("\\|");
+            return bimodal(Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1]), Double.parseDouble(spec.substring(at + 1)));
+        }
+        int dash = spec.indexOf('-');
+        if (dash > 0) {
+            return uniform(Integer.parseInt(spec.substring(0, dash)), Integer.parseInt(spec.substring(dash + 1)));
+        }
+        return constant(Integer.parseInt(spec));
+    }
+}
@@ -0,0 +1,175 @@
+package org.limbo.coco.load;
+
+import lombok.Getter;
+
+import java.lang.reflect.Field;
+
+/**
+ * 压测负载的配置，各操作的比例之和应为1
+ */
+@Getter
+public class Workload {
+
+    /** 预先写入的条目数，压测访问的key范围是 [0, recordCount) */
+    private long recordCount = 100000;
+
+    /** 总操作数，为0时按 durationSeconds 运行 */
+    private long operationCount = 0;
+
+    /** 运行时长 */
+    private int durationSeconds = 30;
+
+    /** 压测线程数 */
+    private int threads = 4;
+
+    /**
+     * 目标吞吐量，大于0时为开环压测：按固定间隔安排每个操作的开始时间，延迟从计划开始时间算起，
+     * 缓存卡顿时排队的操作也会计入延迟；为0时为闭环压测，每个线程完成一个操作后立即开始下一个
+     */
+    private long targetOpsPerSecond = 0;
+
+    private double readProportion = 0.9;
+
+    private double writeProportion = 0.1;
+
+    private double removeProportion = 0;
+
+    /** 按索引查询的比例，被压测的缓存需要有名为 {@link LoadGenerator#INDEX_NAME} 的索引 */
+    private double indexQueryProportion = 0;
+
+    /** key的分布，uniform 或 zipfian */
+    private String keyDistribution = "zipfian";
+
+    private double zipfianTheta = 0.99;
+
+    /** value长度的分布，见 {@link ValueSizeDistribution#parse(String)} */
+    private String valueSize = "100";
+
+    /** 索引值的个数，key按取模分组 */
+    private int indexGroups = 1000;
+
+    /** 吞吐量和延迟的报告间隔 */
+    private long reportIntervalMillis = 1000;
+
+    /** 一个报告间隔内的最大延迟超过该值时标记为卡顿 */
+    private long stallThresholdMillis = 50;
+
+    private long seed = 42;
+
+    public Workload setRecordCount(long recordCount) {
+        this.recordCount = recordCount;
+        return this;
+    }
+
+    public Workload setOperationCount(long operationCount) {
+        this.operationCount = operationCount;
+        return this;
+    }
+
+    public Workload setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    public Workload setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public Workload setTargetOpsPerSecond(long targetOpsPerSecond) {
+        this.targetOpsPerSecond = targetOpsPerSecond;
+        return this;
+    }
+
+    public Workload setReadProportion(double readProportion) {
+        this.readProportion = readProportion;
+        return this;
+    }
+
+    public Workload setWriteProportion(double writeProportion) {
+        this.writeProportion = writeProportion;
+        return this;
+    }
+
+    public Workload setRemoveProportion(double removeProportion) {
+        this.removeProportion = removeProportion;
+        return this;
+    }
+
+    public Workload setIndexQueryProportion(double indexQueryProportion) {
+        this.indexQueryProportion = indexQueryProportion;
+        return this;
+    }
+
+    public Workload setKeyDistribution(String keyDistribution) {
+        this.keyDistribution = keyDistribution;
+        return this;
+    }
+
+    public Workload setZipfianTheta(double zipfianTheta) {
+        this.zipfianTheta = zipfianTheta;
+        return this;
+    }
+
+    public Workload setValueSize(String valueSize) {
+        this.valueSize = valueSize;
+        return this;
+    }
+
+    public Workload setIndexGroups(int indexGroups) {
+        this.indexGroups = indexGroups;
+        return this;
+    }
+
+    public Workload setReportIntervalMillis(long reportIntervalMillis) {
+        this.reportIntervalMillis = reportIntervalMillis;
+        return this;
+    }
+
+    public Workload setStallThresholdMillis(long stallThresholdMillis) {
+        this.stallThresholdMillis = stallThresholdMillis;
+        return this;
+    }
+
+    public Workload setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * 按 name=value 形式的参数覆盖配置，name为字段名，不认识的参数原样忽略，由调用方处理
+     */
+    public Workload apply(String name, String value) {
+        Field field;
+        try {
+            field = Workload.class.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            return this;
+        }
+        try {
+            Class<?> type = field.getType();
+            if (type == long.class) {
+                field.setLong(this, Long.parseLong(value));
+            } else if (type == int.class) {
+                field.setInt(this, Integer.parseInt(value));
+            } else if (type == double.class) {
+                field.setDouble(this, Double.parseDouble(value));
+            } else {
+                field.set(this, value);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "recordCount=" + recordCount + " threads=" + threads
+                + (operationCount > 0 ? " operationCount=" + operationCount : " durationSeconds=" + durationSeconds)
+                + " targetOpsPerSecond=" + (targetOpsPerSecond > 0 ? targetOpsPerSecond : "unlimited")
+                + " read/write/remove/index=" + readProportion + "/" + writeProportion + "/" + removeProportion + "/" + indexQueryProportion
+                + " keys=" + keyDistribution + ("zipfian".equals(keyDistribution) ? "(" + zipfianTheta + ")" : "")
+                + " valueSize=" + valueSize;
+    }
+}
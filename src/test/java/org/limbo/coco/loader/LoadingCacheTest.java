@@ -0,0 +1,152 @@
+package org.limbo.coco.loader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.limbo.coco.memory.MapCache;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoadingCacheTest {
+
+    /**
+     * 加载器在 started 后等待 release，用于在加载期间插入写入
+     */
+    private static class BlockingLoader implements CacheLoader<Long, String> {
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final AtomicInteger loads = new AtomicInteger(0);
+
+        @Override
+        public String load(Long key) throws Exception {
+            loads.incrementAndGet();
+            started.countDown();
+            release.await();
+            return "loaded" + key;
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        BlockingLoader loader = new BlockingLoader();
+        LoadingCache<Long, String> cache = new LoadingCache<>(new MapCache<>(), loader);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> cache.get(1L)));
+        }
+        loader.started.await();
+        Thread.sleep(50);
+        loader.release.countDown();
+        for (Future<String> result : results) {
+            Assert.assertEquals("loaded1", result.get());
+        }
+        Assert.assertEquals(1, loader.loads.get());
+        executor.shutdown();
+    }
+
+    /**
+     * 加载期间put的值不会被加载结果覆盖
+     */
+    @Test
+    public void testPutDuringLoadWins() throws Exception {
+        BlockingLoader loader = new BlockingLoader();
+        LoadingCache<Long, String> cache = new LoadingCache<>(new MapCache<>(), loader);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> result = executor.submit(() -> cache.get(1L));
+        loader.started.await();
+        cache.put(1L, "put");
+        loader.release.countDown();
+
+        Assert.assertEquals("put", result.get());
+        Assert.assertEquals("put", cache.getIfPresent(1L));
+        executor.shutdown();
+    }
+
+    /**
+     * 加载期间remove的key不会被加载结果重新写入
+     */
+    @Test
+    public void testRemoveDuringLoadWins() throws Exception {
+        BlockingLoader loader = new BlockingLoader();
+        LoadingCache<Long, String> cache = new LoadingCache<>(new MapCache<>(), loader);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Map<Long, String>> result = executor.submit(() -> cache.getAll(Arrays.asList(1L, 2L)));
+        loader.started.await();
+        cache.remove(1L);
+        loader.release.countDown();
+
+        Map<Long, String> loaded = result.get();
+        Assert.assertFalse(loaded.containsKey(1L));
+        Assert.assertEquals("loaded2", loaded.get(2L));
+        Assert.assertNull(cache.getIfPresent(1L));
+        Assert.assertEquals("loaded2", cache.getIfPresent(2L));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testAbsentKeysAndLoadFailure() {
+        AtomicInteger loads = new AtomicInteger(0);
+        LoadingCache<Long, String> cache = new LoadingCache<Long, String>(new MapCache<>(), key -> {
+            loads.incrementAndGet();
+            if (key < 0) {
+                throw new IllegalArgumentException("negative");
+            }
+            return null;
+        }).setAbsentKeyTtl(1, TimeUnit.MINUTES);
+
+        Assert.assertNull(cache.get(1L));
+        Assert.assertNull(cache.get(1L));
+        Assert.assertEquals(1, loads.get());
+        cache.put(1L, "put");
+        Assert.assertEquals("put", cache.get(1L));
+
+        try {
+            cache.get(-1L);
+            Assert.fail();
+        } catch (CacheLoadException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    /**
+     * 距上次写入超过刷新时间后读取，立即返回旧值并在后台刷新
+     */
+    @Test
+    public void testRefreshAfterWrite() throws Exception {
+        AtomicInteger reloads = new AtomicInteger(0);
+        LoadingCache<Long, String> cache = new LoadingCache<Long, String>(new MapCache<>(),
+                key -> "reloaded" + reloads.incrementAndGet())
+                .setRefreshAfterWrite(10, TimeUnit.MILLISECONDS);
+        cache.put(1L, "put");
+        Thread.sleep(20);
+        Assert.assertEquals("put", cache.get(1L));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cache.getIfPresent(1L).startsWith("reloaded") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals("reloaded1", cache.getIfPresent(1L));
+        cache.close();
+    }
+
+    /**
+     * 被包装的缓存淘汰的key不经过本缓存，它们的写入时间会被清理，不会无限增长
+     */
+    @Test
+    public void testWriteTimesOfEvictedKeysPruned() {
+        MapCache<Long, String> mapCache = new MapCache<>("16k");
+        LoadingCache<Long, String> cache = new LoadingCache<Long, String>(mapCache, key -> null)
+                .setRefreshAfterWrite(1, TimeUnit.HOURS);
+        for (long i = 0; i < 50000; i++) {
+            cache.put(i, "v" + i);
+        }
+        Assert.assertTrue(mapCache.getSize() < 1000);
+        Assert.assertTrue(String.valueOf(cache.getWriteTimeCount()), cache.getWriteTimeCount() <= 2048 + 1);
+        cache.close();
+    }
+}
@@ -0,0 +1,334 @@
+package org.limbo.coco.memory;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.limbo.coco.IndexBuilder;
+import org.limbo.coco.file.serializer.ValueSerializer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MapCacheTest {
+
+    private static IndexBuilder<String> lengthIndex() {
+        return new IndexBuilder<String>() {
+            @Override
+            public String name() {
+                return "length";
+            }
+
+            @Override
+            public Object buildIndex(String value) {
+                return value.length();
+            }
+        };
+    }
+
+    /**
+     * null值会让 compute 移除key，因此直接拒绝，不能留下指向不存在的key的索引
+     */
+    @Test
+    public void testPutNullRejected() {
+        MapCache<Long, String> cache = new MapCache<>();
+        cache.addIndex(lengthIndex());
+        cache.put(1L, "abc");
+        try {
+            cache.put(1L, null);
+            Assert.fail();
+        } catch (NullPointerException e) {
+            // expected
+        }
+        Assert.assertEquals("abc", cache.get(1L));
+        Assert.assertEquals(1, cache.countByIndex("length", 3));
+    }
+
+    /**
+     * 多个线程并发覆盖和移除同一批key，结束后索引和数据一致
+     */
+    @Test
+    public void testConcurrentPutRemoveKeepsIndex() throws Exception {
+        MapCache<Long, String> cache = new MapCache<>();
+        cache.addIndex(lengthIndex());
+        int threads = 4;
+        int keys = 500;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int round = 0; round < 20; round++) {
+                    for (long key = 0; key < keys; key++) {
+                        if ((key + round + id) % 5 == 0) {
+                            cache.remove(key);
+                        } else {
+                            cache.put(key, repeat(id + 1));
+                        }
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        int[] counts = new int[threads + 1];
+        for (long key = 0; key < keys; key++) {
+            String value = cache.get(key);
+            if (value != null) {
+                counts[value.length()]++;
+            }
+        }
+        int indexed = 0;
+        for (int length = 1; length <= threads; length++) {
+            Assert.assertEquals(counts[length], cache.countByIndex("length", length));
+            indexed += counts[length];
+        }
+        Assert.assertEquals(cache.getSize(), indexed);
+    }
+
+    /**
+     * 每个对象都按100字节估算，每个条目占 100 + 100 + 128 字节
+     */
+    private static final ObjectSizeEstimator FIXED_SIZE = obj -> obj == null ? 0 : 100;
+
+    private static final long ENTRY_BYTES = 328;
+
+    /**
+     * 移除后重新写入的key排到队尾，不会因为之前的队列条目被提前淘汰
+     */
+    @Test
+    public void testReAddedKeyNotEvictedEarly() {
+        MapCache<Long, String> cache = new MapCache<>(ENTRY_BYTES * 10, FIXED_SIZE);
+        for (long key = 0; key < 10; key++) {
+            cache.put(key, "v" + key);
+        }
+        cache.remove(0L);
+        cache.put(0L, "v0");
+        cache.put(10L, "v10");
+
+        Assert.assertEquals(10, cache.getSize());
+        Assert.assertTrue(cache.contains(0L));
+        Assert.assertFalse(cache.contains(1L));
+    }
+
+    /**
+     * 大量移除触发淘汰队列的清理后，剩下的key仍按写入顺序淘汰
+     */
+    @Test
+    public void testEvictionOrderKeptAfterCompaction() {
+        MapCache<Long, String> cache = new MapCache<>(ENTRY_BYTES * 101, FIXED_SIZE);
+        // 倒序写入，与 ConcurrentHashMap 的遍历顺序不同
+        for (long key = 99; key >= 0; key--) {
+            cache.put(key, "v" + key);
+        }
+        for (long key = 1000; key < 4000; key++) {
+            cache.put(key, "v" + key);
+            cache.remove(key);
+        }
+        for (long key = 200; key < 250; key++) {
+            cache.put(key, "v" + key);
+        }
+
+        Assert.assertEquals(101, cache.getSize());
+        for (long key = 0; key < 100; key++) {
+            Assert.assertEquals(String.valueOf(key), key <= 50, cache.contains(key));
+        }
+        for (long key = 200; key < 250; key++) {
+            Assert.assertTrue(cache.contains(key));
+        }
+    }
+
+    /**
+     * JDK9 以上只包含 Latin-1 字符的字符串每个字符按1个字节估算
+     */
+    @Test
+    public void testStringEstimateByCoder() {
+        String latin1 = repeat(1000);
+        String utf16 = latin1.replace('x', '\u4e2d');
+        long latin1Bytes = ReflectiveObjectSizeEstimator.INSTANCE.estimate(latin1);
+        long utf16Bytes = ReflectiveObjectSizeEstimator.INSTANCE.estimate(utf16);
+        if (System.getProperty("java.specification.version").startsWith("1.")) {
+            Assert.assertEquals(utf16Bytes, latin1Bytes);
+        } else {
+            Assert.assertEquals(1000, utf16Bytes - latin1Bytes);
+        }
+    }
+
+    private static final ValueSerializer<Long> LONG_SERIALIZER = new ValueSerializer<Long>() {
+        @Override
+        public byte[] serialize(Long value) {
+            return ByteBuffer.allocate(8).putLong(value).array();
+        }
+
+        @Override
+        public Long deserialize(byte[] data) {
+            return ByteBuffer.wrap(data).getLong();
+        }
+    };
+
+    private static final ValueSerializer<String> STRING_SERIALIZER = new ValueSerializer<String>() {
+        @Override
+        public byte[] serialize(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * 快照超过一个数据块，恢复后条目和写入时一致
+     */
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        Path dir = Files.createTempDirectory("coco_snapshot");
+        try {
+            Path file = dir.resolve("cache.snapshot");
+            MapCache<Long, String> cache = new MapCache<>();
+            int entries = 20000;
+            for (long key = 0; key < entries; key++) {
+                cache.put(key, key + "-" + repeat((int) (key % 500)));
+            }
+            Assert.assertEquals(entries, cache.snapshot(file, LONG_SERIALIZER, STRING_SERIALIZER));
+
+            MapCache<Long, String> restored = new MapCache<>();
+            Assert.assertEquals(entries, restored.restore(file, LONG_SERIALIZER, STRING_SERIALIZER));
+            Assert.assertEquals(entries, restored.getSize());
+            for (long key = 0; key < entries; key++) {
+                Assert.assertEquals(cache.get(key), restored.get(key));
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir.toFile());
+        }
+    }
+
+    /**
+     * 记录 buildIndex 调用次数的首字符索引
+     */
+    private static IndexBuilder<String> firstCharIndex(AtomicInteger builds) {
+        return new IndexBuilder<String>() {
+            @Override
+            public String name() {
+                return "first";
+            }
+
+            @Override
+            public Object buildIndex(String value) {
+                builds.incrementAndGet();
+                return value.substring(0, 1);
+            }
+        };
+    }
+
+    private static MapCache<Long, String> indexedCache(AtomicInteger builds) {
+        MapCache<Long, String> cache = new MapCache<>();
+        cache.addIndex(lengthIndex());
+        cache.addIndex(firstCharIndex(builds));
+        return cache;
+    }
+
+    private static void assertSameIndices(MapCache<Long, String> expected, MapCache<Long, String> actual) {
+        for (int length = 0; length < 20; length++) {
+            Assert.assertEquals(expected.countByIndex("length", length), actual.countByIndex("length", length));
+            Assert.assertEquals(new HashSet<>(expected.getByIndex("length", length)),
+                    new HashSet<>(actual.getByIndex("length", length)));
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            String attr = String.valueOf(c);
+            Assert.assertEquals(new HashSet<>(expected.getByIndex("first", attr)),
+                    new HashSet<>(actual.getByIndex("first", attr)));
+        }
+    }
+
+    /**
+     * 快照带有索引文件时，恢复后的索引从索引文件加载，不调用 buildIndex，结果和原缓存一致；
+     * 加载的索引在之后的覆盖和移除中照常维护
+     */
+    @Test
+    public void testRestoreIndicesFromSidecar() throws Exception {
+        Path dir = Files.createTempDirectory("coco_snapshot");
+        try {
+            Path file = dir.resolve("cache.snapshot");
+            MapCache<Long, String> cache = indexedCache(new AtomicInteger());
+            for (long key = 0; key < 5000; key++) {
+                cache.put(key, key + repeat((int) (key % 7)));
+            }
+            cache.snapshot(file, LONG_SERIALIZER, STRING_SERIALIZER);
+            Assert.assertTrue(Files.exists(file.resolveSibling("cache.snapshot.idx")));
+
+            AtomicInteger builds = new AtomicInteger();
+            MapCache<Long, String> restored = indexedCache(builds);
+            Assert.assertEquals(5000, restored.restore(file, LONG_SERIALIZER, STRING_SERIALIZER));
+            Assert.assertEquals(0, builds.get());
+            assertSameIndices(cache, restored);
+
+            cache.put(1L, "9abc");
+            restored.put(1L, "9abc");
+            cache.remove(2L);
+            restored.remove(2L);
+            assertSameIndices(cache, restored);
+        } finally {
+            FileUtils.deleteQuietly(dir.toFile());
+        }
+    }
+
+    /**
+     * 索引文件属于之前的快照时被忽略，恢复时照常构建索引
+     */
+    @Test
+    public void testRestoreIgnoresStaleSidecar() throws Exception {
+        Path dir = Files.createTempDirectory("coco_snapshot");
+        try {
+            Path file = dir.resolve("cache.snapshot");
+            Path indexFile = file.resolveSibling("cache.snapshot.idx");
+            Path staleIndexFile = dir.resolve("stale.idx");
+            MapCache<Long, String> cache = indexedCache(new AtomicInteger());
+            for (long key = 0; key < 1000; key++) {
+                cache.put(key, key + repeat((int) (key % 7)));
+            }
+            cache.snapshot(file, LONG_SERIALIZER, STRING_SERIALIZER);
+            Files.copy(indexFile, staleIndexFile);
+
+            for (long key = 0; key < 1000; key += 3) {
+                cache.put(key, "9" + key);
+            }
+            cache.snapshot(file, LONG_SERIALIZER, STRING_SERIALIZER);
+            Files.copy(staleIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+
+            AtomicInteger builds = new AtomicInteger();
+            MapCache<Long, String> restored = indexedCache(builds);
+            Assert.assertEquals(1000, restored.restore(file, LONG_SERIALIZER, STRING_SERIALIZER));
+            Assert.assertEquals(1000, builds.get());
+            assertSameIndices(cache, restored);
+        } finally {
+            FileUtils.deleteQuietly(dir.toFile());
+        }
+    }
+
+    private static String repeat(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package org.limbo.coco.primitive;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class LongObjectHashMapTest {
+
+    /**
+     * 随机写入和删除，与 HashMap 对照；key集中在较小范围内，删除后移填补空位的路径会被频繁走到
+     */
+    @Test
+    public void testRandomOpsMatchHashMap() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>(4);
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(5000) - 2500;
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = "v" + i;
+                Assert.assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+
+        Assert.assertEquals(expected.size(), map.size());
+        for (long key = -2500; key < 2500; key++) {
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        Assert.assertEquals(new TreeSet<>(expected.keySet()).toString(), toList(keys).toString());
+
+        Map<Long, String> visited = new HashMap<>();
+        map.forEach((value, key) -> visited.put(key, value));
+        Assert.assertEquals(expected, visited);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullValueRejected() {
+        new LongObjectHashMap<String>().put(1L, null);
+    }
+
+    @Test
+    public void testConcurrentMapSegments() throws Exception {
+        ConcurrentLongObjectMap<String> map = new ConcurrentLongObjectMap<>(8);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            long base = t * 10000L;
+            Thread thread = new Thread(() -> {
+                for (long key = base; key < base + 10000; key++) {
+                    map.put(key, "v" + key);
+                }
+                for (long key = base; key < base + 10000; key += 2) {
+                    map.remove(key);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(20000, map.size());
+        Assert.assertEquals(20000, map.entrySet().size());
+        Assert.assertEquals("v39999", map.get(39999L));
+        Assert.assertNull(map.get(39998L));
+        for (Map.Entry<Long, String> entry : map.entrySet()) {
+            Assert.assertEquals(1, entry.getKey() % 2);
+            Assert.assertEquals("v" + entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static List<Long> toList(long[] keys) {
+        List<Long> list = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,135 @@
+package org.limbo.coco.server;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.limbo.coco.file.DiskCache;
+import org.limbo.coco.file.DiskCacheConfiguration;
+import org.limbo.coco.file.serializer.SerializerFactory;
+import org.limbo.coco.file.serializer.ValueSerializer;
+import org.limbo.coco.memory.MapCache;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class CacheServerTest {
+
+    private static final ValueSerializer<Long> KEY_SERIALIZER = SerializerFactory.classJson(Long.class);
+
+    private static final ValueSerializer<String> VALUE_SERIALIZER = SerializerFactory.classJson(String.class);
+
+    private File dir;
+
+    private CacheServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_server").toFile();
+        server = new CacheServer(0).setWorkerThreads(2);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * 通过本机回环地址读写服务端的内存缓存
+     */
+    @Test
+    public void testRoundTrip() {
+        MapCache<Long, String> cache = new MapCache<>();
+        server.register("map", cache, KEY_SERIALIZER, VALUE_SERIALIZER).start();
+
+        try (RemoteCache<Long, String> remote = new RemoteCache<>(server.getLocalAddress(), "map",
+                KEY_SERIALIZER, VALUE_SERIALIZER)) {
+            Assert.assertFalse(remote.put(1L, "a"));
+            Assert.assertTrue(remote.put(1L, "b"));
+            Assert.assertFalse(remote.put(2L, "c"));
+            Assert.assertEquals("b", remote.get(1L));
+            Assert.assertEquals("b", cache.get(1L));
+            Assert.assertNull(remote.get(3L));
+            Assert.assertTrue(remote.contains(2L));
+            Assert.assertEquals(2, remote.getSize());
+
+            Map<Long, String> values = remote.getAll(Arrays.asList(1L, 2L, 3L));
+            Assert.assertEquals(2, values.size());
+            Assert.assertEquals("c", values.get(2L));
+
+            Assert.assertTrue(remote.remove(2L));
+            Assert.assertFalse(remote.remove(2L));
+            Assert.assertEquals(Arrays.asList(1L), remote.getKeys());
+        }
+    }
+
+    /**
+     * 访问未注册的缓存时服务端返回错误，连接仍然可用
+     */
+    @Test
+    public void testUnknownCache() {
+        server.register("map", new MapCache<>(), KEY_SERIALIZER, VALUE_SERIALIZER).start();
+
+        try (RemoteCache<Long, String> remote = new RemoteCache<>(server.getLocalAddress(), "missing",
+                KEY_SERIALIZER, VALUE_SERIALIZER)) {
+            try {
+                remote.get(1L);
+                Assert.fail();
+            } catch (RemoteCacheException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("missing"));
+            }
+            try {
+                remote.getSize();
+                Assert.fail();
+            } catch (RemoteCacheException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * 磁盘缓存的GET零拷贝发送，多个连接流水线并发读取时响应按请求顺序对应
+     */
+    @Test
+    public void testPipelinedZeroCopyGets() throws Exception {
+        DiskCache<Long, String> cache = new DiskCache<>(new DiskCacheConfiguration<Long, String>()
+                .setDirectory(dir.getAbsolutePath())
+                .setName("disk")
+                .setValueSerializer(VALUE_SERIALIZER));
+        int keys = 200;
+        for (long key = 0; key < keys; key++) {
+            cache.put(key, "value-" + key);
+        }
+        server.register("disk", cache, KEY_SERIALIZER, VALUE_SERIALIZER).start();
+
+        List<RemoteCache<Long, String>> clients = new ArrayList<>();
+        try {
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int c = 0; c < 4; c++) {
+                RemoteCache<Long, String> remote = new RemoteCache<>(server.getLocalAddress(), "disk",
+                        KEY_SERIALIZER, VALUE_SERIALIZER);
+                clients.add(remote);
+                for (int round = 0; round < 5; round++) {
+                    for (long key = 0; key < keys; key++) {
+                        futures.add(remote.getAsync(key));
+                    }
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertEquals("value-" + (i % keys), futures.get(i).get());
+            }
+        } finally {
+            for (RemoteCache<Long, String> remote : clients) {
+                remote.close();
+            }
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.limbo.coco.shared;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MemoryFencesTest {
+
+    /**
+     * 按seqlock的方式在堆外内存上传递数据：写线程先写数据再发布序号，读线程读到序号后读到的数据不会比序号旧
+     */
+    @Test
+    public void testFencesOrderPlainAccesses() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        int rounds = 200_000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(() -> {
+            try {
+                long last = 0;
+                while (last < rounds) {
+                    long seq = buffer.getLong(0);
+                    MemoryFences.loadFence();
+                    long data = buffer.getLong(8);
+                    Assert.assertTrue("data " + data + " older than seq " + seq, data >= seq);
+                    last = Math.max(last, seq);
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+
+        for (long i = 1; i <= rounds; i++) {
+            buffer.putLong(8, i);
+            MemoryFences.storeFence();
+            buffer.putLong(0, i);
+        }
+        reader.join(30_000);
+        Assert.assertFalse(reader.isAlive());
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
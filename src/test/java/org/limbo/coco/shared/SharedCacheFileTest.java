@@ -0,0 +1,169 @@
+package org.limbo.coco.shared;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class SharedCacheFileTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_shared_file").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void put(SharedCacheFile file, String key, String value) {
+        byte[] keyBytes = bytes(key);
+        int hash = SharedCacheFile.hash(keyBytes);
+        file.put(file.probe(keyBytes, hash), hash, keyBytes, value == null ? null : bytes(value));
+    }
+
+    private static String get(SharedCacheFile file, String key) {
+        byte[] keyBytes = bytes(key);
+        int record = file.findRecord(keyBytes, SharedCacheFile.hash(keyBytes));
+        if (record < 0) {
+            return null;
+        }
+        ByteBuffer value = file.value(record);
+        if (value == null) {
+            return "<null>";
+        }
+        byte[] data = new byte[value.remaining()];
+        value.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 写入、覆盖、删除时条数和存活字节数的统计，删除留下的槽位被后续写入复用
+     */
+    @Test
+    public void testPutRemoveAccounting() {
+        SharedCacheFile file = SharedCacheFile.create(dir.toPath().resolve("test.data"), 16, 4096);
+        put(file, "a", "1");
+        put(file, "b", null);
+        Assert.assertEquals(2, file.size());
+        Assert.assertEquals(SharedCacheFile.recordLength(bytes("a"), bytes("1"))
+                + SharedCacheFile.recordLength(bytes("b"), null), file.liveBytes());
+        Assert.assertEquals("1", get(file, "a"));
+        Assert.assertEquals("<null>", get(file, "b"));
+        Assert.assertNull(get(file, "c"));
+
+        put(file, "a", "longer value");
+        Assert.assertEquals(2, file.size());
+        Assert.assertEquals("longer value", get(file, "a"));
+        Assert.assertEquals(SharedCacheFile.recordLength(bytes("a"), bytes("longer value"))
+                + SharedCacheFile.recordLength(bytes("b"), null), file.liveBytes());
+
+        byte[] keyA = bytes("a");
+        int index = file.probe(keyA, SharedCacheFile.hash(keyA));
+        Assert.assertTrue(index >= 0);
+        file.remove(index);
+        Assert.assertEquals(1, file.size());
+        Assert.assertNull(get(file, "a"));
+        Assert.assertEquals(SharedCacheFile.recordLength(bytes("b"), null), file.liveBytes());
+        // 同一个key再次写入时复用已删除的槽位
+        Assert.assertEquals(-(index + 1), file.probe(keyA, SharedCacheFile.hash(keyA)));
+
+        long slot = file.readSlot(index);
+        Assert.assertEquals(SharedCacheFile.STATE_DELETED, SharedCacheFile.slotState(slot));
+        Assert.assertEquals(SharedCacheFile.hash(keyA), SharedCacheFile.slotHash(slot));
+    }
+
+    /**
+     * 重建时只复制存活的记录，复制后的文件数据区更紧凑；发布后原路径打开的是新文件
+     */
+    @Test
+    public void testCopyToAndPublish() {
+        Path path = dir.toPath().resolve("test.data");
+        SharedCacheFile old = SharedCacheFile.create(path.resolveSibling("old.tmp"), 64, 4096);
+        for (int i = 0; i < 30; i++) {
+            put(old, "k" + i, "v" + i);
+        }
+        for (int i = 0; i < 30; i += 3) {
+            byte[] key = bytes("k" + i);
+            old.remove(old.probe(key, SharedCacheFile.hash(key)));
+        }
+        put(old, "k1", null);
+        old.publish(path);
+
+        SharedCacheFile rebuilt = SharedCacheFile.create(path.resolveSibling("new.tmp"), 64, 4096);
+        old.copyTo(rebuilt);
+        Assert.assertEquals(old.size(), rebuilt.size());
+        Assert.assertEquals(old.liveBytes(), rebuilt.liveBytes());
+        rebuilt.publish(path);
+        old.markStale();
+        Assert.assertTrue(old.isStale());
+
+        SharedCacheFile reopened = SharedCacheFile.open(path, false);
+        Assert.assertFalse(reopened.isStale());
+        Assert.assertEquals(20, reopened.size());
+        for (int i = 0; i < 30; i++) {
+            String expected = i % 3 == 0 ? null : i == 1 ? "<null>" : "v" + i;
+            Assert.assertEquals(expected, get(reopened, "k" + i));
+        }
+    }
+
+    /**
+     * 数据区和槽位的容量判断
+     */
+    @Test
+    public void testCapacity() {
+        SharedCacheFile file = SharedCacheFile.create(dir.toPath().resolve("test.data"), 8, 128);
+        Assert.assertTrue(file.hasRoom(128));
+        Assert.assertFalse(file.hasRoom(129));
+        for (int i = 0; i < 6; i++) {
+            Assert.assertFalse(file.isSlotsFull());
+            put(file, "k" + i, null);
+        }
+        // 已使用6个，再占用一个达到7个，超过8个槽位的3/4
+        Assert.assertTrue(file.isSlotsFull());
+        // 每条记录8字节头加2字节key，按8字节对齐后占16字节
+        Assert.assertTrue(file.hasRoom(128 - 6 * 16));
+        Assert.assertFalse(file.hasRoom(128 - 6 * 16 + 1));
+
+        try {
+            SharedCacheFile.create(dir.toPath().resolve("huge.data"), 1 << 20, Integer.MAX_VALUE);
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    /**
+     * 不是共享缓存格式的文件不能打开
+     */
+    @Test
+    public void testOpenRejectsInvalidFile() throws Exception {
+        Path path = dir.toPath().resolve("invalid.data");
+        Files.write(path, new byte[]{1, 2, 3});
+        try {
+            SharedCacheFile.open(path, false);
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        Files.write(path, new byte[SharedCacheFile.HEADER_SIZE * 2]);
+        try {
+            SharedCacheFile.open(path, false);
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+}
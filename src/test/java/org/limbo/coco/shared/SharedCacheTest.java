@@ -0,0 +1,297 @@
+package org.limbo.coco.shared;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.limbo.coco.file.serializer.SerializerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SharedCacheTest {
+
+    private File dir;
+
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("coco_shared").toFile();
+        path = new File(dir, "shared.data").getAbsolutePath();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private SharedCacheWriter<Long, String> writer(int slotCount, long dataCapacity) {
+        return new SharedCacheWriter<>(path, SerializerFactory.classJson(Long.class),
+                SerializerFactory.classJson(String.class), slotCount, dataCapacity);
+    }
+
+    private SharedCacheReader<Long, String> reader() {
+        return new SharedCacheReader<>(path, SerializerFactory.classJson(Long.class),
+                SerializerFactory.classJson(String.class));
+    }
+
+    /**
+     * 所有字符都相同的值，读到的数据混杂了不同版本时可以发现
+     */
+    private static String value(int round, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + round % 26));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 写端的写入、覆盖和删除，另一个读端不经过写端直接读到
+     */
+    @Test
+    public void testPutGetRemove() {
+        SharedCacheWriter<Long, String> writer = writer(1024, 64 * 1024);
+        SharedCacheReader<Long, String> reader = reader();
+        for (long key = 0; key < 100; key++) {
+            Assert.assertFalse(writer.put(key, "v" + key));
+        }
+        Assert.assertTrue(writer.put(1L, "overwritten"));
+        Assert.assertTrue(writer.remove(2L));
+        Assert.assertFalse(writer.remove(2L));
+        Assert.assertFalse(writer.remove(1000L));
+
+        for (AbstractSharedCache<Long, String> cache : Arrays.<AbstractSharedCache<Long, String>>asList(writer, reader)) {
+            Assert.assertEquals(99, cache.getSize());
+            Assert.assertEquals("v0", cache.get(0L));
+            Assert.assertEquals("overwritten", cache.get(1L));
+            Assert.assertNull(cache.get(2L));
+            Assert.assertFalse(cache.contains(2L));
+            Assert.assertTrue(cache.contains(99L));
+            Assert.assertNull(cache.get(100L));
+
+            Set<Long> keys = new HashSet<>(cache.getKeys());
+            Assert.assertEquals(99, keys.size());
+            Assert.assertFalse(keys.contains(2L));
+            Map<Long, String> entries = new HashMap<>();
+            cache.stream().forEach(entry -> entries.put(entry.getKey(), entry.getValue()));
+            Assert.assertEquals(99, entries.size());
+            Assert.assertEquals("overwritten", entries.get(1L));
+        }
+
+        ByteBuffer buffer = reader.getBuffer(3L);
+        Assert.assertTrue(buffer.isReadOnly());
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        Assert.assertEquals("\"v3\"", new String(data, StandardCharsets.UTF_8));
+
+        try {
+            reader.put(0L, "x");
+            Assert.fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+        reader.close();
+        writer.close();
+    }
+
+    /**
+     * null值与不存在的key区分开：get返回null，contains返回true，getBuffer返回null
+     */
+    @Test
+    public void testNullValue() {
+        SharedCacheWriter<Long, String> writer = writer(64, 4096);
+        SharedCacheReader<Long, String> reader = reader();
+        writer.put(1L, null);
+        writer.put(2L, "v2");
+        Assert.assertTrue(writer.put(2L, null));
+
+        for (AbstractSharedCache<Long, String> cache : Arrays.<AbstractSharedCache<Long, String>>asList(writer, reader)) {
+            Assert.assertEquals(2, cache.getSize());
+            Assert.assertNull(cache.get(1L));
+            Assert.assertTrue(cache.contains(1L));
+            Assert.assertNull(cache.getBuffer(1L));
+            Assert.assertTrue(cache.contains(2L));
+            Assert.assertNull(cache.get(2L));
+        }
+        writer.put(1L, "v1");
+        Assert.assertEquals("v1", reader.get(1L));
+        reader.close();
+        writer.close();
+    }
+
+    /**
+     * 数据区写满时写端重建文件，重建前打开的读端下一次访问时重新打开文件；
+     * 重建前拿到的只读视图仍然指向原来的数据
+     */
+    @Test
+    public void testReaderReopenAfterDataFull() {
+        SharedCacheWriter<Long, String> writer = writer(1024, 4096);
+        SharedCacheReader<Long, String> reader = reader();
+        writer.put(0L, "first");
+        ByteBuffer before = reader.getBuffer(0L);
+        SharedCacheFile file = reader.currentFile();
+
+        // 反复覆盖同一批key，只追加的数据区很快写满
+        for (int round = 0; round < 50; round++) {
+            for (long key = 0; key < 20; key++) {
+                writer.put(key, value(round, 20));
+            }
+        }
+        Assert.assertTrue(file.isStale());
+        Assert.assertNotSame(file, reader.currentFile());
+        Assert.assertFalse(reader.currentFile().isStale());
+        Assert.assertEquals(20, reader.getSize());
+        for (long key = 0; key < 20; key++) {
+            Assert.assertEquals(value(49, 20), reader.get(key));
+        }
+
+        byte[] data = new byte[before.remaining()];
+        before.get(data);
+        Assert.assertEquals("\"first\"", new String(data, StandardCharsets.UTF_8));
+        reader.close();
+        writer.close();
+    }
+
+    /**
+     * 槽位使用过多时写端扩大槽位表重建文件，读端重新打开后能读到全部数据
+     */
+    @Test
+    public void testReaderReopenAfterSlotsFull() {
+        SharedCacheWriter<Long, String> writer = writer(16, 64 * 1024);
+        SharedCacheReader<Long, String> reader = reader();
+        SharedCacheFile file = reader.currentFile();
+        Assert.assertEquals(16, file.slotCount());
+
+        for (long key = 0; key < 200; key++) {
+            writer.put(key, "v" + key);
+        }
+        Assert.assertTrue(file.isStale());
+        Assert.assertTrue(reader.currentFile().slotCount() >= 256);
+        Assert.assertEquals(200, reader.getSize());
+        for (long key = 0; key < 200; key++) {
+            Assert.assertEquals("v" + key, reader.get(key));
+        }
+
+        // 删除留下的槽位同样计入，反复写入删除也会触发重建
+        SharedCacheFile beforeRemove = reader.currentFile();
+        for (long key = 200; key < 2000; key++) {
+            writer.put(key, "v" + key);
+            writer.remove(key);
+        }
+        Assert.assertTrue(beforeRemove.isStale());
+        Assert.assertEquals(200, reader.getSize());
+        Assert.assertNull(reader.get(1999L));
+        Assert.assertEquals("v199", reader.get(199L));
+        reader.close();
+        writer.close();
+    }
+
+    /**
+     * 同一个文件只能有一个写端，写端关闭后可以再次创建，新的写端从空文件开始，已打开的读端随之切换
+     */
+    @Test
+    public void testSecondWriterRejected() {
+        SharedCacheWriter<Long, String> writer = writer(64, 4096);
+        writer.put(1L, "v1");
+        try {
+            writer(64, 4096);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("another writer"));
+        }
+        Assert.assertEquals("v1", writer.get(1L));
+
+        SharedCacheReader<Long, String> reader = reader();
+        writer.close();
+        Assert.assertEquals("v1", reader.get(1L));
+        try {
+            writer.get(1L);
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        SharedCacheWriter<Long, String> second = writer(64, 4096);
+        Assert.assertEquals(0, reader.getSize());
+        second.put(2L, "v2");
+        Assert.assertEquals("v2", reader.get(2L));
+        reader.close();
+        second.close();
+    }
+
+    /**
+     * 写端不断覆盖、删除并多次重建文件，读端同时不加锁地读取，
+     * 读到的值要么不存在，要么是某一次完整写入的值，不会混杂不同版本
+     */
+    @Test
+    public void testConcurrentReaderSeesNoTornValues() throws Exception {
+        SharedCacheWriter<Long, String> writer = writer(64, 16 * 1024);
+        int keys = 32;
+        for (long key = 0; key < keys; key++) {
+            writer.put(key, value(0, 10));
+        }
+
+        int readers = 3;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(readers);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger reads = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < readers; t++) {
+            SharedCacheReader<Long, String> reader = reader();
+            new Thread(() -> {
+                try {
+                    start.await();
+                    while (writing.get()) {
+                        for (long key = 0; key < keys; key++) {
+                            String value = reader.get(key);
+                            reads.incrementAndGet();
+                            if (value == null) {
+                                continue;
+                            }
+                            Assert.assertFalse(value.isEmpty());
+                            for (int i = 1; i < value.length(); i++) {
+                                Assert.assertEquals("torn value of key " + key, value.charAt(0), value.charAt(i));
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    reader.close();
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        start.countDown();
+        for (int round = 1; round <= 2000; round++) {
+            for (long key = 0; key < keys; key++) {
+                if ((key + round) % 7 == 0) {
+                    writer.remove(key);
+                } else {
+                    writer.put(key, value(round, 1 + (int) ((key + round) % 40)));
+                }
+            }
+        }
+        writing.set(false);
+        done.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        Assert.assertTrue(reads.get() > 0);
+        writer.close();
+    }
+}
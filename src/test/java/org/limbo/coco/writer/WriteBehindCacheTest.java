@@ -0,0 +1,109 @@
+package org.limbo.coco.writer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.limbo.coco.memory.MapCache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteBehindCacheTest {
+
+    /**
+     * 记录写回结果的后端存储，前 failures 次写入抛出异常
+     */
+    private static class RecordingWriter implements CacheWriter<Long, String> {
+
+        final Map<Long, String> store = new ConcurrentHashMap<>();
+
+        final AtomicInteger deleted = new AtomicInteger(0);
+
+        final AtomicInteger failures = new AtomicInteger(0);
+
+        @Override
+        public void writeAll(Map<Long, String> entries) throws Exception {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("backend unavailable");
+            }
+            store.putAll(entries);
+        }
+
+        @Override
+        public void deleteAll(Collection<Long> keys) {
+            deleted.addAndGet(keys.size());
+            for (Long key : keys) {
+                store.remove(key);
+            }
+        }
+    }
+
+    private static WriteBehindCache<Long, String> cache(MapCache<Long, String> mapCache, RecordingWriter writer) {
+        return new WriteBehindCache<>(mapCache, writer)
+                .setFlushInterval(1, TimeUnit.HOURS)
+                .setRetryBackoff(1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 被包装的缓存淘汰了key，写回的仍然是put的值，不会删除后端存储中的数据
+     */
+    @Test
+    public void testEvictedKeysStillWritten() {
+        RecordingWriter writer = new RecordingWriter();
+        MapCache<Long, String> mapCache = new MapCache<>("8k");
+        WriteBehindCache<Long, String> cache = cache(mapCache, writer);
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, "v" + i);
+        }
+        Assert.assertTrue(mapCache.getSize() < 1000);
+
+        Assert.assertTrue(cache.flush());
+        Assert.assertEquals(1000, writer.store.size());
+        Assert.assertEquals("v0", writer.store.get(0L));
+        Assert.assertEquals(0, writer.deleted.get());
+        cache.close();
+    }
+
+    /**
+     * 同一个key的多次修改合并为最后一次，remove写回为删除
+     */
+    @Test
+    public void testCoalescedPutAndRemove() {
+        RecordingWriter writer = new RecordingWriter();
+        WriteBehindCache<Long, String> cache = cache(new MapCache<>(), writer);
+        writer.store.put(3L, "old");
+        cache.put(1L, "a");
+        cache.put(1L, "b");
+        cache.put(2L, "a");
+        cache.remove(2L);
+        cache.remove(3L);
+        Assert.assertEquals(3, cache.getDirtySize());
+
+        Assert.assertTrue(cache.flush());
+        Assert.assertEquals(Collections.singletonMap(1L, "b"), writer.store);
+        Assert.assertEquals(2, writer.deleted.get());
+        Assert.assertEquals(0, cache.getDirtySize());
+        cache.close();
+    }
+
+    /**
+     * 写回失败的修改重新记录，期间的新修改不会被旧的覆盖
+     */
+    @Test
+    public void testFailedBatchRequeuedWithoutOverwritingNewer() {
+        RecordingWriter writer = new RecordingWriter();
+        WriteBehindCache<Long, String> cache = cache(new MapCache<>(), writer).setMaxRetries(0);
+        cache.put(1L, "a");
+        cache.put(2L, "a");
+        writer.failures.set(1);
+        Assert.assertFalse(cache.flush());
+        Assert.assertEquals(2, cache.getDirtySize());
+
+        cache.put(1L, "b");
+        Assert.assertTrue(cache.flush());
+        Assert.assertEquals("b", writer.store.get(1L));
+        Assert.assertEquals("a", writer.store.get(2L));
+        cache.close();
+    }
+}